@@ -0,0 +1,40 @@
+#!/bin/sh
+# Reference run of the pipeline benchmarks on the CPU backend, saved as baseline.json,
+# with the machine and JVM it ran on in baseline.env
+# Usage : benchmarks/baseline.sh [baseline | compare] [extra JMH options]
+#   baseline : build, run and save baseline.json + baseline.env (default)
+#   compare  : build, run and save current.json + current.env, then compare with baseline.json
+set -e
+cd "$(dirname "$0")"
+mode=${1:-baseline}
+[ $# -gt 0 ] && shift
+case "$mode" in
+    baseline) name=baseline ;;
+    compare) name=current ;;
+    *) echo "Usage : $0 [baseline | compare] [JMH options]" >&2; exit 2 ;;
+esac
+if [ "$mode" = compare ] && [ ! -s baseline.json ]; then
+    echo "No baseline.json, run $0 baseline on the benchmark machine first" >&2
+    exit 2
+fi
+
+(cd .. && mvn -B -q -DskipTests install) && mvn -B -q package
+
+{
+    echo "date: $(date -u +%Y-%m-%dT%H:%M:%SZ)"
+    echo "commit: $(git rev-parse HEAD 2>/dev/null || echo unknown)"
+    echo "host: $(uname -s -r -m)"
+    echo "cpu: $( (grep -m1 'model name' /proc/cpuinfo 2>/dev/null || sysctl -n machdep.cpu.brand_string 2>/dev/null) | sed 's/.*: //')"
+    echo "cores: $(getconf _NPROCESSORS_ONLN)"
+    echo "memory kB: $(awk '/MemTotal/ {print $2}' /proc/meminfo 2>/dev/null)"
+    echo "java: $(java -version 2>&1 | tr '\n' ' ')"
+    echo "jmh options: -p backend=cpu -prof gc $*"
+} > "$name.env"
+
+java -jar target/benchmarks.jar -p backend=cpu -prof gc -rf json -rff "$name.json" "$@"
+
+if [ "$mode" = compare ]; then
+    diff baseline.env current.env | grep -v '^[<>] \(date\|commit\)' | grep '^[<>]' \
+        && echo "Machine or JVM differ from the baseline, scores are not comparable" >&2
+    java -cp target/benchmarks.jar Mito_Bench.BaselineCompare baseline.json current.json 10
+fi
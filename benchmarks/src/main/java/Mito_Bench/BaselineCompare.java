@@ -0,0 +1,193 @@
+package Mito_Bench;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compare a JMH json result file (-rf json) with a baseline
+ * Flags throughput drops and allocation (gc.alloc.rate.norm) increases above a tolerance
+ * Usage : BaselineCompare baseline.json current.json [tolerance %, default 10]
+ * Exit code 1 if a regression is found, 2 if the baseline is missing or holds no benchmark
+ *
+ * @author phm
+ */
+public class BaselineCompare {
+
+    private static final String ALLOC = "gc.alloc.rate.norm";
+
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage : BaselineCompare baseline.json current.json [tolerance %]");
+            System.exit(2);
+        }
+        double tolerance = (args.length > 2) ? Double.parseDouble(args[2]) / 100 : 0.1;
+        if (!Files.isRegularFile(Paths.get(args[0]))) {
+            System.err.println("No baseline " + args[0] + " : save a reference run with -rf json -rff " + args[0]);
+            System.exit(2);
+        }
+        Map<String, double[]> baseline = read(args[0]);
+        if (baseline.isEmpty()) {
+            System.err.println("Baseline " + args[0] + " holds no benchmark, nothing to compare");
+            System.exit(2);
+        }
+        Map<String, double[]> current = read(args[1]);
+        int regressions = 0;
+        for (Map.Entry<String, double[]> e : current.entrySet()) {
+            double[] cur = e.getValue();
+            double[] ref = baseline.get(e.getKey());
+            if (ref == null) {
+                System.out.printf("NEW        %s  %.3f ops/s%n", e.getKey(), cur[0]);
+                continue;
+            }
+            double speed = cur[0] / ref[0] - 1;
+            boolean slower = speed < -tolerance;
+            boolean moreAlloc = !Double.isNaN(ref[1]) && !Double.isNaN(cur[1]) && ref[1] > 0 && cur[1] / ref[1] - 1 > tolerance;
+            if (slower || moreAlloc)
+                regressions++;
+            System.out.printf("%-10s %s  %.3f -> %.3f ops/s (%+.1f%%)%s%n", (slower || moreAlloc) ? "REGRESSION" : "OK",
+                    e.getKey(), ref[0], cur[0], speed * 100,
+                    Double.isNaN(cur[1]) ? "" : String.format("  alloc %.0f -> %.0f B/op", ref[1], cur[1]));
+        }
+        for (String key : baseline.keySet())
+            if (!current.containsKey(key))
+                System.out.println("MISSING    " + key);
+        System.out.println(regressions + " regression(s), tolerance " + tolerance * 100 + "%");
+        System.exit(regressions > 0 ? 1 : 0);
+    }
+
+
+    /**
+     * Benchmark name with its parameters -> {score, allocation bytes/op}
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<String, double[]> read(String file) throws IOException {
+        String json = new String(Files.readAllBytes(Paths.get(file)), StandardCharsets.UTF_8);
+        Map<String, double[]> results = new TreeMap<>();
+        for (Object o : (List<Object>)new Json(json).parse()) {
+            Map<String, Object> run = (Map<String, Object>)o;
+            StringBuilder key = new StringBuilder((String)run.get("benchmark"));
+            Map<String, Object> params = (Map<String, Object>)run.get("params");
+            if (params != null)
+                for (Map.Entry<String, Object> p : new TreeMap<>(params).entrySet())
+                    key.append(' ').append(p.getKey()).append('=').append(p.getValue());
+            double score = ((Number)((Map<String, Object>)run.get("primaryMetric")).get("score")).doubleValue();
+            double alloc = Double.NaN;
+            Map<String, Object> secondary = (Map<String, Object>)run.get("secondaryMetrics");
+            if (secondary != null)
+                for (Map.Entry<String, Object> m : secondary.entrySet())
+                    if (m.getKey().endsWith(ALLOC))
+                        alloc = ((Number)((Map<String, Object>)m.getValue()).get("score")).doubleValue();
+            results.put(key.toString(), new double[] {score, alloc});
+        }
+        return(results);
+    }
+
+
+    /**
+     * Minimal json reader : objects, arrays, strings, numbers, booleans, null
+     */
+    private static class Json {
+        private final String s;
+        private int pos = 0;
+
+        Json(String s) {
+            this.s = s;
+        }
+
+        Object parse() {
+            skip();
+            char c = s.charAt(pos);
+            switch (c) {
+                case '{' :
+                    Map<String, Object> map = new LinkedHashMap<>();
+                    pos++;
+                    skip();
+                    if (s.charAt(pos) == '}') {
+                        pos++;
+                        return(map);
+                    }
+                    while (true) {
+                        skip();
+                        String k = string();
+                        skip();
+                        expect(':');
+                        map.put(k, parse());
+                        skip();
+                        if (s.charAt(pos++) == '}')
+                            return(map);
+                    }
+                case '[' :
+                    List<Object> list = new ArrayList<>();
+                    pos++;
+                    skip();
+                    if (s.charAt(pos) == ']') {
+                        pos++;
+                        return(list);
+                    }
+                    while (true) {
+                        list.add(parse());
+                        skip();
+                        if (s.charAt(pos++) == ']')
+                            return(list);
+                    }
+                case '"' :
+                    return(string());
+                default :
+                    int start = pos;
+                    while (pos < s.length() && ",]} \t\r\n".indexOf(s.charAt(pos)) < 0)
+                        pos++;
+                    String token = s.substring(start, pos);
+                    if (token.equals("true") || token.equals("false"))
+                        return(Boolean.valueOf(token));
+                    if (token.equals("null"))
+                        return(null);
+                    return(token.equals("NaN") ? Double.NaN : Double.parseDouble(token));
+            }
+        }
+
+        private String string() {
+            expect('"');
+            StringBuilder sb = new StringBuilder();
+            while (true) {
+                char c = s.charAt(pos++);
+                if (c == '"')
+                    return(sb.toString());
+                if (c == '\\') {
+                    char e = s.charAt(pos++);
+                    switch (e) {
+                        case 'n' : sb.append('\n'); break;
+                        case 't' : sb.append('\t'); break;
+                        case 'r' : sb.append('\r'); break;
+                        case 'b' : sb.append('\b'); break;
+                        case 'f' : sb.append('\f'); break;
+                        case 'u' :
+                            sb.append((char)Integer.parseInt(s.substring(pos, pos + 4), 16));
+                            pos += 4;
+                            break;
+                        default : sb.append(e);
+                    }
+                }
+                else
+                    sb.append(c);
+            }
+        }
+
+        private void expect(char c) {
+            if (s.charAt(pos++) != c)
+                throw new IllegalArgumentException("Expected " + c + " at " + (pos - 1));
+        }
+
+        private void skip() {
+            while (pos < s.length() && Character.isWhitespace(s.charAt(pos)))
+                pos++;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package Mito_Bench;
+
+import Mito_Utils.Filters3D;
+import Mito_Utils.MitoConfig;
+import Mito_Utils.MitoSegmentation;
+import Mito_Utils.Mito_Processing;
+import Mito_Utils.SkeletonAnalyzer;
+import ij.ImagePlus;
+import ij.gui.Roi;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One benchmark per pipeline stage on a synthetic network
+ * Each stage gets the output of the previous stages, computed once in setup
+ * size (width x height x depth), anisotropy, threads (per roi) and backend are parameters,
+ * run with -prof gc for allocation rates
+ *
+ * @author phm
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx8g", "-Djava.awt.headless=true"})
+public class PipelineBenchmark {
+
+    @Param({"128x128x16", "256x256x32", "512x512x48"})
+    public String size;
+
+    @Param({"1", "3"})
+    public double anisotropy;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    @Param({"cpu"})
+    public String backend;
+
+    private Mito_Processing proc;
+    private ForkJoinPool pool;
+    private File outDir;
+    private ImagePlus img;
+    private Roi roi;
+    private Roi soma;
+    private int width, height;
+    // previous stages outputs
+    private float[][] vol, filtered, dog;
+    private MitoSegmentation mitoSeg;
+    private SkeletonAnalyzer.Result skeletons;
+
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        String[] dims = size.split("x");
+        width = Integer.parseInt(dims[0]);
+        height = Integer.parseInt(dims[1]);
+        int depth = Integer.parseInt(dims[2]);
+        SyntheticNetwork network = SyntheticNetwork.generate(width, height, depth, anisotropy, 42);
+        img = network.image;
+        roi = network.roi;
+        soma = network.soma;
+        MitoConfig config = MitoConfig.defaults().with("backend", backend).with("threads", threads)
+                .with("save.previews", false);
+        proc = new Mito_Processing(config);
+        proc.cal = img.getCalibration();
+        pool = new ForkJoinPool(threads);
+        outDir = Files.createTempDirectory("mito-bench").toFile();
+        vol = Filters3D.toFloat(img.getImageStack());
+        filtered = Filters3D.median(vol, width, height, (int)config.medRadXY, (int)config.medRadXY, (int)config.medRadZ, pool);
+        Filters3D.saturate(filtered, img.getBitDepth());
+        dog = Filters3D.dog(filtered, width, height, config.dogSigma1, config.dogSigma2, pool);
+        Filters3D.saturate(dog, img.getBitDepth());
+        mitoSeg = proc.find_Mito(img, roi);
+        skeletons = proc.analyzeSkeleton(mitoSeg.labels, soma, outDir.getPath() + File.separator, "bench");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        pool.shutdown();
+        proc.getPool().shutdown();
+        FileUtils.deleteDirectory(outDir);
+    }
+
+
+    /**
+     * Labels copy for the in place clearOutSide stage
+     */
+    @State(Scope.Thread)
+    public static class LabelsCopy {
+        ImagePlus labels;
+
+        @Setup(Level.Invocation)
+        public void copy(PipelineBenchmark bench) {
+            labels = bench.mitoSeg.labels.toImagePlus("labels");
+        }
+    }
+
+
+    @Benchmark
+    public float[][] medianFilter() {
+        MitoConfig c = proc.config;
+        return(Filters3D.median(vol, width, height, (int)c.medRadXY, (int)c.medRadXY, (int)c.medRadZ, pool));
+    }
+
+    @Benchmark
+    public float[][] dog() {
+        return(Filters3D.dog(filtered, width, height, proc.config.dogSigma1, proc.config.dogSigma2, pool));
+    }
+
+    @Benchmark
+    public float threshold() {
+        return(Filters3D.autoThreshold(dog, proc.config.thMethod));
+    }
+
+    @Benchmark
+    public MitoSegmentation findMito() {
+        return(proc.find_Mito(img, roi));
+    }
+
+    @Benchmark
+    public ImagePlus clearOutSide(LabelsCopy copy) {
+        proc.clearOutSide(copy.labels, roi);
+        return(copy.labels);
+    }
+
+    @Benchmark
+    public SkeletonAnalyzer.Result analyzeSkeleton() throws Exception {
+        return(proc.analyzeSkeleton(mitoSeg.labels, soma, outDir.getPath() + File.separator, "bench"));
+    }
+
+    @Benchmark
+    public Object intersectionAnalysis() throws Exception {
+        return(proc.intersectionAnalysis(skeletons.skeletonLabels, soma, "bench", outDir.getPath() + File.separator));
+    }
+
+    @Benchmark
+    public double roiVolume() {
+        return(proc.roiVolume(roi, img));
+    }
+
+    @Benchmark
+    public Object computeParameters() {
+        return(proc.computeParameters(mitoSeg, img, skeletons.getParams(), roi, soma, "bench"));
+    }
+}
@@ -0,0 +1,121 @@
+package Mito_Bench;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.OvalRoi;
+import ij.gui.PointRoi;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.measure.Calibration;
+import java.util.ArrayDeque;
+import java.util.Random;
+
+/**
+ * Synthetic astrocyte mito network : branching random walks of tubes
+ * starting from a soma, on a noisy background
+ * Image is the roi crop : roi is the ellipse inscribed in the image
+ *
+ * @author phm
+ */
+public class SyntheticNetwork {
+
+    // xy pixel size (microns)
+    public static final double PIXEL_WIDTH = 0.1;
+    private static final int BACKGROUND = 200;
+    private static final int SIGNAL = 2000;
+    private static final double NOISE = 60;
+    // tube radius, walk step (pixels)
+    private static final double TUBE_RADIUS = 1.5;
+    private static final double STEP = 1;
+    private static final int PRIMARY_BRANCHES = 8;
+    private static final double BRANCHING = 0.02;
+
+    public final ImagePlus image;
+    public final Roi roi;
+    public final PointRoi soma;
+
+
+    private SyntheticNetwork(ImagePlus image, Roi roi, PointRoi soma) {
+        this.image = image;
+        this.roi = roi;
+        this.soma = soma;
+    }
+
+
+    /**
+     * Generate a 16-bit network
+     * @param width
+     * @param height
+     * @param depth
+     * @param anisotropy z step / xy pixel size
+     * @param seed
+     * @return
+     */
+    public static SyntheticNetwork generate(int width, int height, int depth, double anisotropy, long seed) {
+        Random rnd = new Random(seed);
+        short[][] pixels = new short[depth][width * height];
+        for (short[] slice : pixels)
+            for (int i = 0; i < slice.length; i++)
+                slice[i] = (short)Math.max(0, BACKGROUND + rnd.nextGaussian() * NOISE);
+        double cx = width / 2.0, cy = height / 2.0, cz = depth / 2.0;
+        // walks in isotropic pixel units, z divided by anisotropy when drawn
+        double maxLength = Math.min(width, height) / 2.0;
+        ArrayDeque<double[]> walks = new ArrayDeque<>();
+        for (int b = 0; b < PRIMARY_BRANCHES; b++) {
+            double theta = 2 * Math.PI * b / PRIMARY_BRANCHES;
+            walks.add(new double[] {cx, cy, cz * anisotropy, Math.cos(theta), Math.sin(theta), 0, maxLength});
+        }
+        while (!walks.isEmpty()) {
+            double[] w = walks.poll();
+            double x = w[0], y = w[1], z = w[2], dx = w[3], dy = w[4], dz = w[5];
+            for (double l = 0; l < w[6]; l += STEP) {
+                // smooth direction change
+                dx += rnd.nextGaussian() * 0.15;
+                dy += rnd.nextGaussian() * 0.15;
+                dz += rnd.nextGaussian() * 0.05;
+                double n = Math.sqrt(dx*dx + dy*dy + dz*dz);
+                dx /= n;
+                dy /= n;
+                dz /= n;
+                x += dx * STEP;
+                y += dy * STEP;
+                z += dz * STEP;
+                if (x < 0 || y < 0 || x >= width || y >= height || z < 0 || z >= depth * anisotropy)
+                    break;
+                drawSphere(pixels, width, height, depth, x, y, z / anisotropy, anisotropy, rnd);
+                if (rnd.nextDouble() < BRANCHING)
+                    walks.add(new double[] {x, y, z, -dy, dx, dz, (w[6] - l) / 2});
+            }
+        }
+        ImageStack stack = new ImageStack(width, height);
+        for (short[] slice : pixels)
+            stack.addSlice(null, slice);
+        ImagePlus img = new ImagePlus("synthetic", stack);
+        Calibration cal = new Calibration();
+        cal.pixelWidth = PIXEL_WIDTH;
+        cal.pixelHeight = PIXEL_WIDTH;
+        cal.pixelDepth = PIXEL_WIDTH * anisotropy;
+        cal.setUnit("microns");
+        img.setCalibration(cal);
+        Roi roi = new PolygonRoi(new OvalRoi(0, 0, width, height).getPolygon(), Roi.POLYGON);
+        roi.setName("synthetic");
+        PointRoi soma = new PointRoi(cx, cy);
+        soma.setPosition((int)cz + 1);
+        soma.setName("synthetic");
+        return(new SyntheticNetwork(img, roi, soma));
+    }
+
+    private static void drawSphere(short[][] pixels, int width, int height, int depth, double x, double y, double z,
+            double anisotropy, Random rnd) {
+        int r = (int)Math.ceil(TUBE_RADIUS), rz = (int)Math.ceil(TUBE_RADIUS / anisotropy);
+        for (int k = (int)z - rz; k <= (int)z + rz; k++)
+            for (int j = (int)y - r; j <= (int)y + r; j++)
+                for (int i = (int)x - r; i <= (int)x + r; i++) {
+                    if (i < 0 || j < 0 || k < 0 || i >= width || j >= height || k >= depth)
+                        continue;
+                    double ddx = i - x, ddy = j - y, ddz = (k - z) * anisotropy;
+                    if (ddx*ddx + ddy*ddy + ddz*ddz <= TUBE_RADIUS * TUBE_RADIUS)
+                        pixels[k][i + j * width] = (short)Math.max(0, SIGNAL + rnd.nextGaussian() * NOISE);
+                }
+    }
+}
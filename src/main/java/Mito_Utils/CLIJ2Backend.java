@@ -0,0 +1,345 @@
+package Mito_Utils;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij2.CLIJ2;
+
+/**
+ * Mito segmentation on GPU with CLIJ2, one OpenCL context
+ * Released buffers are kept and reused by the next buffer of the same size and type,
+ * idle buffers are released when a segmentation needs room, buffers still in use when a segmentation fails are released
+ * Segmentations of one context run one at a time (synchronized) : OpenCL calls ignore thread interrupts,
+ * a ROI over the scheduler timeout is abandoned but keeps the context until its device call ends
+ *
+ * @author phm
+ */
+public class CLIJ2Backend implements SegmentationBackend {
+
+    // part of device memory used by one segmentation
+    private static final double DEVICE_FRACTION = 0.8;
+
+    public final CLIJ2 clij2;
+    // contexts sharing the device
+    private final int shares;
+    // device bytes held by this backend buffers (used and idle), peak since last segmentation start
+    private long deviceBytes = 0;
+    private long peakDeviceBytes = 0;
+    // released buffers, oldest first
+    private final ArrayDeque<ClearCLBuffer> idle = new ArrayDeque<>();
+    // buffers acquired by the running segmentation and not freed yet
+    private final List<ClearCLBuffer> inUse = new ArrayList<>();
+
+    public CLIJ2Backend(CLIJ2 clij2) {
+        this(clij2, 1);
+    }
+
+    /**
+     * @param clij2 context
+     * @param shares number of contexts sharing the device memory
+     */
+    public CLIJ2Backend(CLIJ2 clij2, int shares) {
+        this.clij2 = clij2;
+        this.shares = Math.max(1, shares);
+    }
+
+    @Override
+    public String getName() {
+        return("clij2 (" + clij2.getGPUName() + ")");
+    }
+
+
+    private ClearCLBuffer track(ClearCLBuffer buffer) {
+        deviceBytes += buffer.getSizeInBytes();
+        peakDeviceBytes = Math.max(peakDeviceBytes, deviceBytes);
+        inUse.add(buffer);
+        return(buffer);
+    }
+
+    /**
+     * Buffer with the dimensions and type of another, an idle one if any
+     */
+    private ClearCLBuffer create(ClearCLBuffer like) {
+        for (Iterator<ClearCLBuffer> it = idle.iterator(); it.hasNext();) {
+            ClearCLBuffer buffer = it.next();
+            if (buffer.getNativeType() == like.getNativeType() && Arrays.equals(buffer.getDimensions(), like.getDimensions())) {
+                it.remove();
+                inUse.add(buffer);
+                return(buffer);
+            }
+        }
+        return(track(clij2.create(like)));
+    }
+
+    private void free(ClearCLBuffer buffer) {
+        inUse.remove(buffer);
+        idle.addLast(buffer);
+    }
+
+    /**
+     * Release the buffers a failed segmentation did not free, none after a successful one
+     * A release error does not hide the segmentation error
+     */
+    private void releaseInUse() {
+        while (!inUse.isEmpty()) {
+            ClearCLBuffer buffer = inUse.remove(inUse.size() - 1);
+            try {
+                release(buffer);
+            } catch (RuntimeException ex) {
+                System.out.println("Device buffer release failed : " + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Release idle buffers, oldest first, until needed bytes fit in the device budget
+     */
+    private void trim(long needed) {
+        long budget = getDeviceBudget();
+        while (!idle.isEmpty() && deviceBytes + needed > budget)
+            release(idle.pollFirst());
+    }
+
+    private void release(ClearCLBuffer buffer) {
+        deviceBytes -= buffer.getSizeInBytes();
+        clij2.release(buffer);
+    }
+
+    /**
+     * Release all idle buffers
+     */
+    public synchronized void releaseIdle() {
+        while (!idle.isEmpty())
+            release(idle.pollFirst());
+    }
+
+    /**
+     * Peak device memory of the last segmentation
+     */
+    public synchronized long getPeakDeviceBytes() {
+        return(peakDeviceBytes);
+    }
+
+
+    /**
+     * Difference of Gaussians
+     * Using CLIJ2
+     * @param imgCL
+     * @param size1
+     * @param size2
+     * @return imgGauss
+     */
+    public ClearCLBuffer DOG(ClearCLBuffer imgCL, double size1, double size2) {
+        ClearCLBuffer imgCLDOG = create(imgCL);
+        clij2.differenceOfGaussian3D(imgCL, imgCLDOG, size1, size1, size1, size2, size2, size2);
+        free(imgCL);
+        return(imgCLDOG);
+    }
+
+    /**
+     * Threshold
+     * USING CLIJ2
+     * @param imgCL
+     * @param thMed
+     */
+    public ClearCLBuffer threshold(ClearCLBuffer imgCL, String thMed) {
+        ClearCLBuffer imgCLBin = create(imgCL);
+        clij2.automaticThreshold(imgCL, imgCLBin, thMed);
+        return(imgCLBin);
+    }
+
+    /* Median filter
+     * Using CLIJ2
+     * @param ClearCLBuffer
+     * @param sizeXY
+     * @param sizeZ
+     */
+    public ClearCLBuffer median_filter(ClearCLBuffer  imgCL, double sizeXY, double sizeZ) {
+        ClearCLBuffer imgCLMed = create(imgCL);
+        clij2.median3DBox(imgCL, imgCLMed, sizeXY, sizeXY, sizeZ);
+        free(imgCL);
+        return(imgCLMed);
+    }
+
+
+    /**
+     * Segment, calls on the shared CLIJ2 context are serialized
+     */
+    @Override
+    public synchronized ImagePlus segment(ImagePlus img, double medRadXY, double medRadZ, double sigma1, double sigma2, String thMethod,
+            double minSize, double maxSize) {
+        trim(fusedMemory((long)img.getWidth() * img.getHeight() * img.getNSlices(), img.getBitDepth() / 8));
+        peakDeviceBytes = deviceBytes;
+        try {
+            ClearCLBuffer imgCL = track(clij2.push(img));
+            ClearCLBuffer imgMed = median_filter(imgCL, medRadXY, medRadZ);
+            ClearCLBuffer imgDOG = DOG(imgMed, sigma1, sigma2);
+            ClearCLBuffer imgCLBin = threshold(imgDOG, thMethod);
+            ClearCLBuffer imgLabelled = create(imgDOG);
+            free(imgDOG);
+            clij2.connectedComponentsLabelingBox(imgCLBin, imgLabelled);
+            free(imgCLBin);
+            ClearCLBuffer labelsSizeFilter = create(imgLabelled);
+            // filter size
+            clij2.excludeLabelsOutsideSizeRange(imgLabelled, labelsSizeFilter, minSize, maxSize);
+            free(imgLabelled);
+            ImagePlus imgLabels = clij2.pull(labelsSizeFilter);
+            free(labelsSizeFilter);
+            imgLabels.setCalibration(img.getCalibration());
+            StageMetrics.deviceBytes(peakDeviceBytes);
+            return(imgLabels);
+        } finally {
+            releaseInUse();
+        }
+    }
+
+
+    /**
+     * Estimated device memory for a fused segmentation of a stack
+     * input, median, DoG, binary, labels, filtered labels + 2 float Gaussian buffers
+     * @param voxels
+     * @param bytesPerPixel
+     * @return
+     */
+    public static long fusedMemory(long voxels, int bytesPerPixel) {
+        return(voxels * (6L * bytesPerPixel + 8));
+    }
+
+    /**
+     * Device memory available for one segmentation, shared between the device contexts
+     */
+    public long getDeviceBudget() {
+        return((long)(clij2.getCLIJ().getGPUMemoryInBytes() * DEVICE_FRACTION) / shares);
+    }
+
+
+    /**
+     * Fused segmentation, everything stays on device until labels are masked by roi
+     * Only the masked labels (dense, input bit depth) and the per label statistics are pulled back
+     * Stacks too big for the device are processed in Z chunks (median + DoG on device,
+     * threshold, labelling and size filter streamed on host)
+     * @param img mito channel stack
+     * @param mask roi mask, same size as img
+     * @param medRadXY
+     * @param medRadZ
+     * @param sigma1
+     * @param sigma2
+     * @param thMethod
+     * @param minSize
+     * @param maxSize
+     * @return
+     */
+    public synchronized MitoSegmentation segmentMasked(ImagePlus img, RoiMask mask, double medRadXY, double medRadZ,
+            double sigma1, double sigma2, String thMethod, double minSize, double maxSize) {
+        long voxels = (long)img.getWidth() * img.getHeight() * img.getNSlices();
+        int bpp = img.getBitDepth() / 8;
+        long budget = getDeviceBudget();
+        if (fusedMemory(voxels, bpp) > budget)
+            return(segmentChunked(img, mask, medRadXY, medRadZ, sigma1, sigma2, thMethod, minSize, maxSize, budget));
+        trim(fusedMemory(voxels, bpp));
+        peakDeviceBytes = deviceBytes;
+        try {
+            ClearCLBuffer imgCL = track(clij2.push(img));
+            // input kept for intensity statistics
+            ClearCLBuffer imgMed = create(imgCL);
+            clij2.median3DBox(imgCL, imgMed, medRadXY, medRadXY, medRadZ);
+            ClearCLBuffer imgDOG = DOG(imgMed, sigma1, sigma2);
+            ClearCLBuffer imgCLBin = threshold(imgDOG, thMethod);
+            ClearCLBuffer imgLabelled = create(imgDOG);
+            free(imgDOG);
+            clij2.connectedComponentsLabelingBox(imgCLBin, imgLabelled);
+            free(imgCLBin);
+            ClearCLBuffer labelsSizeFilter = create(imgLabelled);
+            clij2.excludeLabelsOutsideSizeRange(imgLabelled, labelsSizeFilter, minSize, maxSize);
+            // clear outside roi
+            ClearCLBuffer maskCL = track(clij2.push(new ImagePlus("mask", mask.toProcessor())));
+            clij2.multiplyStackWithPlane(labelsSizeFilter, maskCL, imgLabelled);
+            free(maskCL);
+            free(labelsSizeFilter);
+            double[][] stats = clij2.statisticsOfLabelledPixels(imgCL, imgLabelled);
+            free(imgCL);
+            // CLIJ2 has no run-length encoding : masked labels are pulled dense, encoded on host and released
+            ImagePlus imgLabels = clij2.pull(imgLabelled);
+            free(imgLabelled);
+            imgLabels.setCalibration(img.getCalibration());
+            StageMetrics.deviceBytes(peakDeviceBytes);
+            SparseLabels labels = SparseLabels.of(imgLabels);
+            imgLabels.flush();
+            return(new MitoSegmentation(labels, LabelStats.fromTable(stats, img.getCalibration()), mask));
+        } finally {
+            releaseInUse();
+        }
+    }
+
+
+    /**
+     * Z chunks with halos covering median and DoG support, median + DoG on device,
+     * threshold, labelling and size filter streamed on host
+     */
+    private MitoSegmentation segmentChunked(ImagePlus img, RoiMask mask, double medRadXY, double medRadZ,
+            double sigma1, double sigma2, String thMethod, double minSize, double maxSize, long budget) {
+        int width = img.getWidth(), height = img.getHeight(), depth = img.getNSlices();
+        int chunk = deviceSlices(width, height, img.getBitDepth() / 8, SlabSegmenter.halo(medRadZ, sigma1, sigma2), budget);
+        System.out.println("Crop too big for device, " + (depth + chunk - 1) / chunk + " Z chunks");
+        ImagePlus imgLabels = labelsImage(img, slabs(img, chunk, medRadXY, medRadZ, sigma1, sigma2, thMethod, minSize, maxSize));
+        mask.clearOutside(imgLabels.getImageStack(), null);
+        SparseLabels labels = SparseLabels.of(imgLabels);
+        imgLabels.flush();
+        return(new MitoSegmentation(labels, LabelStats.compute(labels, img.getImageStack()), mask));
+    }
+
+    /**
+     * Slab segmentation, slabs are also limited by device memory
+     */
+    @Override
+    public synchronized ImagePlus segmentSlabs(ImagePlus img, int slabSlices, double medRadXY, double medRadZ, double sigma1,
+            double sigma2, String thMethod, double minSize, double maxSize) {
+        int chunk = Math.min(slabSlices, deviceSlices(img.getWidth(), img.getHeight(), img.getBitDepth() / 8, 
+                SlabSegmenter.halo(medRadZ, sigma1, sigma2), getDeviceBudget()));
+        return(labelsImage(img, slabs(img, chunk, medRadXY, medRadZ, sigma1, sigma2, thMethod, minSize, maxSize)));
+    }
+
+    private short[][] slabs(ImagePlus img, int slabSlices, double medRadXY, double medRadZ, double sigma1, double sigma2, 
+            String thMethod, double minSize, double maxSize) {
+        int halo = SlabSegmenter.halo(medRadZ, sigma1, sigma2);
+        trim(fusedMemory((long)img.getWidth() * img.getHeight() * (slabSlices + 2 * halo), img.getBitDepth() / 8));
+        peakDeviceBytes = deviceBytes;
+        SlabSegmenter slabs = new SlabSegmenter(slabSlices, halo);
+        try {
+            short[][] labels = slabs.segment(img.getImageStack(), slab -> {
+                ClearCLBuffer imgCL = track(clij2.push(new ImagePlus("slab", slab)));
+                ClearCLBuffer imgMed = median_filter(imgCL, medRadXY, medRadZ);
+                ClearCLBuffer imgDOG = DOG(imgMed, sigma1, sigma2);
+                float[][] slabDog = Filters3D.toFloat(clij2.pull(imgDOG).getImageStack());
+                free(imgDOG);
+                return(slabDog);
+            }, thMethod, minSize, maxSize);
+            StageMetrics.deviceBytes(peakDeviceBytes);
+            return(labels);
+        } finally {
+            releaseInUse();
+        }
+    }
+
+    /**
+     * Core slices of device slabs
+     */
+    private static int deviceSlices(int width, int height, int bytesPerPixel, int halo, long budget) {
+        long sliceMemory = fusedMemory((long)width * height, bytesPerPixel);
+        return((int)Math.max(1, Math.min(Integer.MAX_VALUE, budget / sliceMemory - 2 * halo)));
+    }
+
+    private static ImagePlus labelsImage(ImagePlus img, short[][] labels) {
+        ImageStack stack = new ImageStack(img.getWidth(), img.getHeight());
+        for (short[] slice : labels)
+            stack.addSlice("", slice);
+        ImagePlus imgLabels = new ImagePlus(img.getTitle() + "_labels", stack);
+        imgLabels.setCalibration(img.getCalibration());
+        return(imgLabels);
+    }
+}
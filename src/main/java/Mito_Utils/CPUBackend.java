@@ -0,0 +1,77 @@
+package Mito_Utils;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Mito segmentation in pure Java, multithreaded with fork-join
+ * Intermediate images are saturated to the input bit depth like CLIJ2 buffers
+ *
+ * @author phm
+ */
+public class CPUBackend implements SegmentationBackend {
+
+    private final ForkJoinPool pool;
+
+    public CPUBackend() {
+        this(Prefs.getThreads());
+    }
+
+    public CPUBackend(int threads) {
+        pool = new ForkJoinPool(Math.max(1, threads));
+    }
+
+    @Override
+    public String getName() {
+        return("cpu (" + pool.getParallelism() + " threads)");
+    }
+
+    @Override
+    public ImagePlus segment(ImagePlus img, double medRadXY, double medRadZ, double sigma1, double sigma2, String thMethod,
+            double minSize, double maxSize) {
+        int width = img.getWidth(), height = img.getHeight();
+        float[][] dog = filter(img.getImageStack(), img.getBitDepth(), medRadXY, medRadZ, sigma1, sigma2);
+        float th = Filters3D.autoThreshold(dog, thMethod);
+        int[][] labels = new int[dog.length][width * height];
+        int nbLabels = Filters3D.label26(dog, width, height, th, labels);
+        dog = null;
+        return(labelsImage(img, Filters3D.sizeFilter(labels, nbLabels, minSize, maxSize)));
+    }
+
+    @Override
+    public ImagePlus segmentSlabs(ImagePlus img, int slabSlices, double medRadXY, double medRadZ, double sigma1,
+            double sigma2, String thMethod, double minSize, double maxSize) {
+        int bitDepth = img.getBitDepth();
+        SlabSegmenter slabs = new SlabSegmenter(slabSlices, SlabSegmenter.halo(medRadZ, sigma1, sigma2));
+        short[][] labels = slabs.segment(img.getImageStack(), slab -> filter(slab, bitDepth, medRadXY, medRadZ, sigma1, sigma2),
+                thMethod, minSize, maxSize);
+        return(labelsImage(img, labels));
+    }
+
+
+    /**
+     * Median box filter + DoG, saturated to bit depth
+     */
+    private float[][] filter(ImageStack stack, int bitDepth, double medRadXY, double medRadZ, double sigma1, double sigma2) {
+        int width = stack.getWidth(), height = stack.getHeight();
+        float[][] vol = Filters3D.toFloat(stack);
+        float[][] med = Filters3D.median(vol, width, height, (int)medRadXY, (int)medRadXY, (int)medRadZ, pool);
+        vol = null;
+        Filters3D.saturate(med, bitDepth);
+        float[][] dog = Filters3D.dog(med, width, height, sigma1, sigma2, pool);
+        med = null;
+        Filters3D.saturate(dog, bitDepth);
+        return(dog);
+    }
+
+    private static ImagePlus labelsImage(ImagePlus img, short[][] labels) {
+        ImageStack stack = new ImageStack(img.getWidth(), img.getHeight());
+        for (short[] slice : labels)
+            stack.addSlice("", slice);
+        ImagePlus imgLabels = new ImagePlus(img.getTitle() + "_labels", stack);
+        imgLabels.setCalibration(img.getCalibration());
+        return(imgLabels);
+    }
+}
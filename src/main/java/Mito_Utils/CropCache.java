@@ -0,0 +1,345 @@
+package Mito_Utils;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Decoded mito channel crops in Results/.cache, so reruns skip Bio-Formats decoding
+ * One raw file per crop, named by the hash of its key (image path, size, modification time, series,
+ * channel, crop rectangle) : header then little-endian planes, read back through memory mappings
+ * Least recently used crops are deleted above the size cap, crops reserved by the running batch are kept
+ * Image series sizes and calibrations are kept next to the crops, a fully cached image is never opened
+ *
+ * @author phm
+ */
+public class CropCache {
+
+    private static final String CACHE = ".cache";
+    private static final byte[] MAGIC = "MITOCROP".getBytes(StandardCharsets.US_ASCII);
+    private final Path dir;
+    private final long maxBytes;
+    // entries reserved for a pending open
+    private final Set<Path> reserved = new HashSet<>();
+
+
+    /**
+     * @param outDir results folder
+     * @param maxBytes crops size cap
+     * @throws IOException
+     */
+    public CropCache(String outDir, long maxBytes) throws IOException {
+        dir = Paths.get(outDir, CACHE);
+        Files.createDirectories(dir);
+        this.maxBytes = maxBytes;
+    }
+
+
+    /**
+     * Crop key
+     * @param imageKey image path, size and modification time
+     * @param series
+     * @param channel
+     * @param rect crop rectangle
+     * @return
+     */
+    public static String cropKey(String imageKey, int series, int channel, Rectangle rect) {
+        return(imageKey + "|" + series + "|" + channel + "|" + rect.x + "," + rect.y + "," + rect.width + "," + rect.height);
+    }
+
+
+    /**
+     * Reserve a cached crop for a later open, it is not evicted meanwhile
+     * @param key
+     * @return crop slices, 0 if not cached
+     */
+    public int reserve(String key) {
+        Path entry = entryFile(key);
+        try (FileChannel channel = FileChannel.open(entry, StandardOpenOption.READ)) {
+            Header header = readHeader(channel);
+            if (header == null || !key.equals(header.key))
+                return(0);
+            synchronized (this) {
+                reserved.add(entry);
+            }
+            return(header.depth);
+        } catch (IOException ex) {
+            return(0);
+        }
+    }
+
+    /**
+     * Open a cached crop, planes are copied from read-only mappings
+     * @param key
+     * @param cal calibration set on the crop
+     * @param title
+     * @return crop, null if missing or unreadable
+     */
+    public ImagePlus open(String key, Calibration cal, String title) {
+        Path entry = entryFile(key);
+        try (FileChannel channel = FileChannel.open(entry, StandardOpenOption.READ)) {
+            Header header = readHeader(channel);
+            if (header == null || !key.equals(header.key))
+                return(null);
+            int n = header.width * header.height;
+            long planeBytes = (long)n * (header.bitDepth / 8);
+            if (channel.size() < header.dataOffset + planeBytes * header.depth)
+                return(null);
+            ImageStack stack = new ImageStack(header.width, header.height);
+            for (int z = 0; z < header.depth; z++) {
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, header.dataOffset + z * planeBytes, planeBytes);
+                map.order(ByteOrder.LITTLE_ENDIAN);
+                stack.addSlice("", toPixels(map, n, header.bitDepth));
+            }
+            // least recently used order
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+            ImagePlus img = new ImagePlus(title, stack);
+            img.setCalibration(cal);
+            return(img);
+        } catch (IOException ex) {
+            return(null);
+        } finally {
+            synchronized (this) {
+                reserved.remove(entry);
+            }
+        }
+    }
+
+    private static Object toPixels(ByteBuffer buffer, int n, int bitDepth) {
+        switch (bitDepth) {
+            case 8 : {
+                byte[] pixels = new byte[n];
+                buffer.get(pixels);
+                return(pixels);
+            }
+            case 16 : {
+                short[] pixels = new short[n];
+                buffer.asShortBuffer().get(pixels);
+                return(pixels);
+            }
+            default : {
+                float[] pixels = new float[n];
+                buffer.asFloatBuffer().get(pixels);
+                return(pixels);
+            }
+        }
+    }
+
+
+    /**
+     * Store a decoded crop, replace previous entry atomically, then evict least recently used crops
+     * @param key
+     * @param img crop
+     * @throws IOException
+     */
+    public void put(String key, ImagePlus img) throws IOException {
+        ImageStack stack = img.getImageStack();
+        int width = stack.getWidth(), height = stack.getHeight(), depth = stack.getSize();
+        int bitDepth = img.getBitDepth();
+        if (bitDepth == 24)
+            return;
+        int n = width * height;
+        long size = (long)n * depth * (bitDepth / 8);
+        if (size > maxBytes)
+            return;
+        Path entry = entryFile(key);
+        Path tmp = Files.createTempFile(dir, entry.getFileName().toString(), ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            int dataOffset = dataOffset(keyBytes.length);
+            ByteBuffer header = ByteBuffer.allocate(dataOffset).order(ByteOrder.LITTLE_ENDIAN);
+            header.put(MAGIC).putInt(keyBytes.length).put(keyBytes).putInt(width).putInt(height).putInt(depth).putInt(bitDepth);
+            header.rewind();
+            write(channel, header);
+            ByteBuffer plane = ByteBuffer.allocateDirect(n * (bitDepth / 8)).order(ByteOrder.LITTLE_ENDIAN);
+            for (int z = 1; z <= depth; z++) {
+                plane.clear();
+                Object pixels = stack.getPixels(z);
+                if (pixels instanceof byte[])
+                    plane.put((byte[])pixels);
+                else if (pixels instanceof short[])
+                    plane.asShortBuffer().put((short[])pixels);
+                else
+                    plane.asFloatBuffer().put((float[])pixels);
+                plane.rewind();
+                write(channel, plane);
+            }
+        } catch (IOException ex) {
+            Files.deleteIfExists(tmp);
+            throw ex;
+        }
+        ResultsCache.moveAtomic(tmp, entry);
+        evict(entry);
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    /**
+     * Delete least recently used crops until the cache fits its cap
+     */
+    private synchronized void evict(Path keep) throws IOException {
+        List<Path> entries = new ArrayList<>();
+        long total = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.raw")) {
+            for (Path f : files) {
+                entries.add(f);
+                total += Files.size(f);
+            }
+        }
+        if (total <= maxBytes)
+            return;
+        entries.sort(Comparator.comparingLong(CropCache::lastUse));
+        for (Path f : entries) {
+            if (total <= maxBytes)
+                break;
+            if (f.equals(keep) || reserved.contains(f))
+                continue;
+            long size = Files.size(f);
+            try {
+                Files.delete(f);
+                total -= size;
+            } catch (IOException ex) {
+                // still mapped (Windows), next eviction
+            }
+        }
+    }
+
+    private static long lastUse(Path f) {
+        try {
+            return(Files.getLastModifiedTime(f).toMillis());
+        } catch (IOException ex) {
+            return(0);
+        }
+    }
+
+
+    /**
+     * Cached series sizes and calibrations of an image
+     * @param imageKey
+     * @return null if not cached
+     */
+    public List<Ingestion.SeriesInfo> getSeries(String imageKey) {
+        Properties p = new Properties();
+        try (InputStream in = Files.newInputStream(seriesFile(imageKey))) {
+            p.load(in);
+            if (!imageKey.equals(p.getProperty("key")))
+                return(null);
+            List<Ingestion.SeriesInfo> series = new ArrayList<>();
+            int count = Integer.parseInt(p.getProperty("series"));
+            for (int s = 0; s < count; s++) {
+                Calibration cal = new Calibration();
+                cal.pixelWidth = Double.parseDouble(p.getProperty(s + ".pixelWidth"));
+                cal.pixelHeight = Double.parseDouble(p.getProperty(s + ".pixelHeight"));
+                cal.pixelDepth = Double.parseDouble(p.getProperty(s + ".pixelDepth"));
+                cal.setUnit(p.getProperty(s + ".unit"));
+                series.add(new Ingestion.SeriesInfo(s, Integer.parseInt(p.getProperty(s + ".sizeX")),
+                        Integer.parseInt(p.getProperty(s + ".sizeY")), Integer.parseInt(p.getProperty(s + ".sizeZ")), cal));
+            }
+            return(series);
+        } catch (IOException | RuntimeException ex) {
+            return(null);
+        }
+    }
+
+    /**
+     * Store series sizes and calibrations of an image
+     * @param imageKey
+     * @param series all series, in series order
+     * @throws IOException
+     */
+    public void putSeries(String imageKey, List<Ingestion.SeriesInfo> series) throws IOException {
+        Properties p = new Properties();
+        p.setProperty("key", imageKey);
+        p.setProperty("series", String.valueOf(series.size()));
+        for (Ingestion.SeriesInfo info : series) {
+            int s = info.series;
+            p.setProperty(s + ".sizeX", String.valueOf(info.sizeX));
+            p.setProperty(s + ".sizeY", String.valueOf(info.sizeY));
+            p.setProperty(s + ".sizeZ", String.valueOf(info.sizeZ));
+            p.setProperty(s + ".pixelWidth", String.valueOf(info.cal.pixelWidth));
+            p.setProperty(s + ".pixelHeight", String.valueOf(info.cal.pixelHeight));
+            p.setProperty(s + ".pixelDepth", String.valueOf(info.cal.pixelDepth));
+            p.setProperty(s + ".unit", info.cal.getUnit());
+        }
+        Path entry = seriesFile(imageKey);
+        Path tmp = Files.createTempFile(dir, entry.getFileName().toString(), ".tmp");
+        try (OutputStream out = Files.newOutputStream(tmp)) {
+            p.store(out, null);
+        }
+        ResultsCache.moveAtomic(tmp, entry);
+    }
+
+
+    private Path entryFile(String key) {
+        return(dir.resolve(ResultsCache.keyHash(key) + ".raw"));
+    }
+
+    private Path seriesFile(String imageKey) {
+        return(dir.resolve(ResultsCache.keyHash(imageKey) + ".series"));
+    }
+
+    // planes start 8 bytes aligned
+    private static int dataOffset(int keyLength) {
+        int header = MAGIC.length + 4 + keyLength + 16;
+        return((header + 7) & ~7);
+    }
+
+    private static Header readHeader(FileChannel channel) throws IOException {
+        ByteBuffer fixed = ByteBuffer.allocate(MAGIC.length + 4).order(ByteOrder.LITTLE_ENDIAN);
+        if (channel.read(fixed, 0) < fixed.capacity())
+            return(null);
+        fixed.flip();
+        byte[] magic = new byte[MAGIC.length];
+        fixed.get(magic);
+        int keyLength = fixed.getInt();
+        if (!Arrays.equals(magic, MAGIC) || keyLength < 0 || keyLength > channel.size())
+            return(null);
+        ByteBuffer rest = ByteBuffer.allocate(keyLength + 16).order(ByteOrder.LITTLE_ENDIAN);
+        if (channel.read(rest, fixed.capacity()) < rest.capacity())
+            return(null);
+        rest.flip();
+        byte[] keyBytes = new byte[keyLength];
+        rest.get(keyBytes);
+        Header header = new Header();
+        header.key = new String(keyBytes, StandardCharsets.UTF_8);
+        header.width = rest.getInt();
+        header.height = rest.getInt();
+        header.depth = rest.getInt();
+        header.bitDepth = rest.getInt();
+        header.dataOffset = dataOffset(keyLength);
+        if (header.bitDepth != 8 && header.bitDepth != 16 && header.bitDepth != 32)
+            return(null);
+        return(header);
+    }
+
+    private static class Header {
+        String key;
+        int width, height, depth, bitDepth;
+        long dataOffset;
+    }
+}
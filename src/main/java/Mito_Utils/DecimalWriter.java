@@ -0,0 +1,244 @@
+package Mito_Utils;
+
+import java.math.BigInteger;
+
+/**
+ * Shortest decimal that reads back to the same double, written into a byte array without allocation
+ * Digits come from the Schubfach algorithm (R. Giulietti, "The Schubfach way to render doubles"),
+ * the table of 126-bit powers of ten is computed once when the class loads
+ * Plain notation for 1e-3 <= |v| < 1e12 ("42", "0.1", "-2.25"), scientific otherwise ("1E12", "6.02E23", "4.9E-324"),
+ * no sign for -0, NaN and Infinity as Double.toString
+ * As Double.toString since Java 19, the smallest subnormals keep two digits (4.9E-324, not 5E-324)
+ *
+ * @author phm
+ */
+final class DecimalWriter {
+
+    // longest output, "-1.2345678901234567E-308"
+    static final int MAX_CHARS = 24;
+
+    private static final int P = 53;
+    private static final int Q_MIN = -1074;
+    private static final long C_MIN = 1L << (P - 1);
+    private static final long T_MASK = C_MIN - 1;
+    // subnormal significands below this are scaled by 10 to keep enough precision
+    private static final int C_TINY = 3;
+    private static final int K_MIN = -324, K_MAX = 292;
+    private static final long MASK_63 = Long.MAX_VALUE;
+    // plain notation for decimal point positions in (PLAIN_MIN, PLAIN_MAX]
+    private static final int PLAIN_MIN = -3, PLAIN_MAX = 12;
+
+    // g1, g0 : higher and lower 63 bits of floor(10^-k 2^-r) + 1, with 2^125 <= g < 2^126
+    private static final long[] G = new long[(K_MAX - K_MIN + 1) * 2];
+
+    static {
+        for (int k = K_MIN; k <= K_MAX; k++) {
+            int r = flog2pow10(-k) - 125;
+            BigInteger num = (k <= 0) ? BigInteger.TEN.pow(-k) : BigInteger.ONE;
+            BigInteger den = (k <= 0) ? BigInteger.ONE : BigInteger.TEN.pow(k);
+            if (r < 0)
+                num = num.shiftLeft(-r);
+            else
+                den = den.shiftLeft(r);
+            BigInteger g = num.divide(den).add(BigInteger.ONE);
+            G[(k - K_MIN) * 2] = g.shiftRight(63).longValue();
+            G[(k - K_MIN) * 2 + 1] = g.longValue() & MASK_63;
+        }
+    }
+
+    private static final byte[] NAN = {'N', 'a', 'N'};
+    private static final byte[] INFINITY = {'I', 'n', 'f', 'i', 'n', 'i', 't', 'y'};
+
+
+    private DecimalWriter() {
+    }
+
+
+    /**
+     * Write v at buf[pos], buf must have MAX_CHARS free bytes
+     * @param buf
+     * @param pos
+     * @param v
+     * @return position after the last written byte
+     */
+    static int write(byte[] buf, int pos, double v) {
+        if (Double.isNaN(v))
+            return(copy(NAN, buf, pos));
+        if (v < 0)
+            buf[pos++] = '-';
+        if (Double.isInfinite(v))
+            return(copy(INFINITY, buf, pos));
+        long bits = Double.doubleToRawLongBits(v);
+        long t = bits & T_MASK;
+        int bq = (int)(bits >>> (P - 1)) & 0x7ff;
+        if (bq != 0) {
+            int mq = -Q_MIN + 1 - bq;
+            long c = C_MIN | t;
+            // integers below 2^53
+            if (0 < mq && mq < P) {
+                long f = c >> mq;
+                if (f << mq == c)
+                    return(digits(buf, pos, f, 0));
+            }
+            return(shortest(buf, pos, -mq, c, 0));
+        }
+        if (t == 0) {
+            buf[pos++] = '0';
+            return(pos);
+        }
+        return((t < C_TINY) ? shortest(buf, pos, Q_MIN, 10 * t, -1) : shortest(buf, pos, Q_MIN, t, 0));
+    }
+
+    private static int copy(byte[] b, byte[] buf, int pos) {
+        System.arraycopy(b, 0, buf, pos, b.length);
+        return(pos + b.length);
+    }
+
+
+    /**
+     * Shortest decimal in the rounding interval of c 2^q, the closest one if several
+     * @param dk decimal exponent of the scaling of c
+     */
+    private static int shortest(byte[] buf, int pos, int q, long c, int dk) {
+        int out = (int)c & 1;
+        long cb = c << 2;
+        long cbr = cb + 2;
+        long cbl;
+        int k;
+        // interval is not symmetric at powers of two
+        if (c != C_MIN || q == Q_MIN) {
+            cbl = cb - 2;
+            k = flog10pow2(q);
+        }
+        else {
+            cbl = cb - 1;
+            k = flog10threeQuartersPow2(q);
+        }
+        int h = q + flog2pow10(-k) + 2;
+        long g1 = G[(k - K_MIN) * 2], g0 = G[(k - K_MIN) * 2 + 1];
+        long vb = rop(g1, g0, cb << h);
+        long vbl = rop(g1, g0, cbl << h);
+        long vbr = rop(g1, g0, cbr << h);
+        long s = vb >> 2;
+        if (s >= 100) {
+            // one digit less when a multiple of 10 is in the interval
+            long sp10 = 10 * multiplyHigh(s, 115_292_150_460_684_698L << 4);
+            long tp10 = sp10 + 10;
+            boolean upin = vbl + out <= sp10 << 2;
+            boolean wpin = (tp10 << 2) + out <= vbr;
+            if (upin != wpin)
+                return(digits(buf, pos, upin ? sp10 : tp10, k + dk));
+        }
+        long u = s + 1;
+        boolean uin = vbl + out <= s << 2;
+        boolean win = (u << 2) + out <= vbr;
+        if (uin != win)
+            return(digits(buf, pos, uin ? s : u, k + dk));
+        long cmp = vb - ((s + u) << 1);
+        return(digits(buf, pos, (cmp < 0 || cmp == 0 && (s & 1) == 0) ? s : u, k + dk));
+    }
+
+    /**
+     * Rounded to odd product of g and cp, scaled by 2^-127
+     */
+    private static long rop(long g1, long g0, long cp) {
+        long x1 = multiplyHigh(g0, cp);
+        long y0 = g1 * cp;
+        long y1 = multiplyHigh(g1, cp);
+        long z = (y0 >>> 1) + x1;
+        long vbp = y1 + (z >>> 63);
+        return(vbp | ((z & MASK_63) + MASK_63) >>> 63);
+    }
+
+    /**
+     * High 64 bits of the signed 128-bit product (Math.multiplyHigh is Java 9)
+     */
+    private static long multiplyHigh(long x, long y) {
+        long x1 = x >> 32, x2 = x & 0xFFFFFFFFL;
+        long y1 = y >> 32, y2 = y & 0xFFFFFFFFL;
+        long z2 = x2 * y2;
+        long t = x1 * y2 + (z2 >>> 32);
+        long z1 = (t & 0xFFFFFFFFL) + x2 * y1;
+        return(x1 * y1 + (t >> 32) + (z1 >> 32));
+    }
+
+    // floor(e log10(2)), floor(e log10(3/4 2)), floor(e log2(10)) for the exponents of doubles
+    private static int flog10pow2(int e) {
+        return((int)(e * 661_971_961_083L >> 41));
+    }
+
+    private static int flog10threeQuartersPow2(int e) {
+        return((int)(e * 661_971_961_083L - 274_743_187_321L >> 41));
+    }
+
+    private static int flog2pow10(int e) {
+        return((int)(e * 913_124_641_741L >> 38));
+    }
+
+
+    /**
+     * Write f 10^e, f > 0, without trailing zeros
+     */
+    private static int digits(byte[] buf, int pos, long f, int e) {
+        while (f % 10 == 0) {
+            f /= 10;
+            e++;
+        }
+        int n = 1;
+        for (long x = f / 10; x > 0; x /= 10)
+            n++;
+        // digits before the decimal point
+        int point = n + e;
+        if (point > PLAIN_MIN && point <= PLAIN_MAX) {
+            if (e >= 0) {
+                pos = putDigits(buf, pos, f, n);
+                for (int z = 0; z < e; z++)
+                    buf[pos++] = '0';
+            }
+            else if (point > 0) {
+                putDigits(buf, pos, f / pow10(-e), point);
+                buf[pos + point] = '.';
+                pos = putDigits(buf, pos + point + 1, f % pow10(-e), -e);
+            }
+            else {
+                buf[pos++] = '0';
+                buf[pos++] = '.';
+                for (int z = point; z < 0; z++)
+                    buf[pos++] = '0';
+                pos = putDigits(buf, pos, f, n);
+            }
+            return(pos);
+        }
+        buf[pos] = (byte)('0' + f / pow10(n - 1));
+        pos++;
+        if (n > 1) {
+            buf[pos++] = '.';
+            pos = putDigits(buf, pos, f % pow10(n - 1), n - 1);
+        }
+        buf[pos++] = 'E';
+        int exp = point - 1;
+        if (exp < 0) {
+            buf[pos++] = '-';
+            exp = -exp;
+        }
+        return(putDigits(buf, pos, exp, (exp >= 100) ? 3 : (exp >= 10) ? 2 : 1));
+    }
+
+    /**
+     * Write the n last digits of f, leading zeros included
+     */
+    private static int putDigits(byte[] buf, int pos, long f, int n) {
+        for (int d = n - 1; d >= 0; d--) {
+            buf[pos + d] = (byte)('0' + f % 10);
+            f /= 10;
+        }
+        return(pos + n);
+    }
+
+    private static long pow10(int n) {
+        long p = 1;
+        for (int i = 0; i < n; i++)
+            p *= 10;
+        return(p);
+    }
+}
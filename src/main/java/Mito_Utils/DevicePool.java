@@ -0,0 +1,146 @@
+package Mito_Utils;
+
+import ij.ImagePlus;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import net.haesleinhuepf.clij.CLIJ;
+import net.haesleinhuepf.clij2.CLIJ2;
+
+/**
+ * CLIJ2 contexts on all OpenCL devices, several per device when its memory allows
+ * Each segmentation goes to the context with the fewest voxels in flight relative to its memory,
+ * so rois run in parallel on several devices and transfers of one context overlap compute of another
+ * Any OpenCL runtime works, a CPU one (POCL) runs the pool without GPU
+ *
+ * @author phm
+ */
+public class DevicePool implements SegmentationBackend {
+
+    // device memory of one context
+    private static final long MIN_CONTEXT_MEMORY = 1L << 30;
+
+    private final List<CLIJ2Backend> contexts;
+    // voxels being segmented by each context, context memory
+    private final long[] load;
+    private final long[] budget;
+
+
+    /**
+     * @param contexts at least one
+     */
+    public DevicePool(List<CLIJ2Backend> contexts) {
+        if (contexts.isEmpty())
+            throw new IllegalArgumentException("No OpenCL context");
+        this.contexts = new ArrayList<>(contexts);
+        load = new long[contexts.size()];
+        budget = new long[contexts.size()];
+        for (int i = 0; i < budget.length; i++)
+            budget[i] = Math.max(1, contexts.get(i).getDeviceBudget());
+    }
+
+    /**
+     * Contexts on every available device
+     * Identical device names can't be told apart by CLIJ, they give one device
+     * @param contextsPerDevice max contexts per device
+     * @return
+     */
+    public static DevicePool create(int contextsPerDevice) {
+        List<CLIJ2Backend> contexts = new ArrayList<>();
+        for (String device : new LinkedHashSet<>(CLIJ.getAvailableDeviceNames())) {
+            CLIJ first = new CLIJ(device);
+            int n = (int)Math.max(1, Math.min(contextsPerDevice, first.getGPUMemoryInBytes() / MIN_CONTEXT_MEMORY));
+            contexts.add(new CLIJ2Backend(new CLIJ2(first), n));
+            for (int i = 1; i < n; i++)
+                contexts.add(new CLIJ2Backend(new CLIJ2(new CLIJ(device)), n));
+        }
+        return(new DevicePool(contexts));
+    }
+
+    @Override
+    public String getName() {
+        StringBuilder name = new StringBuilder();
+        for (CLIJ2Backend context : contexts)
+            name.append((name.length() == 0) ? "" : ", ").append(context.getName());
+        return(name.toString());
+    }
+
+    public int getContextCount() {
+        return(contexts.size());
+    }
+
+
+    /**
+     * Least loaded context, weighted by its memory
+     */
+    private synchronized int acquire(long voxels) {
+        int best = 0;
+        double bestLoad = Double.MAX_VALUE;
+        for (int i = 0; i < contexts.size(); i++) {
+            double l = (double)(load[i] + voxels) / budget[i];
+            if (l < bestLoad) {
+                bestLoad = l;
+                best = i;
+            }
+        }
+        load[best] += voxels;
+        return(best);
+    }
+
+    private synchronized void release(int context, long voxels) {
+        load[context] -= voxels;
+    }
+
+    private static long voxels(ImagePlus img) {
+        return((long)img.getWidth() * img.getHeight() * img.getNSlices());
+    }
+
+
+    @Override
+    public ImagePlus segment(ImagePlus img, double medRadXY, double medRadZ, double sigma1, double sigma2, String thMethod,
+            double minSize, double maxSize) {
+        long voxels = voxels(img);
+        int c = acquire(voxels);
+        try {
+            return(contexts.get(c).segment(img, medRadXY, medRadZ, sigma1, sigma2, thMethod, minSize, maxSize));
+        } finally {
+            release(c, voxels);
+        }
+    }
+
+    @Override
+    public ImagePlus segmentSlabs(ImagePlus img, int slabSlices, double medRadXY, double medRadZ, double sigma1,
+            double sigma2, String thMethod, double minSize, double maxSize) {
+        long voxels = voxels(img);
+        int c = acquire(voxels);
+        try {
+            return(contexts.get(c).segmentSlabs(img, slabSlices, medRadXY, medRadZ, sigma1, sigma2, thMethod, minSize, maxSize));
+        } finally {
+            release(c, voxels);
+        }
+    }
+
+    /**
+     * Fused segmentation on the least loaded context
+     * @see CLIJ2Backend#segmentMasked
+     */
+    public MitoSegmentation segmentMasked(ImagePlus img, RoiMask mask, double medRadXY, double medRadZ,
+            double sigma1, double sigma2, String thMethod, double minSize, double maxSize) {
+        long voxels = voxels(img);
+        int c = acquire(voxels);
+        try {
+            return(contexts.get(c).segmentMasked(img, mask, medRadXY, medRadZ, sigma1, sigma2, thMethod, minSize, maxSize));
+        } finally {
+            release(c, voxels);
+        }
+    }
+
+
+    /**
+     * Release idle device buffers of all contexts
+     */
+    public void releaseIdle() {
+        for (CLIJ2Backend context : contexts)
+            context.releaseIdle();
+    }
+}
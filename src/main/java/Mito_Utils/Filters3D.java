@@ -0,0 +1,582 @@
+package Mito_Utils;
+
+import ij.ImageStack;
+import ij.process.AutoThresholder;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.IntStream;
+
+/**
+ * Pure Java 3D filters working on float slices (same layout as ImageStack)
+ * Border handling, kernel sizes and threshold binning follow CLIJ2 so that
+ * both segmentation backends give the same labels
+ *
+ * @author phm
+ */
+public class Filters3D {
+
+    // voxels per median tile before splitting stops
+    private static final int TILE_VOXELS = 16384;
+    // labels of a 16-bit label image
+    public static final int MAX_LABELS = 65535;
+
+    private Filters3D() {
+    }
+
+
+    /**
+     * Copy stack pixels to float slices
+     * @param stack
+     * @return
+     */
+    public static float[][] toFloat(ImageStack stack) {
+        int size = stack.getSize();
+        float[][] vol = new float[size][];
+        for (int z = 0; z < size; z++) {
+            Object pixels = stack.getPixels(z + 1);
+            int n = stack.getWidth() * stack.getHeight();
+            float[] slice = new float[n];
+            if (pixels instanceof byte[]) {
+                byte[] p = (byte[]) pixels;
+                for (int i = 0; i < n; i++)
+                    slice[i] = p[i] & 0xff;
+            }
+            else if (pixels instanceof short[]) {
+                short[] p = (short[]) pixels;
+                for (int i = 0; i < n; i++)
+                    slice[i] = p[i] & 0xffff;
+            }
+            else if (pixels instanceof float[])
+                System.arraycopy((float[]) pixels, 0, slice, 0, n);
+            else
+                throw new IllegalArgumentException("Unsupported pixel type " + pixels.getClass().getSimpleName());
+            vol[z] = slice;
+        }
+        return(vol);
+    }
+
+
+    /**
+     * Clamp and truncate values to the image bit depth,
+     * as an OpenCL saturated conversion to the pixel type does
+     * @param vol
+     * @param bitDepth 8, 16 or 32
+     */
+    public static void saturate(float[][] vol, int bitDepth) {
+        if (bitDepth == 32)
+            return;
+        float max = (bitDepth == 8) ? 255 : 65535;
+        for (float[] slice : vol)
+            for (int i = 0; i < slice.length; i++) {
+                float v = slice[i];
+                slice[i] = (v <= 0) ? 0 : (v >= max) ? max : (float)Math.floor(v);
+            }
+    }
+
+
+    /**
+     * Tiled fork-join median box filter
+     * @param in
+     * @param width
+     * @param height
+     * @param rx box radius in x
+     * @param ry box radius in y
+     * @param rz box radius in z
+     * @param pool
+     * @return
+     */
+    public static float[][] median(float[][] in, int width, int height, int rx, int ry, int rz, ForkJoinPool pool) {
+        float[][] out = new float[in.length][width * height];
+        pool.invoke(new MedianTile(in, out, width, height, rx, ry, rz, 0, in.length, 0, height));
+        return(out);
+    }
+
+    private static class MedianTile extends RecursiveAction {
+        private final float[][] in, out;
+        private final int width, height, rx, ry, rz;
+        private final int z0, z1, y0, y1;
+
+        MedianTile(float[][] in, float[][] out, int width, int height, int rx, int ry, int rz, int z0, int z1, int y0, int y1) {
+            this.in = in;
+            this.out = out;
+            this.width = width;
+            this.height = height;
+            this.rx = rx;
+            this.ry = ry;
+            this.rz = rz;
+            this.z0 = z0;
+            this.z1 = z1;
+            this.y0 = y0;
+            this.y1 = y1;
+        }
+
+        @Override
+        protected void compute() {
+            int dz = z1 - z0, dy = y1 - y0;
+            if ((long)dz * dy * width > TILE_VOXELS && (dz > 1 || dy > 1)) {
+                if (dz > 1) {
+                    int zm = (z0 + z1) >>> 1;
+                    invokeAll(new MedianTile(in, out, width, height, rx, ry, rz, z0, zm, y0, y1),
+                            new MedianTile(in, out, width, height, rx, ry, rz, zm, z1, y0, y1));
+                }
+                else {
+                    int ym = (y0 + y1) >>> 1;
+                    invokeAll(new MedianTile(in, out, width, height, rx, ry, rz, z0, z1, y0, ym),
+                            new MedianTile(in, out, width, height, rx, ry, rz, z0, z1, ym, y1));
+                }
+                return;
+            }
+            float[] window = new float[(2*rx + 1) * (2*ry + 1) * (2*rz + 1)];
+            int depth = in.length;
+            for (int z = z0; z < z1; z++) {
+                float[] dst = out[z];
+                for (int y = y0; y < y1; y++) {
+                    for (int x = 0; x < width; x++) {
+                        int n = 0;
+                        for (int k = z - rz; k <= z + rz; k++) {
+                            float[] src = in[clamp(k, depth)];
+                            for (int j = y - ry; j <= y + ry; j++) {
+                                int row = clamp(j, height) * width;
+                                for (int i = x - rx; i <= x + rx; i++)
+                                    window[n++] = src[row + clamp(i, width)];
+                            }
+                        }
+                        dst[y * width + x] = select(window, n, n / 2);
+                    }
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Quickselect k-th smallest value of the n first elements
+     */
+    private static float select(float[] a, int n, int k) {
+        int lo = 0, hi = n - 1;
+        while (lo < hi) {
+            float pivot = a[(lo + hi) >>> 1];
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (a[i] < pivot) i++;
+                while (a[j] > pivot) j--;
+                if (i <= j) {
+                    float t = a[i];
+                    a[i] = a[j];
+                    a[j] = t;
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j)
+                hi = j;
+            else if (k >= i)
+                lo = i;
+            else
+                break;
+        }
+        return(a[k]);
+    }
+
+    private static int clamp(int i, int size) {
+        return (i < 0) ? 0 : (i >= size) ? size - 1 : i;
+    }
+
+
+    /**
+     * Gaussian kernel, CLIJ2 kernel size rule (8 sigma, odd)
+     * @param sigma
+     * @return normalized kernel
+     */
+    public static float[] gaussianKernel(double sigma) {
+        int n = (int)(sigma * 8);
+        if (n % 2 == 0)
+            n++;
+        int c = n / 2;
+        float[] kernel = new float[n];
+        float sum = 0;
+        for (int i = -c; i <= c; i++) {
+            kernel[i + c] = (float)Math.exp(-(double)(i * i) / (2 * sigma * sigma));
+            sum += kernel[i + c];
+        }
+        for (int i = 0; i < n; i++)
+            kernel[i] /= sum;
+        return(kernel);
+    }
+
+    /**
+     * Kernel half size for sigma, the z halo a Gaussian needs
+     * @param sigma
+     * @return
+     */
+    public static int gaussianRadius(double sigma) {
+        return (sigma <= 0) ? 0 : gaussianKernel(sigma).length / 2;
+    }
+
+
+    /**
+     * Separable 3D Gaussian blur
+     * @param in
+     * @param width
+     * @param height
+     * @param sx
+     * @param sy
+     * @param sz
+     * @param pool
+     * @return
+     */
+    public static float[][] gaussian(float[][] in, int width, int height, double sx, double sy, double sz, ForkJoinPool pool) {
+        float[][] vol = in;
+        if (sx > 0)
+            vol = convolveX(vol, width, height, gaussianKernel(sx), pool);
+        if (sy > 0)
+            vol = convolveY(vol, width, height, gaussianKernel(sy), pool);
+        if (sz > 0)
+            vol = convolveZ(vol, width, height, gaussianKernel(sz), pool);
+        if (vol == in) {
+            vol = new float[in.length][];
+            for (int z = 0; z < in.length; z++)
+                vol[z] = in[z].clone();
+        }
+        return(vol);
+    }
+
+    private static float[][] convolveX(float[][] in, int width, int height, float[] kernel, ForkJoinPool pool) {
+        float[][] out = new float[in.length][width * height];
+        int c = kernel.length / 2;
+        pool.submit(() -> IntStream.range(0, in.length * height).parallel().forEach(zy -> {
+            int z = zy / height;
+            int row = (zy % height) * width;
+            float[] src = in[z], dst = out[z];
+            for (int x = 0; x < width; x++) {
+                float sum = 0;
+                for (int i = -c; i <= c; i++)
+                    sum += kernel[i + c] * src[row + clamp(x + i, width)];
+                dst[row + x] = sum;
+            }
+        })).join();
+        return(out);
+    }
+
+    private static float[][] convolveY(float[][] in, int width, int height, float[] kernel, ForkJoinPool pool) {
+        float[][] out = new float[in.length][width * height];
+        int c = kernel.length / 2;
+        pool.submit(() -> IntStream.range(0, in.length * height).parallel().forEach(zy -> {
+            int z = zy / height;
+            int y = zy % height;
+            float[] src = in[z], dst = out[z];
+            for (int x = 0; x < width; x++) {
+                float sum = 0;
+                for (int i = -c; i <= c; i++)
+                    sum += kernel[i + c] * src[clamp(y + i, height) * width + x];
+                dst[y * width + x] = sum;
+            }
+        })).join();
+        return(out);
+    }
+
+    private static float[][] convolveZ(float[][] in, int width, int height, float[] kernel, ForkJoinPool pool) {
+        int depth = in.length;
+        float[][] out = new float[depth][width * height];
+        int c = kernel.length / 2;
+        pool.submit(() -> IntStream.range(0, depth * height).parallel().forEach(zy -> {
+            int z = zy / height;
+            int row = (zy % height) * width;
+            float[] dst = out[z];
+            for (int x = row; x < row + width; x++) {
+                float sum = 0;
+                for (int i = -c; i <= c; i++)
+                    sum += kernel[i + c] * in[clamp(z + i, depth)][x];
+                dst[x] = sum;
+            }
+        })).join();
+        return(out);
+    }
+
+
+    /**
+     * Difference of Gaussians (sigma1 - sigma2), isotropic sigmas in voxels
+     * @param in
+     * @param width
+     * @param height
+     * @param sigma1
+     * @param sigma2
+     * @param pool
+     * @return
+     */
+    public static float[][] dog(float[][] in, int width, int height, double sigma1, double sigma2, ForkJoinPool pool) {
+        float[][] g1 = gaussian(in, width, height, sigma1, sigma1, sigma1, pool);
+        float[][] g2 = gaussian(in, width, height, sigma2, sigma2, sigma2, pool);
+        for (int z = 0; z < g1.length; z++) {
+            float[] a = g1[z], b = g2[z];
+            for (int i = 0; i < a.length; i++)
+                a[i] -= b[i];
+        }
+        return(g1);
+    }
+
+
+    /**
+     * Automatic threshold on a 256 bins histogram between min and max
+     * @param vol
+     * @param method ImageJ AutoThresholder method name
+     * @return threshold value, voxels >= threshold are foreground
+     */
+    public static float autoThreshold(float[][] vol, String method) {
+        float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+        for (float[] slice : vol)
+            for (float v : slice) {
+                if (v < min) min = v;
+                if (v > max) max = v;
+            }
+        int[] histogram = new int[256];
+        for (float[] slice : vol)
+            accumulateHistogram(slice, histogram, min, max);
+        return(binThreshold(histogram, method, min, max));
+    }
+
+    /**
+     * Add values to a 256 bins histogram between min and max
+     */
+    public static void accumulateHistogram(float[] values, int[] histogram, float min, float max) {
+        int nBins = histogram.length;
+        float scale = (max > min) ? (nBins - 1) / (max - min) : 0;
+        for (float v : values)
+            histogram[(int)((v - min) * scale)]++;
+    }
+
+    /**
+     * Threshold value of a 256 bins histogram between min and max
+     */
+    public static float binThreshold(int[] histogram, String method, float min, float max) {
+        int bin = new AutoThresholder().getThreshold(AutoThresholder.Method.valueOf(method), histogram);
+        return(min + bin * (max - min) / (histogram.length - 1));
+    }
+
+
+    /**
+     * 26-connected labelling of voxels >= threshold
+     * Labels are numbered by first voxel in scan order (x, then y, then z)
+     * @param vol
+     * @param width
+     * @param height
+     * @param threshold
+     * @param labels output labels, 0 for background
+     * @return number of labels
+     */
+    public static int label26(float[][] vol, int width, int height, float threshold, int[][] labels) {
+        return(label26(vol.length, width, height, (z, i) -> vol[z][i] >= threshold, labels));
+    }
+
+    /**
+     * Foreground test of voxel i of slice z
+     */
+    public interface VoxelTest {
+        boolean test(int z, int i);
+    }
+
+    /**
+     * 26-connected labelling of foreground voxels
+     * Labels are numbered by first voxel in scan order (x, then y, then z)
+     * @param depth
+     * @param width
+     * @param height
+     * @param foreground
+     * @param labels output labels, 0 for background
+     * @return number of labels
+     */
+    public static int label26(int depth, int width, int height, VoxelTest foreground, int[][] labels) {
+        UnionFind uf = new UnionFind();
+        for (int z = 0; z < depth; z++)
+            labelSlice(uf, width, height, z, foreground, labels[z], (z > 0) ? labels[z - 1] : null);
+        int[] map = uf.sequential();
+        for (int[] lab : labels)
+            for (int i = 0; i < lab.length; i++)
+                lab[i] = map[lab[i]];
+        return(uf.roots());
+    }
+
+    /**
+     * Provisional labels of slice z, merged with the already labelled previous slice
+     * @param uf labels union-find, shared by all slices
+     * @param width
+     * @param height
+     * @param z
+     * @param foreground
+     * @param lab output provisional labels, 0 for background
+     * @param prev provisional labels of slice z - 1, null for the first slice
+     */
+    static void labelSlice(UnionFind uf, int width, int height, int z, VoxelTest foreground, int[] lab, int[] prev) {
+        for (int y = 0; y < height; y++)
+            for (int x = 0; x < width; x++) {
+                int i = y * width + x;
+                if (!foreground.test(z, i)) {
+                    lab[i] = 0;
+                    continue;
+                }
+                int l = 0;
+                // already visited neighbours
+                if (x > 0)
+                    l = uf.merge(l, lab[i - 1]);
+                if (y > 0)
+                    for (int dx = -1; dx <= 1; dx++)
+                        if (x + dx >= 0 && x + dx < width)
+                            l = uf.merge(l, lab[i - width + dx]);
+                if (prev != null)
+                    for (int dy = -1; dy <= 1; dy++)
+                        if (y + dy >= 0 && y + dy < height)
+                            for (int dx = -1; dx <= 1; dx++)
+                                if (x + dx >= 0 && x + dx < width)
+                                    l = uf.merge(l, prev[i + dy * width + dx]);
+                lab[i] = (l == 0) ? uf.add() : l;
+            }
+    }
+
+
+    /**
+     * Remove labels outside size range and renumber the others sequentially
+     * @param labels
+     * @param nbLabels
+     * @param minSize
+     * @param maxSize
+     * @return 16-bit labels
+     */
+    public static short[][] sizeFilter(int[][] labels, int nbLabels, double minSize, double maxSize) {
+        return(relabel(labels, sizeMap(labelSizes(labels, nbLabels), minSize, maxSize)));
+    }
+
+    /**
+     * Voxels per label
+     * @param labels
+     * @param nbLabels
+     * @return sizes, sizes[0] is background
+     */
+    static long[] labelSizes(int[][] labels, int nbLabels) {
+        long[] sizes = new long[nbLabels + 1];
+        for (int[] lab : labels)
+            for (int l : lab)
+                sizes[l]++;
+        return(sizes);
+    }
+
+    /**
+     * Apply a label map
+     * @param labels
+     * @param map new label of each label, from sizeMap
+     * @return 16-bit labels
+     */
+    static short[][] relabel(int[][] labels, int[] map) {
+        short[][] out = new short[labels.length][];
+        for (int z = 0; z < labels.length; z++) {
+            int[] lab = labels[z];
+            short[] dst = new short[lab.length];
+            for (int i = 0; i < lab.length; i++)
+                dst[i] = (short)map[lab[i]];
+            out[z] = dst;
+        }
+        return(out);
+    }
+
+
+    /**
+     * Sequential numbering of labels inside size range
+     * @param sizes voxels per label, sizes[0] is background
+     * @param minSize
+     * @param maxSize
+     * @return new label of each label, 0 if removed
+     * @throws IllegalStateException more labels than a 16-bit image holds
+     */
+    static int[] sizeMap(long[] sizes, double minSize, double maxSize) {
+        int[] map = new int[sizes.length];
+        int n = 0;
+        for (int l = 1; l < sizes.length; l++)
+            map[l] = (sizes[l] >= minSize && sizes[l] <= maxSize) ? ++n : 0;
+        // clamping would merge objects
+        if (n > MAX_LABELS)
+            throw new IllegalStateException(n + " objects after size filter, 16-bit labels hold " + MAX_LABELS);
+        return(map);
+    }
+
+
+    /**
+     * Growable union-find, parent always the smallest label of the set
+     */
+    static class UnionFind {
+        private int[] parent = new int[1024];
+        private int size = 1;
+        private int roots = 0;
+
+        int add() {
+            if (size == parent.length)
+                parent = Arrays.copyOf(parent, size * 2);
+            parent[size] = size;
+            return(size++);
+        }
+
+        int size() {
+            return(size);
+        }
+
+        int find(int l) {
+            while (parent[l] != l) {
+                parent[l] = parent[parent[l]];
+                l = parent[l];
+            }
+            return(l);
+        }
+
+        /**
+         * Union two labels, 0 means no label
+         * @return root of the union
+         */
+        int merge(int a, int b) {
+            if (b == 0)
+                return(a == 0 ? 0 : find(a));
+            int rb = find(b);
+            if (a == 0)
+                return(rb);
+            int ra = find(a);
+            if (ra == rb)
+                return(ra);
+            if (ra < rb) {
+                parent[rb] = ra;
+                return(ra);
+            }
+            parent[ra] = rb;
+            return(rb);
+        }
+
+        /**
+         * Point every label to its root
+         * @return parent array, roots map to themselves
+         */
+        int[] flatten() {
+            for (int l = 1; l < size; l++)
+                parent[l] = find(l);
+            return(parent);
+        }
+
+        /**
+         * Sequential labels by root order, labels are then numbered by first voxel in scan order
+         * @return final label of each provisional label, in place of the parent array
+         */
+        int[] sequential() {
+            int[] map = flatten();
+            roots = 0;
+            for (int l = 1; l < size; l++)
+                if (map[l] == l)
+                    map[l] = ++roots;
+                else
+                    map[l] = map[map[l]];
+            return(map);
+        }
+
+        /**
+         * Number of labels after sequential()
+         */
+        int roots() {
+            return(roots);
+        }
+    }
+}
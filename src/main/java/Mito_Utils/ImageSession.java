@@ -0,0 +1,336 @@
+package Mito_Utils;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.function.LongConsumer;
+import loci.common.DataTools;
+import loci.common.services.DependencyException;
+import loci.common.services.ServiceException;
+import loci.common.services.ServiceFactory;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.meta.IMetadata;
+import loci.formats.services.OMEXMLService;
+import loci.plugins.util.ImageProcessorReader;
+
+/**
+ * One reader per image, file and metadata are parsed once
+ * Roi crops are read plane by plane with openBytes(x, y, w, h) into a reusable buffer,
+ * intersections of overlapping rois are decoded once, held until their last roi is read
+ * The reader is closed once every registered roi has been read
+ *
+ * @author phm
+ */
+public class ImageSession implements AutoCloseable {
+
+    private final String file;
+    private final ImageProcessorReader reader;
+    private final IMetadata meta;
+    private final int series;
+    private final int channel;
+    private final List<Rectangle> rois = new ArrayList<>();
+    // cell edges : distinct roi x and y edges, cell (i, j) is [xs[i], xs[i + 1]) x [ys[j], ys[j + 1])
+    private int[] xs, ys;
+    // rois not yet read per cell, decoded planes of shared cells
+    private int[] cellUsers;
+    private Object[][] cells;
+    private LongConsumer memoryListener = b -> {};
+    private byte[] buffer = new byte[0];
+    private int pending;
+    private boolean closed = false;
+    // OMEXML service, created once per JVM
+    private static OMEXMLService service;
+
+
+    /**
+     * Open image and parse metadata
+     * @param file
+     * @param series
+     * @param channel channel read by openCrop (mito = 1)
+     */
+    public ImageSession(String file, int series, int channel) throws DependencyException, ServiceException,
+            FormatException, IOException {
+        this.file = file;
+        this.series = series;
+        this.channel = channel;
+        meta = getService().createOMEXMLMetadata();
+        reader = new ImageProcessorReader();
+        reader.setMetadataStore(meta);
+        reader.setId(file);
+        reader.setSeries(series);
+    }
+
+    static synchronized OMEXMLService getService() throws DependencyException {
+        if (service == null)
+            service = new ServiceFactory().getInstance(OMEXMLService.class);
+        return(service);
+    }
+
+    public String getFile() {
+        return(file);
+    }
+
+    public IMetadata getMetadata() {
+        return(meta);
+    }
+
+    public ImageProcessorReader getReader() {
+        return(reader);
+    }
+
+    public int getSizeZ() {
+        return(reader.getSizeZ());
+    }
+
+    /**
+     * Bytes per pixel of the image
+     */
+    public int getBytesPerPixel() {
+        return(FormatTools.getBytesPerPixel(reader.getPixelType()));
+    }
+
+
+    /**
+     * Bytes held by shared planes, reported when they are decoded (> 0) and dropped (< 0)
+     * @param listener
+     */
+    public synchronized void setMemoryListener(LongConsumer listener) {
+        memoryListener = (listener == null) ? b -> {} : listener;
+    }
+
+    /**
+     * Register the rois that will be read, must be called before openCrop
+     * Rectangles are clipped to the image
+     * The image is cut into cells by the edges of all rois : cells inside several rois are decoded once
+     * and kept until their last roi is read, only roi intersections are shared
+     * @param rects roi bounding rectangles
+     */
+    public synchronized void setRois(List<Rectangle> rects) {
+        releaseCells();
+        rois.clear();
+        Rectangle image = new Rectangle(reader.getSizeX(), reader.getSizeY());
+        TreeSet<Integer> xEdges = new TreeSet<>(), yEdges = new TreeSet<>();
+        for (Rectangle rect : rects) {
+            Rectangle r = rect.intersection(image);
+            rois.add(r);
+            if (r.isEmpty())
+                continue;
+            xEdges.add(r.x);
+            xEdges.add(r.x + r.width);
+            yEdges.add(r.y);
+            yEdges.add(r.y + r.height);
+        }
+        pending = rects.size();
+        xs = xEdges.stream().mapToInt(Integer::intValue).toArray();
+        ys = yEdges.stream().mapToInt(Integer::intValue).toArray();
+        int nx = Math.max(0, xs.length - 1);
+        cellUsers = new int[nx * Math.max(0, ys.length - 1)];
+        cells = new Object[cellUsers.length][];
+        for (Rectangle r : rois)
+            if (!r.isEmpty())
+                for (int j = cellIndex(ys, r.y); ys[j] < r.y + r.height; j++)
+                    for (int i = cellIndex(xs, r.x); xs[i] < r.x + r.width; i++)
+                        cellUsers[j * nx + i]++;
+    }
+
+    private static int cellIndex(int[] edges, int v) {
+        return(Arrays.binarySearch(edges, v));
+    }
+
+
+    /**
+     * Read mito channel crop of a registered roi
+     * @param roiIndex index in setRois list
+     * @param cal calibration set on the crop
+     * @param title
+     * @return cropped stack
+     * @throws IllegalArgumentException the roi is outside the image
+     */
+    public synchronized ImagePlus openCrop(int roiIndex, Calibration cal, String title) throws FormatException, IOException {
+        if (closed)
+            throw new IOException("Reader closed for " + file);
+        Rectangle rect = rois.get(roiIndex);
+        try {
+            if (rect.isEmpty())
+                throw new IllegalArgumentException("Roi bounds outside image " + reader.getSizeX() + "x" + reader.getSizeY());
+            Object[] crop = readCrop(rect);
+            ImageStack stack = new ImageStack(rect.width, rect.height);
+            for (Object plane : crop)
+                stack.addSlice("", plane);
+            ImagePlus img = new ImagePlus(title, stack);
+            img.setCalibration(cal);
+            return(img);
+        } finally {
+            if (--pending == 0)
+                close();
+        }
+    }
+
+    /**
+     * Crop planes : shared cells already decoded are copied, the other parts are decoded by row bands of cells,
+     * shared cells decoded here are kept for their other rois
+     */
+    private Object[] readCrop(Rectangle rect) throws FormatException, IOException {
+        int nx = xs.length - 1;
+        int i0 = cellIndex(xs, rect.x), i1 = cellIndex(xs, rect.x + rect.width);
+        int j0 = cellIndex(ys, rect.y), j1 = cellIndex(ys, rect.y + rect.height);
+        boolean cached = false;
+        for (int j = j0; j < j1 && !cached; j++)
+            for (int i = i0; i < i1 && !cached; i++)
+                cached = cells[j * nx + i] != null;
+        Object[] crop;
+        if (!cached) {
+            // whole crop in one read per plane
+            crop = readPlanes(rect);
+            keepShared(crop, rect, i0, i1, j0, j1);
+        }
+        else {
+            crop = new Object[reader.getSizeZ()];
+            for (int j = j0; j < j1; j++)
+                for (int i = i0; i < i1; ) {
+                    Object[] cell = cells[j * nx + i];
+                    if (cell != null) {
+                        copy(cell, new Rectangle(xs[i], ys[j], xs[i + 1] - xs[i], ys[j + 1] - ys[j]), crop, rect);
+                        i++;
+                        continue;
+                    }
+                    // run of cells to decode
+                    int end = i;
+                    while (end < i1 && cells[j * nx + end] == null)
+                        end++;
+                    Rectangle band = new Rectangle(xs[i], ys[j], xs[end] - xs[i], ys[j + 1] - ys[j]);
+                    Object[] planes = readPlanes(band);
+                    copy(planes, band, crop, rect);
+                    keepShared(planes, band, i, end, j, j + 1);
+                    i = end;
+                }
+        }
+        // this roi is done with its cells
+        for (int j = j0; j < j1; j++)
+            for (int i = i0; i < i1; i++) {
+                int c = j * nx + i;
+                if (--cellUsers[c] == 0 && cells[c] != null) {
+                    memoryListener.accept(-cellBytes(c));
+                    cells[c] = null;
+                }
+            }
+        return(crop);
+    }
+
+    /**
+     * Keep the cells of a decoded region still needed by other rois
+     */
+    private void keepShared(Object[] planes, Rectangle region, int i0, int i1, int j0, int j1) {
+        int nx = xs.length - 1;
+        for (int j = j0; j < j1; j++)
+            for (int i = i0; i < i1; i++) {
+                int c = j * nx + i;
+                if (cellUsers[c] < 2 || cells[c] != null)
+                    continue;
+                Rectangle cell = new Rectangle(xs[i], ys[j], xs[i + 1] - xs[i], ys[j + 1] - ys[j]);
+                Object[] cellPlanes = new Object[planes.length];
+                copy(planes, region, cellPlanes, cell);
+                cells[c] = cellPlanes;
+                memoryListener.accept(cellBytes(c));
+            }
+    }
+
+    private long cellBytes(int c) {
+        int nx = xs.length - 1, i = c % nx, j = c / nx;
+        return((long)(xs[i + 1] - xs[i]) * (ys[j + 1] - ys[j]) * getBytesPerPixel() * reader.getSizeZ());
+    }
+
+    /**
+     * Copy the common part of planes of two image regions, destination planes are created if needed
+     */
+    private static void copy(Object[] src, Rectangle srcRect, Object[] dst, Rectangle dstRect) {
+        Rectangle r = srcRect.intersection(dstRect);
+        for (int z = 0; z < src.length; z++) {
+            if (dst[z] == null)
+                dst[z] = Array.newInstance(src[z].getClass().getComponentType(), dstRect.width * dstRect.height);
+            for (int y = r.y; y < r.y + r.height; y++)
+                System.arraycopy(src[z], (y - srcRect.y) * srcRect.width + r.x - srcRect.x,
+                        dst[z], (y - dstRect.y) * dstRect.width + r.x - dstRect.x, r.width);
+        }
+    }
+
+    private void releaseCells() {
+        if (cells == null)
+            return;
+        for (int c = 0; c < cells.length; c++)
+            if (cells[c] != null) {
+                memoryListener.accept(-cellBytes(c));
+                cells[c] = null;
+            }
+    }
+
+    /**
+     * Read channel planes of a region, one primitive array per z
+     */
+    private Object[] readPlanes(Rectangle rect) throws FormatException, IOException {
+        int bpp = getBytesPerPixel();
+        boolean fp = FormatTools.isFloatingPoint(reader.getPixelType());
+        boolean little = reader.isLittleEndian();
+        int planeBytes = rect.width * rect.height * bpp;
+        if (buffer.length < planeBytes)
+            buffer = new byte[planeBytes];
+        int nz = reader.getSizeZ();
+        Object[] planes = new Object[nz];
+        for (int z = 0; z < nz; z++) {
+            int index = reader.getIndex(z, channel, 0);
+            reader.openBytes(index, buffer, rect.x, rect.y, rect.width, rect.height);
+            planes[z] = toPixels(buffer, rect.width * rect.height, bpp, fp, little);
+        }
+        return(planes);
+    }
+
+    private static Object toPixels(byte[] bytes, int n, int bpp, boolean fp, boolean little) {
+        switch (bpp) {
+            case 1 : {
+                byte[] pixels = new byte[n];
+                System.arraycopy(bytes, 0, pixels, 0, n);
+                return(pixels);
+            }
+            case 2 : {
+                short[] pixels = new short[n];
+                for (int i = 0, j = 0; i < n; i++, j += 2)
+                    pixels[i] = little ? (short)((bytes[j] & 0xff) | (bytes[j + 1] << 8))
+                            : (short)((bytes[j] << 8) | (bytes[j + 1] & 0xff));
+                return(pixels);
+            }
+            default : {
+                byte[] plane = new byte[n * bpp];
+                System.arraycopy(bytes, 0, plane, 0, plane.length);
+                Object pixels = DataTools.makeDataArray(plane, bpp, fp, little);
+                if (pixels instanceof int[]) {
+                    // ImageJ has no 32-bit integer stack
+                    int[] ints = (int[])pixels;
+                    float[] floats = new float[n];
+                    for (int i = 0; i < n; i++)
+                        floats[i] = ints[i];
+                    return(floats);
+                }
+                return(pixels);
+            }
+        }
+    }
+
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        releaseCells();
+        buffer = new byte[0];
+        reader.close();
+    }
+}
@@ -0,0 +1,324 @@
+package Mito_Utils;
+
+import ij.gui.PointRoi;
+import ij.gui.Roi;
+import ij.measure.Calibration;
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import org.apache.commons.io.FilenameUtils;
+
+/**
+ * Batch ingestion : images are found in parallel (optionally in sub-folders, file name glob),
+ * metadata of every file and series is read concurrently and rois are matched with their zip file
+ * The work list has one task per (image, series, roi), each with its series calibration,
+ * numbered in file / series / roi order and sorted by crop size, largest first
+ * Roi zip of a series : image_s<series>.zip, or image.zip when one series of the image is analyzed
+ * Unreadable images, series without roi zip and rois without point roi are skipped and listed
+ *
+ * @author phm
+ */
+public class Ingestion {
+
+    /**
+     * Size and calibration of one image series
+     */
+    public static class SeriesInfo {
+        public final int series;
+        public final int sizeX, sizeY, sizeZ;
+        public final Calibration cal;
+
+        public SeriesInfo(int series, int sizeX, int sizeY, int sizeZ, Calibration cal) {
+            this.series = series;
+            this.sizeX = sizeX;
+            this.sizeY = sizeY;
+            this.sizeZ = sizeZ;
+            this.cal = cal;
+        }
+    }
+
+    /**
+     * One roi of one image series
+     */
+    public static class Task {
+        public final String file;
+        public final String imageKey;
+        // image name in results and output files
+        public final String imageName;
+        public final int series;
+        public final int sizeZ;
+        public final Calibration cal;
+        public final String roiHash;
+        public final Roi roiPoly;
+        public final PointRoi roiPt;
+        // results order
+        int order;
+
+        Task(String file, String imageKey, String imageName, SeriesInfo info, String roiHash, Roi roiPoly,
+                PointRoi roiPt) {
+            this.file = file;
+            this.imageKey = imageKey;
+            this.imageName = imageName;
+            this.series = info.series;
+            this.sizeZ = info.sizeZ;
+            this.cal = info.cal;
+            this.roiHash = roiHash;
+            this.roiPoly = roiPoly;
+            this.roiPt = roiPt;
+        }
+
+        /**
+         * Position in results, image / series / roi order
+         */
+        public int getOrder() {
+            return(order);
+        }
+
+        /**
+         * Estimated cost : crop voxels
+         */
+        public long getCost() {
+            Rectangle r = roiPoly.getBounds();
+            return((long)r.width * r.height * sizeZ);
+        }
+    }
+
+
+    /**
+     * Image, series or roi left out of the work list
+     */
+    public static class Skip {
+        public final String imageName;
+        // empty for a whole image or series
+        public final String roiName;
+        public final String reason;
+
+        Skip(String imageName, String roiName, String reason) {
+            this.imageName = imageName;
+            this.roiName = roiName;
+            this.reason = reason;
+        }
+    }
+
+
+    private final MitoConfig config;
+    private final Mito_Processing proc;
+    // series metadata of unchanged images, may be null
+    private final CropCache cache;
+    private final List<Skip> skipped = Collections.synchronizedList(new ArrayList<>());
+
+
+    public Ingestion(MitoConfig config, Mito_Processing proc, CropCache cache) {
+        this.config = config;
+        this.proc = proc;
+        this.cache = cache;
+    }
+
+
+    /**
+     * Images of a folder, sorted by path
+     * @param imageDir
+     * @param exclude folder not scanned (results)
+     * @return
+     */
+    public List<Path> findImages(String imageDir, String exclude) {
+        Path root = Paths.get(imageDir).toAbsolutePath().normalize();
+        Path excluded = (exclude == null) ? null : Paths.get(exclude).toAbsolutePath().normalize();
+        PathMatcher glob = FileSystems.getDefault().getPathMatcher("glob:" + config.glob);
+        List<Path> images = ForkJoinPool.commonPool().invoke(new FolderScan(root, excluded, glob));
+        Collections.sort(images);
+        return(images);
+    }
+
+    /**
+     * List one folder, sub-folders are scanned in parallel
+     */
+    private class FolderScan extends RecursiveTask<List<Path>> {
+        private final Path dir, exclude;
+        private final PathMatcher glob;
+
+        FolderScan(Path dir, Path exclude, PathMatcher glob) {
+            this.dir = dir;
+            this.exclude = exclude;
+            this.glob = glob;
+        }
+
+        @Override
+        protected List<Path> compute() {
+            List<Path> images = new ArrayList<>();
+            List<FolderScan> subDirs = new ArrayList<>();
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                for (Path f : files) {
+                    String name = f.getFileName().toString();
+                    if (Files.isDirectory(f)) {
+                        if (config.recursive && !name.startsWith(".") && !f.equals(exclude))
+                            subDirs.add(new FolderScan(f, exclude, glob));
+                    }
+                    else if (FilenameUtils.getExtension(name).equals(config.imageExt) && glob.matches(f.getFileName()))
+                        images.add(f);
+                }
+            } catch (IOException ex) {
+                System.out.println("Can't list " + dir + " : " + ex.getMessage());
+            }
+            invokeAll(subDirs);
+            for (FolderScan sub : subDirs)
+                images.addAll(sub.join());
+            return(images);
+        }
+    }
+
+
+    /**
+     * Work list of a folder
+     * @param imageDir
+     * @param outDir results folder, not scanned
+     * @return tasks sorted by decreasing cost, Task.getOrder() gives results order
+     */
+    public List<Task> scan(String imageDir, String outDir) {
+        List<Path> images = findImages(imageDir, outDir);
+        if (images.isEmpty()) {
+            System.out.println("No Image found in " + imageDir);
+            return(new ArrayList<>());
+        }
+        Path root = Paths.get(imageDir).toAbsolutePath().normalize();
+        ExecutorService readers = Executors.newFixedThreadPool(Math.min(images.size(), config.workers));
+        List<List<Task>> perImage = new ArrayList<>();
+        try {
+            List<CompletableFuture<List<Task>>> futures = new ArrayList<>();
+            for (Path image : images)
+                futures.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return(scanImage(root, image));
+                    } catch (Exception ex) {
+                        System.out.println("Can't read " + image + " : " + ex.getMessage());
+                        skip(baseName(root, image), "", "unreadable image : " + ex);
+                        return(new ArrayList<Task>());
+                    }
+                }, readers));
+            for (CompletableFuture<List<Task>> f : futures)
+                perImage.add(f.join());
+        } finally {
+            readers.shutdown();
+        }
+        // results order, then largest crops first
+        List<Task> tasks = new ArrayList<>();
+        for (List<Task> imageTasks : perImage)
+            for (Task t : imageTasks) {
+                t.order = tasks.size();
+                tasks.add(t);
+            }
+        tasks.sort(Comparator.comparingLong(Task::getCost).reversed());
+        System.out.println(images.size() + " images, " + tasks.size() + " rois, " + skipped.size() + " skipped");
+        return(tasks);
+    }
+
+    /**
+     * Images, series and rois skipped by the last scan, in no particular order
+     */
+    public List<Skip> getSkipped() {
+        synchronized (skipped) {
+            return(new ArrayList<>(skipped));
+        }
+    }
+
+    private void skip(String imageName, String roiName, String reason) {
+        skipped.add(new Skip(imageName, roiName, reason));
+    }
+
+    private static String baseName(Path root, Path image) {
+        return(FilenameUtils.removeExtension(root.relativize(image).toString()).replace(File.separatorChar, '_'));
+    }
+
+    /**
+     * Tasks of one image, in series and roi order
+     */
+    private List<Task> scanImage(Path root, Path image) throws Exception {
+        List<Task> tasks = new ArrayList<>();
+        String file = image.toString();
+        String imageKey = ResultsCache.imageKey(file);
+        List<SeriesInfo> series = (cache == null) ? null : cache.getSeries(imageKey);
+        if (series == null) {
+            series = readSeries(file);
+            if (cache != null)
+                cache.putSeries(imageKey, series);
+        }
+        List<SeriesInfo> selected = new ArrayList<>();
+        for (SeriesInfo info : series)
+            if (config.series < 0 || info.series == config.series)
+                selected.add(info);
+        String baseName = baseName(root, image);
+        String dir = image.getParent().toString() + File.separator;
+        String rootName = FilenameUtils.getBaseName(file);
+        for (SeriesInfo info : selected) {
+            String roiFile = dir + rootName + "_s" + info.series + ".zip";
+            if (!new File(roiFile).exists() && selected.size() == 1)
+                roiFile = dir + rootName + ".zip";
+            String imageName = (selected.size() > 1) ? baseName + "_s" + info.series : baseName;
+            if (!new File(roiFile).exists()) {
+                System.out.println("No roi file found for " + image.getFileName() + " series " + info.series + ", skipped");
+                skip(imageName, "", "no roi file " + new File(roiFile).getName());
+                continue;
+            }
+            String roiHash;
+            ArrayList<Roi> rois;
+            try {
+                roiHash = ResultsCache.fileHash(roiFile);
+                rois = proc.readRois(roiFile);
+            } catch (IOException ex) {
+                System.out.println("Can't read " + roiFile + " : " + ex.getMessage());
+                skip(imageName, "", "unreadable roi file : " + ex);
+                continue;
+            }
+            // Store roi by type polygon / point
+            ArrayList<Roi> roiPts = proc.findRoi(rois, Roi.POINT);
+            ArrayList<Roi> roiPolys = proc.findRoi(rois, Roi.FREELINE);
+            for (Roi roiPoly : roiPolys) {
+                String roiName = roiPoly.getName();
+                PointRoi roiPt = null;
+                for (Roi r : roiPts)
+                    if (r.getName().contains(roiName)) {
+                        roiPt = new PointRoi(r.getXBase() - roiPoly.getXBase(), r.getYBase() - roiPoly.getYBase());
+                        roiPt.setPosition(r.getPosition());
+                        roiPt.setName(roiName);
+                    }
+                if (roiPt == null) {
+                    System.out.println("No point roi for " + roiName + " in " + new File(roiFile).getName() + ", skipped");
+                    skip(imageName, roiName, "no point roi");
+                    continue;
+                }
+                tasks.add(new Task(file, imageKey, imageName, info, roiHash, roiPoly, roiPt));
+            }
+        }
+        return(tasks);
+    }
+
+    /**
+     * Size and calibration of all series of an image
+     */
+    private List<SeriesInfo> readSeries(String file) throws Exception {
+        List<SeriesInfo> series = new ArrayList<>();
+        try (ImageSession session = new ImageSession(file, 0, config.channel)) {
+            for (int s = 0; s < session.getReader().getSeriesCount(); s++) {
+                session.getReader().setSeries(s);
+                series.add(new SeriesInfo(s, session.getReader().getSizeX(), session.getReader().getSizeY(),
+                        session.getSizeZ(), Mito_Processing.findSeriesCalib(session.getMetadata(), s)));
+            }
+        }
+        return(series);
+    }
+}
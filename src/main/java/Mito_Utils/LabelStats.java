@@ -0,0 +1,261 @@
+package Mito_Utils;
+
+import ij.ImageStack;
+import ij.measure.Calibration;
+import java.util.Arrays;
+import net.haesleinhuepf.clij2.plugins.StatisticsOfLabelledPixels;
+
+/**
+ * Per label statistics collected in one pass over a label stack
+ * Primitive arrays indexed by label : voxel count, bounding box, coordinate and intensity sums
+ *
+ * @author phm
+ */
+public class LabelStats {
+
+    private final Calibration cal;
+    private final int maxLabel;
+    private final long[] voxels;
+    private final int[] minX, minY, minZ, maxX, maxY, maxZ;
+    private final double[] sumX, sumY, sumZ;
+    private final double[] sumI;
+    private final float[] minI, maxI;
+
+
+    private LabelStats(int maxLabel, Calibration cal) {
+        this.cal = cal;
+        this.maxLabel = maxLabel;
+        int n = maxLabel + 1;
+        voxels = new long[n];
+        minX = new int[n];
+        minY = new int[n];
+        minZ = new int[n];
+        maxX = new int[n];
+        maxY = new int[n];
+        maxZ = new int[n];
+        Arrays.fill(minX, Integer.MAX_VALUE);
+        Arrays.fill(minY, Integer.MAX_VALUE);
+        Arrays.fill(minZ, Integer.MAX_VALUE);
+        Arrays.fill(maxX, -1);
+        Arrays.fill(maxY, -1);
+        Arrays.fill(maxZ, -1);
+        sumX = new double[n];
+        sumY = new double[n];
+        sumZ = new double[n];
+        sumI = new double[n];
+        minI = new float[n];
+        maxI = new float[n];
+        Arrays.fill(minI, Float.MAX_VALUE);
+        Arrays.fill(maxI, -Float.MAX_VALUE);
+    }
+
+
+    /**
+     * Scan labels once
+     * @param labels label stack (8 or 16-bit)
+     * @param intensity intensity stack, same size, may be null
+     * @param cal
+     * @return
+     */
+    public static LabelStats compute(ImageStack labels, ImageStack intensity, Calibration cal) {
+        int width = labels.getWidth(), depth = labels.getSize();
+        int max = 0;
+        for (int z = 0; z < depth; z++) {
+            Object pixels = labels.getPixels(z + 1);
+            for (int i = 0, n = width * labels.getHeight(); i < n; i++)
+                max = Math.max(max, label(pixels, i));
+        }
+        LabelStats stats = new LabelStats(max, cal);
+        for (int z = 0; z < depth; z++) {
+            Object pixels = labels.getPixels(z + 1);
+            Object values = (intensity == null) ? null : intensity.getPixels(z + 1);
+            for (int i = 0, n = width * labels.getHeight(); i < n; i++) {
+                int l = label(pixels, i);
+                if (l != 0)
+                    stats.add(l, i % width, i / width, z, (values == null) ? 0 : value(values, i));
+            }
+        }
+        return(stats);
+    }
+
+    /**
+     * Scan the runs of sparse labels, intensity read on the runs only
+     * Voxels are visited in the same order as a label stack scan, same sums
+     * @param labels
+     * @param intensity intensity stack, same size, may be null
+     * @return
+     */
+    public static LabelStats compute(SparseLabels labels, ImageStack intensity) {
+        LabelStats stats = new LabelStats(labels.getMaxLabel(), labels.getCalibration());
+        int width = labels.width;
+        for (int z = 0; z < labels.depth; z++) {
+            Object values = (intensity == null) ? null : intensity.getPixels(z + 1);
+            for (int y = 0; y < labels.height; y++)
+                for (int k = labels.rowFirst(z, y); k < labels.rowEnd(z, y); k++) {
+                    int l = labels.getLabel(k);
+                    for (int x = labels.getXStart(k); x <= labels.getXEnd(k); x++)
+                        stats.add(l, x, y, z, (values == null) ? 0 : value(values, y * width + x));
+                }
+        }
+        return(stats);
+    }
+
+    /**
+     * Build from CLIJ2 statisticsOfLabelledPixels table
+     * @param table one row per label, rows of empty labels are skipped
+     * @param cal
+     * @return
+     */
+    public static LabelStats fromTable(double[][] table, Calibration cal) {
+        // labels removed by the roi mask keep an empty row
+        int max = 0;
+        for (double[] row : table)
+            if (row[Entry.PIXEL_COUNT] > 0)
+                max = Math.max(max, (int)row[Entry.IDENTIFIER]);
+        LabelStats stats = new LabelStats(max, cal);
+        for (double[] row : table) {
+            int l = (int)row[Entry.IDENTIFIER];
+            long n = (long)row[Entry.PIXEL_COUNT];
+            if (n <= 0 || l <= 0)
+                continue;
+            stats.voxels[l] = n;
+            stats.minX[l] = (int)row[Entry.MIN_X];
+            stats.minY[l] = (int)row[Entry.MIN_Y];
+            stats.minZ[l] = (int)row[Entry.MIN_Z];
+            stats.maxX[l] = (int)row[Entry.MAX_X];
+            stats.maxY[l] = (int)row[Entry.MAX_Y];
+            stats.maxZ[l] = (int)row[Entry.MAX_Z];
+            stats.sumX[l] = row[Entry.CENTROID_X] * n;
+            stats.sumY[l] = row[Entry.CENTROID_Y] * n;
+            stats.sumZ[l] = row[Entry.CENTROID_Z] * n;
+            stats.sumI[l] = row[Entry.SUM_INTENSITY];
+            stats.minI[l] = (float)row[Entry.MIN_INTENSITY];
+            stats.maxI[l] = (float)row[Entry.MAX_INTENSITY];
+        }
+        return(stats);
+    }
+
+    /**
+     * Column indexes of CLIJ2 label statistics
+     */
+    private static class Entry {
+        static final int IDENTIFIER = StatisticsOfLabelledPixels.STATISTICS_ENTRY.IDENTIFIER.value;
+        static final int PIXEL_COUNT = StatisticsOfLabelledPixels.STATISTICS_ENTRY.PIXEL_COUNT.value;
+        static final int MIN_X = StatisticsOfLabelledPixels.STATISTICS_ENTRY.BOUNDING_BOX_X.value;
+        static final int MIN_Y = StatisticsOfLabelledPixels.STATISTICS_ENTRY.BOUNDING_BOX_Y.value;
+        static final int MIN_Z = StatisticsOfLabelledPixels.STATISTICS_ENTRY.BOUNDING_BOX_Z.value;
+        static final int MAX_X = StatisticsOfLabelledPixels.STATISTICS_ENTRY.BOUNDING_BOX_END_X.value;
+        static final int MAX_Y = StatisticsOfLabelledPixels.STATISTICS_ENTRY.BOUNDING_BOX_END_Y.value;
+        static final int MAX_Z = StatisticsOfLabelledPixels.STATISTICS_ENTRY.BOUNDING_BOX_END_Z.value;
+        static final int CENTROID_X = StatisticsOfLabelledPixels.STATISTICS_ENTRY.CENTROID_X.value;
+        static final int CENTROID_Y = StatisticsOfLabelledPixels.STATISTICS_ENTRY.CENTROID_Y.value;
+        static final int CENTROID_Z = StatisticsOfLabelledPixels.STATISTICS_ENTRY.CENTROID_Z.value;
+        static final int SUM_INTENSITY = StatisticsOfLabelledPixels.STATISTICS_ENTRY.SUM_INTENSITY.value;
+        static final int MIN_INTENSITY = StatisticsOfLabelledPixels.STATISTICS_ENTRY.MINIMUM_INTENSITY.value;
+        static final int MAX_INTENSITY = StatisticsOfLabelledPixels.STATISTICS_ENTRY.MAXIMUM_INTENSITY.value;
+    }
+
+    private static int label(Object pixels, int i) {
+        if (pixels instanceof short[])
+            return(((short[])pixels)[i] & 0xffff);
+        if (pixels instanceof byte[])
+            return(((byte[])pixels)[i] & 0xff);
+        return((int)((float[])pixels)[i]);
+    }
+
+    private static float value(Object pixels, int i) {
+        if (pixels instanceof short[])
+            return(((short[])pixels)[i] & 0xffff);
+        if (pixels instanceof byte[])
+            return(((byte[])pixels)[i] & 0xff);
+        return(((float[])pixels)[i]);
+    }
+
+    private void add(int l, int x, int y, int z, float v) {
+        voxels[l]++;
+        if (x < minX[l]) minX[l] = x;
+        if (x > maxX[l]) maxX[l] = x;
+        if (y < minY[l]) minY[l] = y;
+        if (y > maxY[l]) maxY[l] = y;
+        if (z < minZ[l]) minZ[l] = z;
+        if (z > maxZ[l]) maxZ[l] = z;
+        sumX[l] += x;
+        sumY[l] += y;
+        sumZ[l] += z;
+        sumI[l] += v;
+        if (v < minI[l]) minI[l] = v;
+        if (v > maxI[l]) maxI[l] = v;
+    }
+
+
+    public int getMaxLabel() {
+        return(maxLabel);
+    }
+
+    /**
+     * Number of labels with voxels
+     */
+    public int getNbObjects() {
+        int n = 0;
+        for (int l = 1; l <= maxLabel; l++)
+            if (voxels[l] > 0)
+                n++;
+        return(n);
+    }
+
+    public boolean exists(int label) {
+        return(label > 0 && label <= maxLabel && voxels[label] > 0);
+    }
+
+    public long getVoxels(int label) {
+        return(voxels[label]);
+    }
+
+    /**
+     * Calibrated volume of a label
+     */
+    public double getVolume(int label) {
+        return(voxels[label] * cal.pixelWidth * cal.pixelHeight * cal.pixelDepth);
+    }
+
+    /**
+     * Calibrated volume of all labels
+     */
+    public double getTotalVolume() {
+        long sum = 0;
+        for (int l = 1; l <= maxLabel; l++)
+            sum += voxels[l];
+        return(sum * cal.pixelWidth * cal.pixelHeight * cal.pixelDepth);
+    }
+
+    /**
+     * Bounding box {minX, minY, minZ, maxX, maxY, maxZ} in voxels
+     */
+    public int[] getBoundingBox(int label) {
+        return new int[] {minX[label], minY[label], minZ[label], maxX[label], maxY[label], maxZ[label]};
+    }
+
+    /**
+     * Centroid {x, y, z} in voxels
+     */
+    public double[] getCentroid(int label) {
+        long n = voxels[label];
+        return new double[] {sumX[label] / n, sumY[label] / n, sumZ[label] / n};
+    }
+
+    public double getSumIntensity(int label) {
+        return(sumI[label]);
+    }
+
+    public double getMeanIntensity(int label) {
+        return(sumI[label] / voxels[label]);
+    }
+
+    public double getMinIntensity(int label) {
+        return(minI[label]);
+    }
+
+    public double getMaxIntensity(int label) {
+        return(maxI[label]);
+    }
+}
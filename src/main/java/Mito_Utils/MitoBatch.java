@@ -0,0 +1,572 @@
+package Mito_Utils;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.gui.PointRoi;
+import ij.gui.Roi;
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Batch analysis of an images folder, without GUI
+ * Rois of all images and series are scheduled largest first, results keep image / series / roi order
+ * Skipped and failed rois are listed in Results_Errors, the other rois go on
+ * Used by the Mito_Morph_Astro plugin and from the command line :
+ * java -cp ... Mito_Utils.MitoBatch [-config params.properties] [-sweep grid.properties]
+ *     [-queue queueDir [-worker name]] -input imagesDir [-output resultsDir]
+ * With -sweep, all parameter sets of the grid are run on every roi, see ParameterSweep
+ * With -queue, several processes or nodes share the rois of one folder through a shared directory, see WorkQueue
+ *
+ * @author phm
+ */
+public class MitoBatch {
+
+    public final MitoConfig config;
+    public final Mito_Processing proc;
+    private ResultsWriter results;
+    private ResultsCache cache;
+    private CropCache crops;
+    private TiffWriter images;
+    private StageMetrics metrics;
+    // shared work queue, null for a single process run
+    private WorkQueue queue;
+    private volatile Listener listener;
+
+
+    /**
+     * Progress and committed rows of a run, called from the scheduler threads
+     */
+    public interface Listener {
+        /**
+         * @param done rois committed
+         * @param total rois of the run
+         */
+        void progress(long done, int total);
+
+        void row(ResultsRow row);
+    }
+
+
+    public MitoBatch(MitoConfig config) {
+        this.config = config;
+        this.proc = new Mito_Processing(config);
+    }
+
+    /**
+     * @param listener null for none
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+
+    /**
+     * Analyze all images of a folder with their roi zip files
+     * @param imageDir images folder
+     * @param outDir results folder, created if needed
+     * @throws Exception results tables or cache failure
+     */
+    public void run(String imageDir, String outDir) throws Exception {
+        new File(outDir).mkdirs();
+        if (!outDir.endsWith(File.separator))
+            outDir += File.separator;
+        // decoded crops kept for reruns with other parameters
+        crops = (config.cropCacheMB > 0) ? new CropCache(outDir, config.cropCacheMB * 1024 * 1024) : null;
+        // (image, series, roi) tasks, largest first
+        Ingestion ingestion = new Ingestion(config, proc, crops);
+        List<Ingestion.Task> tasks = ingestion.scan(imageDir, outDir);
+        if (tasks.isEmpty() && ingestion.getSkipped().isEmpty())
+            return;
+
+        /*
+        * Results tables, written by a single thread
+        */
+        results = new ResultsWriter(outDir, Mito_Processing.resultsTables(config.objectsTable, config.branchesTable),
+                config.binaryTables ? ResultsWriter.Format.BINARY : ResultsWriter.Format.TSV);
+        // rois already done with the same image, rois and parameters are not processed again
+        cache = new ResultsCache(outDir);
+        metrics = new StageMetrics(config.progress);
+        RoiScheduler scheduler = new RoiScheduler(config.workers, config.ioThreads, config.memoryBudgetMB * 1024 * 1024, 
+                (long)(config.roiTimeout * 1000));
+        // objects and skeleton images written in background
+        images = new TiffWriter(Math.max(1, config.workers / 2), config.imageQueueMB * 1024 * 1024, config.compressImages, 
+                (file, ex) -> {
+                    try {
+                        writeRow(Mito_Processing.errorRow(new File(file).getName(), "", "failed", "write : " + ex));
+                    } catch (IOException e) {
+                        System.out.println("Can't write errors table : " + e.getMessage());
+                    }
+                });
+        proc.setImageWriter(images);
+        Map<String, SeriesReader> readers = new HashMap<>();
+        try {
+            for (Ingestion.Skip skip : ingestion.getSkipped())
+                writeRow(Mito_Processing.errorRow(skip.imageName, skip.roiName, "skipped", skip.reason));
+            // results order : metrics records, cached rows, crops to decode per series
+            List<Ingestion.Task> ordered = new ArrayList<>(tasks);
+            ordered.sort(Comparator.comparingInt(Ingestion.Task::getOrder));
+            Map<Ingestion.Task, Pending> pending = new HashMap<>();
+            for (Ingestion.Task task : ordered) {
+                String roiName = task.roiPoly.getName();
+                Pending p = new Pending(metrics.roi(task.imageName, roiName));
+                p.key = roiKey(task);
+                p.rows = cache.get(p.key);
+                p.cropKey = CropCache.cropKey(task.imageKey, task.series, config.channel, task.roiPoly.getBounds());
+                p.cropSlices = (p.rows == null && crops != null) ? crops.reserve(p.cropKey) : 0;
+                if (p.rows == null && p.cropSlices == 0) {
+                    p.reader = readers.computeIfAbsent(task.file + "|" + task.series, k -> new SeriesReader(task, scheduler));
+                    p.cropIndex = p.reader.add(task.roiPoly.getBounds());
+                }
+                pending.put(task, p);
+            }
+            for (Ingestion.Task task : tasks) {
+                Pending p = pending.get(task);
+                if (p.rows != null) {
+                    System.out.println("Roi "+task.imageName+" "+task.roiPoly.getName()+" up to date");
+                    submitCached(scheduler, task.getOrder(), p.rows, p.metrics);
+                }
+                else
+                    submitRoi(scheduler, task.getOrder(), task, p, outDir);
+            }
+            scheduler.await();
+        } finally {
+            scheduler.close();
+            images.close();
+            proc.setImageWriter(null);
+            proc.releaseDeviceBuffers();
+            for (SeriesReader reader : readers.values())
+                reader.close();
+            results.close();
+            try {
+                metrics.writeReport(outDir, results.getBytesWritten());
+            } catch (IOException ex) {
+                System.out.println("Can't write run report : " + ex.getMessage());
+            }
+        }
+        IJ.showStatus("Process done");
+    }
+
+
+    /**
+     * Analyze a folder together with other workers sharing a queue directory, see WorkQueue
+     * Each worker claims rois, largest first, until none is left, then one worker merges the results tables
+     * Images are written before a roi is completed, so merged tables only list rois with their images
+     * @param imageDir images folder, same path on all nodes
+     * @param outDir results folder, shared
+     * @param queueDir queue directory, shared, one per run
+     * @param worker worker name, null for host and process id
+     * @throws Exception queue, results tables or cache failure
+     */
+    public void runQueue(String imageDir, String outDir, String queueDir, String worker) throws Exception {
+        new File(outDir).mkdirs();
+        if (!outDir.endsWith(File.separator))
+            outDir += File.separator;
+        crops = (config.cropCacheMB > 0) ? new CropCache(outDir, config.cropCacheMB * 1024 * 1024) : null;
+        Ingestion ingestion = new Ingestion(config, proc, crops);
+        List<Ingestion.Task> tasks = ingestion.scan(imageDir, outDir);
+        List<ResultsRow> skipped = new ArrayList<>();
+        for (Ingestion.Skip skip : ingestion.getSkipped())
+            skipped.add(Mito_Processing.errorRow(skip.imageName, skip.roiName, "skipped", skip.reason));
+        queue = new WorkQueue(queueDir, (worker == null) ? WorkQueue.defaultWorker() : worker, 
+                (long)(config.queueLease * 1000));
+        cache = new ResultsCache(outDir);
+        metrics = new StageMetrics(config.progress);
+        RoiScheduler scheduler = new RoiScheduler(config.workers, config.ioThreads, config.memoryBudgetMB * 1024 * 1024, 
+                (long)(config.roiTimeout * 1000));
+        String resultsDir = outDir;
+        int claimed = 0;
+        try {
+            queue.publish(tasks, skipped);
+            // claims wait for a free compute thread, submit waits while the memory budget is full
+            claimed = claimQueue(queue, scheduler, tasks, cache, this::roiKey, task -> {
+                System.out.println("Roi "+task.imageName+" "+task.roiPoly.getName()+" up to date");
+                StageMetrics.RoiMetrics roiMetrics = metrics.roi(task.imageName, task.roiPoly.getName());
+                roiMetrics.cached = true;
+                roiDone(roiMetrics);
+            }, (order, task, key) -> submitClaimed(scheduler, order, task, key, resultsDir));
+            scheduler.await();
+        } finally {
+            scheduler.close();
+            proc.releaseDeviceBuffers();
+            queue.close();
+            try {
+                Path reports = queue.getDir().resolve("reports").resolve(queue.getWorker());
+                Files.createDirectories(reports);
+                metrics.writeReport(reports.toString(), 0);
+            } catch (IOException ex) {
+                System.out.println("Can't write run report : " + ex.getMessage());
+            }
+        }
+        System.out.println("Worker " + queue.getWorker() + " : " + claimed + " rois");
+        if (queue.tryMerge()) {
+            results = new ResultsWriter(outDir, Mito_Processing.resultsTables(config.objectsTable, config.branchesTable),
+                    config.binaryTables ? ResultsWriter.Format.BINARY : ResultsWriter.Format.TSV);
+            try {
+                queue.merge(results);
+            } finally {
+                results.close();
+            }
+            queue.endMerge();
+        }
+        IJ.showStatus("Process done");
+    }
+
+    /**
+     * Claimed roi not in the results cache
+     */
+    interface QueueSubmit {
+        /**
+         * @param order commit order
+         * @param task
+         * @param key results cache key of the roi
+         * @throws Exception
+         */
+        void submit(int order, Ingestion.Task task, String key) throws Exception;
+    }
+
+    /**
+     * Claim rois of a shared queue until none is left, one at a time while a compute thread is free
+     * A roi in the results cache is completed at once, the others are submitted with consecutive orders
+     * @param key results cache key of a roi
+     * @param cached called for each roi completed from the cache
+     * @param submit
+     * @return rois claimed by this worker
+     * @throws Exception
+     */
+    static int claimQueue(WorkQueue queue, RoiScheduler scheduler, List<Ingestion.Task> tasks, ResultsCache cache,
+            Function<Ingestion.Task, String> key, Consumer<Ingestion.Task> cached, QueueSubmit submit) throws Exception {
+        return(queue.claimAll(tasks, scheduler, (task, order) -> {
+            String roiKey = key.apply(task);
+            List<ResultsRow> rows = cache.get(roiKey);
+            if (rows != null) {
+                queue.complete(task.getOrder(), rows);
+                cached.accept(task);
+                return(false);
+            }
+            submit.submit(order, task, roiKey);
+            return(true);
+        }));
+    }
+
+    /**
+     * Results cache key of a roi, every series of a multi-series run is its own image
+     */
+    private String roiKey(Ingestion.Task task) {
+        String fingerprint = proc.getFingerprint(task.cal) + ((config.series < 0) ? ";series=" + task.series : "");
+        return(ResultsCache.roiKey(task.imageKey, task.roiHash, task.roiPoly.getName(), fingerprint));
+    }
+
+    /**
+     * Queue a claimed roi to compute
+     */
+    private void submitClaimed(RoiScheduler scheduler, int order, Ingestion.Task task, String key, String outDir) 
+            throws Exception {
+        Pending p = new Pending(metrics.roi(task.imageName, task.roiPoly.getName()));
+        p.key = key;
+        p.cropKey = CropCache.cropKey(task.imageKey, task.series, config.channel, task.roiPoly.getBounds());
+        p.cropSlices = (crops != null) ? crops.reserve(p.cropKey) : 0;
+        submitRoi(scheduler, order, task, p, outDir);
+    }
+
+    /**
+     * Row to the results tables
+     */
+    private void writeRow(ResultsRow row) throws IOException {
+        results.write(row);
+        Listener l = listener;
+        if (l != null)
+            l.row(row);
+    }
+
+    private void roiDone(StageMetrics.RoiMetrics roiMetrics) {
+        metrics.roiDone(roiMetrics);
+        Listener l = listener;
+        if (l != null)
+            l.progress(metrics.getDone(), metrics.getTotal());
+    }
+
+    /**
+     * Roi rows to the results tables, or to the worker shard of a shared queue
+     */
+    private void commitRows(Ingestion.Task task, List<ResultsRow> rows) throws IOException {
+        if (queue != null)
+            queue.complete(task.getOrder(), rows);
+        else
+            for (ResultsRow row : rows)
+                writeRow(row);
+    }
+
+
+    /**
+     * Queue one roi : open cropped mito channel -> find mito -> skeleton -> save
+     * @param order commit order in the scheduler
+     * @param task image series and roi
+     * @param p cache state of the roi
+     */
+    private void submitRoi(RoiScheduler scheduler, int order, Ingestion.Task task, Pending p, String outDir) 
+            throws InterruptedException {
+        Roi roiPoly = task.roiPoly;
+        PointRoi roiPt = task.roiPt;
+        String rootName = task.imageName;
+        String roiName = roiPoly.getName();
+        Rectangle rect = roiPoly.getBounds();
+        int sizeZ = (p.cropSlices > 0) ? p.cropSlices : task.sizeZ;
+        // cropped stack + float intermediates, or one slab of them for streamed crops
+        long memory = proc.roiMemory(rect.width, rect.height, sizeZ);
+        String title = new File(task.file).getName() + " - C=" + config.channel;
+        StageMetrics.RoiMetrics roiMetrics = p.metrics;
+        scheduler.submit(memory, order, v -> {
+            try (StageMetrics.Binding b = roiMetrics.bind(); 
+                    StageMetrics.Span span = StageMetrics.span(StageMetrics.Stage.OPEN)) {
+                System.out.println("Opening mito channel "+rootName+" "+roiName);
+                ImagePlus img = (p.cropSlices > 0) ? crops.open(p.cropKey, task.cal, title) : null;
+                if (img == null) {
+                    if (p.reader != null)
+                        img = p.reader.openCrop(p.cropIndex, title);
+                    else {
+                        // a cached crop went missing, or a crop claimed from a shared queue
+                        try (ImageSession reader = new ImageSession(task.file, task.series, config.channel)) {
+                            reader.setRois(Collections.singletonList(rect));
+                            img = reader.openCrop(0, task.cal, title);
+                        }
+                    }
+                    if (crops != null)
+                        try {
+                            crops.put(p.cropKey, img);
+                        } catch (IOException ex) {
+                            System.out.println("Can't cache crop " + roiName + " : " + ex.getMessage());
+                        }
+                }
+                StageMetrics.bytesRead((long)img.getWidth() * img.getHeight() * img.getStackSize() * (img.getBitDepth() / 8));
+                return(img);
+            }
+        }, imgMitoOrg -> {
+            try (StageMetrics.Binding b = roiMetrics.bind()) {
+                // Find Mitos
+                MitoSegmentation mitoSeg = proc.find_Mito(imgMitoOrg, roiPoly);
+                System.out.println("Mito pop = "+ mitoSeg.getNbObjects());
+
+                // Find mito network morphology
+                // Skeletonize
+                SkeletonAnalyzer.Result skeletons = proc.analyzeSkeleton(mitoSeg.labels, roiPt, outDir, rootName);
+                // Compute global parameters
+                IJ.showStatus("Writing parameters ...");
+                List<ResultsRow> rows = new ArrayList<>();
+                rows.add(proc.computeParameters(mitoSeg, imgMitoOrg, skeletons.getParams(), roiPoly, roiPt, rootName));
+                try (StageMetrics.Span span = StageMetrics.span(StageMetrics.Stage.PARAMETERS)) {
+                    if (config.objectsTable)
+                        rows.addAll(proc.objectRows(mitoSeg, rootName, roiName));
+                    if (config.branchesTable)
+                        rows.addAll(proc.branchRows(skeletons, task.cal, rootName, roiName));
+                }
+
+                proc.flush_close(imgMitoOrg);
+                return(new RoiResult(rows, mitoSeg.labels, outDir + rootName + "_"+roiName+"_Objects.tif"));
+            }
+        }, res -> {
+            try (StageMetrics.Binding b = roiMetrics.bind()) {
+                // queue objects image, waits while the images queue is full
+                if (config.saveImages)
+                    proc.saveObjects(res.objects, res.objectsFile);
+            }
+        }, res -> {
+            try (StageMetrics.Binding b = roiMetrics.bind(); 
+                    StageMetrics.Span span = StageMetrics.span(StageMetrics.Stage.WRITE)) {
+                // cached first : a failed commit gets the error row alone, the next run writes the cached rows
+                cache.put(p.key, res.rows, proc.roiOutputs(outDir, rootName, roiName));
+                commitRows(task, res.rows);
+            }
+            roiDone(roiMetrics);
+        }, ex -> {
+            // the roi is not cached, next run retries it
+            String status = (ex instanceof TimeoutException) ? "timeout" : "failed";
+            System.out.println("Roi " + rootName + " " + roiName + " " + status + " : " + ex);
+            roiMetrics.failed = true;
+            commitRows(task, Collections.singletonList(Mito_Processing.errorRow(rootName, roiName, status, ex.toString())));
+            roiDone(roiMetrics);
+        });
+    }
+
+
+    /**
+     * Queue cached rows of an unchanged roi, committed in roi order
+     */
+    private void submitCached(RoiScheduler scheduler, int order, List<ResultsRow> rows, StageMetrics.RoiMetrics roiMetrics) 
+            throws InterruptedException {
+        roiMetrics.cached = true;
+        scheduler.submit(0, order, v -> rows, r -> r, r -> {}, r -> {
+            for (ResultsRow row : r)
+                writeRow(row);
+            roiDone(roiMetrics);
+        }, null);
+    }
+
+
+    /**
+     * Cache state of a roi before submission
+     */
+    private static class Pending {
+        final StageMetrics.RoiMetrics metrics;
+        String key;
+        List<ResultsRow> rows;
+        String cropKey;
+        // slices of the crop in cache, 0 if decoded
+        int cropSlices;
+        // decoding reader and crop index
+        SeriesReader reader;
+        int cropIndex;
+
+        Pending(StageMetrics.RoiMetrics metrics) {
+            this.metrics = metrics;
+        }
+    }
+
+
+    /**
+     * Reader of the crops to decode in one image series, parsed on first crop, closed after the last one
+     */
+    private class SeriesReader {
+        private final Ingestion.Task task;
+        // shared planes are counted in the scheduler memory budget
+        private final RoiScheduler scheduler;
+        private final List<Rectangle> rects = new ArrayList<>();
+        private ImageSession session;
+        private int opened = 0;
+
+        SeriesReader(Ingestion.Task task, RoiScheduler scheduler) {
+            this.task = task;
+            this.scheduler = scheduler;
+        }
+
+        int add(Rectangle rect) {
+            rects.add(rect);
+            return(rects.size() - 1);
+        }
+
+        synchronized ImagePlus openCrop(int index, String title) throws Exception {
+            if (session == null) {
+                session = new ImageSession(task.file, task.series, config.channel);
+                session.setMemoryListener(scheduler::hold);
+                session.setRois(rects);
+            }
+            try {
+                return(session.openCrop(index, task.cal, title));
+            } finally {
+                // failed rois are not read again
+                if (++opened == rects.size())
+                    close();
+            }
+        }
+
+        synchronized void close() throws IOException {
+            if (session != null) {
+                session.close();
+                session = null;
+            }
+        }
+    }
+
+
+    /**
+     * Roi results waiting to be saved and committed
+     */
+    private static class RoiResult {
+        final List<ResultsRow> rows;
+        final SparseLabels objects;
+        final String objectsFile;
+
+        RoiResult(List<ResultsRow> rows, SparseLabels objects, String objectsFile) {
+            this.rows = rows;
+            this.objects = objects;
+            this.objectsFile = objectsFile;
+        }
+    }
+
+
+    private static void usage() {
+        System.err.println("Usage : Mito_Utils.MitoBatch [-config params.properties] [-sweep grid.properties] "
+                + "[-queue queueDir [-worker name]] -input imagesDir [-output resultsDir]");
+        System.err.println("Default results folder is imagesDir/Results, or imagesDir/Sweep with -sweep");
+        System.err.println("Sweep keys, comma separated values : " + String.join(", ", ParameterSweep.KEYS));
+        System.err.println("Parameters keys :");
+        MitoConfig.defaults().toProperties().list(System.err);
+    }
+
+    /**
+     * Headless entry point
+     * @param args -config file, -sweep grid file, -queue shared directory, -worker name, -input images folder,
+     * -output results folder
+     */
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        String configFile = null, gridFile = null, queueDir = null, worker = null, input = null, output = null;
+        for (int i = 0; i < args.length; i++) {
+            String value = (i + 1 < args.length) ? args[i + 1] : null;
+            switch (args[i]) {
+                case "-config" :
+                    configFile = value;
+                    i++;
+                    break;
+                case "-sweep" :
+                    gridFile = value;
+                    i++;
+                    break;
+                case "-queue" :
+                    queueDir = value;
+                    i++;
+                    break;
+                case "-worker" :
+                    worker = value;
+                    i++;
+                    break;
+                case "-input" :
+                    input = value;
+                    i++;
+                    break;
+                case "-output" :
+                    output = value;
+                    i++;
+                    break;
+                default :
+                    usage();
+                    System.exit(2);
+            }
+        }
+        if (input == null) {
+            usage();
+            System.exit(2);
+        }
+        if (output == null)
+            output = input + File.separator + ((gridFile == null) ? "Results" : "Sweep");
+        try {
+            MitoConfig config = (configFile == null) ? MitoConfig.defaults() : MitoConfig.load(configFile);
+            if (gridFile != null) {
+                new ParameterSweep(config, ParameterSweep.loadGrid(gridFile)).run(input, output);
+                System.exit(0);
+            }
+            MitoBatch batch = new MitoBatch(config);
+            if (!batch.proc.checkInstalledModules())
+                System.exit(1);
+            if (queueDir != null)
+                batch.runQueue(input, output, queueDir, worker);
+            else
+                batch.run(input, output);
+            System.exit(0);
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package Mito_Utils;
+
+import ij.Prefs;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Immutable pipeline configuration
+ * Read from a properties file, missing keys keep their default values
+ *
+ * @author phm
+ */
+public final class MitoConfig {
+
+    // images, series -1 : all series
+    public final String imageExt;
+    public final boolean recursive;
+    public final String glob;
+    public final int series;
+    public final int channel;
+    // mito size filter (voxels)
+    public final double minMito;
+    public final double maxMito;
+    // median filter radius, DoG sigmas, threshold method
+    public final double medRadXY;
+    public final double medRadZ;
+    public final double dogSigma1;
+    public final double dogSigma2;
+    public final String thMethod;
+    // segmentation backend clij2, cpu, auto or compare
+    public final String backend;
+    // segmentation, roi masking and label statistics on device with CLIJ2
+    public final boolean fusedGPU;
+    // max CLIJ2 contexts per OpenCL device
+    public final int gpuContexts;
+    // outputs : objects and skeleton images, skeleton image only
+    public final boolean saveImages;
+    public final boolean savePreviews;
+    // deflate compressed images, images queued for writing (MB)
+    public final boolean compressImages;
+    public final long imageQueueMB;
+    public final boolean objectsTable;
+    public final boolean branchesTable;
+    public final boolean binaryTables;
+    // progress line with throughput and ETA
+    public final boolean progress;
+    // scheduler : parallel rois, compute threads per roi, crop reading and saving threads
+    public final int workers;
+    public final int threads;
+    public final int ioThreads;
+    public final long memoryBudgetMB;
+    // Z slab depth of streaming segmentation, 0 : only crops over the memory budget are streamed
+    public final int streamSlices;
+    // decoded crops cache size cap, 0 : no cache
+    public final long cropCacheMB;
+    // compute time limit of one roi (s), 0 : none
+    public final double roiTimeout;
+    // lease of a claimed roi in a shared work queue (s), renewed while the roi runs
+    public final double queueLease;
+
+    private static final String[] KEYS = {"image.ext", "image.recursive", "image.glob", "image.series", "mito.channel", "mito.min", "mito.max",
+        "median.radius.xy", "median.radius.z", "dog.sigma1", "dog.sigma2", "threshold.method", "backend", "gpu.fused", "gpu.contexts",
+        "save.images", "save.previews", "output.compression", "output.queue.mb", "table.objects", "table.branches", "table.binary", 
+        "progress", "workers", "threads", "io.threads", "memory.budget.mb", "stream.slices", "crop.cache.mb", "roi.timeout.s",
+        "queue.lease.s"};
+
+
+    private MitoConfig(Properties p) {
+        Set<String> unknown = new HashSet<>(p.stringPropertyNames());
+        unknown.removeAll(Arrays.asList(KEYS));
+        if (!unknown.isEmpty())
+            throw new IllegalArgumentException("Unknown configuration keys " + unknown);
+        imageExt = p.getProperty("image.ext", "czi");
+        recursive = getBoolean(p, "image.recursive", false);
+        glob = p.getProperty("image.glob", "*");
+        series = "all".equalsIgnoreCase(p.getProperty("image.series", "").trim()) ? -1 : getInt(p, "image.series", 0);
+        channel = getInt(p, "mito.channel", 1);
+        minMito = getDouble(p, "mito.min", 10);
+        maxMito = getDouble(p, "mito.max", Double.MAX_VALUE);
+        medRadXY = getDouble(p, "median.radius.xy", 2);
+        medRadZ = getDouble(p, "median.radius.z", 2);
+        dogSigma1 = getDouble(p, "dog.sigma1", 2);
+        dogSigma2 = getDouble(p, "dog.sigma2", 3);
+        thMethod = p.getProperty("threshold.method", "Triangle");
+        backend = p.getProperty("backend", System.getProperty("mito.backend", "auto"));
+        fusedGPU = getBoolean(p, "gpu.fused", true);
+        gpuContexts = Math.max(1, getInt(p, "gpu.contexts", 2));
+        saveImages = getBoolean(p, "save.images", true);
+        savePreviews = getBoolean(p, "save.previews", true);
+        String compression = p.getProperty("output.compression", "deflate").trim();
+        if (!compression.equalsIgnoreCase("deflate") && !compression.equalsIgnoreCase("none"))
+            throw new IllegalArgumentException("output.compression must be deflate or none : " + compression);
+        compressImages = compression.equalsIgnoreCase("deflate");
+        imageQueueMB = Math.max(1, (long)getDouble(p, "output.queue.mb", 256));
+        objectsTable = getBoolean(p, "table.objects", false);
+        branchesTable = getBoolean(p, "table.branches", false);
+        binaryTables = getBoolean(p, "table.binary", false);
+        progress = getBoolean(p, "progress", true);
+        workers = Math.max(1, getInt(p, "workers", Prefs.getThreads()));
+        threads = Math.max(1, getInt(p, "threads", Prefs.getThreads()));
+        ioThreads = Math.max(1, getInt(p, "io.threads", 4));
+        memoryBudgetMB = Math.max(1, (long)getDouble(p, "memory.budget.mb", Runtime.getRuntime().maxMemory() / 2 / (1024 * 1024)));
+        streamSlices = Math.max(0, getInt(p, "stream.slices", 0));
+        cropCacheMB = Math.max(0, (long)getDouble(p, "crop.cache.mb", 0));
+        roiTimeout = Math.max(0, getDouble(p, "roi.timeout.s", 0));
+        queueLease = Math.max(1, getDouble(p, "queue.lease.s", 120));
+    }
+
+
+    /**
+     * Default parameters
+     * @return
+     */
+    public static MitoConfig defaults() {
+        return(new MitoConfig(new Properties()));
+    }
+
+    /**
+     * @param p parameters, other keys keep default values
+     * @return
+     * @throws IllegalArgumentException unknown key or bad value
+     */
+    public static MitoConfig fromProperties(Properties p) {
+        return(new MitoConfig(p));
+    }
+
+    /**
+     * Read properties file
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static MitoConfig load(String file) throws IOException {
+        Properties p = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            p.load(new InputStreamReader(in, StandardCharsets.UTF_8));
+        }
+        return(new MitoConfig(p));
+    }
+
+    /**
+     * Copy with one parameter changed
+     * @param key
+     * @param value
+     * @return
+     */
+    public MitoConfig with(String key, Object value) {
+        Properties p = toProperties();
+        p.setProperty(key, String.valueOf(value));
+        return(new MitoConfig(p));
+    }
+
+    /**
+     * All parameters
+     * @return
+     */
+    public Properties toProperties() {
+        Properties p = new Properties();
+        p.setProperty("image.ext", imageExt);
+        p.setProperty("image.recursive", String.valueOf(recursive));
+        p.setProperty("image.glob", glob);
+        p.setProperty("image.series", (series < 0) ? "all" : String.valueOf(series));
+        p.setProperty("mito.channel", String.valueOf(channel));
+        p.setProperty("mito.min", String.valueOf(minMito));
+        p.setProperty("mito.max", String.valueOf(maxMito));
+        p.setProperty("median.radius.xy", String.valueOf(medRadXY));
+        p.setProperty("median.radius.z", String.valueOf(medRadZ));
+        p.setProperty("dog.sigma1", String.valueOf(dogSigma1));
+        p.setProperty("dog.sigma2", String.valueOf(dogSigma2));
+        p.setProperty("threshold.method", thMethod);
+        p.setProperty("backend", backend);
+        p.setProperty("gpu.fused", String.valueOf(fusedGPU));
+        p.setProperty("gpu.contexts", String.valueOf(gpuContexts));
+        p.setProperty("save.images", String.valueOf(saveImages));
+        p.setProperty("save.previews", String.valueOf(savePreviews));
+        p.setProperty("output.compression", compressImages ? "deflate" : "none");
+        p.setProperty("output.queue.mb", String.valueOf(imageQueueMB));
+        p.setProperty("table.objects", String.valueOf(objectsTable));
+        p.setProperty("table.branches", String.valueOf(branchesTable));
+        p.setProperty("table.binary", String.valueOf(binaryTables));
+        p.setProperty("progress", String.valueOf(progress));
+        p.setProperty("workers", String.valueOf(workers));
+        p.setProperty("threads", String.valueOf(threads));
+        p.setProperty("io.threads", String.valueOf(ioThreads));
+        p.setProperty("memory.budget.mb", String.valueOf(memoryBudgetMB));
+        p.setProperty("stream.slices", String.valueOf(streamSlices));
+        p.setProperty("crop.cache.mb", String.valueOf(cropCacheMB));
+        p.setProperty("roi.timeout.s", String.valueOf(roiTimeout));
+        p.setProperty("queue.lease.s", String.valueOf(queueLease));
+        return(p);
+    }
+
+    /**
+     * Parameters changing roi results, scheduler, backend, streaming, cache, timeout and queue excluded
+     * @return
+     */
+    public String getFingerprint() {
+        return("series=" + series + ";channel=" + channel + ";mito=" + minMito + "-" + maxMito + ";median=" + medRadXY
+                + "," + medRadZ + ";dog=" + dogSigma1 + "," + dogSigma2 + ";threshold=" + thMethod + ";previews="
+                + savePreviews + (saveImages ? "" : ";images=false") + ";tables=" + objectsTable + "," + branchesTable);
+    }
+
+
+    private static int getInt(Properties p, String key, int def) {
+        String v = p.getProperty(key);
+        try {
+            return((v == null) ? def : Integer.parseInt(v.trim()));
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Bad value for " + key + " : " + v);
+        }
+    }
+
+    private static double getDouble(Properties p, String key, double def) {
+        String v = p.getProperty(key);
+        try {
+            return((v == null) ? def : Double.parseDouble(v.trim()));
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Bad value for " + key + " : " + v);
+        }
+    }
+
+    private static boolean getBoolean(Properties p, String key, boolean def) {
+        String v = p.getProperty(key);
+        return((v == null) ? def : Boolean.parseBoolean(v.trim()));
+    }
+}
@@ -0,0 +1,513 @@
+package Mito_Utils;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Long running analysis service on a local socket, for many small jobs
+ * JVM, JIT, Bio-Formats classes and OMEXML service, segmentation backends (OpenCL contexts) and thread pools
+ * stay warm between jobs; jobs with the same backend, gpu.contexts and threads share them
+ * Up to maxJobs jobs run at once, each with its share of the memory budget, the others wait
+ * Protocol, UTF-8 lines on 127.0.0.1, each connection starts with the daemon token :
+ *   client : run, input=imagesDir, output=resultsDir (optional), parameter=value lines, empty line
+ *   daemon : job id, log text, progress done total, row (results row), then done seconds or error message
+ *   client : status -> jobs running queued, stop -> daemon exits once running jobs are done
+ * The token is written at start in ~/.mito-daemon-port.token, readable by its user only : other users of the machine
+ * can reach the port but not run jobs or stop the daemon, any process of the same user can
+ * A job writing to the output folder of a running or queued job is rejected
+ * Start : java -cp ... Mito_Utils.MitoDaemon [-port 47123] [-jobs 2] [-config defaults.properties]
+ * Submit : java -cp ... Mito_Utils.MitoDaemon -submit [-port 47123] [-config params.properties] -input imagesDir [-output resultsDir]
+ *
+ * @author phm
+ */
+public class MitoDaemon {
+
+    public static final int DEFAULT_PORT = 47123;
+
+    private final int port;
+    private final int maxJobs;
+    // job parameters not given by the client
+    private final MitoConfig defaults;
+    // warm instances by backend, gpu.contexts and threads
+    private final Map<String, Mito_Processing> warm = new HashMap<>();
+    private final ExecutorService jobs;
+    private final ExecutorService clients;
+    private final AtomicInteger jobIds = new AtomicInteger();
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    // output folders of running and queued jobs, by canonical path
+    private final Map<String, Integer> outputs = new ConcurrentHashMap<>();
+    private String token;
+    private volatile boolean stopped = false;
+    private ServerSocket server;
+
+
+    /**
+     * @param port local port
+     * @param maxJobs jobs running at once
+     * @param defaults job parameters not given by the client
+     */
+    public MitoDaemon(int port, int maxJobs, MitoConfig defaults) {
+        this.port = port;
+        this.maxJobs = Math.max(1, maxJobs);
+        this.defaults = defaults;
+        jobs = Executors.newFixedThreadPool(this.maxJobs);
+        clients = Executors.newCachedThreadPool();
+    }
+
+
+    /**
+     * Warm instance of a job configuration, created and warmed on first use
+     */
+    private synchronized Mito_Processing warmState(MitoConfig config) {
+        String key = config.backend + "|" + config.gpuContexts + "|" + config.threads;
+        Mito_Processing proc = warm.get(key);
+        if (proc == null) {
+            proc = new Mito_Processing(config);
+            warmUp(proc);
+            warm.put(key, proc);
+        }
+        return(proc);
+    }
+
+    /**
+     * Load classes, open backends and compile the pipeline on a small synthetic network
+     */
+    private static void warmUp(Mito_Processing proc) {
+        long t = System.nanoTime();
+        try {
+            ImageSession.getService();
+        } catch (Throwable ex) {
+            System.out.println("Bio-Formats warm up failed : " + ex);
+        }
+        int width = 64, height = 64, depth = 8;
+        ImageStack stack = new ImageStack(width, height);
+        for (int z = 0; z < depth; z++) {
+            short[] pixels = new short[width * height];
+            for (int i = 8; i < 56; i++) {
+                pixels[32 * width + i] = 2000;
+                pixels[i * width + 20 + z] = 2000;
+            }
+            stack.addSlice("", pixels);
+        }
+        Calibration cal = new Calibration();
+        ImagePlus img = new ImagePlus("warm up", stack);
+        img.setCalibration(cal);
+        for (int i = 0; i < 3; i++)
+            try {
+                ImagePlus labels = proc.getBackend().segment(img, 1, 1, 1, 2, "Triangle", 1, Double.MAX_VALUE);
+                SparseLabels sparse = SparseLabels.of(labels);
+                LabelStats.compute(sparse, stack);
+                new SkeletonAnalyzer(cal, proc.getPool()).analyze(sparse);
+            } catch (Throwable ex) {
+                System.out.println("Pipeline warm up failed : " + ex);
+                break;
+            }
+        System.out.println(String.format("Warm up of %s : %.1f s", proc.getBackend().getName(), (System.nanoTime() - t) / 1e9));
+    }
+
+
+    /**
+     * Token file of the daemon on a port, in the user home
+     */
+    public static Path tokenFile(int port) {
+        return(Paths.get(System.getProperty("user.home"), ".mito-daemon-" + port + ".token"));
+    }
+
+    /**
+     * New random token in a file readable by this user only
+     */
+    private static String writeToken(Path file) throws IOException {
+        byte[] bytes = new byte[32];
+        new SecureRandom().nextBytes(bytes);
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes)
+            hex.append(String.format("%02x", b));
+        Files.deleteIfExists(file);
+        try {
+            Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException ex) {
+            // not a POSIX file system
+            Files.createFile(file);
+            File f = file.toFile();
+            f.setReadable(false, false);
+            f.setWritable(false, false);
+            f.setReadable(true, true);
+            f.setWritable(true, true);
+        }
+        Files.write(file, hex.toString().getBytes(StandardCharsets.UTF_8));
+        return(hex.toString());
+    }
+
+    private boolean validToken(String line) {
+        return(line != null && MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8), 
+                line.trim().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Accept clients until stopped
+     * @throws IOException
+     */
+    public void serve() throws IOException {
+        System.setOut(new PrintStream(new JobOutput(System.out), true, "UTF-8"));
+        warmState(defaults);
+        Path tokenFile = tokenFile(port);
+        server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        token = writeToken(tokenFile);
+        System.out.println("Mito daemon listening on " + server.getLocalSocketAddress() + ", " + maxJobs + " jobs at once, "
+                + "token in " + tokenFile);
+        try {
+            while (!stopped) {
+                Socket socket;
+                try {
+                    socket = server.accept();
+                } catch (IOException ex) {
+                    if (stopped)
+                        break;
+                    throw ex;
+                }
+                clients.execute(() -> handle(socket));
+            }
+        } finally {
+            jobs.shutdown();
+            try {
+                // running and queued jobs end first
+                jobs.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            clients.shutdown();
+            Files.deleteIfExists(tokenFile);
+        }
+    }
+
+    /**
+     * One client connection, one command
+     */
+    private void handle(Socket socket) {
+        try (Client client = new Client(socket)) {
+            if (!validToken(client.in.readLine())) {
+                client.send("error invalid token");
+                return;
+            }
+            String command = client.in.readLine();
+            if (command == null)
+                return;
+            switch (command.trim()) {
+                case "run" :
+                    run(client);
+                    break;
+                case "status" :
+                    client.send("jobs " + running.get() + " " + queued.get());
+                    break;
+                case "stop" :
+                    stopped = true;
+                    client.send("stopping");
+                    server.close();
+                    break;
+                default :
+                    client.send("error unknown command " + command);
+            }
+        } catch (IOException ex) {
+            System.out.println("Client failed : " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Read a job, queue it and stream its output until it ends
+     */
+    private void run(Client client) throws IOException {
+        Properties p = new Properties();
+        String line;
+        while ((line = client.in.readLine()) != null && !line.isEmpty()) {
+            int eq = line.indexOf('=');
+            if (eq > 0)
+                p.setProperty(line.substring(0, eq).trim(), line.substring(eq + 1).trim());
+        }
+        String input = (String)p.remove("input");
+        String output = (String)p.remove("output");
+        MitoConfig config;
+        try {
+            if (input == null)
+                throw new IllegalArgumentException("No input folder");
+            Properties merged = defaults.toProperties();
+            merged.putAll(p);
+            config = MitoConfig.fromProperties(merged);
+        } catch (IllegalArgumentException ex) {
+            client.send("error " + ex.getMessage());
+            return;
+        }
+        // memory budget shared by the jobs running at once
+        long share = defaults.memoryBudgetMB / maxJobs;
+        if (config.memoryBudgetMB > share)
+            config = config.with("memory.budget.mb", share);
+        String outDir = (output == null || output.isEmpty()) ? input + File.separator + "Results" : output;
+        // jobs on one output folder would mix their tables and cache
+        String outKey = new File(outDir).getCanonicalPath();
+        int id = jobIds.incrementAndGet();
+        Integer busy = outputs.putIfAbsent(outKey, id);
+        if (busy != null) {
+            client.send("error output folder " + outDir + " used by job " + busy);
+            return;
+        }
+        client.send("job " + id);
+        MitoConfig jobConfig = config;
+        queued.incrementAndGet();
+        Future<?> job;
+        try {
+            job = jobs.submit(() -> {
+                queued.decrementAndGet();
+                running.incrementAndGet();
+                JobOutput.CLIENT.set(client);
+                long t = System.nanoTime();
+                String end;
+                try {
+                    MitoBatch batch = new MitoBatch(jobConfig);
+                    batch.proc.shareWarmState(warmState(jobConfig));
+                    batch.setListener(new MitoBatch.Listener() {
+                        @Override
+                        public void progress(long done, int total) {
+                            client.send("progress " + done + " " + total);
+                        }
+
+                        @Override
+                        public void row(ResultsRow row) {
+                            client.send("row " + ResultsCache.formatRow(row));
+                        }
+                    });
+                    batch.run(input, outDir);
+                    end = String.format("done %.1f", (System.nanoTime() - t) / 1e9);
+                } catch (Throwable ex) {
+                    end = "error " + ex.toString().replace('\n', ' ');
+                } finally {
+                    JobOutput.CLIENT.remove();
+                    running.decrementAndGet();
+                    outputs.remove(outKey, id);
+                }
+                // output folder free before the client hears the job ended
+                client.send(end);
+            });
+        } catch (RejectedExecutionException ex) {
+            queued.decrementAndGet();
+            outputs.remove(outKey, id);
+            client.send("error daemon stopping");
+            return;
+        }
+        try {
+            job.get();
+        } catch (Exception ex) {
+            client.send("error " + ex);
+        }
+    }
+
+
+    /**
+     * Client connection, lines written by several job threads
+     */
+    private static class Client implements AutoCloseable {
+        final Socket socket;
+        final BufferedReader in;
+        private final BufferedWriter out;
+        // client gone, job output goes to the daemon log
+        volatile boolean closed = false;
+
+        Client(Socket socket) throws IOException {
+            this.socket = socket;
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+        }
+
+        synchronized void send(String line) {
+            if (closed)
+                return;
+            try {
+                out.write(line);
+                out.newLine();
+                out.flush();
+            } catch (IOException ex) {
+                closed = true;
+            }
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            closed = true;
+            socket.close();
+        }
+    }
+
+    /**
+     * Daemon System.out : lines of a job thread, and of the threads it started, go to the job client
+     * Fork-join workers of the warm pools and the common pool run tasks of every job,
+     * whatever client they inherited from the job that started them : their lines go to the daemon log
+     */
+    private static class JobOutput extends OutputStream {
+        static final InheritableThreadLocal<Client> CLIENT = new InheritableThreadLocal<>();
+        private final PrintStream log;
+        private final ThreadLocal<ByteArrayOutputStream> line = ThreadLocal.withInitial(ByteArrayOutputStream::new);
+
+        JobOutput(PrintStream log) {
+            this.log = log;
+        }
+
+        @Override
+        public void write(int b) {
+            Client client = CLIENT.get();
+            // inherited clients of shared pool threads, or of threads started by a finished job
+            if (client == null || client.closed || Thread.currentThread() instanceof ForkJoinWorkerThread) {
+                log.write(b);
+                return;
+            }
+            ByteArrayOutputStream buffer = line.get();
+            if (b == '\n') {
+                try {
+                    client.send("log " + buffer.toString("UTF-8"));
+                } catch (IOException ex) {
+                    // UTF-8 always supported
+                }
+                buffer.reset();
+            }
+            else if (b != '\r')
+                buffer.write(b);
+        }
+
+        @Override
+        public void flush() {
+            log.flush();
+        }
+    }
+
+
+    /**
+     * Submit a job to a running daemon and print its output
+     * @return 0 if the job is done
+     */
+    private static int submit(int port, String configFile, String input, String output) throws IOException {
+        // only the keys of the file, the others keep the daemon defaults
+        Properties p = new Properties();
+        if (configFile != null) {
+            MitoConfig.load(configFile);
+            try (InputStream in = new FileInputStream(configFile)) {
+                p.load(new InputStreamReader(in, StandardCharsets.UTF_8));
+            }
+        }
+        String token = new String(Files.readAllBytes(tokenFile(port)), StandardCharsets.UTF_8).trim();
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            out.write(token + "\n");
+            out.write("run\n");
+            out.write("input=" + new File(input).getAbsolutePath() + "\n");
+            if (output != null)
+                out.write("output=" + new File(output).getAbsolutePath() + "\n");
+            for (String key : p.stringPropertyNames())
+                out.write(key + "=" + p.getProperty(key) + "\n");
+            out.write("\n");
+            out.flush();
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            String line;
+            while ((line = in.readLine()) != null) {
+                System.out.println(line);
+                if (line.startsWith("done "))
+                    return(0);
+                if (line.startsWith("error "))
+                    return(1);
+            }
+        }
+        return(1);
+    }
+
+    private static void usage() {
+        System.err.println("Usage : Mito_Utils.MitoDaemon [-port " + DEFAULT_PORT + "] [-jobs 2] [-config defaults.properties]");
+        System.err.println("        Mito_Utils.MitoDaemon -submit [-port " + DEFAULT_PORT + "] [-config params.properties] "
+                + "-input imagesDir [-output resultsDir]");
+    }
+
+    /**
+     * Start the daemon, or submit a job with -submit
+     * @param args
+     */
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        boolean submit = false;
+        int port = DEFAULT_PORT, maxJobs = 2;
+        String configFile = null, input = null, output = null;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String value = (i + 1 < args.length) ? args[i + 1] : null;
+                switch (args[i]) {
+                    case "-submit" :
+                        submit = true;
+                        continue;
+                    case "-port" :
+                        port = Integer.parseInt(value);
+                        break;
+                    case "-jobs" :
+                        maxJobs = Integer.parseInt(value);
+                        break;
+                    case "-config" :
+                        configFile = value;
+                        break;
+                    case "-input" :
+                        input = value;
+                        break;
+                    case "-output" :
+                        output = value;
+                        break;
+                    default :
+                        usage();
+                        System.exit(2);
+                }
+                i++;
+            }
+            if (submit) {
+                if (input == null) {
+                    usage();
+                    System.exit(2);
+                }
+                System.exit(submit(port, configFile, input, output));
+            }
+            MitoConfig config = (configFile == null) ? MitoConfig.defaults() : MitoConfig.load(configFile);
+            MitoDaemon daemon = new MitoDaemon(port, maxJobs, config);
+            if (!daemon.warmState(config).checkInstalledModules())
+                System.exit(1);
+            daemon.serve();
+            System.exit(0);
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
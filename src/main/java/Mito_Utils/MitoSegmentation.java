@@ -0,0 +1,50 @@
+package Mito_Utils;
+
+import ij.ImagePlus;
+
+/**
+ * Mito segmentation of one roi : run-length labels cleared outside roi
+ * and per label statistics
+ *
+ * @author phm
+ */
+public class MitoSegmentation {
+
+    public final SparseLabels labels;
+    public final LabelStats stats;
+    // roi mask in crop coordinates, may be null
+    public final RoiMask mask;
+
+    public MitoSegmentation(ImagePlus labels, LabelStats stats) {
+        this(SparseLabels.of(labels), stats, null);
+    }
+
+    /**
+     * @param labels dense label image, converted to runs, the caller may flush it
+     * @param stats
+     * @param mask
+     */
+    public MitoSegmentation(ImagePlus labels, LabelStats stats, RoiMask mask) {
+        this(SparseLabels.of(labels), stats, mask);
+    }
+
+    public MitoSegmentation(SparseLabels labels, LabelStats stats, RoiMask mask) {
+        this.labels = labels;
+        this.stats = stats;
+        this.mask = mask;
+    }
+
+    /**
+     * Number of labels with voxels
+     */
+    public int getNbObjects() {
+        return(stats.getNbObjects());
+    }
+
+    /**
+     * Calibrated volume of all objects
+     */
+    public double getVolume() {
+        return(stats.getTotalVolume());
+    }
+}
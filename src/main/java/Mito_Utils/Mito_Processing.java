@@ -4,34 +4,37 @@ package Mito_Utils;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
-import ij.Prefs;
-import ij.WindowManager;
 import ij.gui.PointRoi;
 import ij.gui.Roi;
-import ij.gui.WaitForUserDialog;
-import ij.io.FileSaver;
-import ij.io.Opener;
+import ij.io.RoiDecoder;
 import ij.measure.Calibration;
-import ij.measure.Measurements;
 import ij.plugin.ZProjector;
 import ij.plugin.frame.RoiManager;
+import ij.process.ByteProcessor;
 import ij.process.ImageProcessor;
+import ij.process.LUT;
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 import loci.formats.meta.IMetadata;
 import loci.plugins.util.ImageProcessorReader;
 import mcib3d.geom.Objects3DPopulation;
 import mcib3d.image3d.ImageHandler;
 import mcib3d.image3d.ImageInt;
 import mcib3d.image3d.ImageLabeller;
-import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
-import net.haesleinhuepf.clij2.CLIJ2;
 import org.apache.commons.io.FilenameUtils;
-import sc.fiji.analyzeSkeleton.AnalyzeSkeleton_;
-import sc.fiji.analyzeSkeleton.SkeletonResult;
 
 
  /*
@@ -47,12 +50,43 @@ import sc.fiji.analyzeSkeleton.SkeletonResult;
 public class Mito_Processing {
     
 
-    // Mito filter size
-    private final double minMito = 10;
-    private final double maxMito = Double.MAX_VALUE;
+    // pipeline parameters
+    public final MitoConfig config;
     
     public Calibration cal = new Calibration(); 
-    public CLIJ2 clij2 = CLIJ2.getInstance();
+    private SegmentationBackend backend;
+    // device memory errors fallback
+    private CPUBackend cpuBackend;
+    // background images writer, images are written by the calling thread if null
+    private TiffWriter imageWriter;
+    // LUTs by command name
+    private static final Map<String, LUT> LUTS = new HashMap<>();
+    private boolean compareBackends = false;
+    
+    // IJ.run commands use global state
+    public static final Object LEGACY_LOCK = new Object();
+    
+    // results tables
+    public static final int SUMMARY = 0;
+    public static final int OBJECTS = 1;
+    public static final int BRANCHES = 2;
+    public static final int ERRORS = 3;
+    
+    // estimated bytes per cropped voxel, whole volume segmentation and
+    // streaming segmentation without slab (input, labels, skeleton)
+    private static final int WHOLE_BYTES_PER_VOXEL = 32;
+    private static final int STREAM_BYTES_PER_VOXEL = 12;
+    
+    private ForkJoinPool pool;
+    
+    
+    public Mito_Processing() {
+        this(MitoConfig.defaults());
+    }
+    
+    public Mito_Processing(MitoConfig config) {
+        this.config = config;
+    }
 
     
     
@@ -66,8 +100,7 @@ public class Mito_Processing {
         try {
             loader.loadClass("net.haesleinhuepf.clij2.CLIJ2");
         } catch (ClassNotFoundException e) {
-            IJ.log("CLIJ not installed, please install from update site");
-            return false;
+            IJ.log("CLIJ not installed, using CPU segmentation");
         }
         try {
             loader.loadClass("mcib3d.geom.Object3D");
@@ -112,16 +145,27 @@ public class Mito_Processing {
      * @return 
      */
     public Calibration findImageCalib(IMetadata meta, ImageProcessorReader reader) {
-        cal = new Calibration();  
+        cal = findSeriesCalib(meta, 0);
+        return(cal);
+    }
+    
+    /**
+     * Find calibration of one image series
+     * @param meta
+     * @param series
+     * @return 
+     */
+    public static Calibration findSeriesCalib(IMetadata meta, int series) {
+        Calibration seriesCal = new Calibration();  
         // read image calibration
-        cal.pixelWidth = meta.getPixelsPhysicalSizeX(0).value().doubleValue();
-        cal.pixelHeight = cal.pixelWidth;
-        if (meta.getPixelsPhysicalSizeZ(0) != null)
-            cal.pixelDepth = meta.getPixelsPhysicalSizeZ(0).value().doubleValue();
+        seriesCal.pixelWidth = meta.getPixelsPhysicalSizeX(series).value().doubleValue();
+        seriesCal.pixelHeight = seriesCal.pixelWidth;
+        if (meta.getPixelsPhysicalSizeZ(series) != null)
+            seriesCal.pixelDepth = meta.getPixelsPhysicalSizeZ(series).value().doubleValue();
         else
-            cal.pixelDepth = 1;
-        cal.setUnit("microns");
-        return(cal);
+            seriesCal.pixelDepth = 1;
+        seriesCal.setUnit("microns");
+        return(seriesCal);
     }
     
     public Calibration getCalib()
@@ -147,12 +191,46 @@ public class Mito_Processing {
     } 
     
     
+    /**
+     * Read rois from a roi zip file without RoiManager window
+     * @param roiFile
+     * @return rois in file order
+     * @throws IOException 
+     */
+    public ArrayList<Roi> readRois(String roiFile) throws IOException {
+        ArrayList<Roi> rois = new ArrayList<>();
+        try (ZipInputStream in = new ZipInputStream(new FileInputStream(roiFile))) {
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                String name = entry.getName();
+                if (!name.endsWith(".roi"))
+                    continue;
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                byte[] buf = new byte[8192];
+                int n;
+                while ((n = in.read(buf)) > 0)
+                    bytes.write(buf, 0, n);
+                Roi roi = new RoiDecoder(bytes.toByteArray(), name).getRoi();
+                if (roi != null)
+                    rois.add(roi);
+            }
+        }
+        return(rois);
+    }
+    
     /**
      * Find roi by type
      */
     public ArrayList<Roi> findRoi(RoiManager rm, int type) {
+        return(findRoi(Arrays.asList(rm.getRoisAsArray()), type));
+    }
+    
+    /**
+     * Find roi by type
+     */
+    public ArrayList<Roi> findRoi(List<Roi> allRois, int type) {
         ArrayList<Roi> rois = new ArrayList<>();
-        for (Roi roi : rm.getRoisAsArray()) {
+        for (Roi roi : allRois) {
             if (type != Roi.POINT) {
                 if (roi.getType() != Roi.POINT)
                    rois.add(roi); 
@@ -165,80 +243,350 @@ public class Mito_Processing {
     }
         
     /**
-     * Difference of Gaussians 
-     * Using CLIJ2
-     * @param imgCL
-     * @param size1
-     * @param size2
-     * @return imgGauss
-     */ 
-    public ClearCLBuffer DOG(ClearCLBuffer imgCL, double size1, double size2) {
-        ClearCLBuffer imgCLDOG = clij2.create(imgCL);
-        clij2.differenceOfGaussian3D(imgCL, imgCLDOG, size1, size1, size1, size2, size2, size2);
-        clij2.release(imgCL);
-        return(imgCLDOG);
+     * Choose segmentation backend
+     * @param name clij2, cpu, auto (clij2 if an OpenCL device is available)
+     * or compare (clij2, checked against cpu for each roi)
+     * @return 
+     */
+    public synchronized SegmentationBackend selectBackend(String name) {
+        compareBackends = name.equalsIgnoreCase("compare");
+        switch (name.toLowerCase()) {
+            case "cpu" :
+                backend = new CPUBackend(config.threads);
+                break;
+            case "clij2" :
+                backend = DevicePool.create(config.gpuContexts);
+                break;
+            default :
+                try {
+                    backend = DevicePool.create(config.gpuContexts);
+                } catch (Throwable e) {
+                    // no CLIJ2 or no OpenCL device
+                    backend = new CPUBackend(config.threads);
+                }
+        }
+        System.out.println("Segmentation backend : " + backend.getName());
+        return(backend);
+    }
+    
+    /**
+     * Use the segmentation backends and thread pool of a warm instance, shared by the jobs of a long running service
+     * Backends and pool are thread safe, they are not closed by the jobs
+     * @param warm instance with the same backend, gpu.contexts and threads parameters
+     */
+    public synchronized void shareWarmState(Mito_Processing warm) {
+        backend = warm.getBackend();
+        cpuBackend = warm.getCPUBackend();
+        pool = warm.getPool();
+        compareBackends = warm.compareBackends;
+    }
+    
+    public synchronized ForkJoinPool getPool() {
+        if (pool == null)
+            pool = new ForkJoinPool(config.threads);
+        return(pool);
+    }
+    
+    public synchronized SegmentationBackend getBackend() {
+        if (backend == null)
+            selectBackend(config.backend);
+        return(backend);
+    }
+    
+    private synchronized CPUBackend getCPUBackend() {
+        if (cpuBackend == null)
+            cpuBackend = new CPUBackend(config.threads);
+        return(cpuBackend);
     }
     
     /**
-     * Threshold 
-     * USING CLIJ2
-     * @param imgCL
-     * @param thMed
-     * @param fill 
+     * Background writer of objects and skeleton images
+     * @param writer null to write images on the calling thread
      */
-    public ClearCLBuffer threshold(ClearCLBuffer imgCL, String thMed) {
-        ClearCLBuffer imgCLBin = clij2.create(imgCL);
-        clij2.automaticThreshold(imgCL, imgCLBin, thMed);
-        return(imgCLBin);
+    public synchronized void setImageWriter(TiffWriter writer) {
+        imageWriter = writer;
     }
     
-    /* Median filter 
-     * Using CLIJ2
-     * @param ClearCLBuffer
-     * @param sizeXY
-     * @param sizeZ
-     */ 
-    public ClearCLBuffer median_filter(ClearCLBuffer  imgCL, double sizeXY, double sizeZ) {
-        ClearCLBuffer imgCLMed = clij2.create(imgCL);
-        clij2.median3DBox(imgCL, imgCLMed, sizeXY, sizeXY, sizeZ);
-        clij2.release(imgCL);
-        return(imgCLMed);
+    /**
+     * LUT of an ImageJ LUT command, read once on a 1 pixel image
+     * @param name command name (glasbey inverted, 3-3-2 RGB ...)
+     * @return grays if the command is not installed
+     */
+    public static LUT getLut(String name) {
+        synchronized (LEGACY_LOCK) {
+            LUT lut = LUTS.get(name);
+            if (lut == null) {
+                ImagePlus imp = new ImagePlus(name, new ByteProcessor(1, 1));
+                try {
+                    IJ.run(imp, name, "");
+                } catch (RuntimeException ex) {
+                    System.out.println("No " + name + " LUT : " + ex.getMessage());
+                }
+                lut = imp.getProcessor().getLut();
+                LUTS.put(name, lut);
+            }
+            return(lut);
+        }
     }
     
     /**
-     * Mito segmentation
+     * Save a label image, deflate compressed TIFF with LUT, queued to the images writer if any
+     * @param file
+     * @param planes byte[], short[] or float[] slices, not modified afterwards
+     * @param width
+     * @param height
+     * @param lut
+     * @param imgCal
+     * @param min display range
+     * @param max
+     * @throws IOException
+     * @throws InterruptedException 
+     */
+    public void saveImage(String file, Object[] planes, int width, int height, LUT lut, Calibration imgCal, double min,
+            double max) throws IOException, InterruptedException {
+        saveImage(file, TiffWriter.Slices.of(planes, width, height), width, height, lut, imgCal, min, max);
+    }
+    
+    /**
+     * Save slices, queued to the images writer if any
+     */
+    private void saveImage(String file, TiffWriter.Slices slices, int width, int height, LUT lut, Calibration imgCal, 
+            double min, double max) throws IOException, InterruptedException {
+        TiffWriter writer;
+        synchronized (this) {
+            writer = imageWriter;
+        }
+        if (writer != null)
+            writer.write(file, slices, width, height, lut, imgCal, min, max);
+        else {
+            try (StageMetrics.Span span = StageMetrics.span(StageMetrics.Stage.WRITE)) {
+                StageMetrics.bytesWritten(TiffWriter.write(Paths.get(file), slices, width, height, lut, imgCal, min, max, 
+                        config.compressImages));
+            }
+        }
+    }
+    
+    /**
+     * Save objects labels with glasbey inverted LUT
+     * @param imgObjects
+     * @param file
+     * @throws IOException
+     * @throws InterruptedException 
+     */
+    public void saveObjects(ImagePlus imgObjects, String file) throws IOException, InterruptedException {
+        ImageStack stack = imgObjects.getImageStack();
+        Object[] planes = Arrays.copyOf(stack.getImageArray(), stack.getSize());
+        saveImage(file, planes, stack.getWidth(), stack.getHeight(), getLut("glasbey inverted"), imgObjects.getCalibration(),
+                imgObjects.getDisplayRangeMin(), imgObjects.getDisplayRangeMax());
+    }
+    
+    /**
+     * Save run-length objects labels with glasbey inverted LUT, slices drawn while writing
+     * @param objects
+     * @param file
+     * @throws IOException
+     * @throws InterruptedException 
+     */
+    public void saveObjects(SparseLabels objects, String file) throws IOException, InterruptedException {
+        saveImage(file, TiffWriter.Slices.of(objects), objects.width, objects.height, getLut("glasbey inverted"), 
+                objects.getCalibration(), 0, objects.getMaxLabel());
+    }
+    
+    /**
+     * Release device buffers kept for reuse
+     */
+    public synchronized void releaseDeviceBuffers() {
+        if (backend instanceof DevicePool)
+            ((DevicePool)backend).releaseIdle();
+    }
+    
+    
+    /**
+     * Mito segmentation of a roi
+     * With CLIJ2 and fused mode, roi masking and label statistics are done on device,
+     * crops over the memory budget are segmented in Z slabs
+     * Device memory errors are retried on half as many slices, then on CPU
      * @param img
-     * @return 
+     * @param roi
+     * @return labels cleared outside roi and per label statistics
      */
-    public Objects3DPopulation find_Mito(ImagePlus img, Roi roi) {
-        ClearCLBuffer imgCL = clij2.push(img);
-        ClearCLBuffer imgMed = median_filter(imgCL, 2, 2);
-        clij2.release(imgCL);
-        ClearCLBuffer imgDOG = DOG(imgMed, 2, 3);
-        clij2.release(imgMed);
-        ClearCLBuffer imgCLBin = threshold(imgDOG, "Triangle");
-        clij2.release(imgDOG);
-        ClearCLBuffer imgLabelled = clij2.create(imgDOG);
-        clij2.connectedComponentsLabelingBox(imgCLBin, imgLabelled);
-        clij2.release(imgCLBin);
-         ClearCLBuffer labelsSizeFilter = clij2.create(imgLabelled);
-        // filter size
-        clij2.excludeLabelsOutsideSizeRange(imgLabelled, labelsSizeFilter, minMito,
-                maxMito);
-        ImagePlus imgBin = clij2.pull(labelsSizeFilter);
-        clij2.release(imgLabelled);
-        clij2.release(labelsSizeFilter);
-        clearOutSide(imgBin, roi);
-        Objects3DPopulation mitoPop = new Objects3DPopulation(ImageHandler.wrap(imgBin));
-        return(mitoPop);
+    public MitoSegmentation find_Mito(ImagePlus img, Roi roi) {
+        SegmentationBackend seg = getBackend();
+        int slabs = slabSlices(img.getWidth(), img.getHeight(), img.getNSlices());
+        try {
+            return(find_Mito(img, roi, seg, slabs));
+        } catch (RuntimeException ex) {
+            if (!(seg instanceof DevicePool) || !isDeviceMemoryError(ex))
+                throw ex;
+            int retrySlabs = Math.max(1, ((slabs > 0) ? slabs : img.getNSlices()) / 2);
+            System.out.println("Device memory error on " + img.getTitle() + ", retry in slabs of " + retrySlabs + " slices");
+            releaseDeviceBuffers();
+            try {
+                return(find_Mito(img, roi, seg, retrySlabs));
+            } catch (RuntimeException ex2) {
+                if (!isDeviceMemoryError(ex2))
+                    throw ex2;
+                System.out.println("Device memory error on " + img.getTitle() + ", retry on CPU");
+                releaseDeviceBuffers();
+                return(find_Mito(img, roi, getCPUBackend(), slabs));
+            }
+        }
     } 
+    
+    private MitoSegmentation find_Mito(ImagePlus img, Roi roi, SegmentationBackend seg, int slabs) {
+        if (config.fusedGPU && !compareBackends && slabs == 0 && seg instanceof DevicePool) {
+            try (StageMetrics.Span span = StageMetrics.span(StageMetrics.Stage.SEGMENTATION)) {
+                RoiMask mask = RoiMask.of(roi, img.getWidth(), img.getHeight());
+                return(((DevicePool)seg).segmentMasked(img, mask, config.medRadXY, config.medRadZ, config.dogSigma1, 
+                        config.dogSigma2, config.thMethod, config.minMito, config.maxMito));
+            }
+        }
+        ImagePlus imgLabels;
+        RoiMask mask = RoiMask.of(roi, img.getWidth(), img.getHeight());
+        try (StageMetrics.Span span = StageMetrics.span(StageMetrics.Stage.SEGMENTATION)) {
+            imgLabels = find_MitoLabels(img, mask, seg, slabs);
+        }
+        try (StageMetrics.Span span = StageMetrics.span(StageMetrics.Stage.STATISTICS)) {
+            // dense labels only live until they are cleared outside roi
+            SparseLabels labels = SparseLabels.of(imgLabels);
+            flush_close(imgLabels);
+            return(new MitoSegmentation(labels, LabelStats.compute(labels, img.getImageStack()), mask));
+        }
+    }
+    
+    /**
+     * OpenCL allocation failure in an exception or its causes
+     * @param ex
+     * @return 
+     */
+    static boolean isDeviceMemoryError(Throwable ex) {
+        for (Throwable t = ex; t != null; t = (t.getCause() == t) ? null : t.getCause()) {
+            String msg = String.valueOf(t.getMessage());
+            if (msg.contains("CL_MEM_OBJECT_ALLOCATION_FAILURE") || msg.contains("CL_OUT_OF_RESOURCES") 
+                    || msg.contains("CL_OUT_OF_HOST_MEMORY") || msg.contains("CL_INVALID_BUFFER_SIZE"))
+                return(true);
+        }
+        return(false);
+    }
+    
+    /**
+     * Slab depth of Z-streaming segmentation
+     * Crops are streamed when stream.slices is set or when whole volume segmentation exceeds the memory budget
+     * @param width crop width
+     * @param height crop height
+     * @param depth crop slices
+     * @return core slices per slab, 0 for whole volume segmentation
+     */
+    public int slabSlices(int width, int height, int depth) {
+        int slabs = config.streamSlices;
+        long budget = config.memoryBudgetMB * 1024 * 1024;
+        long voxels = (long)width * height * depth;
+        if (slabs == 0 && voxels * WHOLE_BYTES_PER_VOXEL > budget)
+            slabs = SlabSegmenter.slabSlices(budget - voxels * STREAM_BYTES_PER_VOXEL, width, height, 
+                    SlabSegmenter.halo(config.medRadZ, config.dogSigma1, config.dogSigma2));
+        return((slabs >= depth) ? 0 : slabs);
+    }
+    
+    /**
+     * Estimated memory to process a crop
+     * @param width
+     * @param height
+     * @param depth
+     * @return bytes
+     */
+    public long roiMemory(int width, int height, int depth) {
+        long voxels = (long)width * height * depth;
+        int slabs = slabSlices(width, height, depth);
+        if (slabs == 0)
+            return(voxels * WHOLE_BYTES_PER_VOXEL);
+        int halo = SlabSegmenter.halo(config.medRadZ, config.dogSigma1, config.dogSigma2);
+        return(voxels * STREAM_BYTES_PER_VOXEL + (long)width * height * (slabs + 2 * halo) * SlabSegmenter.SLAB_BYTES_PER_VOXEL);
+    }
+    
+    /**
+     * Mito segmentation
+     * @param img
+     * @param roi
+     * @return label image cleared outside roi
+     */
+    public ImagePlus find_MitoLabels(ImagePlus img, Roi roi) {
+        return(find_MitoLabels(img, RoiMask.of(roi, img.getWidth(), img.getHeight())));
+    }
+    
+    /**
+     * Mito segmentation
+     * @param img
+     * @param mask roi mask
+     * @return label image cleared outside roi
+     */
+    public ImagePlus find_MitoLabels(ImagePlus img, RoiMask mask) {
+        return(find_MitoLabels(img, mask, getBackend(), slabSlices(img.getWidth(), img.getHeight(), img.getNSlices())));
+    }
+    
+    private ImagePlus find_MitoLabels(ImagePlus img, RoiMask mask, SegmentationBackend seg, int slabs) {
+        if (compareBackends)
+            compareBackends(img, seg, getCPUBackend());
+        ImagePlus imgBin = (slabs > 0)
+                ? seg.segmentSlabs(img, slabs, config.medRadXY, config.medRadZ, config.dogSigma1, config.dogSigma2, 
+                        config.thMethod, config.minMito, config.maxMito)
+                : seg.segment(img, config.medRadXY, config.medRadZ, config.dogSigma1, config.dogSigma2, 
+                        config.thMethod, config.minMito, config.maxMito);
+        mask.clearOutside(imgBin.getImageStack(), getPool());
+        return(imgBin);
+    }
+    
+    
+    /**
+     * Roi mask in crop coordinates, roi is not modified
+     * @param roi
+     * @param width
+     * @param height
+     * @return 1 inside, 0 outside
+     */
+    public ImageProcessor roiMask(Roi roi, int width, int height) {
+        return(RoiMask.of(roi, width, height).toProcessor());
+    }
+    
+    
+    /**
+     * Run the same segmentation with two backends,
+     * log throughput and number of voxels with different labels
+     * @param img
+     * @param ref reference backend
+     * @param other compared backend
+     * @return number of different voxels
+     */
+    public long compareBackends(ImagePlus img, SegmentationBackend ref, SegmentationBackend other) {
+        double voxels = (double)img.getWidth() * img.getHeight() * img.getNSlices();
+        long t0 = System.nanoTime();
+        ImagePlus labRef = ref.segment(img, config.medRadXY, config.medRadZ, config.dogSigma1, config.dogSigma2, 
+                config.thMethod, config.minMito, config.maxMito);
+        long t1 = System.nanoTime();
+        ImagePlus labOther = other.segment(img, config.medRadXY, config.medRadZ, config.dogSigma1, config.dogSigma2, 
+                config.thMethod, config.minMito, config.maxMito);
+        long t2 = System.nanoTime();
+        long diff = 0;
+        for (int z = 1; z <= img.getNSlices(); z++) {
+            ImageProcessor ipRef = labRef.getImageStack().getProcessor(z);
+            ImageProcessor ipOther = labOther.getImageStack().getProcessor(z);
+            for (int i = 0; i < ipRef.getPixelCount(); i++)
+                if (ipRef.get(i) != ipOther.get(i))
+                    diff++;
+        }
+        IJ.log(ref.getName() + " : " + String.format("%.1f", voxels / ((t1 - t0) / 1e3)) + " Mvoxels/s, "
+                + other.getName() + " : " + String.format("%.1f", voxels / ((t2 - t1) / 1e3)) + " Mvoxels/s, "
+                + diff + " voxels differ");
+        flush_close(labRef);
+        flush_close(labOther);
+        return(diff);
+    }
         
     
     public Objects3DPopulation getPopFromImage(ImagePlus img) {
         // label binary images first
         ImageLabeller labeller = new ImageLabeller();
         ImageInt labels = labeller.getLabels(ImageHandler.wrap(img));
-        labels.setCalibration(cal);
+        labels.setCalibration(img.getCalibration());
         Objects3DPopulation pop = new Objects3DPopulation(labels);
         return pop;
     }
@@ -263,74 +611,61 @@ public class Mito_Processing {
     
     
     /**
-     * Clear out side roi
+     * Clear out side roi, roi is not modified
      * @param img
      * @param roi
      */
     public void clearOutSide(ImagePlus img, Roi roi) {
-        roi.setLocation(0, 0);
-        for (int n = 1; n <= img.getNSlices(); n++) {
-            ImageProcessor ip = img.getImageStack().getProcessor(n);
-            ip.setRoi(roi);
-            ip.setBackgroundValue(0);
-            ip.setColor(0);
-            ip.fillOutside(roi);
-        }
-        img.deleteRoi();
-        img.updateAndDraw();
+        RoiMask.of(roi, img.getWidth(), img.getHeight()).clearOutside(img.getImageStack(), getPool());
     }
     
     
     /**
      * Analayze skeleton
-     * @param img
-     * @param output
-     * @return {#branch, branchLenght, #endPoint, #junction}
+     * @param imgLabels mito labels, calibrated
+     * @param roiPt soma center
+     * @param outDir
+     * @param outFileName
+     * @return skeletons, getParams() gives {#branch, branchLenght, #endPoint, #junction}
      */
-
-    public double[] analyzeSkeleton (ImagePlus img, Roi roiPt, Objects3DPopulation pop, String outDir, String outFileName) throws IOException {
-        ImageHandler imh = ImageHandler.wrap(img).createSameDimensions();
-        pop.draw(imh, 255);
-        ImagePlus imgBin = imh.getImagePlus();
-        imh.closeImagePlus();
-        imgBin.setCalibration(cal);
-        IJ.run(imgBin,"8-bit","");
-        IJ.run(imgBin, "Skeletonize (2D/3D)", "");
-	String imgTitle = img.getTitle();
-        AnalyzeSkeleton_ analyzeSkeleton = new AnalyzeSkeleton_();
-        AnalyzeSkeleton_.calculateShortestPath = true;
-        analyzeSkeleton.setup("",imgBin);
-        SkeletonResult skeletonResults = analyzeSkeleton.run(AnalyzeSkeleton_.NONE, false, true, null, true, false);
-        ImageStack imgStackLab = analyzeSkeleton.getLabeledSkeletons();
-        //  compute parameters for each skeleton
+    public SkeletonAnalyzer.Result analyzeSkeleton (ImagePlus imgLabels, Roi roiPt, String outDir, String outFileName) throws IOException, InterruptedException {
+        return(analyzeSkeleton(SparseLabels.of(imgLabels), roiPt, outDir, outFileName));
+    }
+    
+    /**
+     * Analayze skeleton of run-length labels
+     * @param labels mito labels, calibrated
+     * @param roiPt soma center
+     * @param outDir
+     * @param outFileName
+     * @return skeletons, getParams() gives {#branch, branchLenght, #endPoint, #junction}
+     */
+    public SkeletonAnalyzer.Result analyzeSkeleton (SparseLabels labels, Roi roiPt, String outDir, String outFileName) throws IOException, InterruptedException {
+        int width = labels.width, height = labels.height;
+        Calibration labelsCal = labels.getCalibration();
+        SkeletonAnalyzer analyzer = new SkeletonAnalyzer(labelsCal, getPool());
+        SkeletonAnalyzer.Result skeletonResults;
+        try (StageMetrics.Span span = StageMetrics.span(StageMetrics.Stage.SKELETON)) {
+            skeletonResults = analyzer.analyze(labels);
+        }
         IJ.showStatus("Computing parameters for each skeleton ...");
-        ImagePlus imgLab = new ImagePlus(imgTitle+"_LabelledSkel.tif", imgStackLab);
-        ImagePlus imgLabProj = doZProjection(imgLab);
-        IJ.run(imgLabProj, "3-3-2 RGB", "");
-        imgLabProj.setCalibration(img.getCalibration());
-        flush_close(imgLab);
-        int[] branchNumbers = skeletonResults.getBranches();
-        double[] branchLengths = skeletonResults.getAverageBranchLength();
-        int[] nbEndPoints = skeletonResults.getEndPoints();
-        int[] junctions = skeletonResults.getJunctions();
-        int branches = 0;
-        double branchLength = 0;
-        int endPoint = 0;
-        int junction = 0;
-        for (int i = 0; i < skeletonResults.getGraph().length; i++) {
-            branches += branchNumbers[i];
-            branchLength += branchLengths[i];
-            endPoint += nbEndPoints[i];
-            junction += junctions[i];
+        if (config.saveImages && config.savePreviews) {
+            // labelled skeletons Z projection, drawn from the skeleton runs
+            short[] proj = new short[width * height];
+            SparseLabels skel = skeletonResults.skeletonLabels;
+            int maxLabel = Math.min(skel.getMaxLabel(), 65535);
+            skel.forEachRun((z, y, x0, x1, l) -> {
+                short v = (short)Math.min(l, 65535);
+                for (int i = y * width + x0; i <= y * width + x1; i++)
+                    if ((v & 0xffff) > (proj[i] & 0xffff))
+                        proj[i] = v;
+            });
+            String previewFile = outDir+outFileName+"_"+roiPt.getName()+"_LabelledSkel.tif";
+            saveImage(previewFile, new Object[] {proj}, width, height, getLut("3-3-2 RGB"), labelsCal, 0, maxLabel);
         }
-        double[] skeletonParams = {branches, branchLength, endPoint, junction};
-        FileSaver imgSave = new FileSaver(imgLabProj);
-        imgSave.saveAsTiff(outDir+outFileName+"_"+roiPt.getName()+"_LabelledSkel.tif");
-        flush_close(imgLabProj); 
         // Shool Analyse
-        intersectionAnalysis(imgBin, roiPt, outFileName, outDir);
-        flush_close(imgBin);
-        return(skeletonParams);
+        intersectionAnalysis(skeletonResults.skeletonLabels, roiPt, outFileName, outDir);
+        return(skeletonResults);
     }
     
     
@@ -338,54 +673,186 @@ public class Mito_Processing {
      * Get Roi volume
      */
     public double roiVolume(Roi roi, ImagePlus img) {
-        int z = img.getNSlices();
-        img.setRoi(roi);
-        img.updateAndDraw();
-        double area = img.getStatistics(Measurements.AREA).area;
-        return(area * cal.pixelDepth);
+        return(roiVolume(RoiMask.of(roi, img.getWidth(), img.getHeight()), img.getCalibration()));
+    }
+    
+    /**
+     * Get Roi volume : roi area x voxel depth
+     */
+    public double roiVolume(RoiMask mask) {
+        return(roiVolume(mask, cal));
     }
     
     /**
-    * Local compute parameters add to results file
-    * @param mitoPop mito population
+     * Get Roi volume : roi area x voxel depth
+     */
+    public double roiVolume(RoiMask mask, Calibration imgCal) {
+        return(mask.getArea(imgCal.pixelWidth, imgCal.pixelHeight) * imgCal.pixelDepth);
+    }
+    
+    /**
+     * Pipeline parameters fingerprint, cached roi results are valid only for the same fingerprint
+     * @return 
+     */
+    public String getFingerprint() {
+        return(getFingerprint(cal));
+    }
+    
+    /**
+     * Pipeline parameters and image calibration fingerprint
+     * @param imgCal
+     * @return 
+     */
+    public String getFingerprint(Calibration imgCal) {
+        return(config.getFingerprint() + ";cal=" + imgCal.pixelWidth + "," + imgCal.pixelHeight + "," + imgCal.pixelDepth);
+    }
+    
+    /**
+     * Files saved for a roi
+     * @param outDir
+     * @param imgName
+     * @param roiName
+     * @return 
+     */
+    public List<String> roiOutputs(String outDir, String imgName, String roiName) {
+        String title = outDir + imgName + "_" + roiName;
+        List<String> outputs = new ArrayList<>(Arrays.asList(title + "_Sholl-Profiles.csv", title + "_Sholl-Metrics.csv"));
+        if (config.saveImages)
+            outputs.add(title + "_Objects.tif");
+        if (config.saveImages && config.savePreviews)
+            outputs.add(title + "_LabelledSkel.tif");
+        return(outputs);
+    }
+    
+    
+    /**
+     * Results tables : summary per roi, per mito object, per skeleton branch, failed or skipped rois
+     * @param objects add per object table
+     * @param branches add per branch table
+     * @return tables indexed by SUMMARY, OBJECTS, BRANCHES, ERRORS, null if disabled
+     */
+    public static List<ResultsWriter.Table> resultsTables(boolean objects, boolean branches) {
+        String[] roiColumns = {"ImageName", "Roi"};
+        return Arrays.asList(
+            new ResultsWriter.Table("Results", roiColumns, new String[] {"Roi volume", "Mito number", "Mito volume",
+                "Mito branch number", "Mito branch length", "Mito end points", "Mito junction number"}),
+            objects ? new ResultsWriter.Table("Results_Objects", roiColumns, new String[] {"Label", "Voxels", "Volume",
+                "Centroid X", "Centroid Y", "Centroid Z", "BBox min X", "BBox min Y", "BBox min Z", "BBox max X",
+                "BBox max Y", "BBox max Z", "Mean intensity", "Sum intensity"}) : null,
+            branches ? new ResultsWriter.Table("Results_Branches", roiColumns, new String[] {"Skeleton", "Branch length",
+                "V1 X", "V1 Y", "V1 Z", "V2 X", "V2 Y", "V2 Z", "Euclidean distance"}) : null,
+            new ResultsWriter.Table("Results_Errors", new String[] {"ImageName", "Roi", "Status", "Reason"}, new String[0]));
+    }
+    
+    /**
+     * Errors table row
+     * @param imgName
+     * @param roiName roi, empty for a whole image or series
+     * @param status skipped, failed or timeout
+     * @param reason
+     * @return 
+     */
+    public static ResultsRow errorRow(String imgName, String roiName, String status, String reason) {
+        // one line per row in text tables
+        String text = String.valueOf(reason).replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+        return(new ResultsRow(ERRORS, new String[] {imgName, roiName, status, text}));
+    }
+    
+    
+    /**
+    * Local compute parameters
+    * @param mitoSeg mito segmentation
     * @param mitoParams branch number, branch lenght, end points, junctions
      * @param imgName
-    * @param results buffer
-    * @throws java.io.IOException
+    * @return summary row
     **/
-    public void computeParameters(Objects3DPopulation mitoPop, ImagePlus imgMito, double[] mitoParams, Roi roiPoly, Roi roiPt, 
-            String imgName, BufferedWriter results) throws IOException {
+    public ResultsRow computeParameters(MitoSegmentation mitoSeg, ImagePlus imgMito, double[] mitoParams, Roi roiPoly, Roi roiPt, 
+            String imgName) {
         IJ.showStatus("Computing parameters ....");
-        // mito volume
-        double mitoVol = 0;
-        double mitoInt = 0;
-        double roiVol = roiVolume(roiPoly, imgMito);
-        int mitos = mitoPop.getNbObjects();
-        for (int i = 0; i < mitos; i++)
-            mitoVol += mitoPop.getObject(i).getVolumeUnit();
-            
-        results.write(imgName+"\t"+roiPoly.getName()+"\t"+roiVol+"\t"+mitos+"\t"+mitoVol+"\t"+mitoParams[0]+"\t"+mitoParams[1]+"\t"+mitoParams[2]+"\t"+
-                mitoParams[3]+"\n");
-        results.flush();
-    }
-    
-    public void intersectionAnalysis(ImagePlus img, Roi roiPt, String imgName, String outDir) throws IOException {
-        final int n_cpus = Prefs.getThreads();
+        try (StageMetrics.Span span = StageMetrics.span(StageMetrics.Stage.PARAMETERS)) {
+            // mito volume
+            double roiVol = (mitoSeg.mask != null) ? roiVolume(mitoSeg.mask, imgMito.getCalibration()) : roiVolume(roiPoly, imgMito);
+            int mitos = mitoSeg.getNbObjects();
+            double mitoVol = mitoSeg.getVolume();
+            return(new ResultsRow(SUMMARY, new String[] {imgName, roiPoly.getName()}, roiVol, mitos, mitoVol, mitoParams[0], 
+                    mitoParams[1], mitoParams[2], mitoParams[3]));
+        }
+    }
+    
+    /**
+     * Per mito object rows
+     * @param mitoSeg
+     * @param imgName
+     * @param roiName
+     * @return 
+     */
+    public List<ResultsRow> objectRows(MitoSegmentation mitoSeg, String imgName, String roiName) {
+        LabelStats stats = mitoSeg.stats;
+        List<ResultsRow> rows = new ArrayList<>();
+        String[] text = {imgName, roiName};
+        for (int l = 1; l <= stats.getMaxLabel(); l++) {
+            if (!stats.exists(l))
+                continue;
+            double[] c = stats.getCentroid(l);
+            int[] box = stats.getBoundingBox(l);
+            rows.add(new ResultsRow(OBJECTS, text, l, stats.getVoxels(l), stats.getVolume(l), c[0], c[1], c[2], 
+                    box[0], box[1], box[2], box[3], box[4], box[5], stats.getMeanIntensity(l), stats.getSumIntensity(l)));
+        }
+        return(rows);
+    }
+    
+    /**
+     * Per skeleton branch rows
+     * @param skeletons
+     * @param cal image calibration
+     * @param imgName
+     * @param roiName
+     * @return 
+     */
+    public List<ResultsRow> branchRows(SkeletonAnalyzer.Result skeletons, Calibration cal, String imgName, String roiName) {
+        List<ResultsRow> rows = new ArrayList<>();
+        String[] text = {imgName, roiName};
+        for (SkeletonAnalyzer.Skeleton skel : skeletons.skeletons)
+            for (SkeletonAnalyzer.Branch b : skel.branches) {
+                double dx = (b.x2 - b.x1) * cal.pixelWidth, dy = (b.y2 - b.y1) * cal.pixelHeight, dz = (b.z2 - b.z1) * cal.pixelDepth;
+                rows.add(new ResultsRow(BRANCHES, text, b.skeleton, b.length, b.x1, b.y1, b.z1, b.x2, b.y2, b.z2, 
+                        Math.sqrt(dx*dx + dy*dy + dz*dz)));
+            }
+        return(rows);
+    }
+    
+    /**
+     * Sholl analysis of skeleton around soma center
+     * Save profile and metrics in outDir
+     * @param skeleton skeleton runs, calibrated
+     * @param roiPt soma center
+     * @param imgName
+     * @param outDir
+     * @return profile
+     * @throws IOException 
+     */
+    public ShollAnalyzer.Profile intersectionAnalysis(SparseLabels skeleton, Roi roiPt, String imgName, String outDir) 
+            throws IOException {
+        Calibration cal = skeleton.getCalibration();
         // radius of astrocyte soma
         double astroRad = 10*cal.pixelWidth;
         double shollStep = 5*cal.pixelWidth;
-        PointRoi shollCenter = new PointRoi(roiPt.getFloatPolygon());
-        int dx = ((int)roiPt.getXBase() <= img.getWidth()/2) ? ((int)roiPt.getXBase()-img.getWidth()) : (int)roiPt.getXBase();
-        int dy = ((int)roiPt.getYBase() <= img.getHeight()/2) ? ((int)roiPt.getYBase()-img.getHeight()) : (int)roiPt.getYBase();
-        int dz = roiPt.getZPosition();
-        double maxEndRadius = (dx >= dy) ? dx : dy;
-        maxEndRadius = maxEndRadius*cal.pixelWidth;
-        img.setRoi(roiPt);
-        IJ.run(img,"Legacy: Sholl Metrics & Options...", "spatial center starting radius samples enclosing intersecting sum mean median "
-            + "centroid append=[] do_not_generate_detailed_table plots=[Only linear profile] background=0 preferred=[Fitted values] parallel="+n_cpus+" file=.csv decimal=3");
-        img.setTitle(imgName+"_"+roiPt.getName());
-        IJ.run(img, "Legacy: Sholl Analysis (From Image)...", "starting="+astroRad+" ending="+maxEndRadius+" radius_step="+shollStep+" ignore"
-                + "enclosing=1 #_primary=1 infer fit linear polynomial=[Best fitting degree] most normalizer=Volume save directory="+outDir+" do");   
-        WindowManager.getWindow("Sholl Results").dispose();
+        int dz = Math.max(0, roiPt.getZPosition() - 1);
+        try (StageMetrics.Span span = StageMetrics.span(StageMetrics.Stage.SHOLL)) {
+            ShollAnalyzer sholl = new ShollAnalyzer(cal);
+            // shells up to the farthest corner from the soma, whatever the soma quadrant
+            double maxEndRadius = sholl.farthestRadius(skeleton.width, skeleton.height, skeleton.depth, roiPt.getXBase(), 
+                    roiPt.getYBase(), dz);
+            if (maxEndRadius < astroRad)
+                IJ.log(imgName + " " + roiPt.getName() + " : image smaller than soma radius, empty Sholl profile");
+            ShollAnalyzer.Profile profile = sholl.analyze(skeleton, roiPt.getXBase(), roiPt.getYBase(), dz, astroRad, 
+                    maxEndRadius, shollStep);
+            String title = imgName+"_"+roiPt.getName();
+            ShollAnalyzer.saveProfile(profile, outDir+title+"_Sholl-Profiles.csv");
+            ShollAnalyzer.saveMetrics(profile, title, outDir+title+"_Sholl-Metrics.csv");
+            StageMetrics.bytesWritten(new File(outDir+title+"_Sholl-Profiles.csv").length() 
+                    + new File(outDir+title+"_Sholl-Metrics.csv").length());
+            return(profile);
+        }
     }
 }
@@ -0,0 +1,310 @@
+package Mito_Utils;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.AutoThresholder;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.function.Supplier;
+
+/**
+ * Parameter sweep : every roi is segmented with all combinations of a parameters grid
+ * Combinations are evaluated as a tree of stages, crop -> median -> DoG -> threshold -> labels -> size filter,
+ * each intermediate is computed once and shared by the combinations below it.
+ * Intermediates are kept in a least recently used cache bounded by the memory budget,
+ * an evicted intermediate is computed again from its parent if needed
+ * One combined table, Sweep_Results, with one row per roi and parameter set
+ * Grid file : properties of the swept keys, values separated by commas, e.g. dog.sigma1=1,2,3
+ *
+ * @author phm
+ */
+public class ParameterSweep {
+
+    // swept keys, in stage order
+    public static final String[] KEYS = {"median.radius.xy", "median.radius.z", "dog.sigma1", "dog.sigma2",
+        "threshold.method", "mito.min", "mito.max"};
+
+    private final MitoConfig config;
+    private final Mito_Processing proc;
+    // values of each swept key
+    private final Map<String, List<String>> grid;
+    private final Intermediates cache;
+    // intermediates computed, by stage
+    private final Map<String, Integer> computed = new LinkedHashMap<>();
+
+
+    /**
+     * @param config base parameters, for keys not in the grid
+     * @param grid swept keys and their values
+     */
+    public ParameterSweep(MitoConfig config, Map<String, List<String>> grid) {
+        this.config = config;
+        this.proc = new Mito_Processing(config.with("save.images", false));
+        this.grid = new LinkedHashMap<>();
+        for (String key : KEYS) {
+            Object base = config.toProperties().getProperty(key);
+            List<String> values = grid.containsKey(key) ? grid.get(key) : Collections.singletonList(String.valueOf(base));
+            this.grid.put(key, values);
+        }
+        for (String key : grid.keySet())
+            if (!this.grid.containsKey(key))
+                throw new IllegalArgumentException("Key " + key + " can't be swept, sweep keys " + Arrays.toString(KEYS));
+        for (String method : this.grid.get("threshold.method"))
+            AutoThresholder.Method.valueOf(method);
+        cache = new Intermediates(config.memoryBudgetMB * 1024 * 1024);
+    }
+
+    /**
+     * Read a grid file
+     * @param file properties, comma separated values
+     * @return swept keys and their values
+     * @throws IOException
+     */
+    public static Map<String, List<String>> loadGrid(String file) throws IOException {
+        Properties p = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            p.load(new InputStreamReader(in, StandardCharsets.UTF_8));
+        }
+        Map<String, List<String>> grid = new LinkedHashMap<>();
+        for (String key : p.stringPropertyNames()) {
+            List<String> values = new ArrayList<>();
+            for (String v : p.getProperty(key).split(","))
+                if (!v.trim().isEmpty())
+                    values.add(v.trim());
+            if (values.isEmpty())
+                throw new IllegalArgumentException("No value for " + key);
+            grid.put(key, values);
+        }
+        return(grid);
+    }
+
+    /**
+     * Number of parameter sets
+     */
+    public int size() {
+        int n = 1;
+        for (List<String> values : grid.values())
+            n *= values.size();
+        return(n);
+    }
+
+
+    /**
+     * Sweep all rois of a folder
+     * @param imageDir images folder
+     * @param outDir results folder, created if needed
+     * @throws Exception
+     */
+    public void run(String imageDir, String outDir) throws Exception {
+        new File(outDir).mkdirs();
+        if (!outDir.endsWith(File.separator))
+            outDir += File.separator;
+        Ingestion ingestion = new Ingestion(config, proc, null);
+        List<Ingestion.Task> tasks = ingestion.scan(imageDir, outDir);
+        tasks.sort(Comparator.comparingInt(Ingestion.Task::getOrder));
+        System.out.println("Sweep of " + size() + " parameter sets on " + tasks.size() + " rois");
+        try (ResultsWriter results = new ResultsWriter(outDir, Collections.singletonList(table()),
+                config.binaryTables ? ResultsWriter.Format.BINARY : ResultsWriter.Format.TSV)) {
+            for (Ingestion.Task task : tasks) {
+                ImagePlus crop;
+                try (ImageSession session = new ImageSession(task.file, task.series, config.channel)) {
+                    session.setRois(Collections.singletonList(task.roiPoly.getBounds()));
+                    crop = session.openCrop(0, task.cal, task.imageName);
+                }
+                System.out.println("Sweep " + task.imageName + " " + task.roiPoly.getName());
+                sweep(task, crop, results);
+                // intermediates of one roi are not reused by the next one
+                cache.clear();
+                proc.flush_close(crop);
+            }
+        } finally {
+            proc.getPool().shutdown();
+        }
+        System.out.println("Intermediates computed " + computed);
+    }
+
+
+    /**
+     * Depth first walk of the grid, intermediates on the walk path stay cached
+     */
+    private void sweep(Ingestion.Task task, ImagePlus crop, ResultsWriter results) throws Exception {
+        ImageStack stack = crop.getImageStack();
+        int width = stack.getWidth(), height = stack.getHeight(), bitDepth = crop.getBitDepth();
+        RoiMask mask = RoiMask.of(task.roiPoly, width, height);
+        for (String rxy : grid.get("median.radius.xy"))
+        for (String rz : grid.get("median.radius.z")) {
+            String medKey = "median=" + rxy + "," + rz;
+            Supplier<float[][]> med = () -> cache.get(medKey, () -> {
+                count("median");
+                float[][] m = Filters3D.median(Filters3D.toFloat(stack), width, height, (int)Double.parseDouble(rxy),
+                        (int)Double.parseDouble(rxy), (int)Double.parseDouble(rz), proc.getPool());
+                Filters3D.saturate(m, bitDepth);
+                return(m);
+            });
+            for (String s1 : grid.get("dog.sigma1"))
+            for (String s2 : grid.get("dog.sigma2")) {
+                String dogKey = medKey + "|dog=" + s1 + "," + s2;
+                Supplier<float[][]> dog = () -> cache.get(dogKey, () -> {
+                    count("dog");
+                    float[][] d = Filters3D.dog(med.get(), width, height, Double.parseDouble(s1), Double.parseDouble(s2),
+                            proc.getPool());
+                    Filters3D.saturate(d, bitDepth);
+                    return(d);
+                });
+                for (String method : grid.get("threshold.method")) {
+                    // methods giving the same threshold share their labels
+                    float th = cache.get(dogKey + "|th=" + method, () -> {
+                        count("threshold");
+                        return(Filters3D.autoThreshold(dog.get(), method));
+                    });
+                    String labelKey = dogKey + "|labels=" + th;
+                    Labels labels = cache.get(labelKey, () -> {
+                        count("labels");
+                        return(Labels.of(dog.get(), width, height, th));
+                    });
+                    for (String min : grid.get("mito.min"))
+                    for (String max : grid.get("mito.max")) {
+                        MitoConfig params = config.with("median.radius.xy", rxy).with("median.radius.z", rz)
+                                .with("dog.sigma1", s1).with("dog.sigma2", s2).with("threshold.method", method)
+                                .with("mito.min", min).with("mito.max", max);
+                        results.write(measure(task, crop, mask, labels, th, params));
+                        count("parameter sets");
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Size filter, roi clearing and summary row of one parameter set
+     */
+    private ResultsRow measure(Ingestion.Task task, ImagePlus crop, RoiMask mask, Labels labels, float th, MitoConfig params)
+            throws Exception {
+        short[][] filtered = labels.sizeFilter(params.minMito, params.maxMito);
+        ImageStack stack = new ImageStack(crop.getWidth(), crop.getHeight());
+        for (short[] slice : filtered)
+            stack.addSlice("", slice);
+        mask.clearOutside(stack, proc.getPool());
+        SparseLabels sparse = SparseLabels.of(filtered, crop.getWidth(), crop.getHeight(), task.cal);
+        MitoSegmentation mitoSeg = new MitoSegmentation(sparse, LabelStats.compute(sparse, crop.getImageStack()), mask);
+        SkeletonAnalyzer.Result skeletons = new SkeletonAnalyzer(task.cal, proc.getPool()).analyze(sparse);
+        ResultsRow summary = proc.computeParameters(mitoSeg, crop, skeletons.getParams(), task.roiPoly, task.roiPt,
+                task.imageName);
+        double[] values = new double[7 + summary.values.length];
+        values[0] = params.medRadXY;
+        values[1] = params.medRadZ;
+        values[2] = params.dogSigma1;
+        values[3] = params.dogSigma2;
+        values[4] = th;
+        values[5] = params.minMito;
+        values[6] = params.maxMito;
+        System.arraycopy(summary.values, 0, values, 7, summary.values.length);
+        return(new ResultsRow(0, new String[] {task.imageName, task.roiPoly.getName(), params.getFingerprint(),
+            params.thMethod}, values));
+    }
+
+    /**
+     * Combined results table
+     */
+    private static ResultsWriter.Table table() {
+        ResultsWriter.Table summary = Mito_Processing.resultsTables(false, false).get(Mito_Processing.SUMMARY);
+        String[] values = new String[7 + summary.valueColumns.length];
+        String[] params = {"Median XY", "Median Z", "DoG sigma1", "DoG sigma2", "Threshold", "Min size", "Max size"};
+        System.arraycopy(params, 0, values, 0, params.length);
+        System.arraycopy(summary.valueColumns, 0, values, params.length, summary.valueColumns.length);
+        return(new ResultsWriter.Table("Sweep_Results", new String[] {"ImageName", "Roi", "Parameters", "Threshold method"},
+                values));
+    }
+
+    private void count(String stage) {
+        computed.merge(stage, 1, Integer::sum);
+    }
+
+
+    /**
+     * Labels before size filtering
+     */
+    private static class Labels {
+        final int[][] labels;
+        final long[] sizes;
+
+        Labels(int[][] labels, long[] sizes) {
+            this.labels = labels;
+            this.sizes = sizes;
+        }
+
+        static Labels of(float[][] dog, int width, int height, float th) {
+            int[][] labels = new int[dog.length][width * height];
+            int n = Filters3D.label26(dog, width, height, th, labels);
+            return(new Labels(labels, Filters3D.labelSizes(labels, n)));
+        }
+
+        short[][] sizeFilter(double minSize, double maxSize) {
+            return(Filters3D.relabel(labels, Filters3D.sizeMap(sizes, minSize, maxSize)));
+        }
+
+        long bytes() {
+            return((long)labels.length * (labels.length == 0 ? 0 : labels[0].length) * 4 + sizes.length * 8);
+        }
+    }
+
+
+    /**
+     * Least recently used intermediates, bounded in bytes
+     */
+    private static class Intermediates {
+        private final long maxBytes;
+        private final LinkedHashMap<String, Object> values = new LinkedHashMap<>(16, 0.75f, true);
+        private final Map<String, Long> sizes = new LinkedHashMap<>();
+        private long bytes = 0;
+
+        Intermediates(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        @SuppressWarnings("unchecked")
+        <T> T get(String key, Supplier<T> compute) {
+            T value = (T)values.get(key);
+            if (value != null)
+                return(value);
+            value = compute.get();
+            long size = bytes(value);
+            // least recently used first, the new value is always kept
+            for (java.util.Iterator<String> it = values.keySet().iterator(); it.hasNext() && bytes + size > maxBytes; ) {
+                bytes -= sizes.remove(it.next());
+                it.remove();
+            }
+            values.put(key, value);
+            sizes.put(key, size);
+            bytes += size;
+            return(value);
+        }
+
+        void clear() {
+            values.clear();
+            sizes.clear();
+            bytes = 0;
+        }
+
+        private static long bytes(Object value) {
+            if (value instanceof Labels)
+                return(((Labels)value).bytes());
+            if (value instanceof Float)
+                return(4);
+            float[][] vol = (float[][])value;
+            return((long)vol.length * (vol.length == 0 ? 0 : vol[0].length) * 4);
+        }
+    }
+}
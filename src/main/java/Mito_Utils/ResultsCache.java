@@ -0,0 +1,209 @@
+package Mito_Utils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Per roi results manifest in Results/.manifest
+ * One entry file per roi, named by the hash of its key
+ * (image path, size, modification time, roi zip hash, roi name, parameters fingerprint)
+ * holding the roi results rows and its output files
+ * Entries are written atomically once the roi rows are committed,
+ * an entry whose output files are missing (image write failed or pending at exit) is stale
+ *
+ * @author phm
+ */
+public class ResultsCache {
+
+    private static final String MANIFEST = ".manifest";
+    private final Path dir;
+
+
+    /**
+     * @param outDir results folder
+     * @throws IOException
+     */
+    public ResultsCache(String outDir) throws IOException {
+        dir = Paths.get(outDir, MANIFEST);
+        Files.createDirectories(dir);
+    }
+
+
+    /**
+     * Image part of the key : absolute path, size and modification time
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static String imageKey(String file) throws IOException {
+        Path p = Paths.get(file).toAbsolutePath();
+        return(p + "|" + Files.size(p) + "|" + Files.getLastModifiedTime(p).toMillis());
+    }
+
+    /**
+     * Content hash of a file (roi zip)
+     * @param file
+     * @return SHA-256 hex
+     * @throws IOException
+     */
+    public static String fileHash(String file) throws IOException {
+        MessageDigest md = digest();
+        byte[] buf = new byte[1 << 16];
+        try (InputStream in = Files.newInputStream(Paths.get(file))) {
+            int n;
+            while ((n = in.read(buf)) > 0)
+                md.update(buf, 0, n);
+        }
+        return(hex(md.digest()));
+    }
+
+    /**
+     * Roi key
+     * @param imageKey
+     * @param roiHash roi zip hash
+     * @param roiName
+     * @param fingerprint pipeline parameters
+     * @return
+     */
+    public static String roiKey(String imageKey, String roiHash, String roiName, String fingerprint) {
+        return(imageKey + "|" + roiHash + "|" + roiName + "|" + fingerprint);
+    }
+
+
+    /**
+     * Cached rows of a roi
+     * @param key
+     * @return rows, null if no entry, other key or missing output file
+     * @throws IOException
+     */
+    public List<ResultsRow> get(String key) throws IOException {
+        Path entry = entryFile(key);
+        List<ResultsRow> rows = new ArrayList<>();
+        try (BufferedReader in = Files.newBufferedReader(entry, StandardCharsets.UTF_8)) {
+            if (!key.equals(in.readLine()))
+                return(null);
+            String line = in.readLine();
+            if (line == null)
+                return(null);
+            for (String output : split(line))
+                if (!output.isEmpty() && !new File(output).exists())
+                    return(null);
+            while ((line = in.readLine()) != null)
+                rows.add(parseRow(line));
+        } catch (NoSuchFileException ex) {
+            return(null);
+        } catch (RuntimeException ex) {
+            // truncated or unreadable entry, recompute roi
+            return(null);
+        }
+        return(rows);
+    }
+
+    /**
+     * Store roi rows, replace previous entry atomically
+     * @param key
+     * @param rows
+     * @param outputs files written for the roi
+     * @throws IOException
+     */
+    public void put(String key, List<ResultsRow> rows, List<String> outputs) throws IOException {
+        Path entry = entryFile(key);
+        Path tmp = Files.createTempFile(dir, entry.getFileName().toString(), ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            out.write(key);
+            out.newLine();
+            out.write(String.join("\t", outputs));
+            out.newLine();
+            for (ResultsRow row : rows) {
+                out.write(formatRow(row));
+                out.newLine();
+            }
+        }
+        moveAtomic(tmp, entry);
+    }
+
+
+    /**
+     * Rename, atomic when the file system supports it
+     * @param from
+     * @param to
+     * @throws IOException
+     */
+    public static void moveAtomic(Path from, Path to) throws IOException {
+        try {
+            Files.move(from, to, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private Path entryFile(String key) {
+        return(dir.resolve(keyHash(key) + ".roi"));
+    }
+
+    /**
+     * Entry file name of a key
+     * @return SHA-256 hex
+     */
+    static String keyHash(String key) {
+        return(hex(digest().digest(key.getBytes(StandardCharsets.UTF_8))));
+    }
+
+    /**
+     * table, number of text columns, text columns, values (exact decimal form)
+     */
+    static String formatRow(ResultsRow row) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(row.table).append('\t').append(row.text.length);
+        for (String t : row.text)
+            sb.append('\t').append(t);
+        for (double v : row.values)
+            sb.append('\t').append(v);
+        return(sb.toString());
+    }
+
+    static ResultsRow parseRow(String line) {
+        String[] f = split(line);
+        int table = Integer.parseInt(f[0]);
+        int nText = Integer.parseInt(f[1]);
+        String[] text = new String[nText];
+        System.arraycopy(f, 2, text, 0, nText);
+        double[] values = new double[f.length - 2 - nText];
+        for (int i = 0; i < values.length; i++)
+            values[i] = Double.parseDouble(f[2 + nText + i]);
+        return(new ResultsRow(table, text, values));
+    }
+
+    private static String[] split(String line) {
+        return(line.split("\t", -1));
+    }
+
+    private static MessageDigest digest() {
+        try {
+            return(MessageDigest.getInstance("SHA-256"));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        return(sb.toString());
+    }
+}
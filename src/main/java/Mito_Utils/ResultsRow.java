@@ -0,0 +1,24 @@
+package Mito_Utils;
+
+/**
+ * One results row : text columns (image, roi ...) then numeric columns
+ *
+ * @author phm
+ */
+public class ResultsRow {
+
+    public final int table;
+    public final String[] text;
+    public final double[] values;
+
+    /**
+     * @param table table index in the results writer
+     * @param text text columns
+     * @param values numeric columns
+     */
+    public ResultsRow(int table, String[] text, double... values) {
+        this.table = table;
+        this.text = text;
+        this.values = values;
+    }
+}
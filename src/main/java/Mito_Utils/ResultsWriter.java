@@ -0,0 +1,333 @@
+package Mito_Utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Results sink : rows are queued by any thread (lock-free queue) and written
+ * in batches by a single writer thread, one file per table
+ * Tab separated text (.xls) or columnar binary (.bin) tables
+ * Tables are written to .part files and renamed in place on close,
+ * previous tables stay untouched until then
+ * Numbers are encoded from doubles straight into the output buffer
+ *
+ * @author phm
+ */
+public class ResultsWriter implements AutoCloseable {
+
+    public enum Format {
+        TSV, BINARY
+    }
+
+    /**
+     * Table description
+     */
+    public static class Table {
+        public final String name;
+        public final String[] textColumns;
+        public final String[] valueColumns;
+
+        /**
+         * @param name file name without extension
+         * @param textColumns
+         * @param valueColumns
+         */
+        public Table(String name, String[] textColumns, String[] valueColumns) {
+            this.name = name;
+            this.textColumns = textColumns;
+            this.valueColumns = valueColumns;
+        }
+    }
+
+    // rows written per batch before flushing
+    private static final int BATCH = 256;
+    // max wait of the writer thread for new rows
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private final ConcurrentLinkedQueue<ResultsRow> queue = new ConcurrentLinkedQueue<>();
+    private final TableOutput[] outputs;
+    private final Thread writer;
+    private volatile boolean closed = false;
+    private volatile IOException failure;
+
+
+    /**
+     * Create table files and start writer thread
+     * @param outDir
+     * @param tables tables indexed by ResultsRow.table, null for disabled tables
+     * @param format
+     * @throws IOException
+     */
+    public ResultsWriter(String outDir, List<Table> tables, Format format) throws IOException {
+        outputs = new TableOutput[tables.size()];
+        for (int t = 0; t < outputs.length; t++) {
+            Table table = tables.get(t);
+            if (table == null)
+                continue;
+            outputs[t] = (format == Format.TSV) ? new TsvOutput(outDir + table.name + ".xls", table)
+                    : new BinaryOutput(outDir + table.name + ".bin", table);
+        }
+        writer = new Thread(this::drain, "mito-results-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+
+    /**
+     * Queue a row, never blocks
+     * @param row
+     * @throws IOException if the writer thread failed
+     */
+    public void write(ResultsRow row) throws IOException {
+        if (failure != null)
+            throw failure;
+        if (closed)
+            throw new IOException("Results writer closed");
+        queue.offer(row);
+        LockSupport.unpark(writer);
+    }
+
+    private void drain() {
+        List<ResultsRow> batch = new ArrayList<>(BATCH);
+        try {
+            while (true) {
+                boolean last = closed;
+                ResultsRow row;
+                while (batch.size() < BATCH && (row = queue.poll()) != null)
+                    batch.add(row);
+                if (!batch.isEmpty()) {
+                    for (ResultsRow r : batch)
+                        if (outputs[r.table] != null)
+                            outputs[r.table].append(r);
+                    for (TableOutput out : outputs)
+                        if (out != null)
+                            out.flush();
+                    batch.clear();
+                    continue;
+                }
+                if (last)
+                    break;
+                LockSupport.parkNanos(this, PARK_NANOS);
+            }
+        } catch (IOException ex) {
+            failure = ex;
+        }
+    }
+
+
+    /**
+     * Write queued rows and close tables
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        IOException ex = failure;
+        for (TableOutput out : outputs)
+            try {
+                if (out != null)
+                    out.close();
+            } catch (IOException e) {
+                if (ex == null)
+                    ex = e;
+            }
+        if (ex != null)
+            throw ex;
+    }
+
+
+    /**
+     * Bytes written in all tables
+     * @return
+     */
+    public long getBytesWritten() {
+        long n = 0;
+        for (TableOutput out : outputs)
+            if (out != null)
+                n += out.written;
+        return(n);
+    }
+
+
+    /**
+     * Growable byte buffer written to a file channel
+     */
+    private static abstract class TableOutput {
+        protected final Table table;
+        private final Path file, part;
+        private final FileChannel channel;
+        protected byte[] buf = new byte[1 << 16];
+        protected int len = 0;
+        volatile long written = 0;
+
+        TableOutput(String file, Table table) throws IOException {
+            this.table = table;
+            this.file = Paths.get(file);
+            part = Paths.get(file + ".part");
+            channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        abstract void append(ResultsRow row) throws IOException;
+
+        void flush() throws IOException {
+            ByteBuffer bb = ByteBuffer.wrap(buf, 0, len);
+            while (bb.hasRemaining())
+                channel.write(bb);
+            written += len;
+            len = 0;
+        }
+
+        void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                channel.close();
+            }
+            ResultsCache.moveAtomic(part, file);
+        }
+
+        protected void ensure(int n) {
+            if (len + n > buf.length) {
+                byte[] b = new byte[Math.max(buf.length * 2, len + n)];
+                System.arraycopy(buf, 0, b, 0, len);
+                buf = b;
+            }
+        }
+
+        protected void put(byte b) {
+            ensure(1);
+            buf[len++] = b;
+        }
+
+        protected void put(String s) {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            ensure(b.length);
+            System.arraycopy(b, 0, buf, len, b.length);
+            len += b.length;
+        }
+    }
+
+
+    /**
+     * Tab separated table with header line
+     */
+    private static class TsvOutput extends TableOutput {
+        TsvOutput(String file, Table table) throws IOException {
+            super(file, table);
+            StringBuilder header = new StringBuilder();
+            for (String c : table.textColumns)
+                header.append(header.length() == 0 ? "" : "\t").append(c);
+            for (String c : table.valueColumns)
+                header.append(header.length() == 0 ? "" : "\t").append(c);
+            put(header.append('\n').toString());
+        }
+
+        @Override
+        void append(ResultsRow row) {
+            boolean first = true;
+            for (String t : row.text) {
+                if (!first)
+                    put((byte)'\t');
+                put(t);
+                first = false;
+            }
+            for (double v : row.values) {
+                if (!first)
+                    put((byte)'\t');
+                putDouble(v);
+                first = false;
+            }
+            put((byte)'\n');
+        }
+
+        /**
+         * Shortest decimal reading back to the same double, written straight into the buffer
+         */
+        private void putDouble(double v) {
+            ensure(DecimalWriter.MAX_CHARS);
+            len = DecimalWriter.write(buf, len, v);
+        }
+    }
+
+
+    /**
+     * Columnar binary table
+     * header : "MITOTAB2", int #text columns, int #value columns, column names (int length + UTF-8)
+     * then one block per flush : int #rows, each text column (int length + UTF-8 per row),
+     * each value column (#rows big endian doubles)
+     */
+    private static class BinaryOutput extends TableOutput {
+        private final List<ResultsRow> block = new ArrayList<>();
+
+        BinaryOutput(String file, Table table) throws IOException {
+            super(file, table);
+            put("MITOTAB2");
+            putInt(table.textColumns.length);
+            putInt(table.valueColumns.length);
+            for (String c : table.textColumns)
+                putText(c);
+            for (String c : table.valueColumns)
+                putText(c);
+        }
+
+        @Override
+        void append(ResultsRow row) {
+            block.add(row);
+        }
+
+        @Override
+        void flush() throws IOException {
+            if (!block.isEmpty()) {
+                int n = block.size();
+                putInt(n);
+                for (int c = 0; c < table.textColumns.length; c++)
+                    for (ResultsRow r : block)
+                        putText(r.text[c]);
+                ensure(n * 8 * table.valueColumns.length);
+                for (int c = 0; c < table.valueColumns.length; c++)
+                    for (ResultsRow r : block) {
+                        long bits = Double.doubleToLongBits(r.values[c]);
+                        for (int s = 56; s >= 0; s -= 8)
+                            buf[len++] = (byte)(bits >>> s);
+                    }
+                block.clear();
+            }
+            super.flush();
+        }
+
+        private void putInt(int v) {
+            ensure(4);
+            buf[len++] = (byte)(v >>> 24);
+            buf[len++] = (byte)(v >>> 16);
+            buf[len++] = (byte)(v >>> 8);
+            buf[len++] = (byte)v;
+        }
+
+        private void putText(String s) {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            putInt(b.length);
+            ensure(b.length);
+            System.arraycopy(b, 0, buf, len, b.length);
+            len += b.length;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package Mito_Utils;
+
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Roi rasterized once in crop coordinates as run-length scanline spans
+ * Crops start at the roi bounds, so the roi is placed at (0, 0), the caller roi is not modified
+ * Spans follow ImageJ polygon filling (Roi.getMask), non area rois cover the whole crop
+ *
+ * @author phm
+ */
+public final class RoiMask {
+
+    public final int width;
+    public final int height;
+    // spans of row y : spans[2k] <= x < spans[2k+1] for rowStart[y] <= k < rowStart[y+1]
+    private final int[] rowStart;
+    private final int[] spans;
+    private final long pixelCount;
+
+
+    private RoiMask(int width, int height, int[] rowStart, int[] spans) {
+        this.width = width;
+        this.height = height;
+        this.rowStart = rowStart;
+        this.spans = spans;
+        long n = 0;
+        for (int k = 0; k < spans.length; k += 2)
+            n += spans[k + 1] - spans[k];
+        pixelCount = n;
+    }
+
+
+    /**
+     * Rasterize roi
+     * @param roi roi, its bounds origin is the crop origin
+     * @param width crop width
+     * @param height crop height
+     * @return
+     */
+    public static RoiMask of(Roi roi, int width, int height) {
+        int[] rowStart = new int[height + 1];
+        if (roi == null || !roi.isArea()) {
+            int[] spans = new int[2 * height];
+            for (int y = 0; y < height; y++) {
+                rowStart[y + 1] = y + 1;
+                spans[2 * y + 1] = width;
+            }
+            return(new RoiMask(width, height, rowStart, spans));
+        }
+        Roi r = (Roi)roi.clone();
+        r.setLocation(0, 0);
+        ImageProcessor mask = r.getMask();
+        int mw = Math.min(width, r.getBounds().width), mh = Math.min(height, r.getBounds().height);
+        int[] spans = new int[16];
+        int n = 0;
+        for (int y = 0; y < height; y++) {
+            rowStart[y] = n / 2;
+            if (y < mh) {
+                int x = 0;
+                while (x < mw) {
+                    while (x < mw && !inside(mask, x, y))
+                        x++;
+                    if (x == mw)
+                        break;
+                    int x0 = x;
+                    while (x < mw && inside(mask, x, y))
+                        x++;
+                    if (n + 2 > spans.length)
+                        spans = Arrays.copyOf(spans, spans.length * 2);
+                    spans[n++] = x0;
+                    spans[n++] = x;
+                }
+            }
+        }
+        rowStart[height] = n / 2;
+        return(new RoiMask(width, height, rowStart, Arrays.copyOf(spans, n)));
+    }
+
+    // null mask : rectangle
+    private static boolean inside(ImageProcessor mask, int x, int y) {
+        return(mask == null || mask.get(x, y) != 0);
+    }
+
+
+    /**
+     * Number of pixels inside
+     */
+    public long getPixelCount() {
+        return(pixelCount);
+    }
+
+    /**
+     * Calibrated area
+     * @param pixelWidth
+     * @param pixelHeight
+     * @return
+     */
+    public double getArea(double pixelWidth, double pixelHeight) {
+        return(pixelCount * pixelWidth * pixelHeight);
+    }
+
+    /**
+     * Mask processor, 1 inside, 0 outside
+     */
+    public ImageProcessor toProcessor() {
+        byte[] pixels = new byte[width * height];
+        for (int y = 0; y < height; y++)
+            for (int k = rowStart[y]; k < rowStart[y + 1]; k++)
+                Arrays.fill(pixels, y * width + spans[2 * k], y * width + spans[2 * k + 1], (byte)1);
+        return(new ByteProcessor(width, height, pixels));
+    }
+
+
+    /**
+     * Zero voxels outside roi, in place on the stack pixel arrays
+     * @param stack crop stack (byte, short or float)
+     * @param pool slices in parallel, sequential if null
+     */
+    public void clearOutside(ImageStack stack, ForkJoinPool pool) {
+        int depth = stack.getSize();
+        if (pool == null)
+            for (int z = 0; z < depth; z++)
+                clearSlice(stack.getPixels(z + 1));
+        else
+            pool.submit(() -> IntStream.range(0, depth).parallel().forEach(z -> clearSlice(stack.getPixels(z + 1)))).join();
+    }
+
+    private void clearSlice(Object pixels) {
+        for (int y = 0; y < height; y++) {
+            int x = 0, row = y * width;
+            for (int k = rowStart[y]; k < rowStart[y + 1]; k++) {
+                clear(pixels, row + x, row + spans[2 * k]);
+                x = spans[2 * k + 1];
+            }
+            clear(pixels, row + x, row + width);
+        }
+    }
+
+    private static void clear(Object pixels, int from, int to) {
+        if (from >= to)
+            return;
+        if (pixels instanceof short[])
+            Arrays.fill((short[])pixels, from, to, (short)0);
+        else if (pixels instanceof byte[])
+            Arrays.fill((byte[])pixels, from, to, (byte)0);
+        else if (pixels instanceof float[])
+            Arrays.fill((float[])pixels, from, to, 0);
+        else
+            Arrays.fill((int[])pixels, from, to, 0);
+    }
+}
@@ -0,0 +1,403 @@
+package Mito_Utils;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pipelined roi scheduler
+ * read (I/O threads) -> compute (worker pool) -> save (I/O threads) -> commit (in task order)
+ * Running tasks are bounded by a memory budget, submit blocks until enough memory is free
+ * Memory held between tasks (decoded planes shared by rois) is taken from the same budget
+ * Tasks may be submitted in any order (largest first), commits follow their order numbers
+ * A failed task goes to its failure sink in commit order, other tasks go on
+ * A compute stage over the timeout is interrupted and abandoned, a new worker replaces its thread,
+ * its memory stays reserved until the abandoned thread ends
+ *
+ * @author phm
+ */
+public class RoiScheduler implements AutoCloseable {
+
+    /**
+     * One pipeline stage
+     */
+    public interface Stage<I, O> {
+        O apply(I in) throws Exception;
+    }
+
+    /**
+     * Terminal pipeline stage
+     */
+    public interface Sink<I> {
+        void accept(I in) throws Exception;
+    }
+
+    private static final long MB = 1024 * 1024;
+
+    // compute task states
+    private static final int RUNNING = 0, FINISHED = 1, ABANDONED = 2;
+
+    private final ExecutorService ioPool;
+    private final ThreadPoolExecutor computePool;
+    private final ScheduledExecutorService watchdog;
+    private final long timeoutMillis;
+    // compute pool resizing, not the submit lock held while waiting for memory
+    private final Object resizeLock = new Object();
+    private final Budget memory;
+    private final int memoryMB;
+    // memory held outside tasks and its permits
+    private final Object heldLock = new Object();
+    private long heldBytes = 0;
+    private int heldPermits = 0;
+    // commit of each task order, commit n waits for commit n-1
+    // an entry is used by its task and by the next one, then removed
+    private final Map<Integer, CompletableFuture<Void>> commits = new HashMap<>();
+    private int nextOrder = 0;
+    // tasks not past their compute stage, bounded by awaitIdleWorker callers
+    private final int workers;
+    private final Object computingLock = new Object();
+    private int computing = 0;
+
+
+    /**
+     * @param workers compute threads
+     * @param ioThreads read/write threads
+     * @param memoryBudget bytes allowed for running tasks
+     */
+    public RoiScheduler(int workers, int ioThreads, long memoryBudget) {
+        this(workers, ioThreads, memoryBudget, 0);
+    }
+
+    /**
+     * @param workers compute threads
+     * @param ioThreads read/write threads
+     * @param memoryBudget bytes allowed for running tasks
+     * @param timeoutMillis compute stage timeout, 0 : none
+     */
+    public RoiScheduler(int workers, int ioThreads, long memoryBudget, long timeoutMillis) {
+        int n = Math.max(1, workers);
+        this.workers = n;
+        computePool = new ThreadPoolExecutor(n, n, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), 
+                threadFactory("mito-compute"));
+        watchdog = Executors.newSingleThreadScheduledExecutor(threadFactory("mito-watchdog"));
+        this.timeoutMillis = timeoutMillis;
+        ioPool = Executors.newFixedThreadPool(Math.max(1, ioThreads), threadFactory("mito-io"));
+        memoryMB = (int)Math.max(1, Math.min(Integer.MAX_VALUE, memoryBudget / MB));
+        memory = new Budget(memoryMB);
+    }
+
+    private static ThreadFactory threadFactory(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+
+    /**
+     * Submit a roi task, committed after all tasks submitted before it
+     * @param memoryBytes estimated peak memory of the task
+     * @param read read stage, run on I/O threads
+     * @param compute compute stage, run on worker threads
+     * @param save save stage, run on I/O threads
+     * @param commit called in submission order once the task is saved
+     * @throws InterruptedException
+     */
+    public synchronized <I, R> void submit(long memoryBytes, Stage<Void, I> read, Stage<I, R> compute, Sink<R> save,
+            Sink<R> commit) throws InterruptedException {
+        submit(memoryBytes, nextOrder, read, compute, save, commit, null);
+    }
+
+    /**
+     * Submit a roi task with its commit order
+     * @param memoryBytes estimated peak memory of the task
+     * @param order commit position, all orders from 0 to the last one must be submitted
+     * @param read read stage, run on I/O threads
+     * @param compute compute stage, run on worker threads
+     * @param save save stage, run on I/O threads
+     * @param commit called in order once the task and all lower orders are saved
+     * @param failed called in order instead of commit if a stage failed, or after commit if commit failed,
+     * null : the failure ends the run
+     * @throws InterruptedException
+     */
+    public synchronized <I, R> void submit(long memoryBytes, int order, Stage<Void, I> read, Stage<I, R> compute,
+            Sink<R> save, Sink<R> commit, Sink<Throwable> failed) throws InterruptedException {
+        // a task bigger than the budget left by held memory runs alone, held memory may grow meanwhile
+        int permits = acquire(memoryBytes);
+        // set when the compute stage is abandoned, its thread then releases the memory
+        AtomicBoolean abandoned = new AtomicBoolean();
+        CompletableFuture<R> result;
+        try {
+            CompletableFuture<R> computed = CompletableFuture.supplyAsync(() -> run(read, null), ioPool)
+                    .thenCompose(in -> compute(compute, in, abandoned, () -> memory.release(permits)));
+            computing(1);
+            computed.whenComplete((r, ex) -> computing(-1));
+            result = computed.thenApplyAsync(r -> {
+                run(save, r);
+                return r;
+            }, ioPool);
+        } catch (RuntimeException ex) {
+            memory.release(permits);
+            throw ex;
+        }
+        result.whenComplete((r, ex) -> {
+            if (!abandoned.get())
+                memory.release(permits);
+        });
+        nextOrder = Math.max(nextOrder, order + 1);
+        CompletableFuture<Void> previous = (order == 0) ? CompletableFuture.completedFuture(null) : useCommit(order - 1);
+        CompletableFuture<Void> done = useCommit(order);
+        // failures of previous tasks without failure sink stop the chain, a failed commit goes to the failure sink
+        previous.thenCombineAsync(result.handle((r, ex) -> new Outcome<>(r, ex)), (v, outcome) -> {
+            Throwable failure = outcome.failure;
+            if (failure == null)
+                try {
+                    return(run(commit, outcome.result));
+                } catch (RuntimeException ex) {
+                    failure = ex;
+                }
+            if (failed == null)
+                throw new CompletionException(cause(failure));
+            return(run(failed, cause(failure)));
+        }, ioPool).whenComplete((v, ex) -> {
+            if (ex == null)
+                done.complete(null);
+            else
+                done.completeExceptionally(ex);
+        });
+    }
+
+    private void computing(int delta) {
+        synchronized (computingLock) {
+            computing += delta;
+            computingLock.notifyAll();
+        }
+    }
+
+    /**
+     * Wait until fewer tasks are read or computed than compute threads
+     * Lets a caller take work (a queue lease) only when a worker can start on it
+     * @throws InterruptedException
+     */
+    public void awaitIdleWorker() throws InterruptedException {
+        synchronized (computingLock) {
+            while (computing >= workers)
+                computingLock.wait();
+        }
+    }
+
+    /**
+     * Take the permits of a task
+     * @return permits taken
+     */
+    private int acquire(long memoryBytes) throws InterruptedException {
+        int permits = taskPermits(memoryBytes);
+        while (!memory.tryAcquire(permits, 100, TimeUnit.MILLISECONDS))
+            permits = taskPermits(memoryBytes);
+        return(permits);
+    }
+
+    private int taskPermits(long memoryBytes) {
+        synchronized (heldLock) {
+            return((int)Math.min(memoryMB - heldPermits, Math.max(1, (memoryBytes + MB - 1) / MB)));
+        }
+    }
+
+    /**
+     * Memory held outside tasks, taken from the budget without waiting : later tasks wait for it
+     * One MB is always left to tasks, so a task can start once the others are done
+     * @param bytes held (> 0) or given back (< 0)
+     */
+    public void hold(long bytes) {
+        synchronized (heldLock) {
+            heldBytes += bytes;
+            int permits = (int)Math.min(memoryMB - 1, Math.max(0, (heldBytes + MB - 1) / MB));
+            if (permits > heldPermits)
+                memory.take(permits - heldPermits);
+            else if (permits < heldPermits)
+                memory.release(heldPermits - permits);
+            heldPermits = permits;
+        }
+    }
+
+    /**
+     * Memory budget in MB permits, permits of held memory are taken without waiting
+     */
+    private static class Budget extends Semaphore {
+        Budget(int permits) {
+            super(permits, true);
+        }
+
+        void take(int permits) {
+            reducePermits(permits);
+        }
+    }
+
+    private CompletableFuture<Void> commitOf(int order) {
+        return(commits.computeIfAbsent(order, k -> new CompletableFuture<>()));
+    }
+
+    /**
+     * Commits not yet used by both their task and the next one
+     */
+    synchronized int getPendingCommits() {
+        return(commits.size());
+    }
+
+    /**
+     * Commit of an order for its task or the next task, the second use removes it
+     */
+    private CompletableFuture<Void> useCommit(int order) {
+        CompletableFuture<Void> commit = commits.remove(order);
+        if (commit == null) {
+            commit = new CompletableFuture<>();
+            commits.put(order, commit);
+        }
+        return(commit);
+    }
+
+    /**
+     * Task result or failure
+     */
+    private static class Outcome<R> {
+        final R result;
+        final Throwable failure;
+
+        Outcome(R result, Throwable failure) {
+            this.result = result;
+            this.failure = failure;
+        }
+    }
+
+    private static Throwable cause(Throwable ex) {
+        while (ex instanceof CompletionException && ex.getCause() != null)
+            ex = ex.getCause();
+        return(ex);
+    }
+
+
+    /**
+     * Run a compute stage on a worker, watched by the timeout
+     * On timeout the worker is interrupted and left to end on its own, the pool gets one more thread meanwhile
+     * @param abandoned set before the timeout failure is passed on
+     * @param release run by an abandoned worker when its stage ends
+     */
+    private <I, R> CompletableFuture<R> compute(Stage<I, R> compute, I in, AtomicBoolean abandoned, Runnable release) {
+        CompletableFuture<R> out = new CompletableFuture<>();
+        computePool.execute(() -> {
+            AtomicInteger state = new AtomicInteger(RUNNING);
+            Thread worker = Thread.currentThread();
+            ScheduledFuture<?> timer = (timeoutMillis <= 0) ? null : watchdog.schedule(() -> {
+                if (state.compareAndSet(RUNNING, ABANDONED)) {
+                    abandoned.set(true);
+                    out.completeExceptionally(new TimeoutException("Compute stage over " + timeoutMillis / 1000.0 + " s"));
+                    worker.interrupt();
+                    resizeCompute(1);
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+            R r = null;
+            Throwable failure = null;
+            try {
+                r = compute.apply(in);
+            } catch (Throwable ex) {
+                failure = ex;
+            }
+            if (timer != null)
+                timer.cancel(false);
+            if (!state.compareAndSet(RUNNING, FINISHED)) {
+                // abandoned, its memory is free and its replacement thread goes
+                Thread.interrupted();
+                release.run();
+                resizeCompute(-1);
+                return;
+            }
+            if (failure == null)
+                out.complete(r);
+            else
+                out.completeExceptionally(failure);
+        });
+        return(out);
+    }
+
+    private void resizeCompute(int delta) {
+        synchronized (resizeLock) {
+            int n = computePool.getCorePoolSize() + delta;
+            if (delta > 0) {
+                computePool.setMaximumPoolSize(n);
+                computePool.setCorePoolSize(n);
+            }
+            else {
+                computePool.setCorePoolSize(n);
+                computePool.setMaximumPoolSize(n);
+            }
+        }
+    }
+
+    private static <I, O> O run(Stage<I, O> stage, I in) {
+        try {
+            return(stage.apply(in));
+        } catch (Exception ex) {
+            throw new CompletionException(ex);
+        }
+    }
+
+    private static <I> Void run(Sink<I> sink, I in) {
+        try {
+            sink.accept(in);
+            return(null);
+        } catch (Exception ex) {
+            throw new CompletionException(ex);
+        }
+    }
+
+
+    /**
+     * Wait for all submitted tasks to be committed
+     * @throws Exception first task failure
+     */
+    public void await() throws Exception {
+        CompletableFuture<Void> commit;
+        synchronized (this) {
+            // failures are passed down the commit chain
+            commit = (nextOrder == 0) ? CompletableFuture.completedFuture(null) : commitOf(nextOrder - 1);
+        }
+        try {
+            commit.get();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof CompletionException && cause.getCause() != null)
+                cause = cause.getCause();
+            if (cause instanceof Exception)
+                throw (Exception)cause;
+            throw ex;
+        }
+    }
+
+    @Override
+    public void close() {
+        watchdog.shutdownNow();
+        computePool.shutdownNow();
+        ioPool.shutdown();
+        try {
+            ioPool.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
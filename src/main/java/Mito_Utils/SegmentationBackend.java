@@ -0,0 +1,51 @@
+package Mito_Utils;
+
+import ij.ImagePlus;
+
+/**
+ * Mito segmentation backend
+ * median box filter -> difference of Gaussians -> automatic threshold
+ * -> 26-connected labelling -> size filter
+ *
+ * @author phm
+ */
+public interface SegmentationBackend {
+
+    /**
+     * Backend name used in logs and for runtime selection
+     * @return
+     */
+    String getName();
+
+    /**
+     * Segment mitochondria
+     * @param img mito channel stack
+     * @param medRadXY median box radius in XY
+     * @param medRadZ median box radius in Z
+     * @param sigma1 small DoG sigma
+     * @param sigma2 large DoG sigma
+     * @param thMethod automatic threshold method
+     * @param minSize min object size in voxels
+     * @param maxSize max object size in voxels
+     * @return label image, labels numbered in scan order
+     */
+    ImagePlus segment(ImagePlus img, double medRadXY, double medRadZ, double sigma1, double sigma2, String thMethod,
+            double minSize, double maxSize);
+
+    /**
+     * Segment mitochondria in Z slabs, for stacks larger than memory
+     * Same labels as segment, memory bounded by slab size and the output labels
+     * @param img mito channel stack
+     * @param slabSlices slices per slab, without halos
+     * @param medRadXY median box radius in XY
+     * @param medRadZ median box radius in Z
+     * @param sigma1 small DoG sigma
+     * @param sigma2 large DoG sigma
+     * @param thMethod automatic threshold method
+     * @param minSize min object size in voxels
+     * @param maxSize max object size in voxels
+     * @return label image, labels numbered in scan order
+     */
+    ImagePlus segmentSlabs(ImagePlus img, int slabSlices, double medRadXY, double medRadZ, double sigma1, double sigma2,
+            String thMethod, double minSize, double maxSize);
+}
@@ -0,0 +1,448 @@
+package Mito_Utils;
+
+import ij.measure.Calibration;
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
+
+/**
+ * 3D Sholl analysis of a skeleton
+ * Squared calibrated distances of skeleton voxels to the center are computed once and bucketed by shell,
+ * intersections of a shell are the 26-connected voxel groups inside the shell
+ * Shells are centered on each radius with a thickness of one voxel diagonal,
+ * so that any 26-connected path crossing a radius has a voxel in the shell
+ *
+ * @author phm
+ */
+public class ShollAnalyzer {
+
+    // max degree tried for best polynomial fit
+    private static final int MAX_DEGREE = 8;
+
+    private final double pw, ph, pd;
+
+    public ShollAnalyzer(Calibration cal) {
+        pw = cal.pixelWidth;
+        ph = cal.pixelHeight;
+        pd = cal.pixelDepth;
+    }
+
+
+    /**
+     * Sholl profile and fitted metrics
+     */
+    public static class Profile {
+        public final double[] radii;
+        public final double[] inters;
+        public double[] fitted;
+        public int degree;
+        public double rSquared;
+        public double decay;
+        public double decayRSquared;
+
+        Profile(double[] radii, double[] inters) {
+            this.radii = radii;
+            this.inters = inters;
+        }
+
+        public double getMax() {
+            double max = 0;
+            for (double v : inters)
+                max = Math.max(max, v);
+            return(max);
+        }
+
+        public double getMaxRadius() {
+            double max = -1, r = Double.NaN;
+            for (int i = 0; i < inters.length; i++)
+                if (inters[i] > max) {
+                    max = inters[i];
+                    r = radii[i];
+                }
+            return(r);
+        }
+
+        public double getSum() {
+            double sum = 0;
+            for (double v : inters)
+                sum += v;
+            return(sum);
+        }
+
+        public double getMean() {
+            return(inters.length == 0 ? 0 : getSum() / inters.length);
+        }
+
+        public double getMedian() {
+            if (inters.length == 0)
+                return(0);
+            double[] sorted = inters.clone();
+            Arrays.sort(sorted);
+            int n = sorted.length;
+            return((n % 2 == 1) ? sorted[n / 2] : (sorted[n/2 - 1] + sorted[n/2]) / 2);
+        }
+
+        public double getCentroidRadius() {
+            double sum = getSum(), r = 0;
+            for (int i = 0; i < inters.length; i++)
+                r += radii[i] * inters[i];
+            return(sum == 0 ? Double.NaN : r / sum);
+        }
+
+        /**
+         * Largest radius with at least cutoff intersections
+         */
+        public double getEnclosingRadius(int cutoff) {
+            double r = Double.NaN;
+            for (int i = 0; i < inters.length; i++)
+                if (inters[i] >= cutoff)
+                    r = radii[i];
+            return(r);
+        }
+
+        public int getIntersectingRadii() {
+            int n = 0;
+            for (double v : inters)
+                if (v > 0)
+                    n++;
+            return(n);
+        }
+
+        public double getCriticalValue() {
+            if (fitted == null)
+                return(Double.NaN);
+            double max = -Double.MAX_VALUE;
+            for (double v : fitted)
+                max = Math.max(max, v);
+            return(max);
+        }
+
+        public double getCriticalRadius() {
+            if (fitted == null)
+                return(Double.NaN);
+            double max = -Double.MAX_VALUE, r = Double.NaN;
+            for (int i = 0; i < fitted.length; i++)
+                if (fitted[i] > max) {
+                    max = fitted[i];
+                    r = radii[i];
+                }
+            return(r);
+        }
+
+        public double getFittedMean() {
+            if (fitted == null || fitted.length == 0)
+                return(Double.NaN);
+            double sum = 0;
+            for (double v : fitted)
+                sum += v;
+            return(sum / fitted.length);
+        }
+    }
+
+
+    /**
+     * Calibrated distance from the center to the farthest stack corner, shells up to it reach every voxel
+     * @param width
+     * @param height
+     * @param depth
+     * @param cx center x (pixels)
+     * @param cy center y (pixels)
+     * @param cz center slice (0 based)
+     * @return
+     */
+    public double farthestRadius(int width, int height, int depth, double cx, double cy, int cz) {
+        double dx = Math.max(cx, width - 1 - cx) * pw;
+        double dy = Math.max(cy, height - 1 - cy) * ph;
+        double dz = Math.max(cz, depth - 1 - cz) * pd;
+        return(Math.sqrt(dx * dx + dy * dy + dz * dz));
+    }
+
+    /**
+     * Compute Sholl profile
+     * @param skeleton skeleton runs, any label
+     * @param cx center x (pixels)
+     * @param cy center y (pixels)
+     * @param cz center slice (0 based)
+     * @param startRadius calibrated
+     * @param endRadius calibrated
+     * @param step calibrated
+     * @return
+     */
+    public Profile analyze(SparseLabels skeleton, double cx, double cy, int cz, double startRadius, double endRadius, 
+            double step) {
+        int width = skeleton.width, height = skeleton.height, depth = skeleton.depth;
+        int nShells = (endRadius >= startRadius && step > 0) ? (int)Math.floor((endRadius - startRadius) / step) + 1 : 0;
+        double[] radii = new double[nShells];
+        for (int k = 0; k < nShells; k++)
+            radii[k] = startRadius + k * step;
+        double[] inters = new double[nShells];
+        Profile profile = new Profile(radii, inters);
+        if (nShells == 0)
+            return(profile);
+        double half = Math.sqrt(pw * pw + ph * ph + pd * pd) / 2;
+        // shell k holds voxels with radii[k] - half < d < radii[k] + half, bounds squared
+        double[] lo2 = new double[nShells], hi2 = new double[nShells];
+        for (int k = 0; k < nShells; k++) {
+            lo2[k] = (radii[k] > half) ? (radii[k] - half) * (radii[k] - half) : -1;
+            hi2[k] = (radii[k] + half) * (radii[k] + half);
+        }
+        // skeleton voxels in scan order and their shell range, from squared calibrated distance
+        int nVox = 0;
+        for (int r = 0; r < skeleton.getRunCount(); r++)
+            nVox += skeleton.getXEnd(r) - skeleton.getXStart(r) + 1;
+        int[] vz = new int[nVox], vi = new int[nVox], kFirst = new int[nVox], kLast = new int[nVox];
+        int[] count = new int[nShells + 1];
+        int n = 0;
+        for (int z = 0; z < depth; z++) {
+            double dz = (z - cz) * pd;
+            for (int y = 0; y < height; y++) {
+                double dy = (y - cy) * ph;
+                for (int r = skeleton.rowFirst(z, y); r < skeleton.rowEnd(z, y); r++)
+                    for (int x = skeleton.getXStart(r); x <= skeleton.getXEnd(r); x++) {
+                        double dx = (x - cx) * pw;
+                        double d2 = dx * dx + dy * dy + dz * dz;
+                        // shell bounds increase with k : first shell ending after d, then shells starting before d
+                        int k0 = Arrays.binarySearch(hi2, d2);
+                        k0 = (k0 >= 0) ? k0 + 1 : -k0 - 1;
+                        int k1 = k0;
+                        while (k1 < nShells && lo2[k1] < d2)
+                            count[++k1]++;
+                        vz[n] = z;
+                        vi[n] = y * width + x;
+                        kFirst[n] = k0;
+                        kLast[n] = k1 - 1;
+                        n++;
+                    }
+            }
+        }
+        // shell buckets, members of a shell stay in scan order
+        for (int k = 0; k < nShells; k++)
+            count[k + 1] += count[k];
+        int[] members = new int[count[nShells]];
+        int[] fill = Arrays.copyOf(count, nShells);
+        for (int v = 0; v < nVox; v++)
+            for (int k = kFirst[v]; k <= kLast[v]; k++)
+                members[fill[k]++] = v;
+        // groups in each shell, visited by member position
+        boolean[] visited = new boolean[members.length];
+        int[] stack = new int[Math.max(1, members.length)];
+        for (int k = 0; k < nShells; k++) {
+            if (Thread.currentThread().isInterrupted())
+                throw new CancellationException("Sholl analysis interrupted");
+            int groups = 0;
+            for (int m = count[k]; m < count[k + 1]; m++) {
+                if (visited[m])
+                    continue;
+                groups++;
+                int sp = 0;
+                stack[sp++] = m;
+                visited[m] = true;
+                while (sp > 0) {
+                    int u = members[stack[--sp]];
+                    int z = vz[u], x = vi[u] % width, y = vi[u] / width;
+                    for (int dz = -1; dz <= 1; dz++)
+                        for (int dy = -1; dy <= 1; dy++)
+                            for (int dx = -1; dx <= 1; dx++) {
+                                int zz = z + dz, yy = y + dy, xx = x + dx;
+                                if (zz < 0 || zz >= depth || yy < 0 || yy >= height || xx < 0 || xx >= width)
+                                    continue;
+                                int j = indexOf(members, count[k], count[k + 1], vz, vi, zz, yy * width + xx);
+                                if (j >= 0 && !visited[j]) {
+                                    visited[j] = true;
+                                    stack[sp++] = j;
+                                }
+                            }
+                }
+            }
+            inters[k] = groups;
+        }
+        fit(profile);
+        return(profile);
+    }
+
+    /**
+     * Position of voxel z, i among shell members (members are in scan order)
+     * @return -1 if the voxel is not in the shell
+     */
+    private static int indexOf(int[] members, int from, int to, int[] vz, int[] vi, int z, int i) {
+        int lo = from, hi = to - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int v = members[mid];
+            int cmp = (vz[v] != z) ? Integer.compare(vz[v], z) : Integer.compare(vi[v], i);
+            if (cmp == 0)
+                return(mid);
+            if (cmp < 0)
+                lo = mid + 1;
+            else
+                hi = mid - 1;
+        }
+        return(-1);
+    }
+
+
+    /**
+     * Best degree polynomial fit (adjusted R2) and Sholl decay (semi-log, normalized by volume)
+     */
+    private static void fit(Profile p) {
+        int n = p.radii.length;
+        double bestAdj = -Double.MAX_VALUE;
+        for (int deg = 1; deg <= Math.min(MAX_DEGREE, n - 2); deg++) {
+            double[] coef = polyFit(p.radii, p.inters, deg);
+            if (coef == null)
+                continue;
+            double[] fitted = new double[n];
+            for (int i = 0; i < n; i++)
+                fitted[i] = polyValue(coef, p.radii[i], p.radii[0], p.radii[n - 1]);
+            double r2 = rSquared(p.inters, fitted);
+            double adj = 1 - (1 - r2) * (n - 1) / (n - deg - 1);
+            if (adj > bestAdj) {
+                bestAdj = adj;
+                p.fitted = fitted;
+                p.degree = deg;
+                p.rSquared = r2;
+            }
+        }
+        // semi-log : ln(N/V) = -k r + b
+        double sx = 0, sy = 0, sxx = 0, sxy = 0, syy = 0;
+        int m = 0;
+        for (int i = 0; i < n; i++) {
+            if (p.inters[i] <= 0 || p.radii[i] <= 0)
+                continue;
+            double x = p.radii[i];
+            double y = Math.log(p.inters[i] / (4.0 / 3 * Math.PI * x * x * x));
+            sx += x;
+            sy += y;
+            sxx += x * x;
+            sxy += x * y;
+            syy += y * y;
+            m++;
+        }
+        double den = m * sxx - sx * sx;
+        if (m >= 2 && den != 0) {
+            double slope = (m * sxy - sx * sy) / den;
+            p.decay = -slope;
+            double r = (m * sxy - sx * sy) / Math.sqrt(den * (m * syy - sy * sy));
+            p.decayRSquared = r * r;
+        }
+        else {
+            p.decay = Double.NaN;
+            p.decayRSquared = Double.NaN;
+        }
+    }
+
+    /**
+     * Least squares polynomial on x scaled to [-1, 1]
+     */
+    private static double[] polyFit(double[] x, double[] y, int deg) {
+        int n = x.length, m = deg + 1;
+        double[][] a = new double[m][m + 1];
+        for (int i = 0; i < n; i++) {
+            double t = scale(x[i], x[0], x[n - 1]);
+            double[] pow = new double[2 * m];
+            pow[0] = 1;
+            for (int j = 1; j < pow.length; j++)
+                pow[j] = pow[j - 1] * t;
+            for (int r = 0; r < m; r++) {
+                for (int c = 0; c < m; c++)
+                    a[r][c] += pow[r + c];
+                a[r][m] += pow[r] * y[i];
+            }
+        }
+        // gaussian elimination with partial pivoting
+        for (int c = 0; c < m; c++) {
+            int piv = c;
+            for (int r = c + 1; r < m; r++)
+                if (Math.abs(a[r][c]) > Math.abs(a[piv][c]))
+                    piv = r;
+            if (Math.abs(a[piv][c]) < 1e-12)
+                return(null);
+            double[] tmp = a[c];
+            a[c] = a[piv];
+            a[piv] = tmp;
+            for (int r = 0; r < m; r++) {
+                if (r == c)
+                    continue;
+                double f = a[r][c] / a[c][c];
+                for (int k = c; k <= m; k++)
+                    a[r][k] -= f * a[c][k];
+            }
+        }
+        double[] coef = new double[m];
+        for (int c = 0; c < m; c++)
+            coef[c] = a[c][m] / a[c][c];
+        return(coef);
+    }
+
+    private static double scale(double x, double min, double max) {
+        return (max > min) ? 2 * (x - min) / (max - min) - 1 : 0;
+    }
+
+    private static double polyValue(double[] coef, double x, double min, double max) {
+        double t = scale(x, min, max), v = 0;
+        for (int j = coef.length - 1; j >= 0; j--)
+            v = v * t + coef[j];
+        return(v);
+    }
+
+    private static double rSquared(double[] y, double[] fitted) {
+        double mean = 0;
+        for (double v : y)
+            mean += v;
+        mean /= y.length;
+        double ssRes = 0, ssTot = 0;
+        for (int i = 0; i < y.length; i++) {
+            ssRes += (y[i] - fitted[i]) * (y[i] - fitted[i]);
+            ssTot += (y[i] - mean) * (y[i] - mean);
+        }
+        return(ssTot == 0 ? 1 : 1 - ssRes / ssTot);
+    }
+
+
+    /**
+     * Save profile as csv (radius, intersections, fitted intersections)
+     * @param profile
+     * @param file
+     * @throws IOException
+     */
+    public static void saveProfile(Profile profile, String file) throws IOException {
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(file))) {
+            out.write("Radius,Inters.,Inters. (fitted)\n");
+            for (int i = 0; i < profile.radii.length; i++)
+                out.write(format(profile.radii[i]) + "," + format(profile.inters[i]) + ","
+                        + (profile.fitted == null ? "NaN" : format(profile.fitted[i])) + "\n");
+        }
+    }
+
+    /**
+     * Save Sholl metrics as a one row csv
+     * @param profile
+     * @param label image_roi
+     * @param file
+     * @throws IOException
+     */
+    public static void saveMetrics(Profile profile, String label, String file) throws IOException {
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(file))) {
+            out.write("Image,Starting radius,Ending radius,Radius step,Max inters.,Max inters. radius,Sum inters.,"
+                    + "Mean inters.,Median inters.,Centroid radius,Enclosing radius cutoff,Enclosing radius,Intersecting radii,"
+                    + "Polyn. degree,Polyn. R^2,Critical value,Critical radius,Mean value,Sholl decay,R^2 (sholl decay)\n");
+            int n = profile.radii.length;
+            double step = (n > 1) ? profile.radii[1] - profile.radii[0] : 0;
+            out.write(label + "," + format(n > 0 ? profile.radii[0] : Double.NaN) + ","
+                    + format(n > 0 ? profile.radii[n - 1] : Double.NaN) + "," + format(step) + ","
+                    + format(profile.getMax()) + "," + format(profile.getMaxRadius()) + "," + format(profile.getSum()) + ","
+                    + format(profile.getMean()) + "," + format(profile.getMedian()) + "," + format(profile.getCentroidRadius()) + ","
+                    + "1," + format(profile.getEnclosingRadius(1)) + "," + profile.getIntersectingRadii() + ","
+                    + profile.degree + "," + format(profile.rSquared) + "," + format(profile.getCriticalValue()) + ","
+                    + format(profile.getCriticalRadius()) + "," + format(profile.getFittedMean()) + ","
+                    + format(profile.decay) + "," + format(profile.decayRSquared) + "\n");
+        }
+    }
+
+    private static String format(double v) {
+        return(String.format(Locale.US, "%.3f", v));
+    }
+}
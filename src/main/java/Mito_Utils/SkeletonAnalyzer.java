@@ -0,0 +1,530 @@
+package Mito_Utils;
+
+import ij.measure.Calibration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * 3D skeletonization and skeleton graph analysis on a label array
+ * Each 26-connected component is thinned (directional thinning, 26/6 simple points,
+ * end points kept) and analyzed independently and in parallel
+ *
+ * @author phm
+ */
+public class SkeletonAnalyzer {
+
+    // 3x3x3 neighbourhood, position p = (dz+1)*9 + (dy+1)*3 + (dx+1), center = 13
+    private static final int CENTER = 13;
+    private static final int[][] ADJ26 = new int[27][];
+    private static final int[][] ADJ6_N18 = new int[27][];
+    private static final boolean[] N18 = new boolean[27];
+    private static final int[] N6 = {4, 10, 12, 14, 16, 22};
+    // thinning directions : -y, +y, +x, -x, +z, -z
+    private static final int[] DIRECTIONS = {10, 16, 14, 12, 22, 4};
+
+    static {
+        for (int p = 0; p < 27; p++) {
+            int[] dp = delta(p);
+            N18[p] = p != CENTER && Math.abs(dp[0]) + Math.abs(dp[1]) + Math.abs(dp[2]) <= 2;
+        }
+        for (int p = 0; p < 27; p++) {
+            List<Integer> adj26 = new ArrayList<>(), adj6 = new ArrayList<>();
+            int[] dp = delta(p);
+            for (int q = 0; q < 27; q++) {
+                if (q == p || q == CENTER)
+                    continue;
+                int[] dq = delta(q);
+                int ax = Math.abs(dp[0] - dq[0]), ay = Math.abs(dp[1] - dq[1]), az = Math.abs(dp[2] - dq[2]);
+                if (ax <= 1 && ay <= 1 && az <= 1)
+                    adj26.add(q);
+                if (N18[p] && N18[q] && ax + ay + az == 1)
+                    adj6.add(q);
+            }
+            ADJ26[p] = adj26.stream().mapToInt(Integer::intValue).toArray();
+            ADJ6_N18[p] = adj6.stream().mapToInt(Integer::intValue).toArray();
+        }
+    }
+
+    private static int[] delta(int p) {
+        return new int[] {p % 3 - 1, (p / 3) % 3 - 1, p / 9 - 1};
+    }
+
+
+    /**
+     * Skeleton branch
+     */
+    public static class Branch {
+        public final int skeleton;
+        public final double length;
+        // end vertices voxel coordinates
+        public final int x1, y1, z1, x2, y2, z2;
+
+        Branch(int skeleton, double length, int x1, int y1, int z1, int x2, int y2, int z2) {
+            this.skeleton = skeleton;
+            this.length = length;
+            this.x1 = x1;
+            this.y1 = y1;
+            this.z1 = z1;
+            this.x2 = x2;
+            this.y2 = y2;
+            this.z2 = z2;
+        }
+    }
+
+    /**
+     * Skeleton of one connected component
+     */
+    public static class Skeleton {
+        public final int id;
+        public int voxels;
+        public int endPoints;
+        public int junctions;
+        public int junctionVoxels;
+        public final List<Branch> branches = new ArrayList<>();
+
+        Skeleton(int id) {
+            this.id = id;
+        }
+
+        public int getBranches() {
+            return(branches.size());
+        }
+
+        public double getAverageBranchLength() {
+            if (branches.isEmpty())
+                return(0);
+            double sum = 0;
+            for (Branch b : branches)
+                sum += b.length;
+            return(sum / branches.size());
+        }
+    }
+
+    /**
+     * Analysis results
+     */
+    public static class Result {
+        public final List<Skeleton> skeletons;
+        // runs of skeleton voxels labelled with their skeleton id
+        public final SparseLabels skeletonLabels;
+
+        Result(List<Skeleton> skeletons, SparseLabels skeletonLabels) {
+            this.skeletons = skeletons;
+            this.skeletonLabels = skeletonLabels;
+        }
+
+        /**
+         * Summed parameters
+         * @return {#branch, sum of average branch lengths, #endPoint, #junction}
+         */
+        public double[] getParams() {
+            double branches = 0, branchLength = 0, endPoints = 0, junctions = 0;
+            for (Skeleton s : skeletons) {
+                branches += s.getBranches();
+                branchLength += s.getAverageBranchLength();
+                endPoints += s.endPoints;
+                junctions += s.junctions;
+            }
+            return new double[] {branches, branchLength, endPoints, junctions};
+        }
+    }
+
+
+    private final ForkJoinPool pool;
+    private final Calibration cal;
+    private final double pw, ph, pd;
+
+    public SkeletonAnalyzer(Calibration cal, ForkJoinPool pool) {
+        this.pool = pool;
+        this.cal = cal;
+        pw = cal.pixelWidth;
+        ph = cal.pixelHeight;
+        pd = cal.pixelDepth;
+    }
+
+
+    /**
+     * Skeletonize and analyze all objects of a label array
+     * @param labels label or binary slices (byte[] or short[]), 0 = background
+     * @param width
+     * @param height
+     * @return
+     */
+    public Result analyze(Object[] labels, int width, int height) throws InterruptedException {
+        return(analyze(SparseLabels.of(labels, width, height, null)));
+    }
+
+    /**
+     * Skeletonize and analyze all objects of run-length labels
+     * Components, bounding boxes and thinning volumes come from the runs, no dense copy of the labels
+     * @param labels
+     * @return
+     */
+    public Result analyze(SparseLabels labels) throws InterruptedException {
+        int width = labels.width, height = labels.height, depth = labels.depth;
+        int nRuns = labels.getRunCount();
+        int[] comp = new int[nRuns];
+        int nComp = labels.components(comp);
+        // runs of each component in scan order : runs[first[c]] .. runs[first[c + 1] - 1], slice and row of each run
+        int[] first = new int[nComp + 2];
+        for (int k = 0; k < nRuns; k++)
+            first[comp[k] + 1]++;
+        for (int c = 1; c <= nComp + 1; c++)
+            first[c] += first[c - 1];
+        int[] runs = new int[nRuns], runZ = new int[nRuns], runY = new int[nRuns];
+        int[] next = Arrays.copyOf(first, nComp + 1);
+        // component bounding boxes
+        int[] box = new int[(nComp + 1) * 6];
+        for (int c = 1; c <= nComp; c++) {
+            box[c*6] = box[c*6 + 1] = box[c*6 + 2] = Integer.MAX_VALUE;
+            box[c*6 + 3] = box[c*6 + 4] = box[c*6 + 5] = -1;
+        }
+        for (int z = 0; z < depth; z++)
+            for (int y = 0; y < height; y++)
+                for (int k = labels.rowFirst(z, y); k < labels.rowEnd(z, y); k++) {
+                    int c = comp[k], b = c * 6;
+                    runs[next[c]++] = k;
+                    runZ[k] = z;
+                    runY[k] = y;
+                    box[b] = Math.min(box[b], labels.getXStart(k));
+                    box[b + 1] = Math.min(box[b + 1], y);
+                    box[b + 2] = Math.min(box[b + 2], z);
+                    box[b + 3] = Math.max(box[b + 3], labels.getXEnd(k));
+                    box[b + 4] = Math.max(box[b + 4], y);
+                    box[b + 5] = Math.max(box[b + 5], z);
+                }
+        // skeleton voxels of each component
+        long[][] points = new long[nComp + 1][];
+        // components not started once the caller is interrupted
+        AtomicBoolean cancelled = new AtomicBoolean();
+        try {
+            List<Skeleton> skeletons = pool.submit(() -> IntStream.rangeClosed(1, nComp).parallel()
+                    .mapToObj(c -> analyzeComponent(c, labels, runs, first, runZ, runY, box, height, points, cancelled))
+                    .collect(Collectors.toList())).get();
+            return new Result(skeletons, skeletonLabels(points, width, height, depth, cal));
+        } catch (ExecutionException ex) {
+            throw new RuntimeException(ex.getCause());
+        } catch (InterruptedException ex) {
+            cancelled.set(true);
+            throw ex;
+        }
+    }
+
+
+    /**
+     * Run-length labels of the skeleton voxels, no dense copy : voxels bucketed by row, then sorted by x
+     * @param points skeleton voxels of component c in points[c], (z * height + y) << 32 | x
+     */
+    private static SparseLabels skeletonLabels(long[][] points, int width, int height, int depth, Calibration cal) {
+        int rows = depth * height;
+        int[] start = new int[rows + 1];
+        for (int c = 1; c < points.length; c++)
+            for (long p : points[c])
+                start[(int)(p >>> 32) + 1]++;
+        for (int r = 0; r < rows; r++)
+            start[r + 1] += start[r];
+        // x << 32 | component, by row
+        long[] row = new long[start[rows]];
+        int[] fill = Arrays.copyOf(start, rows);
+        for (int c = 1; c < points.length; c++)
+            for (long p : points[c])
+                row[fill[(int)(p >>> 32)]++] = (p << 32) | c;
+        SparseLabels.Builder b = new SparseLabels.Builder(width, height, depth);
+        for (int r = 0; r < rows; r++) {
+            if (start[r] == start[r + 1])
+                continue;
+            Arrays.sort(row, start[r], start[r + 1]);
+            int z = r / height, y = r % height;
+            int x0 = -1, x1 = -1, l = 0;
+            for (int k = start[r]; k < start[r + 1]; k++) {
+                int x = (int)(row[k] >>> 32), c = (int)row[k];
+                if (x == x1 + 1 && c == l)
+                    x1 = x;
+                else {
+                    if (l != 0)
+                        b.add(z, y, x0, x1, l);
+                    x0 = x1 = x;
+                    l = c;
+                }
+            }
+            b.add(z, y, x0, x1, l);
+        }
+        return(b.build(cal));
+    }
+
+    /**
+     * Thin one component in its padded bounding box and build its graph
+     */
+    private Skeleton analyzeComponent(int c, SparseLabels labels, int[] runs, int[] first, int[] runZ, int[] runY, int[] box,
+            int height, long[][] points, AtomicBoolean cancelled) {
+        if (cancelled.get() || Thread.currentThread().isInterrupted())
+            throw new CancellationException("Skeleton analysis interrupted");
+        int b = c * 6;
+        int x0 = box[b] - 1, y0 = box[b + 1] - 1, z0 = box[b + 2] - 1;
+        int sw = box[b + 3] - x0 + 2, sh = box[b + 4] - y0 + 2, sd = box[b + 5] - z0 + 2;
+        byte[] v = new byte[sw * sh * sd];
+        int[] fg = new int[64];
+        int nFg = 0;
+        // runs in scan order, same voxel order as a raster scan of the box
+        for (int r = first[c]; r < first[c + 1]; r++) {
+            int k = runs[r];
+            int row = ((runZ[k] - z0) * sh + runY[k] - y0) * sw - x0;
+            for (int x = labels.getXStart(k); x <= labels.getXEnd(k); x++) {
+                int i = row + x;
+                v[i] = 1;
+                if (nFg == fg.length)
+                    fg = Arrays.copyOf(fg, nFg * 2);
+                fg[nFg++] = i;
+            }
+        }
+        int[] off = new int[27];
+        for (int p = 0; p < 27; p++) {
+            int[] dp = delta(p);
+            off[p] = (dp[2] * sh + dp[1]) * sw + dp[0];
+        }
+        nFg = thin(v, fg, nFg, off);
+        // skeleton voxels back in stack coordinates
+        long[] p = new long[nFg];
+        for (int k = 0; k < nFg; k++) {
+            int i = fg[k];
+            int x = i % sw, y = (i / sw) % sh, z = i / (sw * sh);
+            p[k] = ((long)(z + z0) * height + y + y0) << 32 | (x + x0);
+        }
+        points[c] = p;
+        Skeleton s = new Skeleton(c);
+        s.voxels = nFg;
+        buildGraph(s, v, fg, nFg, off, sw, sh, x0, y0, z0);
+        return(s);
+    }
+
+
+    /**
+     * Directional thinning, removes simple non end points until stable
+     * @return number of remaining voxels, kept at the beginning of fg
+     */
+    private static int thin(byte[] v, int[] fg, int nFg, int[] off) {
+        boolean[] cube = new boolean[27];
+        int[] stack = new int[27];
+        int[] candidates = new int[nFg];
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int dir : DIRECTIONS) {
+                int nCand = 0;
+                for (int k = 0; k < nFg; k++) {
+                    int i = fg[k];
+                    if (v[i + off[dir]] != 0)
+                        continue;
+                    fillCube(v, i, off, cube);
+                    if (countNeighbors(cube) != 1 && isSimple(cube, stack))
+                        candidates[nCand++] = i;
+                }
+                // sequential re-check, removing one point may change the others
+                for (int k = 0; k < nCand; k++) {
+                    int i = candidates[k];
+                    fillCube(v, i, off, cube);
+                    if (countNeighbors(cube) != 1 && isSimple(cube, stack)) {
+                        v[i] = 0;
+                        changed = true;
+                    }
+                }
+                if (nCand > 0) {
+                    int n = 0;
+                    for (int k = 0; k < nFg; k++)
+                        if (v[fg[k]] != 0)
+                            fg[n++] = fg[k];
+                    nFg = n;
+                }
+            }
+        }
+        return(nFg);
+    }
+
+    private static void fillCube(byte[] v, int i, int[] off, boolean[] cube) {
+        for (int p = 0; p < 27; p++)
+            cube[p] = v[i + off[p]] != 0;
+    }
+
+    private static int countNeighbors(boolean[] cube) {
+        int n = 0;
+        for (int p = 0; p < 27; p++)
+            if (p != CENTER && cube[p])
+                n++;
+        return(n);
+    }
+
+    /**
+     * Simple point test with topological numbers :
+     * one 26-connected foreground component in N26
+     * and one 6-connected background component touching a 6-neighbour in N18
+     */
+    private static boolean isSimple(boolean[] cube, int[] stack) {
+        boolean[] seen = new boolean[27];
+        int components = 0;
+        for (int p = 0; p < 27; p++) {
+            if (p == CENTER || !cube[p] || seen[p])
+                continue;
+            if (++components > 1)
+                return(false);
+            flood(p, cube, true, ADJ26, seen, stack);
+        }
+        if (components != 1)
+            return(false);
+        Arrays.fill(seen, false);
+        components = 0;
+        for (int p : N6) {
+            if (cube[p] || seen[p])
+                continue;
+            if (++components > 1)
+                return(false);
+            flood(p, cube, false, ADJ6_N18, seen, stack);
+        }
+        return(components == 1);
+    }
+
+    private static void flood(int start, boolean[] cube, boolean value, int[][] adj, boolean[] seen, int[] stack) {
+        int n = 0;
+        stack[n++] = start;
+        seen[start] = true;
+        while (n > 0) {
+            int p = stack[--n];
+            for (int q : adj[p])
+                if (!seen[q] && cube[q] == value) {
+                    seen[q] = true;
+                    stack[n++] = q;
+                }
+        }
+    }
+
+
+    /**
+     * End points, junction clusters and branches of a thinned component
+     */
+    private void buildGraph(Skeleton s, byte[] v, int[] fg, int nFg, int[] off, int sw, int sh, int x0, int y0, int z0) {
+        // neighbours count : 0/1 end point, 2 slab, >2 junction
+        byte[] nb = new byte[v.length];
+        for (int k = 0; k < nFg; k++) {
+            int i = fg[k], n = 0;
+            for (int p = 0; p < 27; p++)
+                if (p != CENTER && v[i + off[p]] != 0)
+                    n++;
+            nb[i] = (byte)n;
+        }
+        // vertex id, junction voxels clustered, each end point its own vertex
+        int[] vertex = new int[v.length];
+        int nVertex = 0;
+        int[] stack = new int[Math.max(1, nFg)];
+        for (int k = 0; k < nFg; k++) {
+            int i = fg[k];
+            if (vertex[i] != 0 || nb[i] == 2)
+                continue;
+            vertex[i] = ++nVertex;
+            if (nb[i] < 2) {
+                s.endPoints++;
+                continue;
+            }
+            s.junctions++;
+            int n = 0;
+            stack[n++] = i;
+            while (n > 0) {
+                int j = stack[--n];
+                s.junctionVoxels++;
+                for (int p = 0; p < 27; p++) {
+                    int q = j + off[p];
+                    if (p != CENTER && v[q] != 0 && nb[q] > 2 && vertex[q] == 0) {
+                        vertex[q] = nVertex;
+                        stack[n++] = q;
+                    }
+                }
+            }
+        }
+        boolean[] visited = new boolean[v.length];
+        Set<Long> direct = new HashSet<>();
+        int[] end = new int[1];
+        for (int k = 0; k < nFg; k++) {
+            int i = fg[k];
+            if (vertex[i] == 0)
+                continue;
+            for (int p = 0; p < 27; p++) {
+                int q = i + off[p];
+                if (p == CENTER || v[q] == 0 || vertex[q] == vertex[i])
+                    continue;
+                if (vertex[q] != 0) {
+                    // vertices touching each other, one branch per vertex pair
+                    long a = Math.min(vertex[i], vertex[q]), b = Math.max(vertex[i], vertex[q]);
+                    if (direct.add((a << 32) | b))
+                        addBranch(s, i, q, dist(i, q, sw, sh), sw, sh, x0, y0, z0);
+                }
+                else if (!visited[q]) {
+                    double length = walk(i, q, v, vertex, visited, off, sw, sh, end);
+                    addBranch(s, i, end[0], length, sw, sh, x0, y0, z0);
+                }
+            }
+        }
+        // closed loops without vertex
+        for (int k = 0; k < nFg; k++) {
+            int i = fg[k];
+            if (vertex[i] == 0 && !visited[i]) {
+                visited[i] = true;
+                int start = -1;
+                for (int p = 0; p < 27 && start < 0; p++)
+                    if (p != CENTER && v[i + off[p]] != 0)
+                        start = i + off[p];
+                if (start < 0)
+                    continue;
+                // walk stops next to its start, add the closing step
+                double length = walk(i, start, v, vertex, visited, off, sw, sh, end) + dist(end[0], i, sw, sh);
+                addBranch(s, i, end[0], length, sw, sh, x0, y0, z0);
+            }
+        }
+    }
+
+    /**
+     * Follow slab voxels from vertex voxel from until a vertex or a visited voxel
+     * @param end last voxel
+     * @return walked length
+     */
+    private double walk(int from, int first, byte[] v, int[] vertex, boolean[] visited, int[] off, int sw, int sh, int[] end) {
+        double length = 0;
+        int prev = from, cur = first;
+        while (true) {
+            length += dist(prev, cur, sw, sh);
+            if (vertex[cur] != 0)
+                break;
+            visited[cur] = true;
+            int next = -1;
+            for (int p = 0; p < 27 && next < 0; p++) {
+                int q = cur + off[p];
+                if (p != CENTER && q != prev && v[q] != 0 && (vertex[q] != 0 || !visited[q]))
+                    next = q;
+            }
+            if (next < 0)
+                break;
+            prev = cur;
+            cur = next;
+        }
+        end[0] = cur;
+        return(length);
+    }
+
+    private double dist(int i, int j, int sw, int sh) {
+        double dx = (i % sw - j % sw) * pw;
+        double dy = ((i / sw) % sh - (j / sw) % sh) * ph;
+        double dz = (i / (sw * sh) - j / (sw * sh)) * pd;
+        return(Math.sqrt(dx * dx + dy * dy + dz * dz));
+    }
+
+    private void addBranch(Skeleton s, int i, int j, double length, int sw, int sh, int x0, int y0, int z0) {
+        s.branches.add(new Branch(s.id, length, i % sw + x0, (i / sw) % sh + y0, i / (sw * sh) + z0,
+                j % sw + x0, (j / sw) % sh + y0, j / (sw * sh) + z0));
+    }
+}
@@ -0,0 +1,197 @@
+package Mito_Utils;
+
+import ij.ImageStack;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Z-streaming segmentation for stacks larger than memory
+ * The stack is filtered in slabs extended by halos covering the median and DoG z support,
+ * so slab cores are the same as whole volume filtering. Cores are spilled to a temporary file,
+ * then threshold histogram and 26-connected labelling read them back slice after slice.
+ * Labels are stitched across slab boundaries by the union-find shared with Filters3D.label26,
+ * size filtering runs once all pieces are merged : labels are the same as whole volume segmentation
+ * Heap : one filtered slab, two labelled slices and the 16-bit output labels
+ *
+ * @author phm
+ */
+public class SlabSegmenter {
+
+    // float intermediates per slab voxel (input, median, Gaussians and their separable passes)
+    public static final int SLAB_BYTES_PER_VOXEL = 28;
+
+    /**
+     * Median + DoG of a slab, saturated to the input bit depth
+     */
+    public interface SlabFilter {
+        float[][] filter(ImageStack slab);
+    }
+
+    private final int slabSlices;
+    private final int halo;
+
+
+    /**
+     * @param slabSlices core slices per slab
+     * @param halo slices added on both sides of a slab core
+     */
+    public SlabSegmenter(int slabSlices, int halo) {
+        this.slabSlices = Math.max(1, slabSlices);
+        this.halo = halo;
+    }
+
+    /**
+     * Z halo of median box + DoG
+     * @param medRadZ
+     * @param sigma1
+     * @param sigma2
+     * @return
+     */
+    public static int halo(double medRadZ, double sigma1, double sigma2) {
+        return((int)medRadZ + Filters3D.gaussianRadius(Math.max(sigma1, sigma2)));
+    }
+
+    /**
+     * Core slices of slabs fitting in memory
+     * @param bytes memory for one slab
+     * @param width
+     * @param height
+     * @param halo
+     * @return at least 1
+     */
+    public static int slabSlices(long bytes, int width, int height, int halo) {
+        long slice = (long)width * height * SLAB_BYTES_PER_VOXEL;
+        return((int)Math.max(1, Math.min(Integer.MAX_VALUE, bytes / slice - 2 * halo)));
+    }
+
+
+    /**
+     * Segment a stack slab by slab
+     * @param stack
+     * @param filter
+     * @param thMethod
+     * @param minSize
+     * @param maxSize
+     * @return 16-bit labels, numbered by first voxel in scan order
+     */
+    public short[][] segment(ImageStack stack, SlabFilter filter, String thMethod, double minSize, double maxSize) {
+        Path spill = null;
+        try {
+            spill = Files.createTempFile("mito-slabs", ".raw");
+            try (FileChannel channel = FileChannel.open(spill, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                return(segment(stack, filter, thMethod, minSize, maxSize, channel));
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Can't spill slabs to " + spill, ex);
+        } finally {
+            if (spill != null)
+                try {
+                    Files.deleteIfExists(spill);
+                } catch (IOException ex) {
+                    spill.toFile().deleteOnExit();
+                }
+        }
+    }
+
+    private short[][] segment(ImageStack stack, SlabFilter filter, String thMethod, double minSize, double maxSize,
+            FileChannel channel) throws IOException {
+        int width = stack.getWidth(), height = stack.getHeight(), depth = stack.getSize();
+        int n = width * height;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(n * 4).order(ByteOrder.nativeOrder());
+
+        // filter slabs, spill cores
+        float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+        for (int z0 = 0; z0 < depth; z0 += slabSlices) {
+            int z1 = Math.min(depth, z0 + slabSlices);
+            int h0 = Math.max(0, z0 - halo), h1 = Math.min(depth, z1 + halo);
+            ImageStack slab = new ImageStack(width, height);
+            for (int z = h0; z < h1; z++)
+                slab.addSlice("", stack.getPixels(z + 1));
+            float[][] filtered = filter.filter(slab);
+            for (int z = z0; z < z1; z++) {
+                float[] slice = filtered[z - h0];
+                for (float v : slice) {
+                    if (v < min) min = v;
+                    if (v > max) max = v;
+                }
+                buffer.clear();
+                buffer.asFloatBuffer().put(slice);
+                write(channel, buffer, z);
+            }
+        }
+
+        // threshold
+        int[] histogram = new int[256];
+        float[] slice = new float[n];
+        for (int z = 0; z < depth; z++) {
+            read(channel, buffer, z);
+            buffer.asFloatBuffer().get(slice);
+            Filters3D.accumulateHistogram(slice, histogram, min, max);
+        }
+        float th = Filters3D.binThreshold(histogram, thMethod, min, max);
+
+        // provisional labels replace filtered cores in the spill file
+        Filters3D.UnionFind uf = new Filters3D.UnionFind();
+        long[] counts = new long[1024];
+        int[] lab = new int[n], prev = null;
+        for (int z = 0; z < depth; z++) {
+            read(channel, buffer, z);
+            buffer.asFloatBuffer().get(slice);
+            Filters3D.labelSlice(uf, width, height, z, (s, i) -> slice[i] >= th, lab, prev);
+            if (uf.size() > counts.length)
+                counts = Arrays.copyOf(counts, Math.max(uf.size(), counts.length * 2));
+            for (int l : lab)
+                counts[l]++;
+            buffer.clear();
+            buffer.asIntBuffer().put(lab);
+            write(channel, buffer, z);
+            int[] tmp = (prev == null) ? new int[n] : prev;
+            prev = lab;
+            lab = tmp;
+        }
+
+        // merged labels sizes, size filter
+        int[] map = uf.sequential();
+        long[] sizes = new long[uf.roots() + 1];
+        for (int l = 1; l < uf.size(); l++)
+            sizes[map[l]] += counts[l];
+        int[] sizeMap = Filters3D.sizeMap(sizes, minSize, maxSize);
+        short[][] out = new short[depth][];
+        for (int z = 0; z < depth; z++) {
+            read(channel, buffer, z);
+            buffer.asIntBuffer().get(lab);
+            short[] dst = new short[n];
+            for (int i = 0; i < n; i++)
+                dst[i] = (short)sizeMap[map[lab[i]]];
+            out[z] = dst;
+        }
+        return(out);
+    }
+
+
+    private static void write(FileChannel channel, ByteBuffer buffer, int z) throws IOException {
+        buffer.rewind();
+        long pos = (long)z * buffer.capacity();
+        while (buffer.hasRemaining())
+            pos += channel.write(buffer, pos);
+    }
+
+    private static void read(FileChannel channel, ByteBuffer buffer, int z) throws IOException {
+        buffer.clear();
+        long pos = (long)z * buffer.capacity();
+        while (buffer.hasRemaining()) {
+            int r = channel.read(buffer, pos);
+            if (r < 0)
+                throw new IOException("Truncated slab spill file");
+            pos += r;
+        }
+        buffer.rewind();
+    }
+}
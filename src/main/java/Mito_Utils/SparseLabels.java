@@ -0,0 +1,411 @@
+package Mito_Utils;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import java.util.Arrays;
+import mcib3d.image3d.ImageHandler;
+
+/**
+ * Label volume as run-length rows : each run is (z, y, xStart, xEnd, label), xEnd included
+ * Runs are kept in scan order (x, then y, then z) in primitive arrays, with the first run of each row,
+ * so a row is found in constant time and a voxel by binary search in its row
+ * Mito objects fill a small part of a roi crop, runs take a fraction of a 16-bit stack
+ * Volumes, bounding boxes, drawing and 26-neighbourhoods are computed from the runs
+ *
+ * @author phm
+ */
+public final class SparseLabels {
+
+    public final int width, height, depth;
+    private final Calibration cal;
+    // runs of row r = z * height + y : rowStart[r] <= k < rowStart[r + 1]
+    private final int[] rowStart;
+    private final int[] xStart, xEnd, label;
+    private final int maxLabel;
+
+
+    private SparseLabels(int width, int height, int depth, Calibration cal, int[] rowStart, int[] xStart, int[] xEnd,
+            int[] label) {
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+        this.cal = (cal == null) ? new Calibration() : cal;
+        this.rowStart = rowStart;
+        this.xStart = xStart;
+        this.xEnd = xEnd;
+        this.label = label;
+        int max = 0;
+        for (int l : label)
+            max = Math.max(max, l);
+        maxLabel = max;
+    }
+
+
+    /**
+     * Runs of a label stack
+     * @param planes byte[], short[] or float[] slices, 0 = background
+     * @param width
+     * @param height
+     * @param cal may be null
+     * @return
+     */
+    public static SparseLabels of(Object[] planes, int width, int height, Calibration cal) {
+        Builder b = new Builder(width, height, planes.length);
+        for (int z = 0; z < planes.length; z++) {
+            Object pixels = planes[z];
+            for (int y = 0; y < height; y++) {
+                int row = y * width;
+                int x = 0;
+                while (x < width) {
+                    int l = value(pixels, row + x);
+                    if (l == 0) {
+                        x++;
+                        continue;
+                    }
+                    int x0 = x;
+                    while (x < width && value(pixels, row + x) == l)
+                        x++;
+                    b.add(z, y, x0, x - 1, l);
+                }
+            }
+        }
+        return(b.build(cal));
+    }
+
+    /**
+     * Runs of a label image
+     * @param img label image (8, 16 or 32-bit)
+     * @return
+     */
+    public static SparseLabels of(ImagePlus img) {
+        ImageStack stack = img.getImageStack();
+        return(of(Arrays.copyOf(stack.getImageArray(), stack.getSize()), img.getWidth(), img.getHeight(),
+                img.getCalibration()));
+    }
+
+    /**
+     * Runs of a 3D ImageJ Suite label image
+     * @param img
+     * @return
+     */
+    public static SparseLabels of(ImageHandler img) {
+        return(of(img.getImagePlus()));
+    }
+
+    private static int value(Object pixels, int i) {
+        if (pixels instanceof short[])
+            return(((short[])pixels)[i] & 0xffff);
+        if (pixels instanceof byte[])
+            return(((byte[])pixels)[i] & 0xff);
+        return((int)((float[])pixels)[i]);
+    }
+
+
+    /**
+     * Runs added in scan order
+     */
+    public static class Builder {
+        private final int width, height, depth;
+        private final int[] rowStart;
+        private int[] xStart = new int[1024], xEnd = new int[1024], label = new int[1024];
+        private int n = 0;
+        // last row with runs
+        private int row = 0;
+
+        public Builder(int width, int height, int depth) {
+            this.width = width;
+            this.height = height;
+            this.depth = depth;
+            rowStart = new int[depth * height + 1];
+        }
+
+        /**
+         * @param z
+         * @param y
+         * @param x0 first voxel
+         * @param x1 last voxel
+         * @param l label, not 0
+         */
+        public void add(int z, int y, int x0, int x1, int l) {
+            int r = z * height + y;
+            if (r < row || (r == row && n > rowStart[r] && x0 <= xEnd[n - 1]))
+                throw new IllegalArgumentException("Run (" + z + ", " + y + ", " + x0 + ") out of scan order");
+            // rows without runs start at the current run
+            for (int k = row + 1; k <= r; k++)
+                rowStart[k] = n;
+            row = r;
+            if (n == xStart.length) {
+                xStart = Arrays.copyOf(xStart, 2 * n);
+                xEnd = Arrays.copyOf(xEnd, 2 * n);
+                label = Arrays.copyOf(label, 2 * n);
+            }
+            xStart[n] = x0;
+            xEnd[n] = x1;
+            label[n++] = l;
+        }
+
+        public SparseLabels build(Calibration cal) {
+            for (int k = row + 1; k < rowStart.length; k++)
+                rowStart[k] = n;
+            return(new SparseLabels(width, height, depth, cal, rowStart, Arrays.copyOf(xStart, n), Arrays.copyOf(xEnd, n),
+                    Arrays.copyOf(label, n)));
+        }
+    }
+
+
+    public Calibration getCalibration() {
+        return(cal);
+    }
+
+    public int getMaxLabel() {
+        return(maxLabel);
+    }
+
+    public int getRunCount() {
+        return(label.length);
+    }
+
+    /**
+     * Memory of the runs
+     */
+    public long getBytes() {
+        return(4L * (rowStart.length + 3L * label.length));
+    }
+
+    /**
+     * Runs of slice z row y, first and last + 1 run indexes
+     */
+    public int rowFirst(int z, int y) {
+        return(rowStart[z * height + y]);
+    }
+
+    public int rowEnd(int z, int y) {
+        return(rowStart[z * height + y + 1]);
+    }
+
+    public int getXStart(int k) {
+        return(xStart[k]);
+    }
+
+    public int getXEnd(int k) {
+        return(xEnd[k]);
+    }
+
+    public int getLabel(int k) {
+        return(label[k]);
+    }
+
+
+    /**
+     * Run visitor
+     */
+    public interface RunConsumer {
+        void accept(int z, int y, int x0, int x1, int label);
+    }
+
+    /**
+     * Visit all runs in scan order
+     */
+    public void forEachRun(RunConsumer consumer) {
+        for (int z = 0; z < depth; z++)
+            for (int y = 0; y < height; y++) {
+                int r = z * height + y;
+                for (int k = rowStart[r]; k < rowStart[r + 1]; k++)
+                    consumer.accept(z, y, xStart[k], xEnd[k], label[k]);
+            }
+    }
+
+    /**
+     * Label of a voxel
+     * @return 0 for background or outside
+     */
+    public int get(int x, int y, int z) {
+        if (x < 0 || y < 0 || z < 0 || x >= width || y >= height || z >= depth)
+            return(0);
+        int r = z * height + y;
+        int k = firstRunEnding(rowStart[r], rowStart[r + 1], x);
+        return((k < rowStart[r + 1] && xStart[k] <= x) ? label[k] : 0);
+    }
+
+    // first run of [from, to) with xEnd >= x, runs of a row are sorted
+    private int firstRunEnding(int from, int to, int x) {
+        int lo = from, hi = to;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (xEnd[mid] < x)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return(lo);
+    }
+
+    /**
+     * Visit the runs of row (z, y) overlapping [x0, x1]
+     */
+    public void forEachRunIn(int z, int y, int x0, int x1, RunConsumer consumer) {
+        if (y < 0 || z < 0 || y >= height || z >= depth)
+            return;
+        int r = z * height + y;
+        for (int k = firstRunEnding(rowStart[r], rowStart[r + 1], x0); k < rowStart[r + 1] && xStart[k] <= x1; k++)
+            consumer.accept(z, y, xStart[k], xEnd[k], label[k]);
+    }
+
+    /**
+     * Voxel visitor
+     */
+    public interface VoxelConsumer {
+        void accept(int x, int y, int z, int label);
+    }
+
+    /**
+     * Visit the labelled voxels of the 26-neighbourhood of a voxel, voxel excluded
+     */
+    public void forEachNeighbour26(int x, int y, int z, VoxelConsumer consumer) {
+        for (int dz = -1; dz <= 1; dz++)
+            for (int dy = -1; dy <= 1; dy++)
+                forEachRunIn(z + dz, y + dy, x - 1, x + 1, (rz, ry, x0, x1, l) -> {
+                    for (int rx = Math.max(x0, x - 1); rx <= Math.min(x1, x + 1); rx++)
+                        if (rx != x || ry != y || rz != z)
+                            consumer.accept(rx, ry, rz, l);
+                });
+    }
+
+
+    /**
+     * Voxels per label
+     * @return sizes indexed by label, sizes[0] is 0
+     */
+    public long[] getVoxels() {
+        long[] sizes = new long[maxLabel + 1];
+        for (int k = 0; k < label.length; k++)
+            sizes[label[k]] += xEnd[k] - xStart[k] + 1;
+        return(sizes);
+    }
+
+    /**
+     * Calibrated volume of a label
+     */
+    public double getVolume(int l) {
+        long n = 0;
+        for (int k = 0; k < label.length; k++)
+            if (label[k] == l)
+                n += xEnd[k] - xStart[k] + 1;
+        return(n * cal.pixelWidth * cal.pixelHeight * cal.pixelDepth);
+    }
+
+    /**
+     * Bounding boxes of all labels
+     * @return {minX, minY, minZ, maxX, maxY, maxZ} per label, 6 ints from 6 * label, max -1 for missing labels
+     */
+    public int[] getBoundingBoxes() {
+        int[] box = new int[(maxLabel + 1) * 6];
+        for (int l = 0; l <= maxLabel; l++) {
+            Arrays.fill(box, l * 6, l * 6 + 3, Integer.MAX_VALUE);
+            Arrays.fill(box, l * 6 + 3, l * 6 + 6, -1);
+        }
+        forEachRun((z, y, x0, x1, l) -> {
+            int b = l * 6;
+            box[b] = Math.min(box[b], x0);
+            box[b + 1] = Math.min(box[b + 1], y);
+            box[b + 2] = Math.min(box[b + 2], z);
+            box[b + 3] = Math.max(box[b + 3], x1);
+            box[b + 4] = Math.max(box[b + 4], y);
+            box[b + 5] = Math.max(box[b + 5], z);
+        });
+        return(box);
+    }
+
+
+    /**
+     * 26-connected components of the labelled voxels, touching labels are one component
+     * Components are numbered by first voxel in scan order, as Filters3D.label26
+     * @param comp output component of each run
+     * @return number of components
+     */
+    public int components(int[] comp) {
+        Filters3D.UnionFind uf = new Filters3D.UnionFind();
+        for (int z = 0; z < depth; z++)
+            for (int y = 0; y < height; y++) {
+                int r = z * height + y;
+                for (int k = rowStart[r]; k < rowStart[r + 1]; k++) {
+                    int l = 0;
+                    // already visited neighbours : previous run of the row, previous row, previous slice
+                    if (k > rowStart[r] && xEnd[k - 1] + 1 >= xStart[k])
+                        l = uf.merge(l, comp[k - 1]);
+                    if (y > 0)
+                        l = mergeRow(uf, l, r - 1, xStart[k] - 1, xEnd[k] + 1, comp);
+                    if (z > 0)
+                        for (int dy = -1; dy <= 1; dy++)
+                            if (y + dy >= 0 && y + dy < height)
+                                l = mergeRow(uf, l, r - height + dy, xStart[k] - 1, xEnd[k] + 1, comp);
+                    comp[k] = (l == 0) ? uf.add() : l;
+                }
+            }
+        int[] map = uf.sequential();
+        for (int k = 0; k < label.length; k++)
+            comp[k] = map[comp[k]];
+        return(uf.roots());
+    }
+
+    private int mergeRow(Filters3D.UnionFind uf, int l, int r, int x0, int x1, int[] comp) {
+        for (int k = firstRunEnding(rowStart[r], rowStart[r + 1], x0); k < rowStart[r + 1] && xStart[k] <= x1; k++)
+            l = uf.merge(l, comp[k]);
+        return(l);
+    }
+
+
+    /**
+     * Draw slice z into a pixel array, other pixels are not modified
+     * @param z
+     * @param pixels byte[], short[] or float[] slice, labels over the type range are clamped
+     */
+    public void draw(int z, Object pixels) {
+        for (int y = 0; y < height; y++) {
+            int r = z * height + y, row = y * width;
+            for (int k = rowStart[r]; k < rowStart[r + 1]; k++) {
+                int from = row + xStart[k], to = row + xEnd[k] + 1;
+                if (pixels instanceof short[])
+                    Arrays.fill((short[])pixels, from, to, (short)Math.min(label[k], 65535));
+                else if (pixels instanceof byte[])
+                    Arrays.fill((byte[])pixels, from, to, (byte)Math.min(label[k], 255));
+                else
+                    Arrays.fill((float[])pixels, from, to, label[k]);
+            }
+        }
+    }
+
+    /**
+     * 16-bit slice
+     */
+    public short[] getSlice(int z) {
+        short[] pixels = new short[width * height];
+        draw(z, pixels);
+        return(pixels);
+    }
+
+    /**
+     * Dense 16-bit label image
+     * @param title
+     * @return
+     */
+    public ImagePlus toImagePlus(String title) {
+        ImageStack stack = new ImageStack(width, height);
+        for (int z = 0; z < depth; z++)
+            stack.addSlice("", getSlice(z));
+        ImagePlus img = new ImagePlus(title, stack);
+        img.setCalibration(cal);
+        img.setDisplayRange(0, maxLabel);
+        return(img);
+    }
+
+    /**
+     * Dense 3D ImageJ Suite label image
+     * @param title
+     * @return
+     */
+    public ImageHandler toImageHandler(String title) {
+        return(ImageHandler.wrap(toImagePlus(title)));
+    }
+}
@@ -0,0 +1,321 @@
+package Mito_Utils;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Run instrumentation : wall / cpu time per pipeline stage, bytes read and written,
+ * peak heap and device memory per roi
+ * A roi record is bound to the thread running one of its stages, so pipeline code only opens spans
+ * Per stage totals and log2 wall time histograms are kept with lock-free counters
+ * Report : Results/run-report.json and Results/run-report.tsv (one row per roi)
+ *
+ * @author phm
+ */
+public class StageMetrics {
+
+    public enum Stage {
+        OPEN, SEGMENTATION, STATISTICS, SKELETON, PARAMETERS, SHOLL, WRITE
+    }
+
+    private static final int STAGES = Stage.values().length;
+    // wall time histogram buckets : [2^b, 2^(b+1)) microseconds
+    private static final int BUCKETS = 40;
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final boolean CPU_TIME = THREADS.isCurrentThreadCpuTimeSupported();
+    private static final ThreadLocal<RoiMetrics> CURRENT = new ThreadLocal<>();
+    private static final Span NO_SPAN = new Span(null, null);
+
+
+    /**
+     * Metrics of one roi, its stages may overlap (tiff writer and commit threads both record writes)
+     */
+    public static class RoiMetrics {
+        public final String image;
+        public final String roi;
+        private final StageMetrics run;
+        final AtomicLongArray wall = new AtomicLongArray(STAGES);
+        final AtomicLongArray cpu = new AtomicLongArray(STAGES);
+        final LongAdder bytesRead = new LongAdder(), bytesWritten = new LongAdder();
+        final AtomicLong peakHeap = new AtomicLong(), peakDevice = new AtomicLong();
+        volatile boolean cached, failed;
+
+        RoiMetrics(StageMetrics run, String image, String roi) {
+            this.run = run;
+            this.image = image;
+            this.roi = roi;
+        }
+
+        /**
+         * Bind roi to current thread for the duration of a stage
+         */
+        public Binding bind() {
+            RoiMetrics previous = CURRENT.get();
+            CURRENT.set(this);
+            return(() -> CURRENT.set(previous));
+        }
+    }
+
+    /**
+     * Unbinds roi metrics on close
+     */
+    public interface Binding extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    /**
+     * Timed stage, records on close
+     */
+    public static class Span implements AutoCloseable {
+        private final RoiMetrics roi;
+        private final Stage stage;
+        private final long wall0, cpu0;
+
+        private Span(RoiMetrics roi, Stage stage) {
+            this.roi = roi;
+            this.stage = stage;
+            wall0 = (roi == null) ? 0 : System.nanoTime();
+            cpu0 = (roi == null || !CPU_TIME) ? 0 : THREADS.getCurrentThreadCpuTime();
+        }
+
+        @Override
+        public void close() {
+            if (roi == null)
+                return;
+            long wall = System.nanoTime() - wall0;
+            long cpu = CPU_TIME ? THREADS.getCurrentThreadCpuTime() - cpu0 : 0;
+            roi.wall.addAndGet(stage.ordinal(), wall);
+            roi.cpu.addAndGet(stage.ordinal(), cpu);
+            sampleHeap(roi);
+            roi.run.record(stage, wall, cpu);
+        }
+    }
+
+
+    private final List<RoiMetrics> rois = new ArrayList<>();
+    private final LongAdder[] stageWall = new LongAdder[STAGES];
+    private final LongAdder[] stageCpu = new LongAdder[STAGES];
+    private final LongAdder[] stageCount = new LongAdder[STAGES];
+    private final AtomicLongArray histogram = new AtomicLongArray(STAGES * BUCKETS);
+    private final LongAdder done = new LongAdder();
+    private final LongAdder cachedDone = new LongAdder();
+    private final LongAdder failedDone = new LongAdder();
+    private final long start = System.nanoTime();
+    private final AtomicLong peakHeap = new AtomicLong();
+    private volatile int total;
+    private final boolean progress;
+    private long lastProgress;
+
+
+    /**
+     * @param progress print a progress / throughput / ETA line after each roi
+     */
+    public StageMetrics(boolean progress) {
+        this.progress = progress;
+        for (int s = 0; s < STAGES; s++) {
+            stageWall[s] = new LongAdder();
+            stageCpu[s] = new LongAdder();
+            stageCount[s] = new LongAdder();
+        }
+    }
+
+
+    /**
+     * New roi record, in submission order
+     * @param image
+     * @param roi
+     * @return
+     */
+    public synchronized RoiMetrics roi(String image, String roi) {
+        RoiMetrics r = new RoiMetrics(this, image, roi);
+        rois.add(r);
+        total = rois.size();
+        return(r);
+    }
+
+    /**
+     * Roi bound to the current thread, to bind it again on another thread
+     * @return null if none
+     */
+    public static RoiMetrics current() {
+        return(CURRENT.get());
+    }
+
+    /**
+     * Time a stage of the roi bound to the current thread, no-op if none
+     * @param stage
+     * @return
+     */
+    public static Span span(Stage stage) {
+        RoiMetrics r = CURRENT.get();
+        return((r == null) ? NO_SPAN : new Span(r, stage));
+    }
+
+    public static void bytesRead(long bytes) {
+        RoiMetrics r = CURRENT.get();
+        if (r != null)
+            r.bytesRead.add(bytes);
+    }
+
+    public static void bytesWritten(long bytes) {
+        RoiMetrics r = CURRENT.get();
+        if (r != null)
+            r.bytesWritten.add(bytes);
+    }
+
+    /**
+     * Device memory used by the current roi
+     */
+    public static void deviceBytes(long bytes) {
+        RoiMetrics r = CURRENT.get();
+        if (r != null)
+            r.peakDevice.accumulateAndGet(bytes, Math::max);
+    }
+
+    private static void sampleHeap(RoiMetrics r) {
+        Runtime rt = Runtime.getRuntime();
+        long used = rt.totalMemory() - rt.freeMemory();
+        r.peakHeap.accumulateAndGet(used, Math::max);
+        r.run.peakHeap.accumulateAndGet(used, Math::max);
+    }
+
+    private void record(Stage stage, long wall, long cpu) {
+        int s = stage.ordinal();
+        stageWall[s].add(wall);
+        stageCpu[s].add(cpu);
+        stageCount[s].increment();
+        long us = Math.max(1, wall / 1000);
+        int b = Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(us));
+        histogram.incrementAndGet(s * BUCKETS + b);
+    }
+
+
+    /**
+     * Roi committed
+     * @param r
+     */
+    public void roiDone(RoiMetrics r) {
+        done.increment();
+        if (r.cached)
+            cachedDone.increment();
+        if (r.failed)
+            failedDone.increment();
+        if (!progress)
+            return;
+        long now = System.nanoTime();
+        synchronized (this) {
+            long n = done.sum();
+            // at most one line per second, and the last one
+            if (n < total && now - lastProgress < TimeUnit.SECONDS.toNanos(1))
+                return;
+            lastProgress = now;
+            double elapsed = (now - start) / 1e9;
+            long computed = n - cachedDone.sum();
+            double rate = computed / Math.max(elapsed, 1e-9);
+            long left = total - n;
+            String eta = (computed == 0) ? "-" : formatDuration(left / rate);
+            System.out.println(String.format(Locale.US, "Rois %d/%d (%d up to date, %d failed)  %.2f roi/s  elapsed %s  ETA %s",
+                    n, total, cachedDone.sum(), failedDone.sum(), rate, formatDuration(elapsed), eta));
+        }
+    }
+
+    /**
+     * Rois committed
+     */
+    public long getDone() {
+        return(done.sum());
+    }
+
+    /**
+     * Rois registered
+     */
+    public int getTotal() {
+        return(total);
+    }
+
+    private static String formatDuration(double seconds) {
+        long s = Math.round(seconds);
+        return((s >= 3600) ? String.format("%dh%02dm%02ds", s / 3600, (s / 60) % 60, s % 60)
+                : String.format("%dm%02ds", s / 60, s % 60));
+    }
+
+
+    /**
+     * Write run-report.json and run-report.tsv
+     * @param outDir
+     * @param resultsBytes bytes written in results tables
+     * @throws IOException
+     */
+    public synchronized void writeReport(String outDir, long resultsBytes) throws IOException {
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(outDir, "run-report.tsv"), StandardCharsets.UTF_8))) {
+            StringBuilder header = new StringBuilder("ImageName\tRoi\tCached\tFailed");
+            for (Stage s : Stage.values())
+                header.append('\t').append(s.name().toLowerCase()).append(" wall ms\t").append(s.name().toLowerCase()).append(" cpu ms");
+            header.append("\tBytes read\tBytes written\tPeak heap MB\tPeak device MB");
+            out.println(header);
+            for (RoiMetrics r : rois) {
+                StringBuilder row = new StringBuilder(r.image).append('\t').append(r.roi).append('\t').append(r.cached)
+                        .append('\t').append(r.failed);
+                for (int s = 0; s < STAGES; s++)
+                    row.append('\t').append(ms(r.wall.get(s))).append('\t').append(ms(r.cpu.get(s)));
+                row.append('\t').append(r.bytesRead.sum()).append('\t').append(r.bytesWritten.sum()).append('\t')
+                        .append(mb(r.peakHeap.get())).append('\t').append(mb(r.peakDevice.get()));
+                out.println(row);
+            }
+        }
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(outDir, "run-report.json"), StandardCharsets.UTF_8))) {
+            long read = 0, written = resultsBytes, device = 0;
+            for (RoiMetrics r : rois) {
+                read += r.bytesRead.sum();
+                written += r.bytesWritten.sum();
+                device = Math.max(device, r.peakDevice.get());
+            }
+            out.println("{");
+            out.println(String.format(Locale.US, "  \"elapsedSeconds\": %.3f,", elapsed));
+            out.println("  \"rois\": " + rois.size() + ",");
+            out.println("  \"cachedRois\": " + cachedDone.sum() + ",");
+            out.println("  \"failedRois\": " + failedDone.sum() + ",");
+            out.println("  \"bytesRead\": " + read + ",");
+            out.println("  \"bytesWritten\": " + written + ",");
+            out.println("  \"peakHeapBytes\": " + peakHeap.get() + ",");
+            out.println("  \"peakDeviceBytes\": " + device + ",");
+            out.println("  \"stages\": {");
+            for (int s = 0; s < STAGES; s++) {
+                StringBuilder hist = new StringBuilder();
+                int last = -1;
+                for (int b = 0; b < BUCKETS; b++)
+                    if (histogram.get(s * BUCKETS + b) > 0)
+                        last = b;
+                for (int b = 0; b <= last; b++)
+                    hist.append(b == 0 ? "" : ", ").append(histogram.get(s * BUCKETS + b));
+                out.println(String.format(Locale.US, "    \"%s\": {\"count\": %d, \"wallMs\": %s, \"cpuMs\": %s, "
+                        + "\"wallHistogramLog2Us\": [%s]}%s", Stage.values()[s].name().toLowerCase(), stageCount[s].sum(),
+                        ms(stageWall[s].sum()), ms(stageCpu[s].sum()), hist, (s < STAGES - 1) ? "," : ""));
+            }
+            out.println("  }");
+            out.println("}");
+        }
+    }
+
+    private static String ms(long nanos) {
+        return(String.format(Locale.US, "%.3f", nanos / 1e6));
+    }
+
+    private static String mb(long bytes) {
+        return(String.format(Locale.US, "%.1f", bytes / (1024.0 * 1024.0)));
+    }
+}
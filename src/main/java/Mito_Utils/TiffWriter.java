@@ -0,0 +1,453 @@
+package Mito_Utils;
+
+import ij.measure.Calibration;
+import ij.process.LUT;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.zip.Deflater;
+
+/**
+ * Background writer of label images
+ * Stacks are queued and written by writer threads as deflate compressed TIFF, in strips of about 64 KB,
+ * with the LUT as colour map and calibration / display range in the ImageJ description
+ * Queued images are bounded in bytes, write blocks while the queue is full
+ * Run-length labels are queued as runs and drawn one slice at a time by the writer
+ * Files are written to .part files and renamed once complete
+ *
+ * @author phm
+ */
+public class TiffWriter implements AutoCloseable {
+
+    private static final long KB = 1024;
+    // uncompressed bytes per strip
+    private static final int STRIP_BYTES = 64 * 1024;
+
+    private final ExecutorService writers;
+    private final Semaphore queued;
+    private final int queuedKB;
+    private final boolean compress;
+    // failed writes, after logging
+    private final BiConsumer<String, Throwable> onFailure;
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+
+    /**
+     * @param threads writer threads
+     * @param maxQueuedBytes bytes of queued images
+     * @param compress deflate, else uncompressed
+     * @param onFailure called with file and cause of a failed write, may be null
+     */
+    public TiffWriter(int threads, long maxQueuedBytes, boolean compress, BiConsumer<String, Throwable> onFailure) {
+        AtomicInteger count = new AtomicInteger();
+        writers = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread t = new Thread(r, "mito-tiff-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        queuedKB = (int)Math.max(1, Math.min(Integer.MAX_VALUE, maxQueuedBytes / KB));
+        queued = new Semaphore(queuedKB, true);
+        this.compress = compress;
+        this.onFailure = onFailure;
+    }
+
+
+    /**
+     * Queue a stack, blocks while the queue is full
+     * The planes array is copied, pixel arrays must not be modified afterwards
+     * @param file
+     * @param planes byte[], short[] or float[] slices
+     * @param width
+     * @param height
+     * @param lut colour map, null for grays
+     * @param cal
+     * @param min display range
+     * @param max
+     * @return bytes written
+     * @throws InterruptedException
+     */
+    public CompletableFuture<Long> write(String file, Object[] planes, int width, int height, LUT lut, Calibration cal,
+            double min, double max) throws InterruptedException {
+        return(write(file, Slices.of(planes.clone(), width, height), width, height, lut, cal, min, max));
+    }
+
+    /**
+     * Queue slices, blocks while the queue is full
+     * @param file
+     * @param slices not modified afterwards
+     * @param width
+     * @param height
+     * @param lut colour map, null for grays
+     * @param cal
+     * @param min display range
+     * @param max
+     * @return bytes written
+     * @throws InterruptedException
+     */
+    public CompletableFuture<Long> write(String file, Slices slices, int width, int height, LUT lut, Calibration cal,
+            double min, double max) throws InterruptedException {
+        long bytes = slices.getBytes();
+        // an image bigger than the queue is written alone
+        int permits = (int)Math.min(queuedKB, Math.max(1, (bytes + KB - 1) / KB));
+        queued.acquire(permits);
+        StageMetrics.RoiMetrics roi = StageMetrics.current();
+        CompletableFuture<Long> done = new CompletableFuture<>();
+        try {
+            writers.execute(() -> {
+                try (StageMetrics.Binding b = (roi == null) ? () -> {} : roi.bind();
+                        StageMetrics.Span span = StageMetrics.span(StageMetrics.Stage.WRITE)) {
+                    long written = write(Paths.get(file), slices, width, height, lut, cal, min, max, compress);
+                    StageMetrics.bytesWritten(written);
+                    bytesWritten.addAndGet(written);
+                    done.complete(written);
+                } catch (Throwable ex) {
+                    System.out.println("Can't write " + file + " : " + ex);
+                    if (onFailure != null)
+                        onFailure.accept(file, ex);
+                    done.completeExceptionally(ex);
+                } finally {
+                    queued.release(permits);
+                }
+            });
+        } catch (RuntimeException ex) {
+            queued.release(permits);
+            throw ex;
+        }
+        return(done);
+    }
+
+    public long getBytesWritten() {
+        return(bytesWritten.get());
+    }
+
+    /**
+     * Write queued images and stop writer threads
+     */
+    @Override
+    public void close() {
+        writers.shutdown();
+        try {
+            writers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    private static int bytesPerPixel(Object pixels) {
+        return((pixels instanceof byte[]) ? 1 : (pixels instanceof short[]) ? 2 : 4);
+    }
+
+
+    /**
+     * Slices of an image to write, read once each in z order
+     */
+    public interface Slices {
+        int size();
+
+        int bytesPerPixel();
+
+        /**
+         * byte[], short[] or float[] pixels of slice z
+         */
+        Object get(int z);
+
+        /**
+         * Memory held while queued
+         */
+        long getBytes();
+
+        /**
+         * Pixel arrays
+         */
+        static Slices of(Object[] planes, int width, int height) {
+            return new Slices() {
+                public int size() {
+                    return(planes.length);
+                }
+
+                public int bytesPerPixel() {
+                    return(TiffWriter.bytesPerPixel(planes[0]));
+                }
+
+                public Object get(int z) {
+                    return(planes[z]);
+                }
+
+                public long getBytes() {
+                    return((long)width * height * planes.length * bytesPerPixel());
+                }
+            };
+        }
+
+        /**
+         * 16-bit slices drawn from run-length labels
+         */
+        static Slices of(SparseLabels labels) {
+            return new Slices() {
+                public int size() {
+                    return(labels.depth);
+                }
+
+                public int bytesPerPixel() {
+                    return(2);
+                }
+
+                public Object get(int z) {
+                    return(labels.getSlice(z));
+                }
+
+                public long getBytes() {
+                    return(labels.getBytes());
+                }
+            };
+        }
+    }
+
+
+    /**
+     * Write a stack as a multi-page TIFF, little endian, one IFD per slice
+     * @param file
+     * @param planes byte[], short[] or float[] slices
+     * @param width
+     * @param height
+     * @param lut colour map, null for grays
+     * @param cal
+     * @param min display range
+     * @param max
+     * @param compress deflate, else uncompressed
+     * @return file size
+     * @throws IOException
+     */
+    public static long write(Path file, Object[] planes, int width, int height, LUT lut, Calibration cal, double min,
+            double max, boolean compress) throws IOException {
+        return(write(file, Slices.of(planes, width, height), width, height, lut, cal, min, max, compress));
+    }
+
+    /**
+     * Write slices as a multi-page TIFF
+     */
+    public static long write(Path file, Slices slices, int width, int height, LUT lut, Calibration cal, double min,
+            double max, boolean compress) throws IOException {
+        Path tmp = Paths.get(file + ".part");
+        try {
+            long size;
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                size = write(channel, slices, width, height, lut, cal, min, max, compress);
+            }
+            ResultsCache.moveAtomic(tmp, file);
+            return(size);
+        } catch (IOException | RuntimeException ex) {
+            Files.deleteIfExists(tmp);
+            throw ex;
+        }
+    }
+
+    private static long write(FileChannel channel, Slices slices, int width, int height, LUT lut, Calibration cal,
+            double min, double max, boolean compress) throws IOException {
+        int depth = slices.size();
+        int bpp = slices.bytesPerPixel();
+        int rowBytes = width * bpp;
+        int rowsPerStrip = Math.max(1, Math.min(height, STRIP_BYTES / rowBytes));
+        int strips = (height + rowsPerStrip - 1) / rowsPerStrip;
+        long[] offsets = new long[depth * strips];
+        long[] counts = new long[offsets.length];
+
+        // header, first IFD offset written last
+        ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        header.put((byte)'I').put((byte)'I').putShort((short)42).putInt(0).flip();
+        long pos = put(channel, header, 0);
+
+        // strips
+        ByteBuffer raw = ByteBuffer.allocate(rowsPerStrip * rowBytes).order(ByteOrder.LITTLE_ENDIAN);
+        byte[] packed = new byte[raw.capacity() + raw.capacity() / 100 + 64];
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            for (int z = 0; z < depth; z++) {
+                Object pixels = slices.get(z);
+                for (int s = 0; s < strips; s++) {
+                    int y0 = s * rowsPerStrip, rows = Math.min(rowsPerStrip, height - y0);
+                    raw.clear();
+                    fill(raw, pixels, y0 * width, rows * width);
+                    raw.flip();
+                    ByteBuffer data = raw;
+                    if (compress) {
+                        deflater.reset();
+                        deflater.setInput(raw.array(), 0, raw.limit());
+                        deflater.finish();
+                        int n = 0;
+                        while (!deflater.finished()) {
+                            if (n == packed.length)
+                                packed = Arrays.copyOf(packed, packed.length * 2);
+                            n += deflater.deflate(packed, n, packed.length - n);
+                        }
+                        data = ByteBuffer.wrap(packed, 0, n);
+                    }
+                    offsets[z * strips + s] = pos;
+                    counts[z * strips + s] = data.remaining();
+                    pos = put(channel, data, pos);
+                }
+            }
+        } finally {
+            deflater.end();
+        }
+
+        // values shared by all IFDs : description, resolution, colour map, strips tables
+        long description = pos;
+        byte[] desc = description(depth, cal, min, max);
+        pos = put(channel, ByteBuffer.wrap(desc), pos);
+        long resolution = pos;
+        ByteBuffer res = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+        putRational(res, cal.pixelWidth);
+        putRational(res, cal.pixelHeight);
+        res.flip();
+        pos = put(channel, res, pos);
+        long colorMap = 0;
+        if (lut != null) {
+            colorMap = pos;
+            byte[] r = new byte[256], g = new byte[256], b = new byte[256];
+            lut.getReds(r);
+            lut.getGreens(g);
+            lut.getBlues(b);
+            ByteBuffer map = ByteBuffer.allocate(768 * 2).order(ByteOrder.LITTLE_ENDIAN);
+            for (byte[] c : new byte[][] {r, g, b})
+                for (int i = 0; i < 256; i++)
+                    map.putShort((short)((c[i] & 0xff) * 257));
+            map.flip();
+            pos = put(channel, map, pos);
+        }
+        long stripTables = pos;
+        if (strips > 1) {
+            ByteBuffer tables = ByteBuffer.allocate(offsets.length * 8).order(ByteOrder.LITTLE_ENDIAN);
+            for (long o : offsets)
+                tables.putInt(checkOffset(o));
+            for (long c : counts)
+                tables.putInt((int)c);
+            tables.flip();
+            pos = put(channel, tables, pos);
+        }
+
+        // IFDs
+        if ((pos & 1) != 0)
+            pos = put(channel, ByteBuffer.allocate(1), pos);
+        long firstIFD = pos;
+        for (int z = 0; z < depth; z++) {
+            List<int[]> entries = new ArrayList<>();
+            entries.add(new int[] {254, 4, 1, 0});
+            entries.add(new int[] {256, 4, 1, width});
+            entries.add(new int[] {257, 4, 1, height});
+            entries.add(new int[] {258, 3, 1, bpp * 8});
+            entries.add(new int[] {259, 3, 1, compress ? 8 : 1});
+            entries.add(new int[] {262, 3, 1, 1});
+            if (z == 0)
+                entries.add(new int[] {270, 2, desc.length, checkOffset(description)});
+            entries.add(new int[] {273, 4, strips, (strips > 1) ? checkOffset(stripTables + (long)z * strips * 4)
+                    : checkOffset(offsets[z])});
+            entries.add(new int[] {277, 3, 1, 1});
+            entries.add(new int[] {278, 4, 1, rowsPerStrip});
+            entries.add(new int[] {279, 4, strips, (strips > 1) ? checkOffset(stripTables + (offsets.length + (long)z * strips) * 4)
+                    : (int)counts[z]});
+            entries.add(new int[] {282, 5, 1, checkOffset(resolution)});
+            entries.add(new int[] {283, 5, 1, checkOffset(resolution + 8)});
+            entries.add(new int[] {296, 3, 1, 1});
+            if (lut != null)
+                entries.add(new int[] {320, 3, 768, checkOffset(colorMap)});
+            if (bpp == 4)
+                entries.add(new int[] {339, 3, 1, 3});
+            ByteBuffer ifd = ByteBuffer.allocate(2 + entries.size() * 12 + 4).order(ByteOrder.LITTLE_ENDIAN);
+            ifd.putShort((short)entries.size());
+            for (int[] e : entries) {
+                ifd.putShort((short)e[0]).putShort((short)e[1]).putInt(e[2]);
+                // short values are left justified
+                if (e[1] == 3 && e[2] == 1)
+                    ifd.putShort((short)e[3]).putShort((short)0);
+                else
+                    ifd.putInt(e[3]);
+            }
+            long next = (z < depth - 1) ? pos + ifd.capacity() : 0;
+            ifd.putInt(checkOffset(next));
+            ifd.flip();
+            pos = put(channel, ifd, pos);
+        }
+        ByteBuffer first = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        first.putInt(checkOffset(firstIFD)).flip();
+        put(channel, first, 4);
+        return(pos);
+    }
+
+    private static void fill(ByteBuffer raw, Object pixels, int from, int n) {
+        if (pixels instanceof byte[])
+            raw.put((byte[])pixels, from, n);
+        else if (pixels instanceof short[]) {
+            raw.asShortBuffer().put((short[])pixels, from, n);
+            raw.position(n * 2);
+        }
+        else {
+            raw.asFloatBuffer().put((float[])pixels, from, n);
+            raw.position(n * 4);
+        }
+    }
+
+    /**
+     * ImageJ description : stack size, calibration, display range
+     */
+    private static byte[] description(int slices, Calibration cal, double min, double max) {
+        StringBuilder d = new StringBuilder("ImageJ=1.53t\n");
+        if (slices > 1)
+            d.append("images=").append(slices).append("\nslices=").append(slices).append('\n');
+        String unit = cal.getUnit();
+        if (unit != null && !unit.isEmpty() && !unit.equals("pixel")) {
+            StringBuilder u = new StringBuilder();
+            for (char c : unit.toCharArray())
+                u.append((c < 128) ? String.valueOf(c) : String.format("\\u%04X", (int)c));
+            d.append("unit=").append(u).append('\n');
+        }
+        if (slices > 1)
+            d.append(String.format(Locale.US, "spacing=%s\n", cal.pixelDepth));
+        d.append(String.format(Locale.US, "min=%s\nmax=%s\n", min, max));
+        byte[] text = d.toString().getBytes(StandardCharsets.US_ASCII);
+        return(Arrays.copyOf(text, text.length + 1));
+    }
+
+    /**
+     * Pixels per unit
+     */
+    private static void putRational(ByteBuffer b, double pixelSize) {
+        long denominator = 1_000_000;
+        double perUnit = (pixelSize > 0) ? 1 / pixelSize : 1;
+        while (denominator > 1 && perUnit * denominator > 0xFFFFFFFFL)
+            denominator /= 10;
+        b.putInt((int)Math.min(0xFFFFFFFFL, Math.round(perUnit * denominator))).putInt((int)denominator);
+    }
+
+    private static int checkOffset(long offset) throws IOException {
+        if (offset > 0xFFFFFFFFL)
+            throw new IOException("TIFF file over 4 GB");
+        return((int)offset);
+    }
+
+    private static long put(FileChannel channel, ByteBuffer buffer, long pos) throws IOException {
+        while (buffer.hasRemaining())
+            pos += channel.write(buffer, pos);
+        return(pos);
+    }
+}
@@ -0,0 +1,549 @@
+package Mito_Utils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Work queue of rois on a directory shared by several workers (processes or nodes)
+ * The first worker publishes one file per roi in todo/, a worker claims a roi by renaming its file to
+ * leases/<order>.<worker>, renews the lease while the roi runs and renames it to done/<order>.<worker>
+ * after the roi rows are appended to its own shard, shards/<worker>.rows
+ * A lease not renewed within the lease time (dead or stalled worker) is renamed back to todo/ by any worker,
+ * the late worker then can't complete it and its rows are ignored
+ * Merge : once no roi is left in todo/ or leases/, one worker writes the tables in roi order from the shards,
+ * the others wait for it and take the merge over if its lock is not renewed
+ * Renames are atomic on local and NFS file systems, node clocks must agree well within the lease time
+ *
+ * @author phm
+ */
+public class WorkQueue implements Closeable {
+
+    private static final String TODO = "todo", LEASES = "leases", DONE = "done", SHARDS = "shards";
+    // end of the rows of one roi in a shard
+    private static final String END = "end";
+    // merge lock, and mark of written tables
+    private static final String MERGE = "merge", MERGED = "merged";
+
+    private final Path dir;
+    private final String worker;
+    private final long leaseMillis;
+    // leases held by this worker
+    private final Set<Integer> held = Collections.synchronizedSet(new HashSet<>());
+    private final ScheduledExecutorService heartbeat;
+    private FileChannel shardChannel;
+    private BufferedWriter shard;
+    // last renewal of the merge lock by this worker
+    private long mergeRenewed;
+
+
+    /**
+     * @param queueDir shared directory, created if needed
+     * @param worker worker name, unique among running workers
+     * @param leaseMillis time without renewal before a claimed roi is requeued
+     * @throws IOException
+     */
+    public WorkQueue(String queueDir, String worker, long leaseMillis) throws IOException {
+        dir = Paths.get(queueDir).toAbsolutePath();
+        this.worker = worker.replaceAll("[^A-Za-z0-9_-]", "_");
+        this.leaseMillis = leaseMillis;
+        for (String sub : new String[] {TODO, LEASES, DONE, SHARDS})
+            Files.createDirectories(dir.resolve(sub));
+        heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "queue-lease");
+            t.setDaemon(true);
+            return(t);
+        });
+        long period = Math.max(1, leaseMillis / 3);
+        heartbeat.scheduleAtFixedRate(this::renew, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Default worker name : host and process id
+     */
+    public static String defaultWorker() {
+        return(ManagementFactory.getRuntimeMXBean().getName());
+    }
+
+    public String getWorker() {
+        return(worker);
+    }
+
+    public Path getDir() {
+        return(dir);
+    }
+
+
+    /**
+     * Publish the rois, done by the first worker only, the others wait for the published list
+     * @param tasks work list of this worker
+     * @param skipped error rows of skipped images and rois, written first by the merge
+     * @throws IOException the published list is not the work list of this worker
+     * @throws InterruptedException
+     */
+    public void publish(List<Ingestion.Task> tasks, List<ResultsRow> skipped) throws IOException, InterruptedException {
+        Path list = dir.resolve("tasks");
+        Path lock = dir.resolve("publish");
+        while (!Files.exists(list)) {
+            try {
+                Files.createDirectory(lock);
+            } catch (FileAlreadyExistsException ex) {
+                // publisher died before the list was complete
+                if (age(lock) > leaseMillis && !Files.exists(list)) {
+                    System.out.println("Stale queue publication, published again");
+                    deleteIfExists(lock);
+                }
+                else
+                    Thread.sleep(pollMillis());
+                continue;
+            }
+            List<ResultsRow> rows = new ArrayList<>(skipped);
+            // list in results order
+            List<Ingestion.Task> ordered = new ArrayList<>(tasks);
+            ordered.sort(Comparator.comparingInt(Ingestion.Task::getOrder));
+            for (Ingestion.Task t : ordered) {
+                Files.write(todoFile(t.getOrder()), new byte[0]);
+                rows.add(new ResultsRow(-1, new String[] {String.valueOf(t.getOrder()), t.imageName, t.roiPoly.getName()}));
+            }
+            // published : todo files first, then the list
+            Path tmp = dir.resolve("tasks.part");
+            try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                for (ResultsRow row : rows) {
+                    out.write(ResultsCache.formatRow(row));
+                    out.newLine();
+                }
+            }
+            ResultsCache.moveAtomic(tmp, list);
+            System.out.println("Queue " + dir + " : " + tasks.size() + " rois published");
+        }
+        // published rois : image name and roi name by order
+        List<String[]> names = new ArrayList<>(Collections.nCopies(tasks.size(), (String[])null));
+        int published = 0;
+        for (ResultsRow row : readList()) {
+            if (row.table < 0) {
+                int order = Integer.parseInt(row.text[0]);
+                if (order >= names.size())
+                    names.addAll(Collections.nCopies(order + 1 - names.size(), (String[])null));
+                names.set(order, new String[] {row.text[1], row.text[2]});
+                published++;
+            }
+        }
+        if (published != tasks.size())
+            throw new IOException("Queue " + dir + " holds " + published + " rois, this worker found " + tasks.size());
+        for (Ingestion.Task t : tasks) {
+            String[] n = names.get(t.getOrder());
+            if (n == null || !n[0].equals(t.imageName) || !n[1].equals(t.roiPoly.getName()))
+                throw new IOException("Queue " + dir + " was published for other images or rois");
+        }
+    }
+
+    private List<ResultsRow> readList() throws IOException {
+        List<ResultsRow> rows = new ArrayList<>();
+        for (String line : Files.readAllLines(dir.resolve("tasks"), StandardCharsets.UTF_8))
+            if (!line.isEmpty())
+                rows.add(ResultsCache.parseRow(line));
+        return(rows);
+    }
+
+
+    /**
+     * Rois waiting in todo/
+     */
+    public Set<Integer> todo() throws IOException {
+        return(orders(TODO));
+    }
+
+    /**
+     * Claim a roi
+     * @param order
+     * @return false if claimed by another worker or done
+     * @throws IOException
+     */
+    public boolean claim(int order) throws IOException {
+        Path lease = leaseFile(order);
+        try {
+            Files.move(todoFile(order), lease, StandardCopyOption.ATOMIC_MOVE);
+        } catch (NoSuchFileException | FileAlreadyExistsException ex) {
+            return(false);
+        }
+        try {
+            // the todo file keeps its publication time
+            Files.setLastModifiedTime(lease, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (NoSuchFileException ex) {
+            // seen as expired and requeued meanwhile
+            return(false);
+        }
+        held.add(order);
+        return(true);
+    }
+
+    /**
+     * Claimed roi handler
+     */
+    public interface Claimer {
+        /**
+         * @param task claimed roi
+         * @param next next commit order, orders are consecutive over the rois submitted
+         * @return true if the roi was submitted with the order, false if it was completed at once
+         * @throws Exception
+         */
+        boolean claimed(Ingestion.Task task, int next) throws Exception;
+    }
+
+    /**
+     * Claim rois, largest first, until none is left in todo/ or leases/
+     * A roi is claimed only when a compute thread of the scheduler is free, the others stay for other workers
+     * Rois of dead workers are requeued and claimed again
+     * @param tasks work list, largest first
+     * @param scheduler scheduler of the submitted rois
+     * @param claimer
+     * @return rois claimed by this worker
+     * @throws Exception
+     */
+    public int claimAll(List<Ingestion.Task> tasks, RoiScheduler scheduler, Claimer claimer) throws Exception {
+        int claimed = 0, submitted = 0;
+        while (true) {
+            Set<Integer> todo = todo();
+            for (Ingestion.Task task : tasks) {
+                if (!todo.contains(task.getOrder()))
+                    continue;
+                scheduler.awaitIdleWorker();
+                if (!claim(task.getOrder()))
+                    continue;
+                claimed++;
+                // rois completed from the cache take no order, no gap in the commit chain
+                if (claimer.claimed(task, submitted))
+                    submitted++;
+            }
+            if (isFinished())
+                return(claimed);
+            if (requeueExpired() == 0)
+                Thread.sleep(pollMillis());
+        }
+    }
+
+    /**
+     * Append roi rows to the shard of this worker, then mark it done
+     * @param order
+     * @param rows
+     * @return false if the lease was lost, rows are then ignored by the merge
+     * @throws IOException
+     */
+    public synchronized boolean complete(int order, List<ResultsRow> rows) throws IOException {
+        for (ResultsRow row : rows)
+            appendShard(order, ResultsCache.formatRow(row));
+        appendShard(order, END);
+        shard.flush();
+        shardChannel.force(false);
+        held.remove(order);
+        try {
+            Files.move(leaseFile(order), dir.resolve(DONE).resolve(order + "." + worker), StandardCopyOption.ATOMIC_MOVE);
+            return(true);
+        } catch (NoSuchFileException ex) {
+            System.out.println("Lease of roi " + order + " expired, result left to another worker");
+            return(false);
+        }
+    }
+
+    /**
+     * Error row not tied to a roi (image write failure), written by the merge after the roi rows
+     * @param row
+     * @throws IOException
+     */
+    public synchronized void error(ResultsRow row) throws IOException {
+        appendShard(-1, ResultsCache.formatRow(row));
+        appendShard(-1, END);
+        shard.flush();
+    }
+
+    private void appendShard(int order, String line) throws IOException {
+        if (shard == null) {
+            shardChannel = FileChannel.open(dir.resolve(SHARDS).resolve(worker + ".rows"), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            shard = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(shardChannel), StandardCharsets.UTF_8));
+        }
+        shard.write(order + "\t" + line);
+        shard.newLine();
+    }
+
+
+    /**
+     * Renew the leases of this worker
+     */
+    private void renew() {
+        synchronized (held) {
+            for (Integer order : new ArrayList<>(held))
+                try {
+                    Files.setLastModifiedTime(leaseFile(order), FileTime.fromMillis(System.currentTimeMillis()));
+                } catch (NoSuchFileException ex) {
+                    held.remove(order);
+                    System.out.println("Lease of roi " + order + " lost");
+                } catch (IOException ex) {
+                    System.out.println("Can't renew lease of roi " + order + " : " + ex.getMessage());
+                }
+        }
+    }
+
+    /**
+     * Put expired leases of any worker back in todo/
+     * @return rois requeued
+     * @throws IOException
+     */
+    public int requeueExpired() throws IOException {
+        int requeued = 0;
+        try (DirectoryStream<Path> leases = Files.newDirectoryStream(dir.resolve(LEASES))) {
+            for (Path lease : leases) {
+                int order = order(lease);
+                if (order < 0 || held.contains(order) || age(lease) <= leaseMillis)
+                    continue;
+                try {
+                    Files.move(lease, todoFile(order), StandardCopyOption.ATOMIC_MOVE);
+                    System.out.println("Lease " + lease.getFileName() + " expired, roi requeued");
+                    requeued++;
+                } catch (NoSuchFileException | FileAlreadyExistsException ex) {
+                    // requeued or completed meanwhile
+                }
+            }
+        }
+        return(requeued);
+    }
+
+    /**
+     * No roi left in todo/ or leases/
+     */
+    public boolean isFinished() throws IOException {
+        return(orders(TODO).isEmpty() && orders(LEASES).isEmpty());
+    }
+
+    /**
+     * Poll interval of idle workers
+     */
+    public long pollMillis() {
+        return(Math.max(100, Math.min(5000, leaseMillis / 4)));
+    }
+
+
+    /**
+     * Take the merge, only one worker gets it, the others wait for the tables
+     * A merge lock not renewed within the lease time (dead merger) is taken over
+     * @return false once another worker merged
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public boolean tryMerge() throws IOException, InterruptedException {
+        Path lock = dir.resolve(MERGE);
+        while (true) {
+            try {
+                Files.createDirectory(lock);
+                mergeRenewed = System.currentTimeMillis();
+                return(true);
+            } catch (FileAlreadyExistsException ex) {
+                if (Files.exists(dir.resolve(MERGED)))
+                    return(false);
+                // merger died before the tables were written
+                if (age(lock) > leaseMillis) {
+                    System.out.println("Stale queue merge, merged again");
+                    deleteIfExists(lock);
+                }
+                else
+                    Thread.sleep(pollMillis());
+            }
+        }
+    }
+
+    /**
+     * Merge done, the tables are written and closed : waiting workers stop
+     * @throws IOException
+     */
+    public void endMerge() throws IOException {
+        Files.write(dir.resolve(MERGED), new byte[0]);
+    }
+
+    /**
+     * Renew the merge lock while merging, the lease heartbeat is stopped by then
+     */
+    private void renewMerge() {
+        long now = System.currentTimeMillis();
+        if (now - mergeRenewed < leaseMillis / 3)
+            return;
+        try {
+            Files.setLastModifiedTime(dir.resolve(MERGE), FileTime.fromMillis(now));
+            mergeRenewed = now;
+        } catch (IOException ex) {
+            System.out.println("Can't renew queue merge : " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Write all rows in table order : skipped, rois in results order, then other errors
+     * Rows of a roi come from the shard of the worker that completed it, a roi without rows gets an error row
+     * @param results
+     * @throws IOException
+     */
+    public void merge(ResultsWriter results) throws IOException {
+        List<ResultsRow> list = readList();
+        Map<Integer, String> doneBy = new HashMap<>();
+        try (DirectoryStream<Path> done = Files.newDirectoryStream(dir.resolve(DONE))) {
+            for (Path f : done) {
+                int order = order(f);
+                if (order >= 0)
+                    doneBy.put(order, f.getFileName().toString().substring(String.valueOf(order).length() + 1));
+            }
+        }
+        Map<Integer, List<ResultsRow>> rows = new HashMap<>();
+        List<ResultsRow> errors = new ArrayList<>();
+        try (DirectoryStream<Path> shards = Files.newDirectoryStream(dir.resolve(SHARDS), "*.rows")) {
+            for (Path f : shards) {
+                renewMerge();
+                String shardWorker = f.getFileName().toString().replaceAll("\\.rows$", "");
+                readShard(f, shardWorker, doneBy, rows, errors);
+            }
+        }
+        for (ResultsRow row : list)
+            if (row.table >= 0)
+                results.write(row);
+        for (ResultsRow row : list)
+            if (row.table < 0) {
+                renewMerge();
+                int order = Integer.parseInt(row.text[0]);
+                List<ResultsRow> roiRows = rows.get(order);
+                if (roiRows == null)
+                    results.write(Mito_Processing.errorRow(row.text[1], row.text[2], "failed", "no result in queue " + dir));
+                else
+                    for (ResultsRow r : roiRows)
+                        results.write(r);
+            }
+        for (ResultsRow row : errors)
+            results.write(row);
+        System.out.println("Queue " + dir + " merged : " + rows.size() + " rois done");
+    }
+
+    /**
+     * Complete row groups of one shard, a group cut by a crash has no end line
+     */
+    private static void readShard(Path f, String shardWorker, Map<Integer, String> doneBy,
+            Map<Integer, List<ResultsRow>> rows, List<ResultsRow> errors) throws IOException {
+        List<ResultsRow> group = new ArrayList<>();
+        int groupOrder = Integer.MIN_VALUE;
+        try (BufferedReader in = Files.newBufferedReader(f, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab < 0)
+                    continue;
+                int order;
+                try {
+                    order = Integer.parseInt(line.substring(0, tab));
+                } catch (NumberFormatException ex) {
+                    continue;
+                }
+                if (order != groupOrder)
+                    group.clear();
+                groupOrder = order;
+                String rest = line.substring(tab + 1);
+                if (!rest.equals(END)) {
+                    try {
+                        group.add(ResultsCache.parseRow(rest));
+                    } catch (RuntimeException ex) {
+                        // truncated line
+                        groupOrder = Integer.MIN_VALUE;
+                    }
+                    continue;
+                }
+                if (order < 0)
+                    errors.addAll(group);
+                else if (shardWorker.equals(doneBy.get(order)))
+                    rows.put(order, new ArrayList<>(group));
+                group.clear();
+                groupOrder = Integer.MIN_VALUE;
+            }
+        }
+    }
+
+
+    /**
+     * Stop lease renewal, claimed rois left are requeued by other workers once expired
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        heartbeat.shutdownNow();
+        if (shard != null) {
+            shard.close();
+            shard = null;
+        }
+    }
+
+
+    private Path todoFile(int order) {
+        return(dir.resolve(TODO).resolve(String.valueOf(order)));
+    }
+
+    private Path leaseFile(int order) {
+        return(dir.resolve(LEASES).resolve(order + "." + worker));
+    }
+
+    private Set<Integer> orders(String sub) throws IOException {
+        Set<Integer> orders = new HashSet<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir.resolve(sub))) {
+            for (Path f : files) {
+                int order = order(f);
+                if (order >= 0)
+                    orders.add(order);
+            }
+        }
+        return(orders);
+    }
+
+    // order of a todo, lease or done file, -1 for other files
+    private static int order(Path f) {
+        String name = f.getFileName().toString();
+        int dot = name.indexOf('.');
+        try {
+            return(Integer.parseInt((dot < 0) ? name : name.substring(0, dot)));
+        } catch (NumberFormatException ex) {
+            return(-1);
+        }
+    }
+
+    private static long age(Path f) {
+        try {
+            return(System.currentTimeMillis() - Files.getLastModifiedTime(f).toMillis());
+        } catch (IOException ex) {
+            return(0);
+        }
+    }
+
+    private static void deleteIfExists(Path f) {
+        try {
+            Files.deleteIfExists(f);
+        } catch (IOException ex) {
+            // taken again by another worker
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package Mito_Utils;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * CPU filters against direct reference computations on small synthetic stacks
+ * Kernel edges : clamp to edge borders, odd 8 sigma Gaussian kernels, median of windows with duplicates,
+ * voxels equal to the threshold are foreground
+ *
+ * @author phm
+ */
+public class Filters3DTest {
+
+    private ForkJoinPool pool;
+
+    @Before
+    public void setUp() {
+        pool = new ForkJoinPool(2);
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+
+    private static float[][] random(int width, int height, int depth, int levels, long seed) {
+        Random r = new Random(seed);
+        float[][] vol = new float[depth][width * height];
+        for (float[] slice : vol)
+            for (int i = 0; i < slice.length; i++)
+                slice[i] = r.nextInt(levels);
+        return(vol);
+    }
+
+    private static int clamp(int i, int size) {
+        return(Math.max(0, Math.min(size - 1, i)));
+    }
+
+    /**
+     * Voxels of a list of {x, y, z}
+     */
+    private static float[][] voxels(int width, int height, int depth, int[][] points) {
+        float[][] vol = new float[depth][width * height];
+        for (int[] p : points)
+            vol[p[2]][p[1] * width + p[0]] = 1;
+        return(vol);
+    }
+
+
+    @Test
+    public void gaussianKernelIsOddNormalizedAndSymmetric() {
+        assertEquals(17, Filters3D.gaussianKernel(2).length);
+        assertEquals(13, Filters3D.gaussianKernel(1.5).length);
+        assertEquals(9, Filters3D.gaussianKernel(1).length);
+        float[] k = Filters3D.gaussianKernel(2);
+        double sum = 0;
+        for (int i = 0; i < k.length; i++) {
+            sum += k[i];
+            assertEquals(k[i], k[k.length - 1 - i], 0);
+        }
+        assertEquals(1, sum, 1e-5);
+        assertEquals(8, Filters3D.gaussianRadius(2));
+        assertEquals(0, Filters3D.gaussianRadius(0));
+    }
+
+    @Test
+    public void gaussianKeepsConstantStackAtBorders() {
+        int width = 6, height = 5, depth = 3;
+        float[][] vol = new float[depth][width * height];
+        for (float[] slice : vol)
+            Arrays.fill(slice, 7);
+        // kernel of 17 voxels, larger than the stack : clamp to edge keeps the value, zero padding would not
+        float[][] out = Filters3D.gaussian(vol, width, height, 2, 2, 2, pool);
+        for (float[] slice : out)
+            for (float v : slice)
+                assertEquals(7, v, 1e-4);
+    }
+
+    @Test
+    public void gaussianMatchesClampedConvolution() {
+        int width = 9, height = 7, depth = 5;
+        double sx = 1, sy = 1.5, sz = 0.8;
+        float[][] vol = random(width, height, depth, 1000, 1);
+        float[][] out = Filters3D.gaussian(vol, width, height, sx, sy, sz, pool);
+        float[] kx = Filters3D.gaussianKernel(sx), ky = Filters3D.gaussianKernel(sy), kz = Filters3D.gaussianKernel(sz);
+        int cx = kx.length / 2, cy = ky.length / 2, cz = kz.length / 2;
+        for (int z = 0; z < depth; z++)
+            for (int y = 0; y < height; y++)
+                for (int x = 0; x < width; x++) {
+                    double sum = 0;
+                    for (int k = -cz; k <= cz; k++)
+                        for (int j = -cy; j <= cy; j++)
+                            for (int i = -cx; i <= cx; i++)
+                                sum += kx[i + cx] * ky[j + cy] * kz[k + cz]
+                                        * vol[clamp(z + k, depth)][clamp(y + j, height) * width + clamp(x + i, width)];
+                    assertEquals("voxel " + x + "," + y + "," + z, sum, out[z][y * width + x], 1e-2);
+                }
+    }
+
+    @Test
+    public void dogIsDifferenceOfGaussians() {
+        int width = 8, height = 8, depth = 4;
+        float[][] vol = random(width, height, depth, 500, 2);
+        float[][] g1 = Filters3D.gaussian(vol, width, height, 1, 1, 1, pool);
+        float[][] g2 = Filters3D.gaussian(vol, width, height, 2, 2, 2, pool);
+        float[][] dog = Filters3D.dog(vol, width, height, 1, 2, pool);
+        for (int z = 0; z < depth; z++)
+            for (int i = 0; i < width * height; i++)
+                assertEquals(g1[z][i] - g2[z][i], dog[z][i], 1e-4);
+    }
+
+    @Test
+    public void medianMatchesSortedWindows() {
+        // few levels for many duplicates, large enough for several tiles
+        int width = 40, height = 30, depth = 16;
+        float[][] vol = random(width, height, depth, 5, 3);
+        for (int[] r : new int[][] {{1, 1, 1}, {2, 1, 0}, {0, 0, 2}}) {
+            float[][] out = Filters3D.median(vol, width, height, r[0], r[1], r[2], pool);
+            float[] window = new float[(2*r[0] + 1) * (2*r[1] + 1) * (2*r[2] + 1)];
+            for (int z = 0; z < depth; z++)
+                for (int y = 0; y < height; y++)
+                    for (int x = 0; x < width; x++) {
+                        int n = 0;
+                        for (int k = -r[2]; k <= r[2]; k++)
+                            for (int j = -r[1]; j <= r[1]; j++)
+                                for (int i = -r[0]; i <= r[0]; i++)
+                                    window[n++] = vol[clamp(z + k, depth)][clamp(y + j, height) * width + clamp(x + i, width)];
+                        Arrays.sort(window);
+                        assertEquals(window[n / 2], out[z][y * width + x], 0);
+                    }
+        }
+    }
+
+    @Test
+    public void saturateClampsAndTruncates() {
+        float[][] vol = {{-3, 2.7f, 70000, 255.5f}};
+        Filters3D.saturate(vol, 16);
+        assertArrayEquals(new float[] {0, 2, 65535, 255}, vol[0], 0);
+        vol = new float[][] {{-3, 2.7f, 300}};
+        Filters3D.saturate(vol, 8);
+        assertArrayEquals(new float[] {0, 2, 255}, vol[0], 0);
+        vol = new float[][] {{-3, 2.7f}};
+        Filters3D.saturate(vol, 32);
+        assertArrayEquals(new float[] {-3, 2.7f}, vol[0], 0);
+    }
+
+    @Test
+    public void histogramBinsMinAndMaxAtEnds() {
+        int[] histogram = new int[256];
+        Filters3D.accumulateHistogram(new float[] {-10, 0, 10, 30}, histogram, -10, 30);
+        assertEquals(1, histogram[0]);
+        assertEquals(1, histogram[255]);
+        assertEquals(1, histogram[(int)(10 * 255 / 40f)]);
+        assertEquals(1, histogram[(int)(20 * 255 / 40f)]);
+    }
+
+
+    @Test
+    public void thresholdValueIsForeground() {
+        int width = 4, height = 4;
+        float[][] vol = new float[1][width * height];
+        vol[0][5] = 10;
+        vol[0][6] = 9.99f;
+        int[][] labels = new int[1][width * height];
+        assertEquals(1, Filters3D.label26(vol, width, height, 10, labels));
+        assertEquals(1, labels[0][5]);
+        assertEquals(0, labels[0][6]);
+        assertEquals(0, Filters3D.label26(vol, width, height, 10.001f, labels));
+    }
+
+    @Test
+    public void label26ConnectsCornerNeighbours() {
+        int width = 5, height = 5, depth = 3;
+        // corner neighbours across slices : one object
+        float[][] vol = voxels(width, height, depth, new int[][] {{1, 1, 0}, {2, 2, 1}, {3, 1, 2}});
+        int[][] labels = new int[depth][width * height];
+        assertEquals(1, Filters3D.label26(vol, width, height, 1, labels));
+        // one voxel gaps : separate objects
+        vol = voxels(width, height, depth, new int[][] {{0, 0, 0}, {2, 0, 0}, {0, 0, 2}});
+        assertEquals(3, Filters3D.label26(vol, width, height, 1, labels));
+    }
+
+    @Test
+    public void label26NumbersByFirstVoxelAfterMerges() {
+        int width = 7, height = 4;
+        // V shape : two arms labelled apart on the first row, joined on the last row, then a lone voxel
+        float[][] vol = voxels(width, height, 1, new int[][] {{0, 0, 0}, {4, 0, 0}, {1, 1, 0}, {3, 1, 0}, {2, 2, 0},
+            {6, 0, 0}, {6, 3, 0}});
+        int[][] labels = new int[1][width * height];
+        assertEquals(3, Filters3D.label26(vol, width, height, 1, labels));
+        assertEquals(1, labels[0][0]);
+        assertEquals(1, labels[0][4]);
+        assertEquals(1, labels[0][2 * width + 2]);
+        assertEquals(2, labels[0][6]);
+        assertEquals(3, labels[0][3 * width + 6]);
+    }
+
+    @Test
+    public void sizeFilterKeepsLimitsAndRenumbers() {
+        int width = 10, height = 3;
+        // sizes 1, 3, 5, 2 on separate rows / columns
+        float[][] vol = voxels(width, height, 1, new int[][] {{0, 0, 0},
+            {2, 0, 0}, {3, 0, 0}, {4, 0, 0},
+            {0, 2, 0}, {1, 2, 0}, {2, 2, 0}, {3, 2, 0}, {4, 2, 0},
+            {8, 0, 0}, {9, 0, 0}});
+        int[][] labels = new int[1][width * height];
+        int n = Filters3D.label26(vol, width, height, 1, labels);
+        assertEquals(4, n);
+        assertArrayEquals(new long[] {19, 1, 3, 2, 5}, Filters3D.labelSizes(labels, n));
+        short[][] filtered = Filters3D.sizeFilter(labels, n, 3, 5);
+        short[] f = filtered[0];
+        assertEquals(0, f[0]);
+        assertEquals(1, f[2]);
+        assertEquals(1, f[4]);
+        assertEquals(0, f[8]);
+        assertEquals(2, f[2 * width]);
+        assertEquals(2, f[2 * width + 4]);
+    }
+
+    @Test
+    public void sizeMapKeeps16BitLabels() {
+        long[] sizes = new long[Filters3D.MAX_LABELS + 1];
+        Arrays.fill(sizes, 1);
+        int[] map = Filters3D.sizeMap(sizes, 1, 1);
+        assertEquals(Filters3D.MAX_LABELS, map[Filters3D.MAX_LABELS]);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void sizeMapRejectsLabelsOver16Bit() {
+        long[] sizes = new long[Filters3D.MAX_LABELS + 2];
+        Arrays.fill(sizes, 1);
+        Filters3D.sizeMap(sizes, 1, 1);
+    }
+
+    @Test
+    public void cpuPipelineFindsSyntheticObjects() {
+        // two bright cubes and a lone bright voxel removed by the median
+        int width = 32, height = 32, depth = 10;
+        float[][] vol = new float[depth][width * height];
+        int[][] cubes = {{8, 8, 4, 2}, {22, 12, 5, 3}, {16, 26, 4, 0}};
+        for (int[] c : cubes)
+            for (int z = 0; z < depth; z++)
+                for (int y = 0; y < height; y++)
+                    for (int x = 0; x < width; x++)
+                        if (Math.abs(x - c[0]) <= c[3] && Math.abs(y - c[1]) <= c[3] && Math.abs(z - c[2]) <= c[3])
+                            vol[z][y * width + x] = 1000;
+        float[][] med = Filters3D.median(vol, width, height, 1, 1, 1, pool);
+        Filters3D.saturate(med, 16);
+        assertEquals(0, med[4][26 * width + 16], 0);
+        float[][] dog = Filters3D.dog(med, width, height, 1, 2, pool);
+        Filters3D.saturate(dog, 16);
+        int[][] labels = new int[depth][width * height];
+        int n = Filters3D.label26(dog, width, height, 1, labels);
+        assertEquals(2, n);
+        long[] sizes = Filters3D.labelSizes(labels, n);
+        assertTrue(sizes[1] < sizes[2]);
+        // the bigger cube is over the max size
+        short[][] filtered = Filters3D.sizeFilter(labels, n, 1, sizes[1]);
+        assertEquals(1, filtered[4][8 * width + 8]);
+        assertEquals(0, filtered[5][12 * width + 22]);
+        assertEquals(0, filtered[4][26 * width + 16]);
+    }
+}
@@ -0,0 +1,64 @@
+package Mito_Utils;
+
+import ij.measure.Calibration;
+import net.haesleinhuepf.clij2.plugins.StatisticsOfLabelledPixels.STATISTICS_ENTRY;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Label statistics from a CLIJ2 statistics table
+ *
+ * @author phm
+ */
+public class LabelStatsTest {
+
+    private static double[] row(int label, int voxels, double x, double y, double z, double sumIntensity) {
+        int columns = 0;
+        for (STATISTICS_ENTRY e : STATISTICS_ENTRY.values())
+            columns = Math.max(columns, e.value + 1);
+        double[] row = new double[columns];
+        row[STATISTICS_ENTRY.IDENTIFIER.value] = label;
+        row[STATISTICS_ENTRY.PIXEL_COUNT.value] = voxels;
+        row[STATISTICS_ENTRY.BOUNDING_BOX_X.value] = x - 1;
+        row[STATISTICS_ENTRY.BOUNDING_BOX_Y.value] = y - 1;
+        row[STATISTICS_ENTRY.BOUNDING_BOX_Z.value] = z;
+        row[STATISTICS_ENTRY.BOUNDING_BOX_END_X.value] = x + 1;
+        row[STATISTICS_ENTRY.BOUNDING_BOX_END_Y.value] = y + 1;
+        row[STATISTICS_ENTRY.BOUNDING_BOX_END_Z.value] = z;
+        row[STATISTICS_ENTRY.CENTROID_X.value] = x;
+        row[STATISTICS_ENTRY.CENTROID_Y.value] = y;
+        row[STATISTICS_ENTRY.CENTROID_Z.value] = z;
+        row[STATISTICS_ENTRY.SUM_INTENSITY.value] = sumIntensity;
+        return(row);
+    }
+
+
+    @Test
+    public void emptyRowsOfMaskedLabelsAreSkipped() {
+        Calibration cal = new Calibration();
+        cal.pixelWidth = 0.5;
+        cal.pixelHeight = 0.5;
+        cal.pixelDepth = 2;
+        // labels 2 and 4 were removed by the roi mask
+        double[][] table = {row(1, 9, 3, 3, 1, 900), row(2, 0, 0, 0, 0, 0), row(3, 4, 10, 8, 2, 200), row(4, 0, 0, 0, 0, 0)};
+        LabelStats stats = LabelStats.fromTable(table, cal);
+        assertEquals(3, stats.getMaxLabel());
+        assertEquals(2, stats.getNbObjects());
+        assertTrue(stats.exists(1));
+        assertFalse(stats.exists(2));
+        assertTrue(stats.exists(3));
+        assertFalse(stats.exists(4));
+        assertEquals(13 * 0.5, stats.getTotalVolume(), 1e-9);
+        assertArrayEquals(new double[] {10, 8, 2}, stats.getCentroid(3), 1e-9);
+        assertArrayEquals(new int[] {9, 7, 2, 11, 9, 2}, stats.getBoundingBox(3));
+        assertEquals(50, stats.getMeanIntensity(3), 1e-9);
+    }
+
+    @Test
+    public void allLabelsMaskedGivesNoObject() {
+        LabelStats stats = LabelStats.fromTable(new double[][] {row(1, 0, 0, 0, 0, 0)}, new Calibration());
+        assertEquals(0, stats.getMaxLabel());
+        assertEquals(0, stats.getNbObjects());
+        assertEquals(0, stats.getTotalVolume(), 0);
+    }
+}
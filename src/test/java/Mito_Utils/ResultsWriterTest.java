@@ -0,0 +1,119 @@
+package Mito_Utils;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Values and texts read back from written tables
+ *
+ * @author phm
+ */
+public class ResultsWriterTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("mito-results").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        for (File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+    }
+
+
+    private static final double[] VALUES = {0, -0.0, 42, -7, 0.5, 0.1, -2.25, 1e-7, -1e-7, 1.0 / 3, 123456.789012,
+        0.1234567, 1e12, -3e15, 6.02e23, Double.MIN_VALUE, Double.NaN, 9007199254740993.0, 1e15 + 0.3,
+        Double.MAX_VALUE, Double.MIN_NORMAL, Double.NEGATIVE_INFINITY};
+
+    private void write(ResultsWriter.Format format, String text) throws IOException {
+        String[] names = new String[VALUES.length];
+        for (int c = 0; c < names.length; c++)
+            names[c] = "v" + c;
+        List<ResultsWriter.Table> tables = Collections.singletonList(new ResultsWriter.Table("table", new String[] {"image"}, names));
+        try (ResultsWriter writer = new ResultsWriter(dir.getPath() + File.separator, tables, format)) {
+            writer.write(new ResultsRow(0, new String[] {text}, VALUES));
+        }
+    }
+
+
+    @Test
+    public void tsvValuesReadBackExactly() throws IOException {
+        write(ResultsWriter.Format.TSV, "img");
+        List<String> lines = Files.readAllLines(new File(dir, "table.xls").toPath(), StandardCharsets.UTF_8);
+        assertEquals(2, lines.size());
+        String[] cols = lines.get(1).split("\t");
+        assertEquals("img", cols[0]);
+        for (int c = 0; c < VALUES.length; c++) {
+            double v = Double.parseDouble(cols[c + 1]);
+            assertEquals(cols[c + 1], Double.doubleToLongBits(VALUES[c] == 0 ? 0 : VALUES[c]), Double.doubleToLongBits(v));
+        }
+        // short forms for integers and few decimals, no negative zero
+        assertEquals(Arrays.asList("0", "0", "42", "-7", "0.5", "0.1", "-2.25"), Arrays.asList(cols).subList(1, 8));
+        assertEquals(Arrays.asList("1E12", "-3E15", "6.02E23", "4.9E-324"), Arrays.asList(cols).subList(13, 17));
+    }
+
+    @Test
+    public void decimalsAreShortestRoundTrips() {
+        Random r = new Random(3);
+        byte[] buf = new byte[DecimalWriter.MAX_CHARS];
+        for (int i = 0; i < 200000; i++) {
+            double v = (i % 2 == 0) ? Double.longBitsToDouble(r.nextLong()) : r.nextDouble() * Math.pow(10, r.nextInt(40) - 20);
+            if (Double.isNaN(v) || Double.isInfinite(v))
+                continue;
+            String s = new String(buf, 0, DecimalWriter.write(buf, 0, v), StandardCharsets.US_ASCII);
+            assertEquals(s, Double.doubleToLongBits(v == 0 ? 0 : v), Double.doubleToLongBits(Double.parseDouble(s)));
+            if (Math.abs(v) < 1e-300)
+                continue;
+            // no decimal with one significant digit less reads back to v
+            String mantissa = s.replace("-", "").split("E")[0].replace(".", "").replaceAll("^0+|0+$", "");
+            if (mantissa.length() < 2)
+                continue;
+            BigDecimal exact = new BigDecimal(Math.abs(v));
+            for (RoundingMode mode : new RoundingMode[] {RoundingMode.FLOOR, RoundingMode.CEILING})
+                assertNotEquals(s, Math.abs(v), exact.round(new MathContext(mantissa.length() - 1, mode)).doubleValue(), 0);
+        }
+    }
+
+    @Test
+    public void binaryTextsLongerThan16BitLengths() throws IOException {
+        char[] chars = new char[70000];
+        Arrays.fill(chars, '\u00e9');
+        String text = new String(chars);
+        write(ResultsWriter.Format.BINARY, text);
+        try (DataInputStream in = new DataInputStream(new FileInputStream(new File(dir, "table.bin")))) {
+            byte[] magic = new byte[8];
+            in.readFully(magic);
+            assertEquals("MITOTAB2", new String(magic, StandardCharsets.UTF_8));
+            assertEquals(1, in.readInt());
+            assertEquals(VALUES.length, in.readInt());
+            for (int c = 0; c < 1 + VALUES.length; c++)
+                in.readFully(new byte[in.readInt()]);
+            assertEquals(1, in.readInt());
+            byte[] b = new byte[in.readInt()];
+            in.readFully(b);
+            assertEquals(text, new String(b, StandardCharsets.UTF_8));
+            for (double v : VALUES)
+                assertEquals(Double.doubleToLongBits(v), Double.doubleToLongBits(in.readDouble()));
+            assertEquals(-1, in.read());
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package Mito_Utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Scheduler commit order, commit chain pruning, overlapping I/O stages, memory of timed out tasks and held memory
+ *
+ * @author phm
+ */
+public class RoiSchedulerTest {
+
+    private static final long MB = 1024 * 1024;
+
+
+    @Test(timeout = 10000)
+    public void commitsFollowOrderWhateverSubmitOrder() throws Exception {
+        List<Integer> committed = Collections.synchronizedList(new ArrayList<>());
+        try (RoiScheduler scheduler = new RoiScheduler(3, 2, 100 * MB)) {
+            for (int order : new int[] {3, 0, 4, 1, 2}) {
+                int o = order;
+                scheduler.submit(MB, o, in -> null, in -> {
+                    Thread.sleep(10 * (5 - o));
+                    return(o);
+                }, r -> {}, committed::add, null);
+            }
+            scheduler.await();
+            assertEquals(Arrays.asList(0, 1, 2, 3, 4), committed);
+            // only the last commit is kept
+            assertEquals(1, scheduler.getPendingCommits());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void failuresGoToTheirSinkInOrder() throws Exception {
+        List<String> committed = Collections.synchronizedList(new ArrayList<>());
+        try (RoiScheduler scheduler = new RoiScheduler(2, 2, 100 * MB)) {
+            for (int order = 0; order < 4; order++) {
+                int o = order;
+                scheduler.submit(MB, o, in -> null, in -> {
+                    if (o == 1)
+                        throw new IllegalStateException("roi " + o);
+                    return(o);
+                }, r -> {}, r -> committed.add("ok " + r), ex -> committed.add(ex.getMessage()));
+            }
+            scheduler.await();
+            assertEquals(Arrays.asList("ok 0", "roi 1", "ok 2", "ok 3"), committed);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void failedCommitGoesToTheFailureSink() throws Exception {
+        List<String> committed = Collections.synchronizedList(new ArrayList<>());
+        try (RoiScheduler scheduler = new RoiScheduler(2, 2, 100 * MB)) {
+            for (int order = 0; order < 4; order++) {
+                int o = order;
+                scheduler.submit(MB, o, in -> null, in -> o, r -> {}, r -> {
+                    if (r == 2)
+                        throw new IOException("commit " + r);
+                    committed.add("ok " + r);
+                }, ex -> committed.add(ex.getMessage()));
+            }
+            scheduler.await();
+            assertEquals(Arrays.asList("ok 0", "ok 1", "commit 2", "ok 3"), committed);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void readsOverlapOnIOThreads() throws Exception {
+        // each read waits for the other one : a single I/O thread would never finish
+        CountDownLatch reading = new CountDownLatch(2);
+        try (RoiScheduler scheduler = new RoiScheduler(2, 2, 100 * MB)) {
+            for (int order = 0; order < 2; order++)
+                scheduler.submit(MB, order, in -> {
+                    reading.countDown();
+                    assertTrue(reading.await(5, TimeUnit.SECONDS));
+                    return(null);
+                }, in -> 0, r -> {}, r -> {}, null);
+            scheduler.await();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void abandonedTaskKeepsItsMemoryUntilItEnds() throws Exception {
+        List<String> committed = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch hung = new CountDownLatch(1);
+        AtomicBoolean secondRead = new AtomicBoolean();
+        try (RoiScheduler scheduler = new RoiScheduler(1, 1, 2 * MB, 100)) {
+            // ignores the interrupt until released
+            scheduler.submit(2 * MB, 0, in -> null, in -> {
+                while (hung.getCount() > 0)
+                    try {
+                        hung.await();
+                    } catch (InterruptedException ex) {
+                        // keeps running
+                    }
+                return(0);
+            }, r -> {}, r -> committed.add("ok " + r), ex -> committed.add(ex.getClass().getSimpleName()));
+            Thread submitter = new Thread(() -> {
+                try {
+                    scheduler.submit(2 * MB, 1, in -> {
+                        secondRead.set(true);
+                        return(null);
+                    }, in -> 1, r -> {}, r -> committed.add("ok " + r), ex -> committed.add(ex.getMessage()));
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            submitter.start();
+            // the first task timed out, its memory is still held
+            submitter.join(500);
+            assertTrue(submitter.isAlive());
+            assertFalse(secondRead.get());
+            assertEquals(Arrays.asList(TimeoutException.class.getSimpleName()), committed);
+            hung.countDown();
+            submitter.join();
+            scheduler.await();
+            assertTrue(secondRead.get());
+            assertEquals(Arrays.asList(TimeoutException.class.getSimpleName(), "ok 1"), committed);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void heldMemoryDelaysTasks() throws Exception {
+        List<Integer> committed = Collections.synchronizedList(new ArrayList<>());
+        try (RoiScheduler scheduler = new RoiScheduler(2, 1, 4 * MB)) {
+            // larger than the budget : one MB is left to tasks
+            scheduler.hold(5 * MB);
+            scheduler.submit(2 * MB, 0, in -> null, in -> 0, r -> {}, committed::add, null);
+            scheduler.await();
+            CountDownLatch computing = new CountDownLatch(1), release = new CountDownLatch(1);
+            scheduler.submit(MB, 1, in -> null, in -> {
+                computing.countDown();
+                assertTrue(release.await(5, TimeUnit.SECONDS));
+                return(1);
+            }, r -> {}, committed::add, null);
+            assertTrue(computing.await(5, TimeUnit.SECONDS));
+            Thread submitter = new Thread(() -> {
+                try {
+                    scheduler.submit(MB, 2, in -> null, in -> 2, r -> {}, committed::add, null);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            submitter.start();
+            // no memory left until the held memory is given back
+            submitter.join(300);
+            assertTrue(submitter.isAlive());
+            scheduler.hold(-5 * MB);
+            submitter.join();
+            release.countDown();
+            scheduler.await();
+            assertEquals(Arrays.asList(0, 1, 2), committed);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package Mito_Utils;
+
+import ij.measure.Calibration;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Sholl intersections of simple skeletons
+ *
+ * @author phm
+ */
+public class ShollAnalyzerTest {
+
+    private static final int WIDTH = 41, HEIGHT = 41, DEPTH = 5;
+
+    private static Calibration calibration() {
+        Calibration cal = new Calibration();
+        cal.pixelWidth = 0.5;
+        cal.pixelHeight = 0.5;
+        cal.pixelDepth = 1;
+        return(cal);
+    }
+
+
+    private static SparseLabels runs(short[][] skeleton) {
+        return(SparseLabels.of(skeleton, WIDTH, HEIGHT, calibration()));
+    }
+
+
+    @Test
+    public void armsCrossEachShellOnce() {
+        short[][] skeleton = new short[DEPTH][WIDTH * HEIGHT];
+        // two opposite arms along x and one arm along y from the center (20, 20, 2), apart from the first shell
+        for (int x = 0; x < WIDTH; x++)
+            skeleton[2][20 * WIDTH + x] = 1;
+        for (int y = 21; y < HEIGHT; y++)
+            skeleton[2][y * WIDTH + 20] = 1;
+        ShollAnalyzer.Profile p = new ShollAnalyzer(calibration()).analyze(runs(skeleton), 20, 20, 2, 2, 9, 1);
+        assertEquals(8, p.radii.length);
+        for (double inters : p.inters)
+            assertEquals(3, inters, 0);
+    }
+
+    @Test
+    public void shellsBeyondTheSkeletonAreEmpty() {
+        short[][] skeleton = new short[DEPTH][WIDTH * HEIGHT];
+        // arm of 10 voxels up to 4.5 calibrated units, within the shell of radius 5
+        for (int x = 20; x < 30; x++)
+            skeleton[2][20 * WIDTH + x] = 1;
+        ShollAnalyzer.Profile p = new ShollAnalyzer(calibration()).analyze(runs(skeleton), 20, 20, 2, 1, 8, 1);
+        for (int k = 0; k < p.radii.length; k++)
+            assertEquals("radius " + p.radii[k], (p.radii[k] <= 5) ? 1 : 0, p.inters[k], 0);
+        assertEquals(5, p.getIntersectingRadii());
+    }
+
+    @Test
+    public void emptyRangeGivesNoShell() {
+        short[][] skeleton = new short[DEPTH][WIDTH * HEIGHT];
+        ShollAnalyzer.Profile p = new ShollAnalyzer(calibration()).analyze(runs(skeleton), 20, 20, 2, 5, 1, 1);
+        assertEquals(0, p.radii.length);
+    }
+
+    @Test
+    public void shellsReachTheFarthestCornerFromEachQuadrant() {
+        ShollAnalyzer sholl = new ShollAnalyzer(calibration());
+        for (int[] soma : new int[][] {{6, 8}, {34, 8}, {6, 32}, {34, 32}}) {
+            int cx = soma[0], cy = soma[1];
+            // arm from the soma to the far x border, arm from the soma to the far y border
+            int farX = (cx < WIDTH / 2) ? WIDTH - 1 : 0, farY = (cy < HEIGHT / 2) ? HEIGHT - 1 : 0;
+            short[][] skeleton = new short[DEPTH][WIDTH * HEIGHT];
+            for (int x = Math.min(cx, farX); x <= Math.max(cx, farX); x++)
+                skeleton[2][cy * WIDTH + x] = 1;
+            for (int y = Math.min(cy, farY); y <= Math.max(cy, farY); y++)
+                skeleton[2][y * WIDTH + cx] = 1;
+            double end = sholl.farthestRadius(WIDTH, HEIGHT, DEPTH, cx, cy, 2);
+            double dx = Math.abs(farX - cx) * 0.5, dy = Math.abs(farY - cy) * 0.5;
+            assertEquals("soma " + cx + "," + cy, Math.sqrt(dx * dx + dy * dy + 4), end, 1e-9);
+            ShollAnalyzer.Profile p = sholl.analyze(runs(skeleton), cx, cy, 2, 2, end, 1);
+            // from radius 2 the arms are apart : both arms until the shorter one ends, the longer one up to its border
+            for (int k = 0; k < p.radii.length; k++) {
+                double r = p.radii[k];
+                int expected = (r <= Math.min(dx, dy)) ? 2 : (r <= Math.max(dx, dy)) ? 1 : 0;
+                assertEquals("soma " + cx + "," + cy + " radius " + r, expected, p.inters[k], 0);
+            }
+            assertEquals((int)Math.max(dx, dy) - 1, p.getIntersectingRadii());
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package Mito_Utils;
+
+import ij.measure.Calibration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Skeletons of known shapes, drawn one voxel wide and as 3x3x3 thick tubes
+ * Thick tubes must thin to the same graph as the one voxel wide shape
+ *
+ * Expected differences with AnalyzeSkeleton_ :
+ * adjacent junction voxels are one junction, branches stop at the border voxel of a junction cluster
+ * (the cross arms are 14 voxel steps long, not 15), and a closed loop without junction is one branch
+ *
+ * @author phm
+ */
+public class SkeletonAnalyzerTest {
+
+    private static final int WIDTH = 40, HEIGHT = 40, DEPTH = 12;
+    private static final double DIAG = Math.sqrt(2);
+
+    private ForkJoinPool pool;
+
+    @Before
+    public void setUp() {
+        pool = new ForkJoinPool(2);
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+
+    private static byte[][] volume() {
+        return(new byte[DEPTH][WIDTH * HEIGHT]);
+    }
+
+    /**
+     * Voxel x,y,z with its neighbours up to distance r along each axis
+     */
+    private static void draw(byte[][] v, int x, int y, int z, int r) {
+        for (int dz = -r; dz <= r; dz++)
+            for (int dy = -r; dy <= r; dy++)
+                for (int dx = -r; dx <= r; dx++)
+                    v[z + dz][(y + dy) * WIDTH + x + dx] = 1;
+    }
+
+    private SkeletonAnalyzer.Result analyze(byte[][] v, Calibration cal) throws InterruptedException {
+        return(new SkeletonAnalyzer(cal, pool).analyze(v, WIDTH, HEIGHT));
+    }
+
+    private static SkeletonAnalyzer.Skeleton single(SkeletonAnalyzer.Result result) {
+        assertEquals(1, result.skeletons.size());
+        return(result.skeletons.get(0));
+    }
+
+    private static List<Double> lengths(SkeletonAnalyzer.Skeleton s) {
+        List<Double> lengths = new ArrayList<>();
+        for (SkeletonAnalyzer.Branch b : s.branches)
+            lengths.add(b.length);
+        Collections.sort(lengths);
+        return(lengths);
+    }
+
+    private static void assertLengths(double[] expected, SkeletonAnalyzer.Skeleton s) {
+        List<Double> lengths = lengths(s);
+        assertEquals(expected.length, lengths.size());
+        for (int b = 0; b < expected.length; b++)
+            assertEquals(expected[b], lengths.get(b), 1e-9);
+    }
+
+
+    @Test
+    public void straightTube() throws InterruptedException {
+        for (int r = 0; r <= 1; r++) {
+            byte[][] v = volume();
+            for (int x = 5; x <= 30; x++)
+                draw(v, x, 20, 6, r);
+            SkeletonAnalyzer.Result result = analyze(v, new Calibration());
+            SkeletonAnalyzer.Skeleton s = single(result);
+            assertEquals(26, s.voxels);
+            assertEquals(2, s.endPoints);
+            assertEquals(0, s.junctions);
+            assertLengths(new double[] {25}, s);
+            // skeleton on the tube axis, one run
+            SparseLabels skel = result.skeletonLabels;
+            assertEquals(1, skel.getRunCount());
+            skel.forEachRun((z, y, x0, x1, l) -> {
+                assertEquals(s.id, l);
+                assertEquals(6, z);
+                assertEquals(20, y);
+            });
+            assertEquals(s.voxels, skel.getVoxels()[s.id]);
+        }
+    }
+
+    @Test
+    public void yShape() throws InterruptedException {
+        for (int r = 0; r <= 1; r++) {
+            byte[][] v = volume();
+            for (int x = 5; x <= 20; x++)
+                draw(v, x, 20, 6, r);
+            for (int k = 1; k <= 12; k++) {
+                draw(v, 20 + k, 20 - k, 6, r);
+                draw(v, 20 + k, 20 + k, 6, r);
+            }
+            SkeletonAnalyzer.Skeleton s = single(analyze(v, new Calibration()));
+            assertEquals(3, s.endPoints);
+            assertEquals(1, s.junctions);
+            assertEquals(1, s.junctionVoxels);
+            assertLengths(new double[] {15, 12 * DIAG, 12 * DIAG}, s);
+            assertEquals((15 + 24 * DIAG) / 3, s.getAverageBranchLength(), 1e-9);
+        }
+    }
+
+    @Test
+    public void cross() throws InterruptedException {
+        for (int r = 0; r <= 1; r++) {
+            byte[][] v = volume();
+            for (int k = 5; k <= 35; k++) {
+                draw(v, k, 20, 6, r);
+                draw(v, 20, k, 6, r);
+            }
+            SkeletonAnalyzer.Skeleton s = single(analyze(v, new Calibration()));
+            assertEquals(4, s.endPoints);
+            // center and its four 6-neighbours are one junction
+            assertEquals(1, s.junctions);
+            assertEquals(5, s.junctionVoxels);
+            assertLengths(new double[] {14, 14, 14, 14}, s);
+        }
+    }
+
+    @Test
+    public void closedLoop() throws InterruptedException {
+        for (int r = 0; r <= 1; r++) {
+            byte[][] v = volume();
+            for (int k = 8; k <= 30; k++) {
+                draw(v, k, 8, 6, r);
+                draw(v, k, 30, 6, r);
+                draw(v, 8, k, 6, r);
+                draw(v, 30, k, 6, r);
+            }
+            SkeletonAnalyzer.Skeleton s = single(analyze(v, new Calibration()));
+            // thinning cuts the four corners
+            assertEquals(84, s.voxels);
+            assertEquals(0, s.endPoints);
+            assertEquals(0, s.junctions);
+            assertLengths(new double[] {80 + 4 * DIAG}, s);
+        }
+    }
+
+    @Test
+    public void skeletonsSharingRows() throws InterruptedException {
+        for (int r = 0; r <= 1; r++) {
+            byte[][] v = volume();
+            for (int y = 5; y <= 30; y++) {
+                draw(v, 10, y, 6, r);
+                draw(v, 14, y, 6, r);
+            }
+            SkeletonAnalyzer.Result result = analyze(v, new Calibration());
+            assertEquals(2, result.skeletons.size());
+            SparseLabels skel = result.skeletonLabels;
+            int left = skel.get(10, 20, 6), right = skel.get(14, 20, 6);
+            assertNotEquals(0, left);
+            assertNotEquals(0, right);
+            assertNotEquals(left, right);
+            // two runs a row, each labelled with its skeleton
+            assertEquals(52, skel.getRunCount());
+            for (SkeletonAnalyzer.Skeleton s : result.skeletons) {
+                assertEquals(26, s.voxels);
+                assertEquals(s.voxels, skel.getVoxels()[s.id]);
+            }
+            for (int y = 5; y <= 30; y++) {
+                assertEquals(left, skel.get(10, y, 6));
+                assertEquals(right, skel.get(14, y, 6));
+            }
+        }
+    }
+
+    @Test
+    public void anisotropicCalibration() throws InterruptedException {
+        Calibration cal = new Calibration();
+        cal.pixelWidth = 0.2;
+        cal.pixelHeight = 0.2;
+        cal.pixelDepth = 0.5;
+        for (int r = 0; r <= 1; r++) {
+            byte[][] v = volume();
+            for (int z = 1 + r; z <= 10 - r; z++)
+                draw(v, 20, 20, z, r);
+            for (int x = 5; x <= 30; x++)
+                draw(v, x, 10, 6, r);
+            SkeletonAnalyzer.Result result = analyze(v, cal);
+            assertEquals(2, result.skeletons.size());
+            double[] lengths = new double[2];
+            for (SkeletonAnalyzer.Skeleton s : result.skeletons) {
+                assertEquals(2, s.endPoints);
+                assertEquals(0, s.junctions);
+                assertEquals(1, s.getBranches());
+                SkeletonAnalyzer.Branch b = s.branches.get(0);
+                lengths[b.z1 == b.z2 ? 0 : 1] = b.length;
+            }
+            // 25 steps along x, 9 steps along z
+            assertEquals(25 * 0.2, lengths[0], 1e-9);
+            assertEquals(9 * 0.5, lengths[1], 1e-9);
+            assertArrayEquals(new double[] {2, lengths[0] + lengths[1], 4, 0}, result.getParams(), 1e-9);
+        }
+    }
+}
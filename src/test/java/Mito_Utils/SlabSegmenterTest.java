@@ -0,0 +1,137 @@
+package Mito_Utils;
+
+import ij.ImageStack;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Slab by slab segmentation against whole volume segmentation of the same synthetic stack
+ * Objects cross slab borders, join below a slab border, and sit at the size filter limits
+ *
+ * @author phm
+ */
+public class SlabSegmenterTest {
+
+    private static final int WIDTH = 40, HEIGHT = 36, DEPTH = 24;
+    private static final int MED_RAD = 1;
+    private static final double SIGMA1 = 1, SIGMA2 = 2;
+    private static final String TH_METHOD = "Otsu";
+
+    private ForkJoinPool pool;
+
+    @Before
+    public void setUp() {
+        pool = new ForkJoinPool(2);
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+
+    /**
+     * 16-bit noisy stack : a tube along z, a U whose arms join at the bottom, boxes of several sizes
+     */
+    private static ImageStack stack() {
+        Random r = new Random(7);
+        ImageStack stack = new ImageStack(WIDTH, HEIGHT);
+        for (int z = 0; z < DEPTH; z++) {
+            short[] pixels = new short[WIDTH * HEIGHT];
+            for (int y = 0; y < HEIGHT; y++)
+                for (int x = 0; x < WIDTH; x++) {
+                    boolean tube = Math.abs(x - 6) <= 1 && Math.abs(y - 6) <= 1 && z >= 1 && z < DEPTH - 1;
+                    boolean arms = (Math.abs(x - 20) <= 1 || Math.abs(x - 30) <= 1) && Math.abs(y - 8) <= 1 && z >= 2 && z <= 18;
+                    boolean bottom = x >= 19 && x <= 31 && Math.abs(y - 8) <= 1 && z >= 17 && z <= 18;
+                    boolean box1 = Math.abs(x - 8) <= 2 && Math.abs(y - 26) <= 2 && z >= 5 && z <= 9;
+                    boolean box2 = Math.abs(x - 22) <= 2 && Math.abs(y - 26) <= 1 && z >= 11 && z <= 14;
+                    boolean box3 = Math.abs(x - 32) <= 1 && Math.abs(y - 26) <= 1 && z >= 7 && z <= 10;
+                    int v = 100 + r.nextInt(20);
+                    if (tube || arms || bottom || box1 || box2 || box3)
+                        v += 1500;
+                    pixels[y * WIDTH + x] = (short)v;
+                }
+            stack.addSlice("", pixels);
+        }
+        return(stack);
+    }
+
+    private float[][] filter(ImageStack stack) {
+        float[][] med = Filters3D.median(Filters3D.toFloat(stack), stack.getWidth(), stack.getHeight(), MED_RAD, MED_RAD, MED_RAD, pool);
+        Filters3D.saturate(med, 16);
+        float[][] dog = Filters3D.dog(med, stack.getWidth(), stack.getHeight(), SIGMA1, SIGMA2, pool);
+        Filters3D.saturate(dog, 16);
+        return(dog);
+    }
+
+    /**
+     * Whole volume labels before size filtering
+     */
+    private int[][] wholeLabels(ImageStack stack) {
+        float[][] dog = filter(stack);
+        int[][] labels = new int[DEPTH][WIDTH * HEIGHT];
+        Filters3D.label26(dog, WIDTH, HEIGHT, Filters3D.autoThreshold(dog, TH_METHOD), labels);
+        return(labels);
+    }
+
+    private static int maxLabel(short[][] labels) {
+        int max = 0;
+        for (short[] slice : labels)
+            for (short l : slice)
+                max = Math.max(max, l & 0xffff);
+        return(max);
+    }
+
+
+    @Test
+    public void slabsGiveWholeVolumeLabels() {
+        ImageStack stack = stack();
+        int[][] whole = wholeLabels(stack);
+        int n = 0;
+        for (int[] slice : whole)
+            for (int l : slice)
+                n = Math.max(n, l);
+        // tube, U and three boxes
+        assertEquals(5, n);
+        long[] sizes = Filters3D.labelSizes(whole, n);
+        // limits on the sizes of two objects, the U crosses all slab borders below its arms
+        long tube = sizes[whole[DEPTH / 2][6 * WIDTH + 6]];
+        long box1 = sizes[whole[7][26 * WIDTH + 8]];
+        double minSize = Math.min(tube, box1), maxSize = Math.max(tube, box1);
+        short[][] expected = Filters3D.sizeFilter(whole, n, minSize, maxSize);
+        int kept = maxLabel(expected);
+        assertTrue(kept >= 2);
+        assertTrue(expected[DEPTH / 2][6 * WIDTH + 6] != 0);
+        assertTrue(expected[7][26 * WIDTH + 8] != 0);
+
+        int halo = SlabSegmenter.halo(MED_RAD, SIGMA1, SIGMA2);
+        for (int slabSlices : new int[] {1, 2, 5, 7, DEPTH}) {
+            short[][] labels = new SlabSegmenter(slabSlices, halo).segment(stack, this::filter, TH_METHOD, minSize, maxSize);
+            assertEquals(DEPTH, labels.length);
+            for (int z = 0; z < DEPTH; z++)
+                assertArrayEquals("slabs of " + slabSlices + ", slice " + z, expected[z], labels[z]);
+        }
+    }
+
+    @Test
+    public void slabsKeepSizesOfAllObjects() {
+        ImageStack stack = stack();
+        int[][] whole = wholeLabels(stack);
+        short[][] expected = Filters3D.sizeFilter(whole, 5, 1, Double.MAX_VALUE);
+        short[][] labels = new SlabSegmenter(3, SlabSegmenter.halo(MED_RAD, SIGMA1, SIGMA2))
+                .segment(stack, this::filter, TH_METHOD, 1, Double.MAX_VALUE);
+        int[][] ints = new int[DEPTH][WIDTH * HEIGHT];
+        int[][] expectedInts = new int[DEPTH][WIDTH * HEIGHT];
+        for (int z = 0; z < DEPTH; z++)
+            for (int i = 0; i < WIDTH * HEIGHT; i++) {
+                ints[z][i] = labels[z][i] & 0xffff;
+                expectedInts[z][i] = expected[z][i] & 0xffff;
+            }
+        assertEquals(5, maxLabel(labels));
+        assertArrayEquals(Filters3D.labelSizes(expectedInts, 5), Filters3D.labelSizes(ints, 5));
+    }
+}
@@ -0,0 +1,162 @@
+package Mito_Utils;
+
+import ij.measure.Calibration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Run-length labels against the dense labels they were built from
+ * Labels fill crop borders, runs of different labels touch in a row
+ *
+ * @author phm
+ */
+public class SparseLabelsTest {
+
+    private static final int WIDTH = 13, HEIGHT = 9, DEPTH = 5;
+
+    /**
+     * Random runs of labels 1 to 6 and background, corners and borders labelled
+     */
+    private static short[][] dense(long seed) {
+        Random r = new Random(seed);
+        short[][] planes = new short[DEPTH][WIDTH * HEIGHT];
+        for (short[] plane : planes) {
+            int l = 0;
+            for (int i = 0; i < plane.length; i++) {
+                if (r.nextInt(4) == 0)
+                    l = (r.nextInt(3) == 0) ? 0 : 1 + r.nextInt(6);
+                plane[i] = (short)l;
+            }
+        }
+        for (int z : new int[] {0, DEPTH - 1})
+            for (int y : new int[] {0, HEIGHT - 1})
+                for (int x : new int[] {0, WIDTH - 1})
+                    planes[z][y * WIDTH + x] = (short)(1 + x % 6);
+        // full first row and last column of the first slice
+        for (int x = 0; x < WIDTH; x++)
+            planes[0][x] = 6;
+        for (int y = 0; y < HEIGHT; y++)
+            planes[0][y * WIDTH + WIDTH - 1] = 5;
+        return(planes);
+    }
+
+    private static int at(short[][] planes, int x, int y, int z) {
+        if (x < 0 || y < 0 || z < 0 || x >= WIDTH || y >= HEIGHT || z >= DEPTH)
+            return(0);
+        return(planes[z][y * WIDTH + x]);
+    }
+
+    private static Calibration calibration() {
+        Calibration cal = new Calibration();
+        cal.pixelWidth = 0.5;
+        cal.pixelHeight = 0.5;
+        cal.pixelDepth = 2;
+        return(cal);
+    }
+
+
+    @Test
+    public void slicesAndVoxelsMatchDenseLabels() {
+        for (long seed = 1; seed <= 5; seed++) {
+            short[][] planes = dense(seed);
+            SparseLabels labels = SparseLabels.of(planes, WIDTH, HEIGHT, calibration());
+            int max = 0;
+            for (short[] plane : planes)
+                for (short l : plane)
+                    max = Math.max(max, l);
+            assertEquals(max, labels.getMaxLabel());
+            for (int z = 0; z < DEPTH; z++) {
+                assertArrayEquals(planes[z], labels.getSlice(z));
+                byte[] bytes = new byte[WIDTH * HEIGHT];
+                float[] floats = new float[WIDTH * HEIGHT];
+                labels.draw(z, bytes);
+                labels.draw(z, floats);
+                for (int i = 0; i < WIDTH * HEIGHT; i++) {
+                    assertEquals(planes[z][i], bytes[i]);
+                    assertEquals(planes[z][i], floats[i], 0);
+                }
+            }
+            for (int z = -1; z <= DEPTH; z++)
+                for (int y = -1; y <= HEIGHT; y++)
+                    for (int x = -1; x <= WIDTH; x++)
+                        assertEquals("voxel " + x + "," + y + "," + z, at(planes, x, y, z), labels.get(x, y, z));
+        }
+    }
+
+    @Test
+    public void volumesAndBoxesMatchDenseLabels() {
+        short[][] planes = dense(6);
+        SparseLabels labels = SparseLabels.of(planes, WIDTH, HEIGHT, calibration());
+        int max = labels.getMaxLabel();
+        long[] voxels = new long[max + 1];
+        int[] box = new int[(max + 1) * 6];
+        for (int l = 0; l <= max; l++) {
+            box[l * 6] = box[l * 6 + 1] = box[l * 6 + 2] = Integer.MAX_VALUE;
+            box[l * 6 + 3] = box[l * 6 + 4] = box[l * 6 + 5] = -1;
+        }
+        for (int z = 0; z < DEPTH; z++)
+            for (int y = 0; y < HEIGHT; y++)
+                for (int x = 0; x < WIDTH; x++) {
+                    int l = at(planes, x, y, z);
+                    if (l == 0)
+                        continue;
+                    voxels[l]++;
+                    int b = l * 6;
+                    box[b] = Math.min(box[b], x);
+                    box[b + 1] = Math.min(box[b + 1], y);
+                    box[b + 2] = Math.min(box[b + 2], z);
+                    box[b + 3] = Math.max(box[b + 3], x);
+                    box[b + 4] = Math.max(box[b + 4], y);
+                    box[b + 5] = Math.max(box[b + 5], z);
+                }
+        assertArrayEquals(voxels, labels.getVoxels());
+        for (int l = 1; l <= max; l++)
+            assertEquals(voxels[l] * 0.5 * 0.5 * 2, labels.getVolume(l), 1e-9);
+        assertArrayEquals(box, labels.getBoundingBoxes());
+    }
+
+    @Test
+    public void neighboursMatchDenseNeighbours() {
+        short[][] planes = dense(7);
+        SparseLabels labels = SparseLabels.of(planes, WIDTH, HEIGHT, null);
+        for (int z = 0; z < DEPTH; z++)
+            for (int y = 0; y < HEIGHT; y++)
+                for (int x = 0; x < WIDTH; x++) {
+                    List<String> expected = new ArrayList<>();
+                    for (int dz = -1; dz <= 1; dz++)
+                        for (int dy = -1; dy <= 1; dy++)
+                            for (int dx = -1; dx <= 1; dx++) {
+                                int l = at(planes, x + dx, y + dy, z + dz);
+                                if (l != 0 && (dx != 0 || dy != 0 || dz != 0))
+                                    expected.add((x + dx) + "," + (y + dy) + "," + (z + dz) + ":" + l);
+                            }
+                    List<String> found = new ArrayList<>();
+                    labels.forEachNeighbour26(x, y, z, (nx, ny, nz, l) -> found.add(nx + "," + ny + "," + nz + ":" + l));
+                    Collections.sort(expected);
+                    Collections.sort(found);
+                    assertEquals("voxel " + x + "," + y + "," + z, expected, found);
+                }
+    }
+
+    @Test
+    public void componentsMatchDenseLabelling() {
+        for (long seed = 8; seed <= 12; seed++) {
+            short[][] planes = dense(seed);
+            SparseLabels labels = SparseLabels.of(planes, WIDTH, HEIGHT, null);
+            int[][] dense = new int[DEPTH][WIDTH * HEIGHT];
+            int n = Filters3D.label26(DEPTH, WIDTH, HEIGHT, (z, i) -> planes[z][i] != 0, dense);
+            int[] comp = new int[labels.getRunCount()];
+            assertEquals(n, labels.components(comp));
+            int[] k = {0};
+            labels.forEachRun((z, y, x0, x1, l) -> {
+                for (int x = x0; x <= x1; x++)
+                    assertEquals("voxel " + x + "," + y + "," + z, dense[z][y * WIDTH + x], comp[k[0]]);
+                k[0]++;
+            });
+        }
+    }
+}
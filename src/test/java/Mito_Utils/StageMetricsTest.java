@@ -0,0 +1,42 @@
+package Mito_Utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Roi records shared by threads recording the same stage at once
+ *
+ * @author phm
+ */
+public class StageMetricsTest {
+
+    private static final int THREADS = 4, SPANS = 20000;
+
+    @Test(timeout = 20000)
+    public void concurrentStagesOfOneRoiAreAllCounted() throws InterruptedException {
+        StageMetrics run = new StageMetrics(false);
+        StageMetrics.RoiMetrics roi = run.roi("img", "roi");
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++)
+            threads.add(new Thread(() -> {
+                try (StageMetrics.Binding b = roi.bind()) {
+                    for (int i = 0; i < SPANS; i++)
+                        try (StageMetrics.Span span = StageMetrics.span(StageMetrics.Stage.WRITE)) {
+                            StageMetrics.bytesWritten(1);
+                            StageMetrics.deviceBytes(i);
+                        }
+                }
+            }));
+        for (Thread t : threads)
+            t.start();
+        for (Thread t : threads)
+            t.join();
+        assertEquals((long)THREADS * SPANS, roi.bytesWritten.sum());
+        assertEquals(SPANS - 1, roi.peakDevice.get());
+        assertTrue(roi.wall.get(StageMetrics.Stage.WRITE.ordinal()) > 0);
+        assertEquals(0, roi.wall.get(StageMetrics.Stage.OPEN.ordinal()));
+        assertNull(StageMetrics.current());
+    }
+}
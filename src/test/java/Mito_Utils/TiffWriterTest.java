@@ -0,0 +1,181 @@
+package Mito_Utils;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.Opener;
+import ij.measure.Calibration;
+import ij.process.LUT;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Written TIFFs opened back with ImageJ : pixels, LUT, calibration and display range
+ * 8, 16 and 32-bit stacks, single and multiple strips (strips hold about 64 KB), deflate and uncompressed
+ *
+ * @author phm
+ */
+public class TiffWriterTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("mito-tiff").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        for (File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+    }
+
+
+    private static Calibration calibration() {
+        Calibration cal = new Calibration();
+        cal.pixelWidth = 0.25;
+        cal.pixelHeight = 0.5;
+        cal.pixelDepth = 1.5;
+        cal.setUnit("\u00b5m");
+        return(cal);
+    }
+
+    /**
+     * Colour ramp, not a gray LUT
+     */
+    private static LUT lut() {
+        byte[] r = new byte[256], g = new byte[256], b = new byte[256];
+        for (int i = 0; i < 256; i++) {
+            r[i] = (byte)i;
+            g[i] = (byte)(255 - i);
+            b[i] = (byte)(i * 7);
+        }
+        return(new LUT(r, g, b));
+    }
+
+    private static Object[] planes(int bitDepth, int width, int height, int depth, long seed) {
+        Random rnd = new Random(seed);
+        Object[] planes = new Object[depth];
+        for (int z = 0; z < depth; z++) {
+            int n = width * height;
+            if (bitDepth == 8) {
+                byte[] p = new byte[n];
+                rnd.nextBytes(p);
+                planes[z] = p;
+            }
+            else if (bitDepth == 16) {
+                short[] p = new short[n];
+                for (int i = 0; i < n; i++)
+                    p[i] = (short)rnd.nextInt(65536);
+                planes[z] = p;
+            }
+            else {
+                float[] p = new float[n];
+                for (int i = 0; i < n; i++)
+                    p[i] = (float)rnd.nextGaussian();
+                planes[z] = p;
+            }
+        }
+        return(planes);
+    }
+
+    private void roundTrip(int bitDepth, int width, int height, int depth, LUT lut, double min, double max) throws IOException {
+        Object[] planes = planes(bitDepth, width, height, depth, bitDepth * 1000 + depth);
+        Calibration cal = calibration();
+        for (boolean compress : new boolean[] {true, false}) {
+            String what = bitDepth + "-bit " + width + "x" + height + "x" + depth + (compress ? " deflate" : " uncompressed");
+            Path file = new File(dir, bitDepth + "_" + depth + "_" + compress + ".tif").toPath();
+            long size = TiffWriter.write(file, planes, width, height, lut, cal, min, max, compress);
+            assertEquals(what, Files.size(file), size);
+            assertFalse(what, new File(file + ".part").exists());
+
+            ImagePlus imp = new Opener().openImage(file.toString());
+            assertNotNull(what, imp);
+            assertEquals(what, bitDepth, imp.getBitDepth());
+            assertEquals(what, width, imp.getWidth());
+            assertEquals(what, height, imp.getHeight());
+            assertEquals(what, depth, imp.getStackSize());
+            ImageStack stack = imp.getStack();
+            for (int z = 0; z < depth; z++) {
+                Object pixels = stack.getPixels(z + 1);
+                if (bitDepth == 8)
+                    assertArrayEquals(what + " slice " + z, (byte[])planes[z], (byte[])pixels);
+                else if (bitDepth == 16)
+                    assertArrayEquals(what + " slice " + z, (short[])planes[z], (short[])pixels);
+                else
+                    assertArrayEquals(what + " slice " + z, (float[])planes[z], (float[])pixels, 0);
+            }
+
+            Calibration read = imp.getCalibration();
+            assertEquals(what, cal.pixelWidth, read.pixelWidth, 1e-9);
+            assertEquals(what, cal.pixelHeight, read.pixelHeight, 1e-9);
+            if (depth > 1)
+                assertEquals(what, cal.pixelDepth, read.pixelDepth, 1e-9);
+            assertEquals(what, cal.getUnit(), read.getUnit());
+            assertEquals(what, min, imp.getDisplayRangeMin(), 1e-9);
+            assertEquals(what, max, imp.getDisplayRangeMax(), 1e-9);
+
+            byte[] expected = new byte[256], found = new byte[256];
+            LUT readLut = imp.getProcessor().getLut();
+            for (int c = 0; c < 3; c++) {
+                if (lut == null)
+                    for (int i = 0; i < 256; i++)
+                        expected[i] = (byte)i;
+                else if (c == 0)
+                    lut.getReds(expected);
+                else if (c == 1)
+                    lut.getGreens(expected);
+                else
+                    lut.getBlues(expected);
+                if (c == 0)
+                    readLut.getReds(found);
+                else if (c == 1)
+                    readLut.getGreens(found);
+                else
+                    readLut.getBlues(found);
+                assertArrayEquals(what + " lut " + "rgb".charAt(c), expected, found);
+            }
+        }
+    }
+
+
+    @Test
+    public void eightBitSingleStrip() throws IOException {
+        roundTrip(8, 40, 30, 1, lut(), 0, 10);
+    }
+
+    @Test
+    public void eightBitStackInStrips() throws IOException {
+        // 75000 bytes per slice, 2 strips
+        roundTrip(8, 300, 250, 3, lut(), 2, 200);
+    }
+
+    @Test
+    public void sixteenBitSingleStrip() throws IOException {
+        roundTrip(16, 64, 48, 1, lut(), 0, 300);
+    }
+
+    @Test
+    public void sixteenBitStackInStrips() throws IOException {
+        // 72000 bytes per slice, 2 strips
+        roundTrip(16, 200, 180, 5, lut(), 10, 40000);
+    }
+
+    @Test
+    public void floatStackSingleStrip() throws IOException {
+        roundTrip(32, 20, 10, 4, null, -1.5, 2.5);
+    }
+
+    @Test
+    public void floatStackInStrips() throws IOException {
+        // 78000 bytes per slice, 2 strips
+        roundTrip(32, 150, 130, 2, null, -1.5, 2.5);
+    }
+}
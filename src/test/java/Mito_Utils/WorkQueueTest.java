@@ -0,0 +1,263 @@
+package Mito_Utils;
+
+import ij.gui.Roi;
+import ij.measure.Calibration;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Queue runs : rois completed from the results cache, claims bounded by the compute threads,
+ * expired leases, two workers on one queue and a dead merger
+ *
+ * @author phm
+ */
+public class WorkQueueTest {
+
+    private static final long MB = 1024 * 1024;
+
+    private Path dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("mito-queue");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(f -> f.toFile().delete());
+        }
+    }
+
+
+    /**
+     * Rois of one image, largest first
+     */
+    private static List<Ingestion.Task> tasks(int n) {
+        Ingestion.SeriesInfo info = new Ingestion.SeriesInfo(0, 64, 64, 8, new Calibration());
+        List<Ingestion.Task> tasks = new ArrayList<>();
+        for (int order = n - 1; order >= 0; order--) {
+            Roi roi = new Roi(0, 0, 8 + order, 8 + order);
+            roi.setName("roi" + order);
+            Ingestion.Task task = new Ingestion.Task("img.tif", "img", "img", info, "hash", roi, null);
+            task.order = order;
+            tasks.add(task);
+        }
+        return(tasks);
+    }
+
+    private static String key(Ingestion.Task task) {
+        return(ResultsCache.roiKey(task.imageKey, task.roiHash, task.roiPoly.getName(), "fingerprint"));
+    }
+
+    private static List<ResultsRow> rows(Ingestion.Task task) {
+        return(Collections.singletonList(new ResultsRow(0, new String[] {task.imageName, task.roiPoly.getName()}, task.getOrder())));
+    }
+
+
+    /**
+     * One worker run as MitoBatch.runQueue : claims completed from the cache or computed, then committed to the queue
+     * @param compute computed rows of a roi
+     * @return rois claimed
+     */
+    private static int work(WorkQueue queue, List<Ingestion.Task> tasks, ResultsCache cache, int workers,
+            RoiScheduler.Stage<Ingestion.Task, List<ResultsRow>> compute) throws Exception {
+        try (RoiScheduler scheduler = new RoiScheduler(workers, 1, 100 * MB)) {
+            queue.publish(tasks, Collections.emptyList());
+            int claimed = MitoBatch.claimQueue(queue, scheduler, tasks, cache, WorkQueueTest::key, task -> {},
+                    (order, task, key) -> scheduler.submit(MB, order, v -> task, compute, r -> cache.put(key, r, 
+                            Collections.emptyList()), r -> queue.complete(task.getOrder(), r), null));
+            scheduler.await();
+            return(claimed);
+        } finally {
+            queue.close();
+        }
+    }
+
+    /**
+     * Merge if no other worker did
+     * @return true if merged by this queue
+     */
+    private static boolean merge(WorkQueue queue, String outDir) throws Exception {
+        if (!queue.tryMerge())
+            return(false);
+        List<ResultsWriter.Table> tables = Collections.singletonList(new ResultsWriter.Table("rois",
+                new String[] {"image", "roi"}, new String[] {"order"}));
+        try (ResultsWriter results = new ResultsWriter(outDir, tables, ResultsWriter.Format.TSV)) {
+            queue.merge(results);
+        }
+        queue.endMerge();
+        return(true);
+    }
+
+    /**
+     * Merged table of rois 0 to n-1, once each in order
+     */
+    private static void assertMerged(String outDir, int n) throws IOException {
+        List<String> expected = new ArrayList<>();
+        expected.add("image\troi\torder");
+        for (int order = 0; order < n; order++)
+            expected.add("img\troi" + order + "\t" + order);
+        assertEquals(expected, Files.readAllLines(new File(outDir, "rois.xls").toPath(), StandardCharsets.UTF_8));
+    }
+
+
+    @Test(timeout = 20000)
+    public void rerunWithPartlyFilledManifest() throws Exception {
+        String outDir = dir.resolve("results").toString() + File.separator;
+        List<Ingestion.Task> tasks = tasks(5);
+        // the first run stopped after rois 1 and 3
+        ResultsCache cache = new ResultsCache(outDir);
+        for (Ingestion.Task task : tasks)
+            if (task.getOrder() == 1 || task.getOrder() == 3)
+                cache.put(key(task), rows(task), Collections.emptyList());
+        List<String> computed = Collections.synchronizedList(new ArrayList<>());
+        WorkQueue queue = new WorkQueue(dir.resolve("queue").toString(), "worker", 60000);
+        int claimed = work(queue, tasks, cache, 2, t -> {
+            computed.add(t.roiPoly.getName());
+            return(rows(t));
+        });
+        assertEquals(5, claimed);
+        Collections.sort(computed);
+        assertEquals(Arrays.asList("roi0", "roi2", "roi4"), computed);
+        for (Ingestion.Task task : tasks)
+            assertNotNull(cache.get(key(task)));
+
+        assertTrue(merge(queue, outDir));
+        assertMerged(outDir, 5);
+    }
+
+    @Test(timeout = 20000)
+    public void claimsWaitForAFreeWorker() throws Exception {
+        String outDir = dir.resolve("results").toString() + File.separator;
+        List<Ingestion.Task> tasks = tasks(6);
+        WorkQueue queue = new WorkQueue(dir.resolve("queue").toString(), "worker", 60000);
+        CountDownLatch started = new CountDownLatch(2);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread worker = new Thread(() -> {
+            try {
+                work(queue, tasks, new ResultsCache(outDir), 2, t -> {
+                    started.countDown();
+                    release.await();
+                    return(rows(t));
+                });
+            } catch (Exception ex) {
+                throw new RuntimeException(ex);
+            }
+        });
+        worker.start();
+        started.await();
+        // both compute threads busy : no third lease
+        Thread.sleep(300);
+        assertEquals(4, queue.todo().size());
+        try (Stream<Path> leases = Files.list(queue.getDir().resolve("leases"))) {
+            assertEquals(2, leases.count());
+        }
+        release.countDown();
+        worker.join();
+        assertTrue(queue.isFinished());
+        assertTrue(merge(queue, outDir));
+        assertMerged(outDir, 6);
+    }
+
+    @Test(timeout = 20000)
+    public void expiredLeaseIsRequeued() throws Exception {
+        String outDir = dir.resolve("results").toString() + File.separator;
+        String queueDir = dir.resolve("queue").toString();
+        List<Ingestion.Task> tasks = tasks(5);
+        // a worker dies holding roi 2 : its lease is no longer renewed
+        WorkQueue dead = new WorkQueue(queueDir, "dead", 300);
+        dead.publish(tasks, Collections.emptyList());
+        assertTrue(dead.claim(2));
+        dead.close();
+
+        List<String> computed = Collections.synchronizedList(new ArrayList<>());
+        WorkQueue queue = new WorkQueue(queueDir, "alive", 300);
+        int claimed = work(queue, tasks, new ResultsCache(outDir), 2, t -> {
+            computed.add(t.roiPoly.getName());
+            return(rows(t));
+        });
+        assertEquals(5, claimed);
+        Collections.sort(computed);
+        assertEquals(Arrays.asList("roi0", "roi1", "roi2", "roi3", "roi4"), computed);
+
+        // the late worker can't complete the roi, its rows are ignored
+        assertFalse(dead.complete(2, Collections.singletonList(new ResultsRow(0, new String[] {"late", "roi2"}, 2))));
+        dead.close();
+        assertTrue(merge(queue, outDir));
+        assertMerged(outDir, 5);
+    }
+
+    @Test(timeout = 30000)
+    public void twoWorkersShareTheRois() throws Exception {
+        String outDir = dir.resolve("results").toString() + File.separator;
+        String queueDir = dir.resolve("queue").toString();
+        int n = 12;
+        List<String> computed = Collections.synchronizedList(new ArrayList<>());
+        int[] claimed = new int[2];
+        boolean[] merged = new boolean[2];
+        List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+        Thread[] workers = new Thread[2];
+        for (int w = 0; w < 2; w++) {
+            int index = w;
+            workers[w] = new Thread(() -> {
+                try {
+                    WorkQueue queue = new WorkQueue(queueDir, "w" + index, 300);
+                    claimed[index] = work(queue, tasks(n), new ResultsCache(outDir), 1, t -> {
+                        Thread.sleep(50);
+                        computed.add(t.roiPoly.getName());
+                        return(rows(t));
+                    });
+                    merged[index] = merge(queue, outDir);
+                } catch (Throwable ex) {
+                    failures.add(ex);
+                }
+            });
+            workers[w].start();
+        }
+        for (Thread t : workers)
+            t.join();
+        assertEquals(Collections.emptyList(), failures);
+        // one compute thread each : neither worker leases all the rois
+        assertTrue(claimed[0] > 0 && claimed[1] > 0);
+        assertEquals(n, claimed[0] + claimed[1]);
+        assertEquals(n, computed.size());
+        assertEquals(n, new HashSet<>(computed).size());
+        assertTrue(merged[0] != merged[1]);
+        assertMerged(outDir, n);
+    }
+
+    @Test(timeout = 20000)
+    public void staleMergeIsTakenOver() throws Exception {
+        String outDir = dir.resolve("results").toString() + File.separator;
+        String queueDir = dir.resolve("queue").toString();
+        List<Ingestion.Task> tasks = tasks(3);
+        WorkQueue queue = new WorkQueue(queueDir, "worker", 300);
+        work(queue, tasks, new ResultsCache(outDir), 1, WorkQueueTest::rows);
+        // a merger dies before writing the tables
+        WorkQueue dead = new WorkQueue(queueDir, "dead", 300);
+        assertTrue(dead.tryMerge());
+        dead.close();
+        assertTrue(merge(queue, outDir));
+        assertMerged(outDir, 3);
+        // merged : later workers don't merge again
+        WorkQueue late = new WorkQueue(queueDir, "late", 300);
+        late.close();
+        assertFalse(late.tryMerge());
+    }
+}